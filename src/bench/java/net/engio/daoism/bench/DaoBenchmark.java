@@ -0,0 +1,160 @@
+package net.engio.daoism.bench;
+
+import net.engio.common.domain.Queries;
+import net.engio.common.domain.VServer;
+import net.engio.common.domain.VServerDao;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the operations of {@link net.engio.daoism.dao.TypedDao} against the embedded H2 database that is used by the tests.
+ * Each benchmark is run with EclipseLink and Hibernate as JPA provider (see META-INF/bench-applicationContext.xml) and
+ * a varying number of entities in the table. The table is reset before each iteration such that write benchmarks do not
+ * influence the following iterations.
+ *
+ * @author Benjamin Diedrichsen
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DaoBenchmark {
+
+	// number of distinct hosts, the named query returns entityCount / HOSTS rows
+	private static final int HOSTS = 10;
+
+	@State(Scope.Benchmark)
+	public static class Dao {
+
+		@Param({"eclipselink", "hibernate"})
+		public String jpa;
+
+		@Param({"100", "1000"})
+		public int entityCount;
+
+		private ClassPathXmlApplicationContext context;
+
+		VServerDao dao;
+
+		List<String> ids;
+
+		@Setup(Level.Trial)
+		public void start() {
+			System.setProperty("daoism.bench.jpa", jpa);
+			context = new ClassPathXmlApplicationContext("META-INF/bench-applicationContext.xml");
+			dao = context.getBean(VServerDao.class);
+		}
+
+		@Setup(Level.Iteration)
+		public void populate() {
+			dao.bulkDelete(dao.findAll(), false);
+			List<VServer> vServers = new ArrayList<VServer>(entityCount);
+			for (int i = 0; i < entityCount; i++) {
+				vServers.add(newVServer(i));
+			}
+			ids = new ArrayList<String>(entityCount);
+			for (VServer vServer : dao.persistAll(vServers, 100)) {
+				ids.add(vServer.getId());
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() {
+			context.close();
+		}
+
+		String randomId() {
+			return ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Batch {
+
+		@Param({"1", "50"})
+		public int batchSize;
+
+		List<VServer> vServers;
+
+		@Setup(Level.Invocation)
+		public void create() {
+			vServers = new ArrayList<VServer>(batchSize);
+			for (int i = 0; i < batchSize; i++) {
+				vServers.add(newVServer(i));
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Deletion {
+
+		VServer vServer;
+
+		// invocation level setup adds some overhead, but deleting requires a fresh entity for each invocation
+		@Setup(Level.Invocation)
+		public void create(Dao state) {
+			vServer = state.dao.persist(newVServer(0));
+		}
+	}
+
+	static VServer newVServer(int index) {
+		VServer vServer = new VServer();
+		vServer.setName("bench-" + index);
+		vServer.setHost("host-" + index % HOSTS);
+		vServer.setNumberOfNics(index % 4).setNumberOfPorts((long) index);
+		return vServer;
+	}
+
+	@Benchmark
+	public VServer persist(Dao state) {
+		return state.dao.persist(newVServer(0));
+	}
+
+	@Benchmark
+	public List<VServer> persistAll(Dao state, Batch batch) {
+		return state.dao.persistAll(batch.vServers, batch.batchSize);
+	}
+
+	@Benchmark
+	public VServer findById(Dao state) {
+		return state.dao.findById(state.randomId());
+	}
+
+	@Benchmark
+	public List<VServer> findAll(Dao state) {
+		return state.dao.findAll();
+	}
+
+	@Benchmark
+	public long count(Dao state) {
+		return state.dao.countAll();
+	}
+
+	@Benchmark
+	public List<VServer> namedQuery(Dao state) {
+		return state.dao.findAll(Queries.VServer.ByHost("host-" + ThreadLocalRandom.current().nextInt(HOSTS)));
+	}
+
+	@Benchmark
+	public boolean delete(Dao state, Deletion deletion) {
+		return state.dao.delete(deletion.vServer);
+	}
+}
@@ -0,0 +1,28 @@
+package net.engio.daoism.bench;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks of this package. Accepts the same arguments as the JMH command line, e.g.
+ * "-p jpa=hibernate -p entityCount=1000" to restrict the parameter space.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class DaoBenchmarks {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.include(DaoBenchmarks.class.getPackage().getName() + ".*");
+		if (!System.getProperty("java.specification.version").startsWith("1.")) {
+			// cglib proxies of spring require access to ClassLoader.defineClass on recent JVMs
+			options.jvmArgsAppend("--add-opens", "java.base/java.lang=ALL-UNNAMED");
+		}
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,221 @@
+package net.engio.daoism.dao;
+
+import net.engio.daoism.Persistent;
+import net.engio.daoism.dao.query.Options.AccessPlan;
+import net.engio.daoism.dao.query.Page;
+import net.engio.daoism.dao.query.Query;
+import net.engio.daoism.dao.query.Query.TypedQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * The default implementation of {@link IAsyncTypedDao}. It runs each operation of an underlying {@link ITypedDao}
+ * as a separate task on the configured executor.
+ *
+ * Each task needs its own entity manager (or equivalent resource of other persistence technologies) since these are not thread-safe.
+ * Container managed entity managers (e.g. injected by Spring using @PersistenceContext) are bound to the executing thread and
+ * need no further configuration. Otherwise, an {@link IExecutionScope} can be specified that is begun before and ended after each task,
+ * see {@link net.engio.daoism.dao.jpa.ThreadScopedPersistenceProvider}.
+ *
+ * @author Benjamin Diedrichsen
+ *
+ * @param <K>
+ * @param <E>
+ */
+public class AsyncTypedDao<K extends Serializable, E extends Persistent<K>> implements IAsyncTypedDao<K, E> {
+
+	private static final Logger log = LoggerFactory.getLogger(AsyncTypedDao.class);
+
+	private static final IExecutionScope NoScope = new IExecutionScope() {
+		@Override
+		public void begin() {
+		}
+
+		@Override
+		public void end() {
+		}
+	};
+
+	private final ITypedDao<K, E> dao;
+
+	private final Executor executor;
+
+	private final IExecutionScope scope;
+
+	public AsyncTypedDao(ITypedDao<K, E> dao, Executor executor) {
+		this(dao, executor, NoScope);
+	}
+
+	public AsyncTypedDao(ITypedDao<K, E> dao, Executor executor, IExecutionScope scope) {
+		this.dao = dao;
+		this.executor = executor;
+		this.scope = scope;
+	}
+
+	/**
+	 * Create an executor that is suitable for blocking persistence operations. It uses virtual threads if they are
+	 * supported by the running JVM and an unbounded pool of daemon threads otherwise.
+	 */
+	public static ExecutorService newDefaultExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			log.debug("Virtual threads are not available, using platform threads");
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "daoism-async-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Run the given operation on the executor within its own execution scope
+	 */
+	protected <R> CompletableFuture<R> submit(Supplier<R> operation) {
+		return CompletableFuture.supplyAsync(() -> {
+			scope.begin();
+			try {
+				return operation.get();
+			} finally {
+				scope.end();
+			}
+		}, executor);
+	}
+
+	@Override
+	public CompletableFuture<Boolean> delete(E entity) {
+		return submit(() -> dao.delete(entity));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> deleteAll(Collection<E> entities) {
+		return submit(() -> dao.deleteAll(entities));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> bulkDelete(Collection<E> entities, boolean checkVersion) {
+		return submit(() -> dao.bulkDelete(entities, checkVersion));
+	}
+
+	@Override
+	public CompletableFuture<List<E>> findAll() {
+		return submit(() -> dao.findAll());
+	}
+
+	@Override
+	public CompletableFuture<E> findById(K id) {
+		return submit(() -> dao.findById(id));
+	}
+
+	@Override
+	public CompletableFuture<E> findById(K id, AccessPlan options) {
+		return submit(() -> dao.findById(id, options));
+	}
+
+	@Override
+	public CompletableFuture<List<E>> findByIds(Collection<K> ids) {
+		return submit(() -> dao.findByIds(ids));
+	}
+
+	@Override
+	public CompletableFuture<Map<K, E>> findByIdsAsMap(Collection<K> ids) {
+		return submit(() -> dao.findByIdsAsMap(ids));
+	}
+
+	@Override
+	public CompletableFuture<E> persist(E entity) {
+		return submit(() -> dao.persist(entity));
+	}
+
+	@Override
+	public CompletableFuture<List<E>> persistAll(List<E> entities) {
+		return submit(() -> dao.persistAll(entities));
+	}
+
+	@Override
+	public CompletableFuture<List<E>> persistAll(List<E> entities, int batchSize) {
+		return submit(() -> dao.persistAll(entities, batchSize));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> upsert(E entity) {
+		return submit(() -> dao.upsert(entity));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> upsertAll(Collection<E> entities) {
+		return submit(() -> dao.upsertAll(entities));
+	}
+
+	@Override
+	public CompletableFuture<Void> runTransactional(IUnitOfWork t) {
+		return submit(() -> {
+			dao.runTransactional(t);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Long> countAll() {
+		return submit(() -> dao.countAll());
+	}
+
+	@Override
+	public CompletableFuture<Boolean> exists(K id) {
+		return submit(() -> dao.exists(id));
+	}
+
+	@Override
+	public CompletableFuture<E> find(TypedQuery query) {
+		return submit(() -> dao.find(query));
+	}
+
+	@Override
+	public CompletableFuture<E> find(TypedQuery query, AccessPlan options) {
+		return submit(() -> dao.find(query, options));
+	}
+
+	@Override
+	public <R> CompletableFuture<List<R>> query(Class<R> queryResultType, Query queryToRun) {
+		return submit(() -> dao.query(queryResultType, queryToRun));
+	}
+
+	@Override
+	public <R> CompletableFuture<Page<R>> queryPage(Class<R> queryResultType, Query queryToRun) {
+		return submit(() -> dao.queryPage(queryResultType, queryToRun));
+	}
+
+	@Override
+	public CompletableFuture<Page<E>> findPage(TypedQuery query) {
+		return submit(() -> dao.findPage(query));
+	}
+
+	@Override
+	public CompletableFuture<List<E>> findAll(TypedQuery query) {
+		return submit(() -> dao.findAll(query));
+	}
+
+	@Override
+	public CompletableFuture<List<E>> findAll(TypedQuery query, AccessPlan options) {
+		return submit(() -> dao.findAll(query, options));
+	}
+}
@@ -0,0 +1,165 @@
+package net.engio.daoism.dao;
+
+import net.engio.daoism.Persistent;
+import net.engio.daoism.dao.query.Options.AccessPlan;
+import net.engio.daoism.dao.query.Page;
+import net.engio.daoism.dao.query.Query;
+import net.engio.daoism.dao.query.Query.TypedQuery;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistence provider that forwards all operations to another persistence provider. It is the base class
+ * for decorators that add behaviour to an existing persistence provider (caching, monitoring etc.) without being
+ * aware of the underlying persistence technology. Subclasses override the operations they are interested in.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class DelegatingPersistenceProvider implements IPersistenceProvider {
+
+	private final IPersistenceProvider delegate;
+
+	public DelegatingPersistenceProvider(IPersistenceProvider delegate) {
+		if (delegate == null) {
+			throw new IllegalArgumentException("The delegate persistence provider may not be null");
+		}
+		this.delegate = delegate;
+	}
+
+	public IPersistenceProvider getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean delete(Class<E> domainClass, E entity) {
+		return delegate.delete(domainClass, entity);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean deleteAll(Class<E> domainClass, Collection<E> entities) {
+		return delegate.deleteAll(domainClass, entities);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean bulkDelete(Class<E> domainClass, Collection<E> entities, boolean checkVersion) {
+		return delegate.bulkDelete(domainClass, entities, checkVersion);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass) {
+		return delegate.findAll(domainClass);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> IResultIterator<E> iterateAll(Class<E> domainClass, int fetchSize) {
+		return delegate.iterateAll(domainClass, fetchSize);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id) {
+		return delegate.findById(domainClass, id);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id, AccessPlan options) {
+		return delegate.findById(domainClass, id, options);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> Map<Serializable, E> findByIds(Class<E> domainClass, Collection<? extends Serializable> ids) {
+		return delegate.findByIds(domainClass, ids);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E persist(Class<E> domainClass, E entity) {
+		return delegate.persist(domainClass, entity);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> persistAll(Class<E> domainClass, List<E> entities) {
+		return delegate.persistAll(domainClass, entities);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> persistAll(Class<E> domainClass, List<E> entities, int batchSize) {
+		return delegate.persistAll(domainClass, entities, batchSize);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean upsert(Class<E> domainClass, E entity) {
+		return delegate.upsert(domainClass, entity);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean upsertAll(Class<E> domainClass, Collection<E> entities) {
+		return delegate.upsertAll(domainClass, entities);
+	}
+
+	@Override
+	public void runInTransaction(IUnitOfWork t) {
+		delegate.runInTransaction(t);
+	}
+
+	@Override
+	public boolean supportsUnitsOfWork() {
+		return delegate.supportsUnitsOfWork();
+	}
+
+	@Override
+	public boolean isTransactionActive() {
+		return delegate.isTransactionActive();
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> long count(Class<E> domainClass) {
+		return delegate.count(domainClass);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean exists(Class<E> domainClass, Serializable id) {
+		return delegate.exists(domainClass, id);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, TypedQuery query) {
+		return delegate.findAll(domainClass, query);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, TypedQuery query, AccessPlan options) {
+		return delegate.findAll(domainClass, query, options);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> IResultIterator<E> iterateAll(Class<E> domainClass, TypedQuery query, int fetchSize) {
+		return delegate.iterateAll(domainClass, query, fetchSize);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E find(Class<E> domainClass, TypedQuery query) {
+		return delegate.find(domainClass, query);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E find(Class<E> domainClass, TypedQuery query, AccessPlan options) {
+		return delegate.find(domainClass, query, options);
+	}
+
+	@Override
+	public <E> List<E> runQuery(Class<E> resultType, Query source) {
+		return delegate.runQuery(resultType, source);
+	}
+
+	@Override
+	public <E> Page<E> runPagedQuery(Class<E> resultType, Query source) {
+		return delegate.runPagedQuery(resultType, source);
+	}
+
+	@Override
+	public void flush() {
+		delegate.flush();
+	}
+}
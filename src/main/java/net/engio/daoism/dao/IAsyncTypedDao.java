@@ -0,0 +1,169 @@
+package net.engio.daoism.dao;
+
+import net.engio.daoism.Persistent;
+import net.engio.daoism.dao.query.Options.AccessPlan;
+import net.engio.daoism.dao.query.Page;
+import net.engio.daoism.dao.query.Query;
+import net.engio.daoism.dao.query.Query.TypedQuery;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The asynchronous counterpart of {@link ITypedDao}. Each operation is run on a separate thread and
+ * the caller is handed a future that completes with the result of the operation (or exceptionally with the error it raised).
+ * Independent operations can thus be run in parallel and composed without blocking the calling thread.
+ *
+ * Domain objects returned by the futures are not managed by the persistence context of the calling thread.
+ *
+ * @author Benjamin Diedrichsen
+ *
+ * @param <KEY>
+ *            The type of primary key used for the {@link net.engio.daoism.Persistent}
+ * @param <E>
+ *            The type of domain object the instance of {@link IAsyncTypedDao} works on
+ */
+public interface IAsyncTypedDao<KEY extends Serializable, E extends Persistent<KEY>> {
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<Boolean> delete(E entity);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<Boolean> deleteAll(Collection<E> entities);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<Boolean> bulkDelete(Collection<E> entities, boolean checkVersion);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<List<E>> findAll();
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<E> findById(KEY id);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<E> findById(KEY id, AccessPlan options);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<List<E>> findByIds(Collection<KEY> ids);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<Map<KEY, E>> findByIdsAsMap(Collection<KEY> ids);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<E> persist(E entity);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<List<E>> persistAll(List<E> entities);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<List<E>> persistAll(List<E> entities, int batchSize);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<Boolean> upsert(E entity);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<Boolean> upsertAll(Collection<E> entities);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<Void> runTransactional(IUnitOfWork t);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<Long> countAll();
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<Boolean> exists(KEY id);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<E> find(TypedQuery query);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<E> find(TypedQuery query, AccessPlan options);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	<R> CompletableFuture<List<R>> query(Class<R> queryResultType, Query queryToRun);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	<R> CompletableFuture<Page<R>> queryPage(Class<R> queryResultType, Query queryToRun);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<Page<E>> findPage(TypedQuery query);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<List<E>> findAll(TypedQuery query);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.ITypedDao}.
+	 *
+	 */
+	CompletableFuture<List<E>> findAll(TypedQuery query, AccessPlan options);
+
+}
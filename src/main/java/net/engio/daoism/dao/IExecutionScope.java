@@ -0,0 +1,24 @@
+package net.engio.daoism.dao;
+
+/**
+ * An execution scope binds resources (e.g. an entity manager) to the executing thread for the duration of a task.
+ * It is used by components that run persistence operations on other threads, such as {@link AsyncTypedDao},
+ * to give each task its own set of resources.
+ *
+ * Scopes may be nested. Resources are released when the outermost scope ends.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public interface IExecutionScope {
+
+	/**
+	 * Begin a scope on the calling thread
+	 */
+	void begin();
+
+	/**
+	 * End the scope that has been started last on the calling thread
+	 */
+	void end();
+
+}
@@ -2,12 +2,14 @@ package net.engio.daoism.dao;
 
 import net.engio.daoism.Persistent;
 import net.engio.daoism.dao.query.Options.AccessPlan;
+import net.engio.daoism.dao.query.Page;
 import net.engio.daoism.dao.query.Query;
 import net.engio.daoism.dao.query.Query.TypedQuery;
 
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A generic interface to plug-in a specific persistence technology. The interface provides methods for the standard
@@ -55,6 +57,22 @@ public interface IPersistenceProvider {
 	 */
 	<E extends Persistent<? extends Serializable>> boolean deleteAll(Class<E> domainClass, Collection<E> entities);
 
+	/**
+	 * Deletes a list of domain objects from persistence storage using set based operations (e.g. DELETE ... WHERE id IN (...))
+	 * instead of loading and removing each domain object individually. This is considerably faster than
+	 * {@link #deleteAll(Class, java.util.Collection)} for large numbers of domain objects but neither cascades the deletion
+	 * to referenced objects nor triggers any lifecycle callbacks.
+	 * Representations of the deleted objects held by the persistence provider will be invalidated.
+	 *
+	 * @param <E> Any subtype of {@link net.engio.daoism.Persistent} welcome
+	 * @param domainClass The class of domain object that will be deleted
+	 * @param entities The domain objects to delete
+	 * @param checkVersion If true, a domain object is only deleted if its version matches the version in persistent storage
+	 *                     (optimistic semantics)
+	 * @return true, if all domain objects have been deleted. false otherwise
+	 */
+	<E extends Persistent<? extends Serializable>> boolean bulkDelete(Class<E> domainClass, Collection<E> entities, boolean checkVersion);
+
 
 	/**
 	 * Finds all domain objects of type domainClass and possibly its subtypes
@@ -65,6 +83,18 @@ public interface IPersistenceProvider {
 	 */
 	<E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass);
 
+	/**
+	 * Iterates over all domain objects of type domainClass and possibly its subtypes. In contrast to
+	 * {@link #findAll(Class)} the domain objects are fetched in chunks and released after they have been
+	 * iterated, such that memory consumption does not depend on the total number of domain objects.
+	 *
+	 * @param <E> Any subtype of {@link net.engio.daoism.Persistent} welcome
+	 * @param domainClass The upper bound of the class hierarchy that will be considered in the query
+	 * @param fetchSize The number of domain objects fetched at once. Must be greater than zero
+	 * @return An iterator over all domain objects of type <D> or one of its subtypes. It needs to be closed after use.
+	 */
+	<E extends Persistent<? extends Serializable>> IResultIterator<E> iterateAll(Class<E> domainClass, int fetchSize);
+
 	/**
 	 * Find a domain object by its primary key.
 	 * 
@@ -85,6 +115,18 @@ public interface IPersistenceProvider {
 	 * @return the domain object with the given id or null if such an object does not exist
 	 */
 	<E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id, AccessPlan options);
+
+	/**
+	 * Find multiple domain objects by their primary keys. Domain objects that are available locally are not fetched again,
+	 * all others are fetched with as few queries as possible.
+	 *
+	 * @param <E> Any subtype of {@link net.engio.daoism.Persistent} welcome
+	 * @param domainClass The class of domain object that will looked up by id
+	 * @param ids The primary keys of the domain objects
+	 * @return A map of all found domain objects by their primary key. It iterates in the order of the given primary keys.
+	 * Primary keys of non-existing domain objects are not contained.
+	 */
+	<E extends Persistent<? extends Serializable>> Map<Serializable, E> findByIds(Class<E> domainClass, Collection<? extends Serializable> ids);
 	
 
 	/**
@@ -108,6 +150,52 @@ public interface IPersistenceProvider {
 	 */
 	<E extends Persistent<? extends Serializable>> List<E> persistAll(Class<E> domainClass, List<E> entities);
 
+	/**
+	 * Persists a list of domain objects in chunks of the given batch size. It applies the semantics of the persist
+	 * operation of a single domain object but writes pending changes to the underlying storage only once per batch and
+	 * releases all state held for the written batch afterwards. Memory consumption thus stays constant no matter how many
+	 * domain objects are persisted. This is the preferred method for bulk imports.
+	 *
+	 * Note: Releasing the state of a written batch may also affect other objects that are held by the underlying
+	 * persistence technology, e.g. in the context of a surrounding transaction.
+	 *
+	 * @param <E> Any subtype of {@link net.engio.daoism.Persistent} welcome
+	 * @param domainClass The class of domain object that will be persisted
+	 * @param entities The domain object to persist
+	 * @param batchSize The number of domain objects that are written at once. Must be greater than zero
+	 * @return A list containing all successfully persisted objects
+	 */
+	<E extends Persistent<? extends Serializable>> List<E> persistAll(Class<E> domainClass, List<E> entities, int batchSize);
+
+	/**
+	 * Inserts the given domain object or updates it, if a domain object with the same primary key already exists. In contrast
+	 * to {@link #persist(Class, net.engio.daoism.Persistent)}, the decision is made by the underlying storage in a single
+	 * atomic operation (e.g. a native merge statement). Thus, no domain object is read beforehand and concurrent upserts of the
+	 * same primary key do not fail. The primary key must be assigned by the application.
+	 *
+	 * Note: The version of the given domain object is not checked, the last write wins. The given object is not
+	 * attached to the persistence context and its version is not updated. It needs to be reloaded before it can be modified
+	 * with optimistic locking.
+	 *
+	 * @param <E> Any subtype of {@link net.engio.daoism.Persistent} welcome
+	 * @param domainClass The class of domain object that will be written
+	 * @param entity The domain object to write
+	 * @return true, if the domain object has been written. false otherwise (e.g. if no primary key has been assigned)
+	 */
+	<E extends Persistent<? extends Serializable>> boolean upsert(Class<E> domainClass, E entity);
+
+	/**
+	 * Inserts or updates all given domain objects as described by {@link #upsert(Class, net.engio.daoism.Persistent)}.
+	 * The domain objects are written in chunks, each chunk with a single statement. If the same primary key occurs more than
+	 * once, the last occurrence wins.
+	 *
+	 * @param <E> Any subtype of {@link net.engio.daoism.Persistent} welcome
+	 * @param domainClass The class of domain object that will be written
+	 * @param entities The domain objects to write
+	 * @return true, if all domain objects have been written. false otherwise
+	 */
+	<E extends Persistent<? extends Serializable>> boolean upsertAll(Class<E> domainClass, Collection<E> entities);
+
 	/**
 	 * Executes the given unit of work within new transaction boundaries. If the unit of work executes without 
 	 * exceptions, then changes to persistent object are committed else all changes are rolled back.
@@ -116,6 +204,26 @@ public interface IPersistenceProvider {
 	 */
 	void runInTransaction(IUnitOfWork t);
 
+	/**
+	 * Check whether any unit of work can be run by {@link #runInTransaction(IUnitOfWork)}. Providers that partition the
+	 * domain objects (e.g. across shards) can only run units of work that identify their partition.
+	 *
+	 * @return true, if units of work do not need to identify a partition of the domain objects
+	 */
+	default boolean supportsUnitsOfWork() {
+		return true;
+	}
+
+	/**
+	 * Check whether the calling thread runs within a transaction of this provider that has not completed yet, e.g. a unit
+	 * of work or a transaction that is managed by a container. Reads within a transaction may see its uncommitted changes.
+	 *
+	 * @return true, if a transaction is active for the calling thread
+	 */
+	default boolean isTransactionActive() {
+		return false;
+	}
+
 	
 	/**
 	 * Counts all existing entities of type Class<E>
@@ -124,6 +232,14 @@ public interface IPersistenceProvider {
 	 */
 	<E extends Persistent<? extends Serializable>> long count(Class<E> domainClass);
 
+	/**
+	 * Check whether a domain object with the given primary key exists, without loading it
+	 * @param domainClass The class type of domain object
+	 * @param id The primary key of the domain object
+	 * @return true, if the domain object exists. false otherwise
+	 */
+	<E extends Persistent<? extends Serializable>> boolean exists(Class<E> domainClass, Serializable id);
+
     /**
      * Execute a typed query to retrieve any number of domain objects.
      *
@@ -133,6 +249,29 @@ public interface IPersistenceProvider {
      */
 	<E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, TypedQuery query);
 
+    /**
+     * Execute a typed query to retrieve any number of domain objects using the specified access plan, e.g.
+     * to lock the results or to load them read-only.
+     *
+     * @param domainClass Any valid domain class
+     * @param query  The query to execute
+     * @param options The access plan to apply to all results
+     * @return
+     */
+	<E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, TypedQuery query, AccessPlan options);
+
+    /**
+     * Iterate over the results of a typed query. The results are fetched in chunks using the paging capabilities
+     * of the query, thus the query should specify ordering criteria that produce a stable order. Result limits
+     * specified by the query are respected.
+     *
+     * @param domainClass Any valid domain class
+     * @param query  The query to execute
+     * @param fetchSize The number of domain objects fetched at once. Must be greater than zero
+     * @return An iterator over all results of the query. It needs to be closed after use.
+     */
+	<E extends Persistent<? extends Serializable>> IResultIterator<E> iterateAll(Class<E> domainClass, TypedQuery query, int fetchSize);
+
 
     /**
      * Find a single domain object using the given query. If multiple objects match, the first one is returned
@@ -145,6 +284,16 @@ public interface IPersistenceProvider {
      */
 	<E extends Persistent<? extends Serializable>> E find(Class<E> domainClass, TypedQuery query);
 
+    /**
+     * Find a single domain object using the given query and access plan. See {@link #find(Class, TypedQuery)}
+     *
+     * @param domainClass Any valid domain class
+     * @param query  The query to execute
+     * @param options The access plan to apply to the result
+     * @return
+     */
+	<E extends Persistent<? extends Serializable>> E find(Class<E> domainClass, TypedQuery query, AccessPlan options);
+
     /**
      * Execute a query
      *
@@ -155,6 +304,17 @@ public interface IPersistenceProvider {
      */
 	<E> List<E> runQuery(Class<E> resultType, Query source);
 
+    /**
+     * Execute a query that uses keyset pagination (see {@link Query#seek(String, String, Object)}) and
+     * return the requested page. The time to fetch a page does not depend on its position in the result set.
+     *
+     * @param resultType Any type of object that may be returned be the underlying persistence storage, e.g. Long,
+     *                   Tuple or any of the valid domain classes
+     * @param source   The query definition. It must specify a seek and a result limit (page size).
+     * @return The requested page with a continuation to fetch the next page
+     */
+	<E> Page<E> runPagedQuery(Class<E> resultType, Query source);
+
     /**
      * Write all pending changes to the database. A flush does not commit any data. It will just write to
      * the underlying storage technology. In context of traditional RDBMS this may cause checks of referential
@@ -0,0 +1,38 @@
+package net.engio.daoism.dao;
+
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An iterator over the results of a potentially large query. Results are fetched from the underlying storage
+ * in chunks while iterating, such that only a bounded number of domain objects is held in memory at any time.
+ *
+ * Domain objects that have been returned by the iterator are released by the persistence provider when the next chunk
+ * is fetched. Changes made to them will therefore not be picked up automatically and need to be persisted explicitly.
+ * The iterator must be closed after use to release all resources held by it, e.g. by using it in a try-with-resources statement.
+ *
+ * @author Benjamin Diedrichsen
+ *
+ * @param <E> The type of the iterated results
+ */
+public interface IResultIterator<E> extends Iterator<E>, AutoCloseable {
+
+	/**
+	 * Release all resources held by this iterator. After an iterator has been closed, it will not return any more results.
+	 * Calling close multiple times has no effect.
+	 */
+	@Override
+	void close();
+
+	/**
+	 * Get a sequential stream of the remaining results. Closing the stream closes this iterator, thus the stream must
+	 * be closed after use, e.g. by using it in a try-with-resources statement.
+	 */
+	default Stream<E> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false).onClose(this::close);
+	}
+
+}
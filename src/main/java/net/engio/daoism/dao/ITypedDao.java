@@ -2,12 +2,14 @@ package net.engio.daoism.dao;
 
 import net.engio.daoism.Persistent;
 import net.engio.daoism.dao.query.Options.AccessPlan;
+import net.engio.daoism.dao.query.Page;
 import net.engio.daoism.dao.query.Query;
 import net.engio.daoism.dao.query.Query.TypedQuery;
 
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A typed version of the {@link IPersistenceProvider} interface. It provides type-safe method for domain object persistence.
@@ -36,12 +38,24 @@ public interface ITypedDao<KEY extends Serializable, E extends Persistent<KEY>>
 	 */
 	boolean deleteAll(Collection<E> entities);
 
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
+	 * 
+	 */
+	boolean bulkDelete(Collection<E> entities, boolean checkVersion);
+
 	/**
 	 * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
 	 * 
 	 */
 	List<E> findAll();
 
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
+	 * 
+	 */
+	IResultIterator<E> iterateAll(int fetchSize);
+
 	/**
 	 * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
 	 * 
@@ -54,6 +68,19 @@ public interface ITypedDao<KEY extends Serializable, E extends Persistent<KEY>>
 	 */
 	E findById(KEY id, AccessPlan options);
 
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
+	 *
+	 * @return All found domain objects in the order of the given primary keys
+	 */
+	List<E> findByIds(Collection<KEY> ids);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
+	 *
+	 */
+	Map<KEY, E> findByIdsAsMap(Collection<KEY> ids);
+
 
 	/**
 	 * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
@@ -67,6 +94,24 @@ public interface ITypedDao<KEY extends Serializable, E extends Persistent<KEY>>
 	 */
 	List<E> persistAll(List<E> entities);
 
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
+	 * 
+	 */
+	List<E> persistAll(List<E> entities, int batchSize);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
+	 * 
+	 */
+	boolean upsert(E entity);
+
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
+	 * 
+	 */
+	boolean upsertAll(Collection<E> entities);
+
 	/**
 	 * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
 	 * 
@@ -79,24 +124,60 @@ public interface ITypedDao<KEY extends Serializable, E extends Persistent<KEY>>
 	 */
 	long countAll();
 
+	/**
+	 * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
+	 * 
+	 */
+	boolean exists(KEY id);
+
     /**
      * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
      *
      */
 	E find(TypedQuery query);
 
+    /**
+     * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
+     *
+     */
+	E find(TypedQuery query, AccessPlan options);
+
     /**
      * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
      *
      */
 	<R> List<R> query(Class<R> queryResultType, Query queryToRun);
 
+    /**
+     * See {@link net.engio.daoism.dao.IPersistenceProvider#runPagedQuery(Class, net.engio.daoism.dao.query.Query)}.
+     *
+     */
+	<R> Page<R> queryPage(Class<R> queryResultType, Query queryToRun);
+
+    /**
+     * See {@link net.engio.daoism.dao.IPersistenceProvider#runPagedQuery(Class, net.engio.daoism.dao.query.Query)}.
+     *
+     */
+	Page<E> findPage(TypedQuery query);
+
     /**
      * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
      *
      */
     List<E> findAll(TypedQuery query);
 
+    /**
+     * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
+     *
+     */
+    List<E> findAll(TypedQuery query, AccessPlan options);
+
+    /**
+     * See corresponding method in {@link net.engio.daoism.dao.IPersistenceProvider}.
+     *
+     */
+    IResultIterator<E> iterateAll(TypedQuery query, int fetchSize);
+
 
     <KEY extends Serializable, E extends Persistent<KEY>> ITypedDao forEntity(Class<KEY> keyType, Class<E> entityType);
 
@@ -0,0 +1,37 @@
+package net.engio.daoism.dao;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A result iterator over results that have already been fetched, e.g. by persistence providers that can not fetch
+ * results in chunks. Closing it releases the results.
+ *
+ * @author Benjamin Diedrichsen
+ *
+ * @param <E> The type of the iterated results
+ */
+public class ListResultIterator<E> implements IResultIterator<E> {
+
+	private Iterator<E> results;
+
+	public ListResultIterator(List<E> results) {
+		this.results = results.iterator();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return results.hasNext();
+	}
+
+	@Override
+	public E next() {
+		return results.next();
+	}
+
+	@Override
+	public void close() {
+		results = Collections.emptyIterator();
+	}
+}
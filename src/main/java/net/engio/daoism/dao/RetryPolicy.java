@@ -0,0 +1,116 @@
+package net.engio.daoism.dao;
+
+import net.engio.daoism.utils.ExceptionUtils;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * Defines how often and when a failed unit of work is retried by a {@link RetryingTransactionRunner}.
+ *
+ * The delay before a retry grows exponentially with the number of failed attempts, starting from the initial backoff and
+ * bounded by the maximum backoff. A random share of each delay (as defined by the jitter) is subtracted, such that
+ * units of work that failed because of the same conflict do not collide again when they are retried.
+ *
+ * By default, optimistic lock failures and deadlocks are retryable (see {@link #Conflicts}).
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class RetryPolicy {
+
+	/**
+	 * Failures caused by concurrent modifications that will likely succeed when retried
+	 */
+	public static final Predicate<Throwable> Conflicts = failure ->
+			ExceptionUtils.isOptimisticLockFailure(failure) || ExceptionUtils.isDeadlock(failure);
+
+	private final int maxAttempts;
+
+	private volatile long initialBackoffMillis = 10;
+
+	private volatile long maxBackoffMillis = 1000;
+
+	private volatile double multiplier = 2;
+
+	private volatile double jitter = 0.5;
+
+	private volatile Predicate<Throwable> retryable = Conflicts;
+
+	/**
+	 * @param maxAttempts The maximum number of times a unit of work is run, including the first attempt
+	 */
+	public RetryPolicy(int maxAttempts) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("At least one attempt is required but was " + maxAttempts);
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @param initialMillis The delay before the first retry
+	 * @param maxMillis The upper bound of the delay before any retry
+	 */
+	public RetryPolicy setBackoff(long initialMillis, long maxMillis) {
+		if (initialMillis < 0 || maxMillis < initialMillis) {
+			throw new IllegalArgumentException("Backoff must not be negative and the maximum must not be below the initial backoff");
+		}
+		this.initialBackoffMillis = initialMillis;
+		this.maxBackoffMillis = maxMillis;
+		return this;
+	}
+
+	/**
+	 * @param multiplier The factor by which the delay grows with each failed attempt. Must be at least one
+	 */
+	public RetryPolicy setMultiplier(double multiplier) {
+		if (multiplier < 1) {
+			throw new IllegalArgumentException("The multiplier must be at least one but was " + multiplier);
+		}
+		this.multiplier = multiplier;
+		return this;
+	}
+
+	/**
+	 * @param jitter The maximum share of a delay that is randomly subtracted, a value between 0 (no jitter) and 1
+	 */
+	public RetryPolicy setJitter(double jitter) {
+		if (jitter < 0 || jitter > 1) {
+			throw new IllegalArgumentException("Jitter must be between 0 and 1 but was " + jitter);
+		}
+		this.jitter = jitter;
+		return this;
+	}
+
+	/**
+	 * @param retryable Decides whether a failure is retried. The exception passed to the predicate is the exception thrown
+	 * by the persistence provider, its causes need to be inspected as well (see {@link ExceptionUtils})
+	 */
+	public RetryPolicy setRetryable(Predicate<Throwable> retryable) {
+		if (retryable == null) {
+			throw new IllegalArgumentException("The retryable predicate may not be null");
+		}
+		this.retryable = retryable;
+		return this;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public boolean isRetryable(Throwable failure) {
+		return retryable.test(failure);
+	}
+
+	/**
+	 * @param failedAttempts The number of attempts that failed so far
+	 * @return The delay before the next attempt, including jitter
+	 */
+	public long backoffMillis(int failedAttempts) {
+		double backoff = initialBackoffMillis * Math.pow(multiplier, Math.max(0, failedAttempts - 1));
+		long bounded = (long) Math.min(backoff, maxBackoffMillis);
+		if (jitter == 0 || bounded == 0) {
+			return bounded;
+		}
+		return bounded - (long) (bounded * jitter * ThreadLocalRandom.current().nextDouble());
+	}
+}
@@ -0,0 +1,248 @@
+package net.engio.daoism.dao;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs units of work in transactions (see {@link IPersistenceProvider#runInTransaction(IUnitOfWork)}) and retries them
+ * if they fail with a retryable exception, e.g. an optimistic lock failure. The number of attempts, the backoff between them
+ * and the retryable exceptions are defined by a {@link RetryPolicy}. If the unit of work can not be completed, the exception
+ * of the last attempt is thrown.
+ *
+ * Each attempt is run in a transaction of its own. Since the rollback of a failed transaction detaches all managed objects,
+ * every attempt starts with a fresh persistence context. A unit of work thus needs to load the domain objects it modifies
+ * by itself, domain objects that have been loaded before are not refreshed. Units of work must not be run within another
+ * transaction, since a failure marks the surrounding transaction for rollback and can not be retried.
+ *
+ * Conflicts and retries are counted per unit of work, identified by a name or the class of the unit of work
+ * (see {@link #getStatistics()}).
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class RetryingTransactionRunner {
+
+	private static final Logger log = LoggerFactory.getLogger(RetryingTransactionRunner.class);
+
+	private final IPersistenceProvider provider;
+
+	private final RetryPolicy policy;
+
+	private final IExecutionScope scope;
+
+	private final ConcurrentMap<String, UnitMetrics> units = new ConcurrentHashMap<String, UnitMetrics>();
+
+	public RetryingTransactionRunner(IPersistenceProvider provider, RetryPolicy policy) {
+		this(provider, policy, null);
+	}
+
+	/**
+	 * @param scope The execution scope that is begun for each attempt (e.g. to bind a new entity manager), may be null
+	 */
+	public RetryingTransactionRunner(IPersistenceProvider provider, RetryPolicy policy, IExecutionScope scope) {
+		if (provider == null || policy == null) {
+			throw new IllegalArgumentException("Persistence provider and retry policy may not be null");
+		}
+		this.provider = provider;
+		this.policy = policy;
+		this.scope = scope;
+	}
+
+	public RetryPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Run the unit of work and record its statistics by the name of its class
+	 */
+	public void run(IUnitOfWork unit) {
+		run(unit.getClass().getName(), unit);
+	}
+
+	/**
+	 * Run the unit of work and record its statistics by the given name
+	 *
+	 * @param name The name that identifies the unit of work in the statistics
+	 * @param unit The unit of work to run
+	 * @throws RuntimeException The exception of the last attempt, if the unit of work could not be completed
+	 */
+	public void run(String name, IUnitOfWork unit) {
+		UnitMetrics metrics = metrics(name);
+		metrics.executions.increment();
+		for (int attempt = 1; ; attempt++) {
+			try {
+				attempt(unit);
+				metrics.successes.increment();
+				return;
+			} catch (RuntimeException e) {
+				boolean retryable = policy.isRetryable(e);
+				if (retryable) metrics.conflicts.increment();
+				if (!retryable || attempt >= policy.getMaxAttempts()) {
+					metrics.failures.increment();
+					throw e;
+				}
+				long backoff = policy.backoffMillis(attempt);
+				if (log.isDebugEnabled()) log.debug("Attempt " + attempt + " of unit of work " + name + " failed, retrying in " + backoff + "ms", e);
+				if (!sleep(backoff)) {
+					metrics.failures.increment();
+					throw e;
+				}
+				metrics.retries.increment();
+			}
+		}
+	}
+
+	private void attempt(IUnitOfWork unit) {
+		if (scope != null) scope.begin();
+		try {
+			provider.runInTransaction(unit);
+		} finally {
+			if (scope != null) scope.end();
+		}
+	}
+
+	/**
+	 * @return false, if the thread has been interrupted while sleeping
+	 */
+	private static boolean sleep(long millis) {
+		if (millis <= 0) {
+			return !Thread.currentThread().isInterrupted();
+		}
+		try {
+			Thread.sleep(millis);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private UnitMetrics metrics(String name) {
+		UnitMetrics metrics = units.get(name);
+		if (metrics == null) {
+			UnitMetrics created = new UnitMetrics();
+			metrics = units.putIfAbsent(name, created);
+			if (metrics == null) metrics = created;
+		}
+		return metrics;
+	}
+
+	/**
+	 * @return The statistics of all units of work that have been run, ordered by name
+	 */
+	public List<UnitStatistics> getStatistics() {
+		List<UnitStatistics> statistics = new ArrayList<UnitStatistics>(units.size());
+		for (Map.Entry<String, UnitMetrics> unit : units.entrySet()) {
+			statistics.add(unit.getValue().snapshot(unit.getKey()));
+		}
+		Collections.sort(statistics, new Comparator<UnitStatistics>() {
+			@Override
+			public int compare(UnitStatistics one, UnitStatistics other) {
+				return one.getName().compareTo(other.getName());
+			}
+		});
+		return statistics;
+	}
+
+	/**
+	 * @return The statistics of the unit of work with the given name, or null if it has not been run
+	 */
+	public UnitStatistics getStatistics(String name) {
+		UnitMetrics metrics = units.get(name);
+		return metrics == null ? null : metrics.snapshot(name);
+	}
+
+	public void reset() {
+		units.clear();
+	}
+
+	private static class UnitMetrics {
+
+		private final LongAdder executions = new LongAdder();
+
+		private final LongAdder successes = new LongAdder();
+
+		private final LongAdder conflicts = new LongAdder();
+
+		private final LongAdder retries = new LongAdder();
+
+		private final LongAdder failures = new LongAdder();
+
+		private UnitStatistics snapshot(String name) {
+			return new UnitStatistics(name, executions.sum(), successes.sum(), conflicts.sum(), retries.sum(), failures.sum());
+		}
+	}
+
+	/**
+	 * A snapshot of the statistics of one unit of work
+	 */
+	public static class UnitStatistics {
+
+		private final String name;
+
+		private final long executions;
+
+		private final long successes;
+
+		private final long conflicts;
+
+		private final long retries;
+
+		private final long failures;
+
+		private UnitStatistics(String name, long executions, long successes, long conflicts, long retries, long failures) {
+			this.name = name;
+			this.executions = executions;
+			this.successes = successes;
+			this.conflicts = conflicts;
+			this.retries = retries;
+			this.failures = failures;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The number of times the unit of work has been run (including running executions), not counting retries
+		 */
+		public long getExecutions() {
+			return executions;
+		}
+
+		/**
+		 * @return The number of attempts that failed with a retryable exception
+		 */
+		public long getConflicts() {
+			return conflicts;
+		}
+
+		public long getRetries() {
+			return retries;
+		}
+
+		/**
+		 * @return The number of executions that could not be completed
+		 */
+		public long getFailures() {
+			return failures;
+		}
+
+		public long getSuccesses() {
+			return successes;
+		}
+
+		@Override
+		public String toString() {
+			return name + "{executions=" + executions + ", successes=" + successes + ", conflicts=" + conflicts + ", retries=" + retries + ", failures=" + failures + "}";
+		}
+	}
+}
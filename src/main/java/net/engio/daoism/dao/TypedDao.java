@@ -2,12 +2,15 @@ package net.engio.daoism.dao;
 
 import net.engio.daoism.Persistent;
 import net.engio.daoism.dao.query.Options.AccessPlan;
+import net.engio.daoism.dao.query.Page;
 import net.engio.daoism.dao.query.Query;
 import net.engio.daoism.dao.query.Query.TypedQuery;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -52,6 +55,11 @@ public abstract class TypedDao<K extends Serializable , E extends Persistent<K>>
 		return getPersistenceProvider().deleteAll(entityClass, entities);
 	}
 
+	@Override
+	public boolean bulkDelete(Collection<E> entities, boolean checkVersion) {
+		return getPersistenceProvider().bulkDelete(entityClass, entities, checkVersion);
+	}
+
 
 
 	@Override
@@ -59,10 +67,28 @@ public abstract class TypedDao<K extends Serializable , E extends Persistent<K>>
 		return getPersistenceProvider().findAll(entityClass);
 	}
 
+	@Override
+	public IResultIterator<E> iterateAll(int fetchSize) {
+		return getPersistenceProvider().iterateAll(entityClass, fetchSize);
+	}
+
 	@Override
 	public E findById(K id) {
 		return getPersistenceProvider().findById(entityClass, id);
 	}
+
+	@Override
+	public List<E> findByIds(Collection<K> ids) {
+		return new ArrayList<E>(getPersistenceProvider().findByIds(entityClass, ids).values());
+	}
+
+	@Override
+	public Map<K, E> findByIdsAsMap(Collection<K> ids) {
+		// all keys of the result have been taken from the given collection
+		@SuppressWarnings("unchecked")
+		Map<K, E> found = (Map<K, E>) getPersistenceProvider().findByIds(entityClass, ids);
+		return found;
+	}
 	
 
 	@Override
@@ -75,6 +101,21 @@ public abstract class TypedDao<K extends Serializable , E extends Persistent<K>>
 		return getPersistenceProvider().persistAll(entityClass, entities);
 	}
 
+	@Override
+	public List<E> persistAll(List<E> entities, int batchSize) {
+		return getPersistenceProvider().persistAll(entityClass, entities, batchSize);
+	}
+
+	@Override
+	public boolean upsert(E entity) {
+		return getPersistenceProvider().upsert(entityClass, entity);
+	}
+
+	@Override
+	public boolean upsertAll(Collection<E> entities) {
+		return getPersistenceProvider().upsertAll(entityClass, entities);
+	}
+
 	
 	@Override
 	public void runTransactional(IUnitOfWork t) {
@@ -87,6 +128,11 @@ public abstract class TypedDao<K extends Serializable , E extends Persistent<K>>
 		return getPersistenceProvider().count(entityClass);
 	}
 
+	@Override
+	public boolean exists(K id) {
+		return getPersistenceProvider().exists(entityClass, id);
+	}
+
 
 
     @Override
@@ -95,6 +141,11 @@ public abstract class TypedDao<K extends Serializable , E extends Persistent<K>>
         return result.isEmpty() ? null : result.get(0);
     }
 
+    @Override
+    public E find(TypedQuery query, AccessPlan options) {
+        return getPersistenceProvider().find(entityClass, query, options);
+    }
+
     public E findById(K id, AccessPlan options) {
 		return getPersistenceProvider().findById(entityClass, id, options);
 	};
@@ -105,6 +156,16 @@ public abstract class TypedDao<K extends Serializable , E extends Persistent<K>>
         return getPersistenceProvider().findAll(entityClass, query);
     }
 
+    @Override
+    public List<E> findAll(TypedQuery query, AccessPlan options) {
+        return getPersistenceProvider().findAll(entityClass, query, options);
+    }
+
+    @Override
+    public IResultIterator<E> iterateAll(TypedQuery query, int fetchSize) {
+        return getPersistenceProvider().iterateAll(entityClass, query, fetchSize);
+    }
+
     @Override
     public <KEY extends Serializable, E extends Persistent<KEY>> ITypedDao forEntity(Class<KEY> keyType, Class<E> entityType) {
         return new TypedDao(keyType, entityType) {
@@ -120,6 +181,16 @@ public abstract class TypedDao<K extends Serializable , E extends Persistent<K>>
 		return getPersistenceProvider().runQuery(queryResultType, queryToRun);
 	}
 
+    @Override
+	public <R> Page<R> queryPage(Class<R> queryResultType, Query queryToRun) {
+		return getPersistenceProvider().runPagedQuery(queryResultType, queryToRun);
+	}
+
+    @Override
+    public Page<E> findPage(TypedQuery query) {
+        return getPersistenceProvider().runPagedQuery(entityClass, query);
+    }
+
     @Override
     public boolean isSameVersion(E one, E other) {
         return one.getId().equals(other.getId()) && one.getVersion() == other.getVersion();
@@ -0,0 +1,280 @@
+package net.engio.daoism.dao;
+
+import net.engio.daoism.Persistent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A write-behind buffer for high-frequency producers of single domain objects. Persists are accepted from any number of threads
+ * into a bounded queue and written by a background thread in groups: A group is written as soon as it reached the maximum group size
+ * or the time window since its first persist elapsed. All persists of a group are written within one transaction
+ * (see {@link IPersistenceProvider#runInTransaction(IUnitOfWork)}) using {@link IPersistenceProvider#persistAll(Class, List, int)}
+ * per domain class, thus only one commit is needed per group.
+ *
+ * Each persist returns a future that completes with the persisted domain object after the group has been committed. Groups are atomic:
+ * If the transaction fails, the futures of all persists of that group fail with the same exception.
+ * If the buffer is full, {@link #persist(Class, Persistent)} blocks until there is space (backpressure).
+ *
+ * The provider must support arbitrary units of work (see {@link IPersistenceProvider#supportsUnitsOfWork()}), since a group
+ * may contain any domain objects.
+ *
+ * The buffer needs to be closed to write the remaining persists and stop the background thread.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class WriteBehindBuffer implements AutoCloseable {
+
+	private static final Logger log = LoggerFactory.getLogger(WriteBehindBuffer.class);
+
+	private final IPersistenceProvider provider;
+
+	private final IExecutionScope scope;
+
+	private final BlockingQueue<Request<?>> queue;
+
+	private final int maxGroupSize;
+
+	private final long windowNanos;
+
+	// producers hold the read lock while enqueueing, closing takes the write lock such that no persist is accepted afterwards
+	private final ReadWriteLock closing = new ReentrantReadWriteLock();
+
+	private volatile boolean closed = false;
+
+	private final Thread writer;
+
+	private final AtomicLong groups = new AtomicLong();
+
+	private final AtomicLong written = new AtomicLong();
+
+	/**
+	 * @param provider The provider that writes the groups
+	 * @param capacity The maximum number of persists that are buffered
+	 * @param maxGroupSize The maximum number of persists that are written in one transaction
+	 * @param windowMillis The maximum time a persist waits for other persists to be written with
+	 */
+	public WriteBehindBuffer(IPersistenceProvider provider, int capacity, int maxGroupSize, long windowMillis) {
+		this(provider, capacity, maxGroupSize, windowMillis, null);
+	}
+
+	/**
+	 * @param scope The execution scope that is begun on the background thread for each group (e.g. to bind an entity manager), may be null
+	 */
+	public WriteBehindBuffer(IPersistenceProvider provider, int capacity, int maxGroupSize, long windowMillis, IExecutionScope scope) {
+		if (maxGroupSize < 1 || capacity < maxGroupSize) {
+			throw new IllegalArgumentException("The group size must be positive and the capacity at least as big as the group size");
+		}
+		if (!provider.supportsUnitsOfWork()) {
+			throw new IllegalArgumentException("Groups of persists are written in one unit of work, which is not supported by " + provider
+					+ ". Use a buffer for each partition of the domain objects instead");
+		}
+		this.provider = provider;
+		this.scope = scope;
+		this.queue = new ArrayBlockingQueue<Request<?>>(capacity);
+		this.maxGroupSize = maxGroupSize;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeGroups();
+			}
+		}, "daoism-write-behind");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Buffer the given domain object for persistence. Blocks while the buffer is full.
+	 *
+	 * @return A future that completes with the persisted domain object (as returned by {@link IPersistenceProvider#persist(Class, Persistent)})
+	 * when the group that contains it has been committed
+	 */
+	public <E extends Persistent<? extends Serializable>> CompletableFuture<E> persist(Class<E> domainClass, E entity) {
+		Request<E> request = new Request<E>(domainClass, entity);
+		closing.readLock().lock();
+		try {
+			if (closed) {
+				throw new IllegalStateException("The write-behind buffer has been closed");
+			}
+			queue.put(request);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			request.result.completeExceptionally(e);
+		} finally {
+			closing.readLock().unlock();
+		}
+		return request.result;
+	}
+
+	/**
+	 * @return The number of persists that are waiting to be written
+	 */
+	public int getPending() {
+		return queue.size();
+	}
+
+	/**
+	 * @return The number of groups that have been committed
+	 */
+	public long getCommittedGroups() {
+		return groups.get();
+	}
+
+	/**
+	 * @return The number of domain objects that have been written in committed groups
+	 */
+	public long getWrittenEntities() {
+		return written.get();
+	}
+
+	/**
+	 * Stop accepting persists, write all buffered persists and wait until the background thread terminated. An interrupt
+	 * of the calling thread does not cut the wait short, since the buffered persists are written anyway. Its interrupt
+	 * status is restored before returning.
+	 */
+	@Override
+	public void close() {
+		closing.writeLock().lock();
+		try {
+			closed = true;
+		} finally {
+			closing.writeLock().unlock();
+		}
+		boolean interrupted = false;
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeGroups() {
+		List<Request<?>> group = new ArrayList<Request<?>>(maxGroupSize);
+		boolean interrupted = false;
+		while (!closed || !queue.isEmpty()) {
+			try {
+				Request<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				group.add(first);
+				long deadline = System.nanoTime() + windowNanos;
+				while (group.size() < maxGroupSize) {
+					if (queue.drainTo(group, maxGroupSize - group.size()) > 0) {
+						continue;
+					}
+					long remaining = deadline - System.nanoTime();
+					Request<?> next = remaining > 0 && !closed ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+					if (next == null) break;
+					group.add(next);
+				}
+				writeGroup(group);
+			} catch (InterruptedException e) {
+				// the thread is owned by this buffer, buffered persists are written anyway
+				log.warn("Write-behind thread has been interrupted");
+				interrupted = true;
+				if (!group.isEmpty()) writeGroup(group);
+			} finally {
+				group.clear();
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Write the group and keep the background thread alive whatever happens: If the transaction, the execution scope or
+	 * a completion fails, the (remaining) persists of the group fail with that exception. Otherwise, their producers would
+	 * wait forever and the buffer would fill up.
+	 */
+	private void writeGroup(List<Request<?>> group) {
+		try {
+			write(group);
+		} catch (RuntimeException | Error e) {
+			log.error("Failed to write a group of " + group.size() + " persists", e);
+			for (Request<?> request : group) {
+				request.result.completeExceptionally(e);
+			}
+		}
+	}
+
+	private void write(List<Request<?>> group) {
+		// persists of the same domain class are written together, in order of their arrival
+		final Map<Class<?>, List<Request<?>>> byClass = new LinkedHashMap<Class<?>, List<Request<?>>>();
+		for (Request<?> request : group) {
+			List<Request<?>> requests = byClass.get(request.domainClass);
+			if (requests == null) {
+				requests = new ArrayList<Request<?>>();
+				byClass.put(request.domainClass, requests);
+			}
+			requests.add(request);
+		}
+		final List<Runnable> completions = new ArrayList<Runnable>(group.size());
+		if (scope != null) scope.begin();
+		try {
+			provider.runInTransaction(new IUnitOfWork() {
+				@Override
+				public void execute() throws Exception {
+					completions.clear();
+					for (List<Request<?>> requests : byClass.values()) {
+						persistAll(requests, completions);
+					}
+				}
+			});
+		} finally {
+			if (scope != null) scope.end();
+		}
+		groups.incrementAndGet();
+		written.addAndGet(group.size());
+		for (Runnable completion : completions) {
+			completion.run();
+		}
+	}
+
+	// all requests of a group share the same domain class
+	@SuppressWarnings("unchecked")
+	private <E extends Persistent<? extends Serializable>> void persistAll(List<Request<?>> requests, List<Runnable> completions) {
+		Class<E> domainClass = (Class<E>) requests.get(0).domainClass;
+		List<E> entities = new ArrayList<E>(requests.size());
+		for (Request<?> request : requests) {
+			entities.add((E) request.entity);
+		}
+		List<E> persisted = provider.persistAll(domainClass, entities, entities.size());
+		for (int i = 0; i < requests.size(); i++) {
+			final Request<E> request = (Request<E>) requests.get(i);
+			final E result = persisted.get(i);
+			completions.add(() -> request.result.complete(result));
+		}
+	}
+
+	private static class Request<E> {
+
+		private final Class<E> domainClass;
+
+		private final E entity;
+
+		private final CompletableFuture<E> result = new CompletableFuture<E>();
+
+		private Request(Class<E> domainClass, E entity) {
+			this.domainClass = domainClass;
+			this.entity = entity;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package net.engio.daoism.dao.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe cache with a maximum number of entries and an optional time-to-live for each entry.
+ * If the cache is full, entries are evicted according to the configured {@link Eviction} policy.
+ *
+ * Reads do not take any locks: Entries are held in a {@link ConcurrentHashMap} and a hit only marks the entry as referenced.
+ * Evictions are done by the writing thread that exceeded the maximum size, using a clock hand that sweeps over all entries.
+ *
+ * To prevent stale values from being cached, a value that has been read before its key has been invalidated
+ * may be rejected (see {@link #generation(Object)} and {@link #put(Object, Object, long)}). Generations are tracked
+ * per key (keys share a fixed number of generation counters), such that invalidations of other keys do not
+ * reject a value.
+ *
+ * @author Benjamin Diedrichsen
+ *
+ * @param <K> The type of keys
+ * @param <V> The type of cached values
+ */
+public class BoundedCache<K, V> {
+
+	public static enum Eviction {
+		/**
+		 * Evict an entry that has not been read recently. This approximates LRU with the CLOCK algorithm: entries that have been
+		 * read since the clock hand passed them the last time get a second chance.
+		 */
+		LRU,
+		/**
+		 * Evict the least frequently used entry among the {@link #LFU_SAMPLE_SIZE} entries at the clock hand. The hit counts
+		 * of the sampled entries that are not evicted are halved, such that entries that have been hot a long time ago age out.
+		 * This approximates LFU at constant cost.
+		 */
+		LFU
+	}
+
+	public static final int LFU_SAMPLE_SIZE = 16;
+
+	// the number of counters that hold the generations of all keys
+	private static final int GENERATION_STRIPES = 1024;
+
+	private final int maxSize;
+
+	private final long timeToLive;
+
+	private final Eviction eviction;
+
+	private final ConcurrentHashMap<K, Entry<V>> entries;
+
+	private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+	private final AtomicLong cleared = new AtomicLong();
+
+	// guards the clock hand
+	private final Object evicting = new Object();
+
+	private Iterator<Map.Entry<K, Entry<V>>> hand;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	private final LongAdder expirations = new LongAdder();
+
+	/**
+	 * @param maxSize The maximum number of cached entries
+	 * @param timeToLiveMillis The time after which an entry expires. Values less or equal zero disable expiration.
+	 * @param eviction The eviction policy
+	 */
+	public BoundedCache(int maxSize, long timeToLiveMillis, Eviction eviction) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("The maximum size must be greater than zero but was " + maxSize);
+		}
+		this.maxSize = maxSize;
+		this.timeToLive = timeToLiveMillis;
+		this.eviction = eviction;
+		this.entries = new ConcurrentHashMap<K, Entry<V>>(Math.min(maxSize, 1024));
+	}
+
+	/**
+	 * Get the cached value for the given key
+	 *
+	 * @return The cached value or null, if there is no such value or it has expired
+	 */
+	public V get(K key) {
+		Entry<V> entry = entries.get(key);
+		if (entry != null && isExpired(entry, System.currentTimeMillis())) {
+			if (entries.remove(key, entry)) expirations.increment();
+			entry = null;
+		}
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		// avoid writes to the entries of hot keys, they would be contended by all readers
+		if (!entry.referenced) entry.referenced = true;
+		if (eviction == Eviction.LFU) entry.hits++;
+		hits.increment();
+		return entry.value;
+	}
+
+	/**
+	 * Get the current generation of the given key. The generation changes with every invalidation of the key
+	 * (and possibly with invalidations of other keys that share the same counter).
+	 */
+	public long generation(K key) {
+		// both counters only increase, thus their sum changes whenever one of them changes
+		return cleared.get() + generations.get(stripeOf(key));
+	}
+
+	/**
+	 * Cache the given value unless the key has been invalidated after the given generation has been obtained.
+	 * Obtain the generation before reading the value from its source to guarantee that no stale value is cached.
+	 *
+	 * @return true, if the value has been cached. false otherwise
+	 */
+	public boolean put(K key, V value, long generation) {
+		return putInternal(key, value, generation, true);
+	}
+
+	/**
+	 * Cache the given value unconditionally.
+	 *
+	 * @return true, if the value has been cached. false otherwise
+	 */
+	public boolean put(K key, V value) {
+		return putInternal(key, value, 0, false);
+	}
+
+	private boolean putInternal(K key, final V value, final long generation, final boolean checkGeneration) {
+		final long now = System.currentTimeMillis();
+		final Entry<V> candidate = new Entry<V>(value, now);
+		// the generation is checked atomically with the update of the key, invalidations of the key are serialized with it
+		Entry<V> current = entries.compute(key, (k, existing) -> {
+			if (checkGeneration && generation != generation(k)) return existing;
+			if (existing != null && !isExpired(existing, now) && !replaces(existing.value, value)) return existing;
+			return candidate;
+		});
+		if (current != candidate) {
+			return false;
+		}
+		if (entries.size() > maxSize) {
+			evict();
+		}
+		return true;
+	}
+
+	/**
+	 * Decide whether a cached value is replaced by a new value for the same key. Subclasses can override this
+	 * to prevent newer values from being replaced by older ones.
+	 */
+	protected boolean replaces(V cached, V candidate) {
+		return true;
+	}
+
+	public void invalidate(K key) {
+		entries.compute(key, (k, existing) -> {
+			generations.incrementAndGet(stripeOf(k));
+			return null;
+		});
+	}
+
+	public void invalidateAll() {
+		cleared.incrementAndGet();
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public CacheStatistics getStatistics() {
+		return new CacheStatistics(hits.sum(), misses.sum(), evictions.sum(), expirations.sum(), size());
+	}
+
+	private static int stripeOf(Object key) {
+		int hash = key.hashCode();
+		return (hash ^ (hash >>> 16)) & (GENERATION_STRIPES - 1);
+	}
+
+	private boolean isExpired(Entry<V> entry, long now) {
+		return timeToLive > 0 && now - entry.created > timeToLive;
+	}
+
+	private void evict() {
+		synchronized (evicting) {
+			while (entries.size() > maxSize) {
+				Map.Entry<K, Entry<V>> victim = eviction == Eviction.LFU ? sampleLeastFrequent() : nextUnreferenced();
+				if (victim == null) return;
+				if (entries.remove(victim.getKey(), victim.getValue())) evictions.increment();
+			}
+		}
+	}
+
+	// advances the clock hand, the iterator of a concurrent map never fails and eventually sees all entries
+	private Map.Entry<K, Entry<V>> advance() {
+		if (hand == null || !hand.hasNext()) {
+			hand = entries.entrySet().iterator();
+			if (!hand.hasNext()) return null;
+		}
+		return hand.next();
+	}
+
+	private Map.Entry<K, Entry<V>> nextUnreferenced() {
+		// after one full sweep all reference bits are cleared
+		for (int swept = 0, limit = 2 * entries.size() + 1; ; swept++) {
+			Map.Entry<K, Entry<V>> candidate = advance();
+			if (candidate == null || !candidate.getValue().referenced || swept >= limit) return candidate;
+			candidate.getValue().referenced = false;
+		}
+	}
+
+	private Map.Entry<K, Entry<V>> sampleLeastFrequent() {
+		Map.Entry<K, Entry<V>> victim = advance();
+		for (int sampled = 1; victim != null && sampled < LFU_SAMPLE_SIZE; sampled++) {
+			Map.Entry<K, Entry<V>> candidate = advance();
+			if (candidate == null) break;
+			Map.Entry<K, Entry<V>> survivor = candidate;
+			if (candidate.getValue().hits < victim.getValue().hits) {
+				survivor = victim;
+				victim = candidate;
+			}
+			survivor.getValue().hits >>>= 1;
+		}
+		return victim;
+	}
+
+	private static class Entry<V> {
+
+		private final V value;
+
+		private final long created;
+
+		private volatile boolean referenced = false;
+
+		// updated without synchronization, lost increments only affect the accuracy of LFU
+		private int hits = 0;
+
+		private Entry(V value, long created) {
+			this.value = value;
+			this.created = created;
+		}
+	}
+
+}
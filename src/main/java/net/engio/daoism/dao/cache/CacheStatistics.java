@@ -0,0 +1,70 @@
+package net.engio.daoism.dao.cache;
+
+/**
+ * An immutable snapshot of the usage statistics of a {@link BoundedCache}
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class CacheStatistics {
+
+	private final long hits;
+
+	private final long misses;
+
+	private final long evictions;
+
+	private final long expirations;
+
+	private final int size;
+
+	public CacheStatistics(long hits, long misses, long evictions, long expirations, int size) {
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.expirations = expirations;
+		this.size = size;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * The number of entries that have been removed because the cache was full
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * The number of entries that have been removed because their time to live was exceeded
+	 */
+	public long getExpirations() {
+		return expirations;
+	}
+
+	/**
+	 * The number of entries at the time this snapshot was taken
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The ratio of hits to all lookups or 0, if no lookups have been made
+	 */
+	public double getHitRatio() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStatistics{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+				+ ", expirations=" + expirations + ", size=" + size + "}";
+	}
+}
@@ -0,0 +1,300 @@
+package net.engio.daoism.dao.cache;
+
+import net.engio.daoism.Persistent;
+import net.engio.daoism.dao.DelegatingPersistenceProvider;
+import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.IUnitOfWork;
+import net.engio.daoism.dao.query.LockType;
+import net.engio.daoism.dao.query.Options.AccessPlan;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read-through cache for domain objects that are looked up by their primary key. It decorates any other
+ * persistence provider and caches the results of {@link #findById(Class, java.io.Serializable)} and
+ * {@link #findByIds(Class, java.util.Collection)} by domain class and primary key.
+ *
+ * Cached domain objects are invalidated whenever they are written (persisted or deleted) through this provider.
+ * The cache is version-aware, i.e. a cached domain object is never replaced by an older version of the same object.
+ * Lookups that specify a lock, refresh or fetch plan, as well as all lookups within a unit of work run by this provider, bypass the cache.
+ * Changes made to persistent storage by other means (e.g. native queries or other processes) are
+ * not detected. They become visible when the cached domain object expires.
+ *
+ * By default, the cache keeps a serialized copy of each loaded domain object and returns a copy of it for each lookup,
+ * thus callers never share instances with each other or with the persistence context that loaded them. Copy-on-read can be
+ * disabled for domain objects that are never modified, the cached instances are then returned to all callers.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class CachingPersistenceProvider extends DelegatingPersistenceProvider {
+
+	private final BoundedCache<EntityKey, Persistent<?>> cache;
+
+	// keys written by the unit of work that is currently run by the calling thread
+	private final ThreadLocal<Set<EntityKey>> writtenInUnitOfWork = new ThreadLocal<Set<EntityKey>>();
+
+	private volatile boolean copyOnRead = true;
+
+	public CachingPersistenceProvider(IPersistenceProvider delegate, int maxSize, long timeToLiveMillis, BoundedCache.Eviction eviction) {
+		super(delegate);
+		cache = new BoundedCache<EntityKey, Persistent<?>>(maxSize, timeToLiveMillis, eviction) {
+			@Override
+			protected boolean replaces(Persistent<?> cached, Persistent<?> candidate) {
+				return candidate.getVersion() >= cached.getVersion();
+			}
+		};
+	}
+
+	/**
+	 * Copy-on-read is enabled by default. It should only be disabled, before the cache is used, if callers never modify
+	 * the returned domain objects.
+	 */
+	public CachingPersistenceProvider setCopyOnRead(boolean copyOnRead) {
+		this.copyOnRead = copyOnRead;
+		return this;
+	}
+
+	public CacheStatistics getStatistics() {
+		return cache.getStatistics();
+	}
+
+	/**
+	 * Remove all cached domain objects
+	 */
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id) {
+		if (id == null || isInUnitOfWork()) {
+			return super.findById(domainClass, id);
+		}
+		EntityKey key = new EntityKey(domainClass, id);
+		E cached = domainClass.cast(cache.get(key));
+		if (cached != null) {
+			return copyOnRead ? copy(cached) : cached;
+		}
+		long generation = cache.generation(key);
+		E loaded = super.findById(domainClass, id);
+		if (loaded != null) {
+			cache.put(key, copyOnRead ? copy(loaded) : loaded, generation);
+		}
+		return loaded;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id, AccessPlan options) {
+		if (options.isRefresh() || options.hasFetchPlan() || !(options.getLockMode() == LockType.Default || options.getLockMode() == LockType.None)) {
+			return super.findById(domainClass, id, options);
+		}
+		return findById(domainClass, id);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> Map<Serializable, E> findByIds(Class<E> domainClass, Collection<? extends Serializable> ids) {
+		if (isInUnitOfWork()) {
+			return super.findByIds(domainClass, ids);
+		}
+		Map<Serializable, E> cached = new LinkedHashMap<Serializable, E>();
+		// the generations of the missing keys, read before loading them
+		Map<Serializable, Long> missing = new LinkedHashMap<Serializable, Long>();
+		for (Serializable id : ids) {
+			if (id == null) continue;
+			EntityKey key = new EntityKey(domainClass, id);
+			E domainObject = domainClass.cast(cache.get(key));
+			if (domainObject != null) {
+				cached.put(id, copyOnRead ? copy(domainObject) : domainObject);
+			} else {
+				missing.put(id, cache.generation(key));
+			}
+		}
+		if (missing.isEmpty()) {
+			return cached;
+		}
+		Map<Serializable, E> loaded = super.findByIds(domainClass, missing.keySet());
+		for (Map.Entry<Serializable, E> domainObject : loaded.entrySet()) {
+			Long generation = missing.get(domainObject.getKey());
+			if (generation != null) {
+				cache.put(new EntityKey(domainClass, domainObject.getKey()), copyOnRead ? copy(domainObject.getValue()) : domainObject.getValue(), generation);
+			}
+		}
+		// merge in the order of the given ids
+		Map<Serializable, E> result = new LinkedHashMap<Serializable, E>(cached.size() + loaded.size());
+		for (Serializable id : ids) {
+			E domainObject = cached.containsKey(id) ? cached.get(id) : loaded.get(id);
+			if (domainObject != null) {
+				result.put(id, domainObject);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E persist(Class<E> domainClass, E entity) {
+		invalidate(domainClass, entity);
+		E persisted = super.persist(domainClass, entity);
+		invalidate(domainClass, entity);
+		invalidate(domainClass, persisted);
+		return persisted;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> persistAll(Class<E> domainClass, List<E> entities) {
+		invalidate(domainClass, entities);
+		List<E> persisted = super.persistAll(domainClass, entities);
+		invalidate(domainClass, entities);
+		invalidate(domainClass, persisted);
+		return persisted;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> persistAll(Class<E> domainClass, List<E> entities, int batchSize) {
+		invalidate(domainClass, entities);
+		List<E> persisted = super.persistAll(domainClass, entities, batchSize);
+		invalidate(domainClass, entities);
+		invalidate(domainClass, persisted);
+		return persisted;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean upsert(Class<E> domainClass, E entity) {
+		invalidate(domainClass, entity);
+		try {
+			return super.upsert(domainClass, entity);
+		} finally {
+			invalidate(domainClass, entity);
+		}
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean upsertAll(Class<E> domainClass, Collection<E> entities) {
+		invalidate(domainClass, entities);
+		try {
+			return super.upsertAll(domainClass, entities);
+		} finally {
+			invalidate(domainClass, entities);
+		}
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean delete(Class<E> domainClass, E entity) {
+		invalidate(domainClass, entity);
+		try {
+			return super.delete(domainClass, entity);
+		} finally {
+			invalidate(domainClass, entity);
+		}
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean deleteAll(Class<E> domainClass, Collection<E> entities) {
+		invalidate(domainClass, entities);
+		try {
+			return super.deleteAll(domainClass, entities);
+		} finally {
+			invalidate(domainClass, entities);
+		}
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean bulkDelete(Class<E> domainClass, Collection<E> entities, boolean checkVersion) {
+		invalidate(domainClass, entities);
+		try {
+			return super.bulkDelete(domainClass, entities, checkVersion);
+		} finally {
+			invalidate(domainClass, entities);
+		}
+	}
+
+	/**
+	 * Domain objects written within the unit of work are invalidated again after it completed, since
+	 * their changes might not have been visible before.
+	 */
+	@Override
+	public void runInTransaction(IUnitOfWork t) {
+		if (isInUnitOfWork()) {
+			super.runInTransaction(t);
+			return;
+		}
+		Set<EntityKey> written = new HashSet<EntityKey>();
+		writtenInUnitOfWork.set(written);
+		try {
+			super.runInTransaction(t);
+		} finally {
+			writtenInUnitOfWork.remove();
+			for (EntityKey key : written) {
+				cache.invalidate(key);
+			}
+		}
+	}
+
+	private boolean isInUnitOfWork() {
+		return writtenInUnitOfWork.get() != null;
+	}
+
+	private void invalidate(Class<?> domainClass, Collection<? extends Persistent<?>> entities) {
+		if (entities == null) return;
+		for (Persistent<?> entity : entities) {
+			invalidate(domainClass, entity);
+		}
+	}
+
+	private void invalidate(Class<?> domainClass, Persistent<?> entity) {
+		if (entity == null || entity.getId() == null) return;
+		EntityKey key = new EntityKey(domainClass, entity.getId());
+		cache.invalidate(key);
+		Set<EntityKey> written = writtenInUnitOfWork.get();
+		if (written != null) written.add(key);
+	}
+
+	private <E> E copy(E domainObject) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(domainObject);
+			out.close();
+			// serialization preserves the class of the domain object
+			@SuppressWarnings("unchecked")
+			E copy = (E) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+			return copy;
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not copy cached domain object " + domainObject, e);
+		}
+	}
+
+	private static class EntityKey {
+
+		private final Class<?> domainClass;
+
+		private final Serializable id;
+
+		private EntityKey(Class<?> domainClass, Serializable id) {
+			this.domainClass = domainClass;
+			this.id = id;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof EntityKey)) return false;
+			EntityKey other = (EntityKey) o;
+			return domainClass.equals(other.domainClass) && id.equals(other.id);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * domainClass.hashCode() + id.hashCode();
+		}
+	}
+}
@@ -0,0 +1,409 @@
+package net.engio.daoism.dao.cache;
+
+import net.engio.daoism.Persistent;
+import net.engio.daoism.dao.DelegatingPersistenceProvider;
+import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.IUnitOfWork;
+import net.engio.daoism.dao.query.LockType;
+import net.engio.daoism.dao.query.Options;
+import net.engio.daoism.dao.query.Options.AccessPlan;
+import net.engio.daoism.dao.query.Page;
+import net.engio.daoism.dao.query.Query;
+import net.engio.daoism.dao.query.Query.TypedQuery;
+import net.engio.daoism.dao.query.QueryKey;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A persistence provider that coalesces concurrent identical reads ("single flight"): While a read is executed by the
+ * delegate, all other threads that issue the same read (same domain class and id, or same query with the same parameters)
+ * wait for the running execution and receive its result (or its exception) instead of executing the read again.
+ * This protects the database from a stampede of identical reads, e.g. when a frequently read domain object has been invalidated.
+ *
+ * The following reads are never coalesced:
+ * <ul>
+ *     <li>reads that specify a lock or refresh</li>
+ *     <li>native queries, they may have side effects</li>
+ *     <li>reads within a transaction, i.e. within a unit of work that is run by this provider or any other transaction
+ *     of the delegate (see {@link IPersistenceProvider#isTransactionActive()}). Their results depend on the state of the transaction.</li>
+ * </ul>
+ * Reads that are started after a write through this provider never join an execution that has been started before that write.
+ *
+ * Only the thread that executed a read receives the instances loaded by the delegate, which may be managed by its persistence
+ * context. All waiting threads receive serialized copies of the result, such that no instances are shared between callers.
+ * Waiting threads execute the read themselves if the result is not serializable.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class CoalescingPersistenceProvider extends DelegatingPersistenceProvider {
+
+	private final ConcurrentMap<ReadKey, Execution> inFlight = new ConcurrentHashMap<ReadKey, Execution>();
+
+	// set while the calling thread runs a unit of work
+	private final ThreadLocal<Boolean> inUnitOfWork = new ThreadLocal<Boolean>();
+
+	private final LongAdder executed = new LongAdder();
+
+	private final LongAdder coalesced = new LongAdder();
+
+	public CoalescingPersistenceProvider(IPersistenceProvider delegate) {
+		super(delegate);
+	}
+
+	/**
+	 * @return The number of reads that have been executed by the delegate
+	 */
+	public long getExecutedReads() {
+		return executed.sum();
+	}
+
+	/**
+	 * @return The number of reads that joined the execution of another thread
+	 */
+	public long getCoalescedReads() {
+		return coalesced.sum();
+	}
+
+	private <R> R coalesce(ReadKey key, Supplier<R> read) {
+		if (inUnitOfWork.get() != null || isTransactionActive()) {
+			return read.get();
+		}
+		Execution execution = new Execution();
+		Execution running = inFlight.putIfAbsent(key, execution);
+		if (running != null) {
+			if (!running.join()) {
+				// the running execution completed in the meantime
+				return coalesce(key, read);
+			}
+			coalesced.increment();
+			byte[] result = running.await();
+			if (result == null) {
+				// the result can not be copied
+				executed.increment();
+				return read.get();
+			}
+			return Execution.<R>copy(result);
+		}
+		executed.increment();
+		R result;
+		try {
+			result = read.get();
+		} catch (RuntimeException e) {
+			execution.fail(inFlight, key, e);
+			throw e;
+		} catch (Error e) {
+			execution.fail(inFlight, key, e);
+			throw e;
+		}
+		execution.complete(inFlight, key, result);
+		return result;
+	}
+
+	private static boolean isCoalescable(AccessPlan options) {
+		return !options.isRefresh() && (options.getLockMode() == LockType.Default || options.getLockMode() == LockType.None);
+	}
+
+	private static boolean isCoalescable(Query query) {
+		Query.Type type = query.getType();
+		if (type == Query.Type.Template) {
+			type = ((Query.BoundQuery) query).getTemplate().getKind();
+		}
+		return type != Query.Type.Native;
+	}
+
+	// new reads must not join executions that might not see the write
+	private void detachReads() {
+		inFlight.clear();
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass) {
+		return coalesce(new ReadKey("findAll", domainClass, null), () -> super.findAll(domainClass));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id) {
+		if (id == null) {
+			return super.findById(domainClass, id);
+		}
+		return coalesce(new ReadKey("findById", domainClass, id), () -> super.findById(domainClass, id));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id, AccessPlan options) {
+		if (id == null || !isCoalescable(options)) {
+			return super.findById(domainClass, id, options);
+		}
+		return coalesce(new ReadKey("findById", domainClass, id, options), () -> super.findById(domainClass, id, options));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> Map<Serializable, E> findByIds(Class<E> domainClass, Collection<? extends Serializable> ids) {
+		return coalesce(new ReadKey("findByIds", domainClass, new ArrayList<Serializable>(ids)), () -> super.findByIds(domainClass, ids));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> long count(Class<E> domainClass) {
+		return coalesce(new ReadKey("count", domainClass, null), () -> super.count(domainClass));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean exists(Class<E> domainClass, Serializable id) {
+		return coalesce(new ReadKey("exists", domainClass, id), () -> super.exists(domainClass, id));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, TypedQuery query) {
+		return coalesce(new ReadKey("findAll", domainClass, QueryKey.of(domainClass, query)), () -> super.findAll(domainClass, query));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, TypedQuery query, AccessPlan options) {
+		if (!isCoalescable(options)) {
+			return super.findAll(domainClass, query, options);
+		}
+		return coalesce(new ReadKey("findAll", domainClass, QueryKey.of(domainClass, query), options), () -> super.findAll(domainClass, query, options));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E find(Class<E> domainClass, TypedQuery query) {
+		return coalesce(new ReadKey("find", domainClass, QueryKey.of(domainClass, query)), () -> super.find(domainClass, query));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E find(Class<E> domainClass, TypedQuery query, AccessPlan options) {
+		if (!isCoalescable(options)) {
+			return super.find(domainClass, query, options);
+		}
+		return coalesce(new ReadKey("find", domainClass, QueryKey.of(domainClass, query), options), () -> super.find(domainClass, query, options));
+	}
+
+	@Override
+	public <E> List<E> runQuery(Class<E> resultType, Query source) {
+		if (!isCoalescable(source)) {
+			return super.runQuery(resultType, source);
+		}
+		return coalesce(new ReadKey("runQuery", resultType, QueryKey.of(resultType, source)), () -> super.runQuery(resultType, source));
+	}
+
+	@Override
+	public <E> Page<E> runPagedQuery(Class<E> resultType, Query source) {
+		if (!isCoalescable(source)) {
+			return super.runPagedQuery(resultType, source);
+		}
+		return coalesce(new ReadKey("runPagedQuery", resultType, QueryKey.of(resultType, source)), () -> super.runPagedQuery(resultType, source));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E persist(Class<E> domainClass, E entity) {
+		detachReads();
+		return super.persist(domainClass, entity);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> persistAll(Class<E> domainClass, List<E> entities) {
+		detachReads();
+		return super.persistAll(domainClass, entities);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> persistAll(Class<E> domainClass, List<E> entities, int batchSize) {
+		detachReads();
+		return super.persistAll(domainClass, entities, batchSize);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean upsert(Class<E> domainClass, E entity) {
+		detachReads();
+		return super.upsert(domainClass, entity);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean upsertAll(Class<E> domainClass, Collection<E> entities) {
+		detachReads();
+		return super.upsertAll(domainClass, entities);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean delete(Class<E> domainClass, E entity) {
+		detachReads();
+		return super.delete(domainClass, entity);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean deleteAll(Class<E> domainClass, Collection<E> entities) {
+		detachReads();
+		return super.deleteAll(domainClass, entities);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean bulkDelete(Class<E> domainClass, Collection<E> entities, boolean checkVersion) {
+		detachReads();
+		return super.bulkDelete(domainClass, entities, checkVersion);
+	}
+
+	@Override
+	public void runInTransaction(IUnitOfWork t) {
+		if (inUnitOfWork.get() != null) {
+			super.runInTransaction(t);
+			return;
+		}
+		inUnitOfWork.set(Boolean.TRUE);
+		try {
+			super.runInTransaction(t);
+		} finally {
+			inUnitOfWork.remove();
+			detachReads();
+		}
+	}
+
+	/**
+	 * A read that is executed by one thread and joined by any number of waiting threads. The result is serialized for the
+	 * waiting threads before it is returned to the executing thread, which may modify it afterwards.
+	 */
+	private static class Execution {
+
+		private final CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+
+		private int waiting;
+
+		private boolean completed;
+
+		/**
+		 * @return false, if the execution completed already and can not be joined anymore
+		 */
+		private synchronized boolean join() {
+			if (completed) return false;
+			waiting++;
+			return true;
+		}
+
+		// no thread can join after the execution has been completed
+		private synchronized boolean hasWaiting(ConcurrentMap<ReadKey, Execution> inFlight, ReadKey key) {
+			inFlight.remove(key, this);
+			completed = true;
+			return waiting > 0;
+		}
+
+		private void complete(ConcurrentMap<ReadKey, Execution> inFlight, ReadKey key, Object value) {
+			if (hasWaiting(inFlight, key)) {
+				result.complete(serialize(value));
+			}
+		}
+
+		private void fail(ConcurrentMap<ReadKey, Execution> inFlight, ReadKey key, Throwable failure) {
+			if (hasWaiting(inFlight, key)) {
+				result.completeExceptionally(failure);
+			}
+		}
+
+		/**
+		 * @return The serialized result or null, if the result is not serializable
+		 */
+		private byte[] await() {
+			try {
+				return result.join();
+			} catch (CompletionException e) {
+				// rethrow the original exception of the executing thread
+				if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+				if (e.getCause() instanceof Error) throw (Error) e.getCause();
+				throw e;
+			}
+		}
+
+		private static byte[] serialize(Object value) {
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream out = new ObjectOutputStream(bytes);
+				out.writeObject(value);
+				out.close();
+				return bytes.toByteArray();
+			} catch (IOException | RuntimeException e) {
+				// e.g. not serializable or lazy state that can not be loaded anymore
+				return null;
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <R> R copy(byte[] serialized) {
+			try {
+				return (R) new ObjectInputStream(new ByteArrayInputStream(serialized)).readObject();
+			} catch (IOException | ClassNotFoundException e) {
+				throw new IllegalStateException("Could not copy result", e);
+			}
+		}
+	}
+
+	/**
+	 * Identifies a read by its operation, domain class (or result type), argument (id or query) and access plan
+	 */
+	private static class ReadKey {
+
+		private final String operation;
+
+		private final Class<?> domainClass;
+
+		private final Object argument;
+
+		private final boolean readOnly;
+
+		private final Options.FetchPlan fetchPlan;
+
+		private final int hashCode;
+
+		private ReadKey(String operation, Class<?> domainClass, Object argument) {
+			this(operation, domainClass, argument, false, null);
+		}
+
+		private ReadKey(String operation, Class<?> domainClass, Object argument, AccessPlan options) {
+			this(operation, domainClass, argument, options.isReadOnly(), options.hasFetchPlan() ? options.getFetchPlan() : null);
+		}
+
+		private ReadKey(String operation, Class<?> domainClass, Object argument, boolean readOnly, Options.FetchPlan fetchPlan) {
+			this.operation = operation;
+			this.domainClass = domainClass;
+			this.argument = argument;
+			this.readOnly = readOnly;
+			this.fetchPlan = fetchPlan;
+			int hash = operation.hashCode();
+			hash = 31 * hash + domainClass.hashCode();
+			hash = 31 * hash + (argument == null ? 0 : argument.hashCode());
+			hash = 31 * hash + (readOnly ? 1 : 0);
+			hash = 31 * hash + (fetchPlan == null ? 0 : fetchPlan.hashCode());
+			this.hashCode = hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof ReadKey)) return false;
+			ReadKey other = (ReadKey) o;
+			return hashCode == other.hashCode
+					&& operation.equals(other.operation)
+					&& domainClass.equals(other.domainClass)
+					&& (argument == null ? other.argument == null : argument.equals(other.argument))
+					&& readOnly == other.readOnly
+					&& (fetchPlan == null ? other.fetchPlan == null : fetchPlan.equals(other.fetchPlan));
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package net.engio.daoism.dao.cache;
+
+import net.engio.daoism.dao.query.QueryKey;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache for the results of queries (see {@link net.engio.daoism.dao.query.Query#cacheable()}).
+ * Results are cached by their {@link QueryKey} together with the domain class that has been queried.
+ *
+ * Each domain class has a generation that changes whenever domain objects of that class, any of its subclasses or any of
+ * its super classes are written. Cached results are valid only as long as the generation of the queried domain class did not change.
+ * Thus, invalidating all results of a domain class is a constant time operation (in the depth of the class hierarchy).
+ *
+ * Note: Queries that depend on other domain classes (e.g. by joins) are not invalidated when objects of these classes are written.
+ * The time-to-live of the cache defines how long such results can be stale.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class QueryResultCache {
+
+	private final BoundedCache<QueryKey, Entry> cache;
+
+	private final ConcurrentMap<Class<?>, Writes> writes = new ConcurrentHashMap<Class<?>, Writes>();
+
+	private final AtomicLong cleared = new AtomicLong();
+
+	public QueryResultCache(int maxSize, long timeToLiveMillis, BoundedCache.Eviction eviction) {
+		cache = new BoundedCache<QueryKey, Entry>(maxSize, timeToLiveMillis, eviction);
+	}
+
+	/**
+	 * Get the current generation of the given domain class. It needs to be read before the query is executed
+	 * and passed to {@link #put(Class, QueryKey, List, long)} afterwards.
+	 */
+	public long generation(Class<?> domainClass) {
+		// all counters only increase, thus their sum changes whenever one of them changes
+		long generation = cleared.get();
+		Writes own = writes.get(domainClass);
+		if (own != null) generation += own.hierarchy.get();
+		// writes through a super class may change objects of the queried class
+		for (Class<?> current = domainClass.getSuperclass(); current != null && !current.equals(Object.class); current = current.getSuperclass()) {
+			Writes inherited = writes.get(current);
+			if (inherited != null) generation += inherited.direct.get();
+		}
+		return generation;
+	}
+
+	/**
+	 * @return The cached results or null, if no valid results are cached
+	 */
+	public <E> List<E> get(Class<?> domainClass, QueryKey key) {
+		Entry entry = cache.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.generation != generation(domainClass)) {
+			cache.invalidate(key);
+			return null;
+		}
+		// the key contains the result type
+		@SuppressWarnings("unchecked")
+		List<E> results = (List<E>) entry.results;
+		return results;
+	}
+
+	/**
+	 * Cache the results unless the domain class has been written since the given generation was read.
+	 * Results that are written concurrently are detected by their generation when they are read.
+	 *
+	 * @return An unmodifiable copy of the results if they have been cached, the given results otherwise
+	 */
+	public <E> List<E> put(Class<?> domainClass, QueryKey key, List<E> results, long generation) {
+		if (generation != generation(domainClass)) {
+			return results;
+		}
+		List<E> cached = Collections.unmodifiableList(new ArrayList<E>(results));
+		cache.put(key, new Entry(cached, generation));
+		return cached;
+	}
+
+	/**
+	 * Invalidate all results of queries for the given domain class, its subclasses and its super classes
+	 */
+	public void invalidate(Class<?> domainClass) {
+		writes(domainClass).direct.incrementAndGet();
+		for (Class<?> current = domainClass; current != null && !current.equals(Object.class); current = current.getSuperclass()) {
+			writes(current).hierarchy.incrementAndGet();
+		}
+	}
+
+	private Writes writes(Class<?> domainClass) {
+		Writes counters = writes.get(domainClass);
+		if (counters == null) {
+			writes.putIfAbsent(domainClass, new Writes());
+			counters = writes.get(domainClass);
+		}
+		return counters;
+	}
+
+	public void invalidateAll() {
+		cleared.incrementAndGet();
+		cache.invalidateAll();
+	}
+
+	public CacheStatistics getStatistics() {
+		return cache.getStatistics();
+	}
+
+	private static class Writes {
+
+		// writes through the class itself
+		private final AtomicLong direct = new AtomicLong();
+
+		// writes through the class or any of its subclasses
+		private final AtomicLong hierarchy = new AtomicLong();
+	}
+
+	private static class Entry {
+
+		private final List<?> results;
+
+		private final long generation;
+
+		private Entry(List<?> results, long generation) {
+			this.results = results;
+			this.generation = generation;
+		}
+	}
+}
@@ -0,0 +1,1300 @@
+package net.engio.daoism.dao.jdbc;
+
+import net.engio.daoism.Persistent;
+import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.IResultIterator;
+import net.engio.daoism.dao.IUnitOfWork;
+import net.engio.daoism.dao.ListResultIterator;
+import net.engio.daoism.dao.query.LockType;
+import net.engio.daoism.dao.query.Options;
+import net.engio.daoism.dao.query.Options.AccessPlan;
+import net.engio.daoism.dao.query.Page;
+import net.engio.daoism.dao.query.Query;
+import net.engio.daoism.dao.sql.EntityMapping;
+import net.engio.daoism.dao.sql.ISqlDialect;
+import net.engio.daoism.dao.sql.SqlDialects;
+
+import javax.persistence.Entity;
+import javax.persistence.EntityExistsException;
+import javax.persistence.NonUniqueResultException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
+import javax.persistence.TransactionRequiredException;
+import javax.sql.DataSource;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A persistence provider that reads and writes domain objects with plain JDBC, bypassing the persistence context,
+ * dirty checking and proxies of a JPA provider. It is meant for simple, frequently accessed domain classes: DAOs of such
+ * classes can be switched to this provider individually, while all other DAOs keep using JPA on the same database.
+ *
+ * <b>Transactions of other providers are not joined.</b> Connections are taken from the data source directly, thus every
+ * operation runs in a transaction of its own (or of a unit of work run by this provider), even if the caller runs within a
+ * transaction of a JPA provider or a Spring transaction manager on the same database. Changes of such a transaction are not visible
+ * to this provider until it commits, changes of this provider are not rolled back with it, and writes of this provider block
+ * on rows locked by it, which deadlocks if the calling thread waits for this provider within that transaction.
+ * Only switch DAOs to this provider whose domain objects are not written within transactions of other providers.
+ *
+ * The SQL of all basic operations is generated once per domain class from its mapping annotations (see {@link EntityMapping}
+ * for the supported mappings). Columns are bound and read by method handles of the mapped fields. Each connection
+ * caches the statements that have been prepared on it. By default, connections are returned to the data source after
+ * each operation, which discards their statements unless the pool of the data source caches statements itself. Alternatively,
+ * the provider can keep connections open between operations (see {@link #setMaxIdleConnections(int)}).
+ *
+ * Semantics follow the JPA providers as far as possible:
+ * <ul>
+ *     <li>Persisting a new domain object (version -1) inserts it and returns the same object. Persisting an existing domain object
+ *     returns an updated copy, the given object is not modified. Rows are only updated if any value changed, in which case
+ *     the version is incremented. Stale updates fail with an {@link OptimisticLockException}.
+ *     {@link javax.persistence.PrePersist} and {@link javax.persistence.PreUpdate} callbacks are invoked.</li>
+ *     <li>Operations on several domain objects run in a transaction. Units of work run all their operations in one
+ *     transaction (see {@link #runInTransaction(IUnitOfWork)}), which is rolled back if the unit of work fails.</li>
+ *     <li>Every read returns new instances, thus refreshing and read-only access are implied. {@link LockType#PessimisticWrite}
+ *     selects rows FOR UPDATE, {@link LockType#Optimistic} checks the version of the read rows before the transaction commits.
+ *     Both require a transaction.</li>
+ * </ul>
+ * Associations are not fetched: single valued associations are set to instances that only hold the id of the referenced
+ * domain object, collection valued associations are left as initialized by the domain class. Fetch plans are ignored.
+ *
+ * Native queries and projections are supported, named and JPQL queries need a JPA provider. Native queries use named parameters
+ * (e.g. {@code :HOST}) and return domain objects if the result type is a domain class. Their columns are matched to the
+ * mapped columns by name.
+ *
+ * Updates rely on {@code IS DISTINCT FROM}, which is supported by H2 and PostgreSQL, among others.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class JdbcPersistenceProvider implements IPersistenceProvider, AutoCloseable {
+
+	public static final int DefaultStatementCacheSize = 64;
+
+	public static final int DefaultMaxIdleConnections = 0;
+
+	public static final long DefaultMaxIdleMillis = 30000;
+
+	// connections that have been idle for a shorter time are reused without validation
+	private static final long VALIDATION_INTERVAL_MILLIS = 1000;
+
+	private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+	// SQL state of unique constraint violations, used by H2 and PostgreSQL
+	private static final String UNIQUE_VIOLATION = "23505";
+
+	private final DataSource dataSource;
+
+	private final ConcurrentMap<Class<?>, SqlStatements> statements = new ConcurrentHashMap<Class<?>, SqlStatements>();
+
+	private final ConcurrentMap<String, NativeStatement> nativeStatements = new ConcurrentHashMap<String, NativeStatement>();
+
+	private final ConcurrentLinkedDeque<StatementCache> idle = new ConcurrentLinkedDeque<StatementCache>();
+
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	private final ThreadLocal<Transaction> transaction = new ThreadLocal<Transaction>();
+
+	private final LongAdder statementCacheHits = new LongAdder();
+
+	private final LongAdder statementCacheMisses = new LongAdder();
+
+	private volatile int statementCacheSize = DefaultStatementCacheSize;
+
+	private volatile int maxIdleConnections = DefaultMaxIdleConnections;
+
+	private volatile long maxIdleMillis = DefaultMaxIdleMillis;
+
+	private volatile int maxQueryParameters = 500;
+
+	private volatile ISqlDialect sqlDialect;
+
+	private volatile boolean closed = false;
+
+	public JdbcPersistenceProvider(DataSource dataSource) {
+		if (dataSource == null) {
+			throw new IllegalArgumentException("The data source may not be null");
+		}
+		this.dataSource = dataSource;
+	}
+
+	public int getStatementCacheSize() {
+		return statementCacheSize;
+	}
+
+	/**
+	 * @param statementCacheSize The number of prepared statements cached per connection. Applies to connections opened afterwards
+	 */
+	public void setStatementCacheSize(int statementCacheSize) {
+		if (statementCacheSize < 1) {
+			throw new IllegalArgumentException("The statement cache must hold at least one statement but was " + statementCacheSize);
+		}
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	public int getMaxIdleConnections() {
+		return maxIdleConnections;
+	}
+
+	/**
+	 * Keep connections open between operations, such that their prepared statements can be reused. Idle connections are held
+	 * outside the pool of the data source, which can not validate or evict them. Therefore, connections that have been idle
+	 * for more than a second are validated before they are reused and connections that have been idle for longer than
+	 * {@link #getMaxIdleMillis()} are closed. Idle connections are closed with the provider.
+	 *
+	 * @param maxIdleConnections The number of connections that are kept open between operations. Other connections are closed
+	 *                           (returned to the pool of the data source) after each operation. Disabled (0) by default.
+	 */
+	public void setMaxIdleConnections(int maxIdleConnections) {
+		if (maxIdleConnections < 0) {
+			throw new IllegalArgumentException("The number of idle connections must not be negative but was " + maxIdleConnections);
+		}
+		this.maxIdleConnections = maxIdleConnections;
+	}
+
+	public long getMaxIdleMillis() {
+		return maxIdleMillis;
+	}
+
+	/**
+	 * @param maxIdleMillis The time after which an idle connection is closed instead of being reused
+	 */
+	public void setMaxIdleMillis(long maxIdleMillis) {
+		if (maxIdleMillis < 1) {
+			throw new IllegalArgumentException("The maximum idle time must be positive but was " + maxIdleMillis);
+		}
+		this.maxIdleMillis = maxIdleMillis;
+	}
+
+	/**
+	 * The maximum number of parameters bound to a single statement. Operations on many domain objects
+	 * are split into chunks accordingly. The default value is safe for all common databases.
+	 */
+	public int getMaxQueryParameters() {
+		return maxQueryParameters;
+	}
+
+	public void setMaxQueryParameters(int maxQueryParameters) {
+		if (maxQueryParameters < 2) {
+			throw new IllegalArgumentException("At least two parameters per statement are required but was " + maxQueryParameters);
+		}
+		this.maxQueryParameters = maxQueryParameters;
+	}
+
+	public ISqlDialect getSqlDialect() {
+		return sqlDialect;
+	}
+
+	/**
+	 * Set the SQL dialect of the database, which is needed for upserts. If no dialect is set, it is chosen by the
+	 * product name of the database (see {@link SqlDialects#forDatabase(String)}).
+	 */
+	public void setSqlDialect(ISqlDialect sqlDialect) {
+		this.sqlDialect = sqlDialect;
+	}
+
+	/**
+	 * @return The number of statements that have been reused from the statement cache of a connection
+	 */
+	public long getStatementCacheHits() {
+		return statementCacheHits.sum();
+	}
+
+	/**
+	 * @return The number of statements that needed to be prepared
+	 */
+	public long getStatementCacheMisses() {
+		return statementCacheMisses.sum();
+	}
+
+	/**
+	 * Close all idle connections. Connections that are in use are closed when they are released.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		closeIdle();
+	}
+
+	private void closeIdle() {
+		for (StatementCache connection = idle.pollFirst(); connection != null; connection = idle.pollFirst()) {
+			idleCount.decrementAndGet();
+			connection.close();
+		}
+	}
+
+	private StatementCache acquire() throws SQLException {
+		if (closed) {
+			throw new IllegalStateException("The persistence provider has been closed");
+		}
+		for (StatementCache connection = idle.pollFirst(); connection != null; connection = idle.pollFirst()) {
+			idleCount.decrementAndGet();
+			if (isUsable(connection, System.currentTimeMillis())) return connection;
+			connection.close();
+		}
+		return new StatementCache(dataSource.getConnection(), statementCacheSize, statementCacheHits, statementCacheMisses);
+	}
+
+	private boolean isUsable(StatementCache connection, long now) {
+		long idleMillis = now - connection.getIdleSince();
+		if (idleMillis > maxIdleMillis) return false;
+		try {
+			if (connection.getConnection().isClosed()) return false;
+			return idleMillis < VALIDATION_INTERVAL_MILLIS || connection.getConnection().isValid(VALIDATION_TIMEOUT_SECONDS);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param reusable False, if the state of the connection is unknown (e.g. after it failed)
+	 */
+	private void release(StatementCache connection, boolean reusable) {
+		if (reusable && !closed) {
+			long now = System.currentTimeMillis();
+			closeExpired(now);
+			if (idleCount.incrementAndGet() <= maxIdleConnections) {
+				// the most recently used connection is reused first, such that its statements are hot
+				connection.setIdleSince(now);
+				idle.offerFirst(connection);
+				if (closed) closeIdle();
+				return;
+			}
+			idleCount.decrementAndGet();
+		}
+		connection.close();
+	}
+
+	// the least recently used connections are at the end of the idle connections
+	private void closeExpired(long now) {
+		for (StatementCache oldest = idle.peekLast(); oldest != null && now - oldest.getIdleSince() > maxIdleMillis; oldest = idle.peekLast()) {
+			if (idle.removeLastOccurrence(oldest)) {
+				idleCount.decrementAndGet();
+				oldest.close();
+			}
+		}
+	}
+
+	protected SqlStatements statements(Class<?> domainClass) {
+		SqlStatements cached = statements.get(domainClass);
+		if (cached == null) {
+			cached = new SqlStatements(EntityMapping.of(domainClass));
+			SqlStatements concurrent = statements.putIfAbsent(domainClass, cached);
+			if (concurrent != null) cached = concurrent;
+		}
+		return cached;
+	}
+
+	private NativeStatement nativeStatement(String sql) {
+		NativeStatement parsed = nativeStatements.get(sql);
+		if (parsed == null) {
+			parsed = NativeStatement.parse(sql);
+			// statements that are assembled dynamically would let the cache grow without bounds
+			if (nativeStatements.size() < 1000) nativeStatements.putIfAbsent(sql, parsed);
+		}
+		return parsed;
+	}
+
+	/**
+	 * Run the work with the connection of the current transaction or, if none is active, with a connection in auto-commit mode
+	 */
+	private <R> R execute(Work<R> work) {
+		Transaction current = transaction.get();
+		if (current != null) {
+			return current.run(work);
+		}
+		StatementCache connection;
+		try {
+			connection = acquire();
+		} catch (SQLException e) {
+			throw translate(e);
+		}
+		boolean reusable = true;
+		try {
+			return work.run(connection);
+		} catch (SQLException e) {
+			reusable = false;
+			throw translate(e);
+		} finally {
+			release(connection, reusable);
+		}
+	}
+
+	/**
+	 * Run the work in the current transaction. A new transaction is begun (and completed) if none is active.
+	 */
+	private <R> R transactional(Work<R> work) {
+		Transaction current = transaction.get();
+		if (current != null) {
+			return current.run(work);
+		}
+		try {
+			current = new Transaction(acquire());
+		} catch (SQLException e) {
+			throw translate(e);
+		}
+		transaction.set(current);
+		try {
+			current.begin();
+			R result = current.run(work);
+			current.commit();
+			return result;
+		} catch (RuntimeException e) {
+			current.rollback();
+			throw e;
+		} catch (Error e) {
+			current.rollback();
+			throw e;
+		} finally {
+			transaction.remove();
+			current.end();
+		}
+	}
+
+	private static PersistenceException translate(SQLException e) {
+		if (UNIQUE_VIOLATION.equals(e.getSQLState())) {
+			return new EntityExistsException(e.getMessage(), e);
+		}
+		return new PersistenceException(e.getMessage(), e);
+	}
+
+	private Transaction requireTransaction(AccessPlan options) {
+		Transaction current = transaction.get();
+		if (current == null && (options.getLockMode() == LockType.PessimisticWrite || options.getLockMode() == LockType.Optimistic)) {
+			throw new TransactionRequiredException("Reading with lock mode " + options.getLockMode() + " requires a transaction");
+		}
+		return current;
+	}
+
+	private static void bind(PreparedStatement statement, int index, Object value) throws SQLException {
+		if (value == null) {
+			statement.setNull(index, Types.NULL);
+		} else {
+			statement.setObject(index, value);
+		}
+	}
+
+	private static int bindColumns(PreparedStatement statement, List<EntityMapping.Column> columns, Object domainObject, int index) throws SQLException {
+		for (EntityMapping.Column column : columns) {
+			bind(statement, index++, column.get(domainObject));
+		}
+		return index;
+	}
+
+	/**
+	 * Read the domain object from the current row. The columns are expected in the order of {@link EntityMapping#getColumns()}
+	 */
+	@SuppressWarnings("unchecked")
+	private static <D> D read(ResultSet row, EntityMapping mapping) throws SQLException {
+		Object domainObject = mapping.newInstance();
+		List<EntityMapping.Column> columns = mapping.getColumns();
+		for (int i = 0; i < columns.size(); i++) {
+			columns.get(i).set(domainObject, row.getObject(i + 1));
+		}
+		return (D) domainObject;
+	}
+
+	private static <D> List<D> readAll(PreparedStatement query, EntityMapping mapping) throws SQLException {
+		List<D> results = new ArrayList<D>();
+		ResultSet rows = query.executeQuery();
+		try {
+			while (rows.next()) {
+				results.add(JdbcPersistenceProvider.<D>read(rows, mapping));
+			}
+		} finally {
+			rows.close();
+		}
+		return results;
+	}
+
+	private static PreparedStatement query(StatementCache connection, String sql, int maxRows) throws SQLException {
+		PreparedStatement query = connection.prepare(sql);
+		// cached statements keep their limit
+		query.setMaxRows(maxRows);
+		return query;
+	}
+
+	private static long count(PreparedStatement query) throws SQLException {
+		ResultSet rows = query.executeQuery();
+		try {
+			return rows.next() ? rows.getLong(1) : 0;
+		} finally {
+			rows.close();
+		}
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> boolean delete(Class<D> domainClass, D domainObject) {
+		if (domainObject == null || domainObject.getId() == null) return false;
+		return execute(connection -> deleteInternal(connection, domainClass, domainObject));
+	}
+
+	private <D extends Persistent<? extends Serializable>> boolean deleteInternal(StatementCache connection, Class<D> domainClass, D domainObject) throws SQLException {
+		if (domainObject == null || domainObject.getId() == null) return false;
+		PreparedStatement delete = connection.prepare(statements(domainClass).delete());
+		bind(delete, 1, domainObject.getId());
+		return delete.executeUpdate() > 0;
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> boolean deleteAll(Class<D> domainClass, Collection<D> domainObjects) {
+		return transactional(connection -> {
+			boolean allDeleted = true;
+			for (D domainObject : domainObjects) {
+				allDeleted = deleteInternal(connection, domainClass, domainObject) & allDeleted;
+			}
+			return allDeleted;
+		});
+	}
+
+	/**
+	 * Deletes the given domain objects with bulk delete statements. Each statement covers at most
+	 * {@link #getMaxQueryParameters()} parameters, ids and versions are bound as separate parameters.
+	 */
+	@Override
+	public <D extends Persistent<? extends Serializable>> boolean bulkDelete(Class<D> domainClass, Collection<D> domainObjects, boolean checkVersion) {
+		if (domainObjects == null || domainObjects.isEmpty()) {
+			return true;
+		}
+		// duplicates would otherwise be counted as failed deletions
+		Map<Serializable, Long> versionsById = new LinkedHashMap<Serializable, Long>(domainObjects.size());
+		boolean allValid = true;
+		for (D domainObject : domainObjects) {
+			if (domainObject == null || domainObject.getId() == null) {
+				allValid = false;
+			} else {
+				versionsById.put(domainObject.getId(), domainObject.getVersion());
+			}
+		}
+		if (versionsById.isEmpty()) {
+			return false;
+		}
+		SqlStatements sql = statements(domainClass);
+		boolean versioned = checkVersion && EntityMapping.of(domainClass).getVersion() != null;
+		int deleted = transactional(connection -> versioned
+				? bulkDeleteVersioned(connection, sql, versionsById)
+				: bulkDelete(connection, sql, versionsById.keySet()));
+		return allValid && deleted == versionsById.size();
+	}
+
+	private int bulkDelete(StatementCache connection, SqlStatements sql, Collection<Serializable> ids) throws SQLException {
+		List<Serializable> all = new ArrayList<Serializable>(ids);
+		int deleted = 0;
+		for (int start = 0; start < all.size(); start += getMaxQueryParameters()) {
+			List<Serializable> chunk = all.subList(start, Math.min(start + getMaxQueryParameters(), all.size()));
+			PreparedStatement delete = connection.prepare(sql.bulkDelete(chunk.size()));
+			for (int i = 0; i < chunk.size(); i++) {
+				bind(delete, i + 1, chunk.get(i));
+			}
+			deleted += delete.executeUpdate();
+		}
+		return deleted;
+	}
+
+	private int bulkDeleteVersioned(StatementCache connection, SqlStatements sql, Map<Serializable, Long> versionsById) throws SQLException {
+		int chunkSize = Math.max(1, getMaxQueryParameters() / 2);
+		List<Map.Entry<Serializable, Long>> entries = new ArrayList<Map.Entry<Serializable, Long>>(versionsById.entrySet());
+		int deleted = 0;
+		for (int start = 0; start < entries.size(); start += chunkSize) {
+			List<Map.Entry<Serializable, Long>> chunk = entries.subList(start, Math.min(start + chunkSize, entries.size()));
+			PreparedStatement delete = connection.prepare(sql.bulkDeleteVersioned(chunk.size()));
+			int index = 1;
+			for (Map.Entry<Serializable, Long> row : chunk) {
+				bind(delete, index++, row.getKey());
+				bind(delete, index++, row.getValue());
+			}
+			deleted += delete.executeUpdate();
+		}
+		return deleted;
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> List<D> findAll(Class<D> domainClass) {
+		EntityMapping mapping = EntityMapping.of(domainClass);
+		return execute(connection -> readAll(query(connection, statements(domainClass).findAll(), 0), mapping));
+	}
+
+	/**
+	 * Fetches the domain objects in chunks ordered by their id. Each chunk is selected by the id of the last domain object
+	 * of the previous chunk (keyset pagination), so fetching a chunk takes the same time no matter how far the
+	 * iteration has progressed. No connection is held between chunks.
+	 */
+	@Override
+	public <D extends Persistent<? extends Serializable>> IResultIterator<D> iterateAll(Class<D> domainClass, int fetchSize) {
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("Fetch size must be greater than zero but was " + fetchSize);
+		}
+		return new ChunkIterator<D>(domainClass, fetchSize);
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> D findById(Class<D> domainClass, Serializable id) {
+		return findById(domainClass, id, Options.Default());
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> D findById(Class<D> domainClass, Serializable id, AccessPlan options) {
+		if (id == null) {
+			return null;
+		}
+		Transaction current = requireTransaction(options);
+		EntityMapping mapping = EntityMapping.of(domainClass);
+		SqlStatements sql = statements(domainClass);
+		return execute(connection -> {
+			PreparedStatement query = query(connection, options.getLockMode() == LockType.PessimisticWrite ? sql.findByIdForUpdate() : sql.findById(), 0);
+			bind(query, 1, id);
+			List<D> found = readAll(query, mapping);
+			if (found.isEmpty()) return null;
+			if (options.getLockMode() == LockType.Optimistic) current.verifyOnCommit(domainClass, found.get(0));
+			return found.get(0);
+		});
+	}
+
+	/**
+	 * Fetches the domain objects with IN queries with at most {@link #getMaxQueryParameters()} ids each.
+	 */
+	@Override
+	public <D extends Persistent<? extends Serializable>> Map<Serializable, D> findByIds(Class<D> domainClass, Collection<? extends Serializable> ids) {
+		Set<Serializable> distinctIds = new LinkedHashSet<Serializable>(ids);
+		distinctIds.remove(null);
+		if (distinctIds.isEmpty()) {
+			return new LinkedHashMap<Serializable, D>(0);
+		}
+		EntityMapping mapping = EntityMapping.of(domainClass);
+		SqlStatements sql = statements(domainClass);
+		Map<Serializable, D> found = execute(connection -> {
+			Map<Serializable, D> byId = new HashMap<Serializable, D>(distinctIds.size());
+			List<Serializable> all = new ArrayList<Serializable>(distinctIds);
+			for (int start = 0; start < all.size(); start += getMaxQueryParameters()) {
+				List<Serializable> chunk = all.subList(start, Math.min(start + getMaxQueryParameters(), all.size()));
+				PreparedStatement query = query(connection, sql.findByIds(chunk.size()), 0);
+				for (int i = 0; i < chunk.size(); i++) {
+					bind(query, i + 1, chunk.get(i));
+				}
+				for (D domainObject : JdbcPersistenceProvider.<D>readAll(query, mapping)) {
+					byId.put(domainObject.getId(), domainObject);
+				}
+			}
+			return byId;
+		});
+		// restore the order of the given ids
+		Map<Serializable, D> result = new LinkedHashMap<Serializable, D>(found.size());
+		for (Serializable id : distinctIds) {
+			D domainObject = found.get(id);
+			if (domainObject != null) result.put(id, domainObject);
+		}
+		return result;
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> D persist(Class<D> domainClass, D domainObject) {
+		if (domainObject == null) return null;
+		return execute(connection -> persistInternal(connection, domainObject));
+	}
+
+	/**
+	 * Check whether the object is a representation of a persistent object from the database, without actually issuing a
+	 * query to the database.
+	 */
+	protected <D extends Persistent<? extends Serializable>> boolean isPersistent(D domainObject) {
+		return domainObject.getVersion() > -1;
+	}
+
+	private <D extends Persistent<? extends Serializable>> D persistInternal(StatementCache connection, D domainObject) throws SQLException {
+		if (domainObject == null) return null;
+		EntityMapping mapping = EntityMapping.of(domainObject.getClass());
+		SqlStatements sql = statements(domainObject.getClass());
+		if (!isPersistent(domainObject)) {
+			PreparedStatement insert = connection.prepare(sql.insert());
+			bindInsert(insert, mapping, domainObject);
+			insert.executeUpdate();
+			return domainObject;
+		}
+		D updated = copyForUpdate(mapping, domainObject);
+		if (sql.update() == null) {
+			verifyUnchanged(connection, sql, domainObject);
+			return updated;
+		}
+		PreparedStatement update = connection.prepare(sql.update());
+		bindUpdate(update, mapping, updated, domainObject.getVersion());
+		applyUpdateCount(connection, sql, mapping, domainObject, updated, update.executeUpdate());
+		return updated;
+	}
+
+	private static void bindInsert(PreparedStatement insert, EntityMapping mapping, Persistent<?> domainObject) throws SQLException {
+		if (domainObject.getId() == null) {
+			throw new IllegalArgumentException("Domain objects need a primary key assigned by the application: " + domainObject);
+		}
+		mapping.prePersist(domainObject);
+		if (mapping.getVersion() != null) mapping.getVersion().set(domainObject, 0L);
+		bindColumns(insert, mapping.getColumns(), domainObject, 1);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <D> D copyForUpdate(EntityMapping mapping, D domainObject) {
+		D copy = (D) mapping.copy(domainObject);
+		mapping.preUpdate(copy);
+		return copy;
+	}
+
+	private static void bindUpdate(PreparedStatement update, EntityMapping mapping, Object domainObject, long version) throws SQLException {
+		int index = bindColumns(update, mapping.getValues(), domainObject, 1);
+		bind(update, index++, mapping.getId().get(domainObject));
+		if (mapping.getVersion() != null) bind(update, index++, version);
+		bindColumns(update, mapping.getValues(), domainObject, index);
+	}
+
+	/**
+	 * Increment the version of the updated copy, if the row has been written. Otherwise, the row has either not been changed or
+	 * the update was stale.
+	 */
+	private static void applyUpdateCount(StatementCache connection, SqlStatements sql, EntityMapping mapping,
+										 Persistent<?> domainObject, Object updated, int count) throws SQLException {
+		if (count == 0) {
+			verifyUnchanged(connection, sql, domainObject);
+		} else if (mapping.getVersion() != null) {
+			mapping.getVersion().set(updated, domainObject.getVersion() + 1);
+		}
+	}
+
+	/**
+	 * Verify that the row of the domain object exists with the version of the domain object
+	 *
+	 * @throws OptimisticLockException If the row has been deleted or modified concurrently
+	 */
+	private static void verifyUnchanged(StatementCache connection, SqlStatements sql, Persistent<?> domainObject) throws SQLException {
+		if (sql.version() == null) {
+			PreparedStatement exists = query(connection, sql.exists(), 0);
+			bind(exists, 1, domainObject.getId());
+			if (count(exists) == 0) {
+				throw new OptimisticLockException("Domain object has been deleted: " + domainObject, null, domainObject);
+			}
+			return;
+		}
+		PreparedStatement version = query(connection, sql.version(), 0);
+		bind(version, 1, domainObject.getId());
+		ResultSet rows = version.executeQuery();
+		try {
+			if (!rows.next()) {
+				throw new OptimisticLockException("Domain object has been deleted: " + domainObject, null, domainObject);
+			}
+			long current = rows.getLong(1);
+			if (current != domainObject.getVersion()) {
+				throw new OptimisticLockException("Domain object has been modified concurrently: version " + domainObject.getVersion()
+						+ " of " + domainObject + " is stale, current version is " + current, null, domainObject);
+			}
+		} finally {
+			rows.close();
+		}
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> List<D> persistAll(Class<D> domainClass, List<D> domainObjects) {
+		if (domainObjects == null) {
+			return new ArrayList<D>(0);
+		}
+		return transactional(connection -> {
+			List<D> persistentObjects = new ArrayList<D>(domainObjects.size());
+			for (D domainObject : domainObjects) {
+				persistentObjects.add(persistInternal(connection, domainObject));
+			}
+			return persistentObjects;
+		});
+	}
+
+	/**
+	 * Persists the given domain objects in JDBC batches of batchSize statements. Semantics are the same as for
+	 * {@link #persistAll(Class, java.util.List)}. The domain objects must all be of the given domain class.
+	 */
+	@Override
+	public <D extends Persistent<? extends Serializable>> List<D> persistAll(Class<D> domainClass, List<D> domainObjects, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be greater than zero but was " + batchSize);
+		}
+		if (domainObjects == null) {
+			return new ArrayList<D>(0);
+		}
+		EntityMapping mapping = EntityMapping.of(domainClass);
+		SqlStatements sql = statements(domainClass);
+		return transactional(connection -> {
+			List<D> persistentObjects = new ArrayList<D>(domainObjects.size());
+			// the originals and copies of the updates of the current batch
+			List<D> originals = new ArrayList<D>(batchSize);
+			List<D> updates = new ArrayList<D>(batchSize);
+			PreparedStatement insert = connection.prepare(sql.insert());
+			PreparedStatement update = sql.update() != null ? connection.prepare(sql.update()) : null;
+			int unflushed = 0;
+			try {
+				for (D domainObject : domainObjects) {
+					if (domainObject == null) {
+						persistentObjects.add(null);
+						continue;
+					}
+					if (!isPersistent(domainObject)) {
+						bindInsert(insert, mapping, domainObject);
+						insert.addBatch();
+						persistentObjects.add(domainObject);
+					} else {
+						D updated = copyForUpdate(mapping, domainObject);
+						if (update == null) {
+							verifyUnchanged(connection, sql, domainObject);
+						} else {
+							bindUpdate(update, mapping, updated, domainObject.getVersion());
+							update.addBatch();
+							originals.add(domainObject);
+							updates.add(updated);
+						}
+						persistentObjects.add(updated);
+					}
+					if (++unflushed == batchSize) {
+						executeBatches(connection, sql, mapping, insert, update, originals, updates);
+						unflushed = 0;
+					}
+				}
+				if (unflushed > 0) {
+					executeBatches(connection, sql, mapping, insert, update, originals, updates);
+				}
+			} finally {
+				insert.clearBatch();
+				if (update != null) update.clearBatch();
+			}
+			return persistentObjects;
+		});
+	}
+
+	private static <D extends Persistent<? extends Serializable>> void executeBatches(StatementCache connection, SqlStatements sql, EntityMapping mapping,
+			PreparedStatement insert, PreparedStatement update, List<D> originals, List<D> updates) throws SQLException {
+		insert.executeBatch();
+		if (updates.isEmpty()) return;
+		int[] counts = update.executeBatch();
+		for (int i = 0; i < counts.length; i++) {
+			// drivers may not report the number of written rows
+			int count = counts[i] == Statement.SUCCESS_NO_INFO ? 1 : counts[i];
+			applyUpdateCount(connection, sql, mapping, originals.get(i), updates.get(i), count);
+		}
+		originals.clear();
+		updates.clear();
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> boolean upsert(Class<D> domainClass, D domainObject) {
+		return upsertAll(domainClass, Collections.singletonList(domainObject));
+	}
+
+	/**
+	 * Writes the given domain objects with the native upsert statement of the SQL dialect. Each statement
+	 * covers at most {@link #getMaxQueryParameters()} parameters. No lifecycle callbacks are invoked.
+	 */
+	@Override
+	public <D extends Persistent<? extends Serializable>> boolean upsertAll(Class<D> domainClass, Collection<D> domainObjects) {
+		if (domainObjects == null || domainObjects.isEmpty()) {
+			return true;
+		}
+		// a single statement must not write the same row twice
+		Map<Serializable, D> byId = new LinkedHashMap<Serializable, D>(domainObjects.size());
+		boolean allValid = true;
+		for (D domainObject : domainObjects) {
+			if (domainObject == null || domainObject.getId() == null) {
+				allValid = false;
+			} else {
+				byId.put(domainObject.getId(), domainObject);
+			}
+		}
+		if (byId.isEmpty()) {
+			return false;
+		}
+		EntityMapping mapping = EntityMapping.of(domainClass);
+		List<D> rows = new ArrayList<D>(byId.values());
+		int written = transactional(connection -> {
+			ISqlDialect dialect = dialect(connection);
+			int chunkSize = Math.max(1, getMaxQueryParameters() / dialect.upsertParameterCount(mapping));
+			int count = 0;
+			for (int start = 0; start < rows.size(); start += chunkSize) {
+				List<D> chunk = rows.subList(start, Math.min(start + chunkSize, rows.size()));
+				PreparedStatement upsert = connection.prepare(dialect.upsert(mapping, chunk.size()));
+				int index = 1;
+				for (D row : chunk) {
+					for (Object parameter : dialect.upsertParameters(mapping, row)) {
+						bind(upsert, index++, parameter);
+					}
+				}
+				count += upsert.executeUpdate();
+			}
+			return count;
+		});
+		return allValid && written >= rows.size();
+	}
+
+	private ISqlDialect dialect(StatementCache connection) throws SQLException {
+		ISqlDialect dialect = sqlDialect;
+		if (dialect == null) {
+			dialect = SqlDialects.forDatabase(connection.getConnection().getMetaData().getDatabaseProductName());
+			sqlDialect = dialect;
+		}
+		return dialect;
+	}
+
+	/**
+	 * Runs the unit of work in a transaction. If a transaction is active already, the unit of work joins it.
+	 * If the unit of work fails, the transaction is rolled back.
+	 */
+	@Override
+	public void runInTransaction(IUnitOfWork unit) {
+		transactional(connection -> {
+			try {
+				unit.execute();
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new RuntimeException(e); // promote exception to caller
+			}
+			return null;
+		});
+	}
+
+	@Override
+	public boolean isTransactionActive() {
+		return transaction.get() != null;
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> long count(Class<D> domainClass) {
+		return execute(connection -> count(query(connection, statements(domainClass).count(), 0)));
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> boolean exists(Class<D> domainClass, Serializable id) {
+		if (id == null) {
+			return false;
+		}
+		return execute(connection -> {
+			PreparedStatement exists = query(connection, statements(domainClass).exists(), 0);
+			bind(exists, 1, id);
+			return count(exists) > 0;
+		});
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, Query.TypedQuery query) {
+		return findAll(domainClass, query, Options.Default());
+	}
+
+	/**
+	 * Typed queries are named or JPQL queries, which need a JPA provider. Native queries of domain objects are run with
+	 * {@link #runQuery(Class, Query)}, their columns are mapped to the domain class by name.
+	 */
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, Query.TypedQuery query, AccessPlan options) {
+		throw new UnsupportedOperationException("Named and JPQL queries need a JPA provider, use native queries instead: " + query);
+	}
+
+	/**
+	 * Iterates over the results of the query, which are fetched at once
+	 */
+	@Override
+	public <E extends Persistent<? extends Serializable>> IResultIterator<E> iterateAll(Class<E> domainClass, Query.TypedQuery query, int fetchSize) {
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("Fetch size must be greater than zero but was " + fetchSize);
+		}
+		return new ListResultIterator<E>(findAll(domainClass, query));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E find(Class<E> domainClass, Query.TypedQuery query) {
+		return find(domainClass, query, Options.Default());
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E find(Class<E> domainClass, Query.TypedQuery query, AccessPlan options) {
+		List<E> results = findAll(domainClass, query, options);
+		if (results.size() > 1) {
+			throw new NonUniqueResultException("More than one result returned for find(" + domainClass.getSimpleName() + ") with query " + query);
+		}
+		return results.isEmpty() ? null : results.get(0);
+	}
+
+	@Override
+	public <E> List<E> runQuery(Class<E> resultType, Query source) {
+		return runQuery(resultType, source, -1);
+	}
+
+	private <E> List<E> runQuery(Class<E> resultType, Query source, int maxResults) {
+		switch (source.getType()) {
+			case Native:
+				return runNative(resultType, ((Query.NativeQuery) source).getQueryString(), (Query.ParametrizedQuery) source, maxResults);
+			case Projection:
+				return runProjection(resultType, (Query.ProjectionQuery) source, maxResults);
+			default:
+		}
+		throw new UnsupportedOperationException("Named and JPQL queries need a JPA provider, use native queries instead: " + source);
+	}
+
+	/**
+	 * Fetches one more result than the page size to find out whether a following page exists.
+	 */
+	@Override
+	public <E> Page<E> runPagedQuery(Class<E> resultType, Query source) {
+		if (!source.isSeek() || !source.hasResultLimit()) {
+			throw new IllegalArgumentException("Paged queries must specify a seek and a result limit: " + source);
+		}
+		List<E> results = runQuery(resultType, source, source.getMaxResults() + 1);
+		if (results.size() <= source.getMaxResults()) {
+			return new Page<E>(results, null);
+		}
+		results = new ArrayList<E>(results.subList(0, source.getMaxResults()));
+		Query.Seek continuation = source.getSeek().after(source.getSeek().keyOf(results.get(results.size() - 1)));
+		return new Page<E>(results, continuation);
+	}
+
+	private static Map<String, Object> parametersOf(Query.ParametrizedQuery source) {
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		source.forEachParameter(parameters::put);
+		if (source.isSeek()) {
+			if (source.isFirstResultSet()) {
+				throw new IllegalArgumentException("Keyset pagination can not be combined with a first result: " + source);
+			}
+			parameters.put(source.getSeek().getParameter(), source.getSeek().getAfter());
+		}
+		return parameters;
+	}
+
+	private <E> List<E> runNative(Class<E> resultType, String statement, Query.ParametrizedQuery source, int maxResults) {
+		NativeStatement parsed = nativeStatement(statement);
+		Map<String, Object> parameters = parametersOf(source);
+		String sql = parsed.getSql(parameters);
+		List<Object> values = parsed.values(parameters);
+		EntityMapping mapping = resultType.isAnnotationPresent(Entity.class) ? EntityMapping.of(resultType) : null;
+		return execute(connection -> {
+			PreparedStatement query = limited(connection, sql, source, maxResults);
+			for (int i = 0; i < values.size(); i++) {
+				bind(query, i + 1, values.get(i));
+			}
+			return mapping != null ? readMapped(query, mapping, source) : this.<E>readRows(query, source, null);
+		});
+	}
+
+	/**
+	 * Prepare the query with a row limit that covers the first result and the result limit of the source. Rows before the first
+	 * result are skipped while reading.
+	 */
+	private static PreparedStatement limited(StatementCache connection, String sql, Query source, int maxResults) throws SQLException {
+		int first = source.isFirstResultSet() ? source.getFirtResult() : 0;
+		int max = maxResults > 0 ? maxResults : source.hasResultLimit() ? source.getMaxResults() : 0;
+		return query(connection, sql, max > 0 ? (int) Math.min(Integer.MAX_VALUE, (long) first + max) : 0);
+	}
+
+	private static void skip(ResultSet rows, Query source) throws SQLException {
+		if (!source.isFirstResultSet()) return;
+		for (int i = 0; i < source.getFirtResult() && rows.next(); i++) ;
+	}
+
+	// maps the columns of native queries to the mapped columns by name
+	@SuppressWarnings("unchecked")
+	private static <E> List<E> readMapped(PreparedStatement query, EntityMapping mapping, Query source) throws SQLException {
+		List<E> results = new ArrayList<E>();
+		ResultSet rows = query.executeQuery();
+		try {
+			ResultSetMetaData metaData = rows.getMetaData();
+			EntityMapping.Column[] columns = new EntityMapping.Column[metaData.getColumnCount()];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = mapping.getColumn(metaData.getColumnLabel(i + 1));
+			}
+			skip(rows, source);
+			while (rows.next()) {
+				Object domainObject = mapping.newInstance();
+				for (int i = 0; i < columns.length; i++) {
+					if (columns[i] != null) columns[i].set(domainObject, rows.getObject(i + 1));
+				}
+				results.add((E) domainObject);
+			}
+		} finally {
+			rows.close();
+		}
+		return results;
+	}
+
+	/**
+	 * Read rows of values like JPA providers return them for native queries: a single value per row if one column is
+	 * selected, an array of values otherwise. Values are converted to the types of the given columns (if any).
+	 */
+	private <E> List<E> readRows(PreparedStatement query, Query source, List<EntityMapping.Column> columns) throws SQLException {
+		List<Object> results = new ArrayList<Object>();
+		ResultSet rows = query.executeQuery();
+		try {
+			int count = rows.getMetaData().getColumnCount();
+			skip(rows, source);
+			while (rows.next()) {
+				Object[] values = new Object[count];
+				for (int i = 0; i < count; i++) {
+					Object value = rows.getObject(i + 1);
+					values[i] = columns != null ? columns.get(i).fromJdbc(value) : value;
+				}
+				results.add(count == 1 ? values[0] : values);
+			}
+		} finally {
+			rows.close();
+		}
+		@SuppressWarnings("unchecked")
+		List<E> typed = (List<E>) results;
+		return typed;
+	}
+
+	private <E> List<E> runProjection(Class<E> resultType, Query.ProjectionQuery projection, int maxResults) {
+		if (projection.getAttributes().isEmpty()) {
+			throw new IllegalArgumentException("Projections must select at least one attribute: " + projection);
+		}
+		EntityMapping mapping = EntityMapping.of(projection.getDomainClass());
+		List<EntityMapping.Column> selected = new ArrayList<EntityMapping.Column>(projection.getAttributes().size());
+		StringBuilder sql = new StringBuilder("SELECT ");
+		for (String attribute : projection.getAttributes()) {
+			if (!selected.isEmpty()) sql.append(", ");
+			EntityMapping.Column column = columnOf(mapping, attribute);
+			selected.add(column);
+			sql.append(column.getName());
+		}
+		sql.append(" FROM ").append(mapping.getTable());
+		List<String> parameters = new ArrayList<String>();
+		String separator = " WHERE ";
+		for (Query.ProjectionQuery.Condition condition : projection.getConditions()) {
+			sql.append(separator).append(columnOf(mapping, condition.getAttribute()).getName());
+			if (condition.getParameter() == null) {
+				sql.append(" IS NULL");
+			} else {
+				sql.append(" = ?");
+				parameters.add(condition.getParameter());
+			}
+			separator = " AND ";
+		}
+		separator = " ORDER BY ";
+		for (Query.ProjectionQuery.Ordering ordering : projection.getOrderings()) {
+			sql.append(separator).append(columnOf(mapping, ordering.getAttribute()).getName()).append(ordering.isAscending() ? " ASC" : " DESC");
+			separator = ", ";
+		}
+		Map<String, Object> values = parametersOf(projection);
+		List<Object> rows = execute(connection -> {
+			PreparedStatement query = limited(connection, sql.toString(), projection, maxResults);
+			for (int i = 0; i < parameters.size(); i++) {
+				if (!values.containsKey(parameters.get(i))) {
+					throw new IllegalArgumentException("No value bound to parameter " + parameters.get(i) + " of " + projection);
+				}
+				bind(query, i + 1, values.get(parameters.get(i)));
+			}
+			return readRows(query, projection, selected);
+		});
+		List<E> results = new ArrayList<E>(rows.size());
+		for (Object row : rows) {
+			results.add(project(resultType, row, projection.getAttributes()));
+		}
+		return results;
+	}
+
+	private static EntityMapping.Column columnOf(EntityMapping mapping, String attribute) {
+		EntityMapping.Column column = mapping.getColumnOf(attribute);
+		if (column == null) {
+			throw new IllegalArgumentException("Attribute " + attribute + " is not mapped to a column of " + mapping.getTable()
+					+ ". Projections can only select attributes of the domain class itself");
+		}
+		return column;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E> E project(Class<E> resultType, Object row, List<String> attributes) {
+		boolean single = attributes.size() == 1;
+		if (resultType.equals(Object[].class)) {
+			return (E) (single ? new Object[]{row} : row);
+		}
+		if (single && (row == null || resultType.isInstance(row))) {
+			return (E) row;
+		}
+		if (!single && resultType.equals(Object.class)) {
+			return (E) row;
+		}
+		Object[] values = single ? new Object[]{row} : (Object[]) row;
+		for (Constructor<?> constructor : resultType.getConstructors()) {
+			if (constructor.getParameterTypes().length != values.length) continue;
+			try {
+				return (E) constructor.newInstance(values);
+			} catch (IllegalArgumentException e) {
+				// parameter types do not match, try the next constructor
+			} catch (InstantiationException e) {
+				throw new IllegalArgumentException("Could not create " + resultType.getName() + " from " + attributes, e);
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException("Could not create " + resultType.getName() + " from " + attributes, e);
+			} catch (InvocationTargetException e) {
+				throw new IllegalArgumentException("Could not create " + resultType.getName() + " from " + attributes, e.getCause());
+			}
+		}
+		throw new IllegalArgumentException("Results of type " + resultType.getName() + " can not be created from " + attributes);
+	}
+
+	/**
+	 * Statements are executed immediately, thus there is nothing to flush
+	 */
+	@Override
+	public void flush() {
+	}
+
+	private interface Work<R> {
+
+		R run(StatementCache connection) throws SQLException;
+	}
+
+	// the connection of the transaction of one thread
+	private final class Transaction {
+
+		private final StatementCache connection;
+
+		// the versions of domain objects read with an optimistic lock by their statements and ids
+		private final Map<SqlStatements, Map<Serializable, Long>> optimisticReads = new HashMap<SqlStatements, Map<Serializable, Long>>();
+
+		private boolean reusable = true;
+
+		private Transaction(StatementCache connection) {
+			this.connection = connection;
+		}
+
+		private <R> R run(Work<R> work) {
+			try {
+				return work.run(connection);
+			} catch (SQLException e) {
+				reusable = false;
+				throw translate(e);
+			}
+		}
+
+		private void begin() {
+			try {
+				connection.getConnection().setAutoCommit(false);
+			} catch (SQLException e) {
+				reusable = false;
+				throw translate(e);
+			}
+		}
+
+		private void verifyOnCommit(Class<?> domainClass, Persistent<?> domainObject) {
+			Map<Serializable, Long> versions = optimisticReads.get(statements(domainClass));
+			if (versions == null) {
+				versions = new HashMap<Serializable, Long>();
+				optimisticReads.put(statements(domainClass), versions);
+			}
+			if (!versions.containsKey(domainObject.getId())) versions.put(domainObject.getId(), domainObject.getVersion());
+		}
+
+		private void commit() {
+			run(connection -> {
+				for (Map.Entry<SqlStatements, Map<Serializable, Long>> read : optimisticReads.entrySet()) {
+					if (read.getKey().version() == null) continue;
+					for (Map.Entry<Serializable, Long> version : read.getValue().entrySet()) {
+						PreparedStatement query = query(connection, read.getKey().version(), 0);
+						bind(query, 1, version.getKey());
+						ResultSet rows = query.executeQuery();
+						try {
+							if (!rows.next() || rows.getLong(1) != version.getValue()) {
+								throw new OptimisticLockException("Domain object " + version.getKey()
+										+ " has been modified since it has been read with an optimistic lock");
+							}
+						} finally {
+							rows.close();
+						}
+					}
+				}
+				connection.getConnection().commit();
+				return null;
+			});
+		}
+
+		private void rollback() {
+			try {
+				connection.getConnection().rollback();
+			} catch (SQLException e) {
+				reusable = false;
+			}
+		}
+
+		private void end() {
+			try {
+				if (reusable) connection.getConnection().setAutoCommit(true);
+			} catch (SQLException e) {
+				reusable = false;
+			}
+			release(connection, reusable);
+		}
+	}
+
+	// fetches chunks of domain objects ordered by id, each with a connection of its own
+	private final class ChunkIterator<D extends Persistent<? extends Serializable>> implements IResultIterator<D> {
+
+		private final Class<D> domainClass;
+
+		private final int fetchSize;
+
+		private Iterator<D> chunk = Collections.<D>emptyList().iterator();
+
+		private D last;
+
+		private boolean exhausted = false;
+
+		private ChunkIterator(Class<D> domainClass, int fetchSize) {
+			this.domainClass = domainClass;
+			this.fetchSize = fetchSize;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (chunk.hasNext()) return true;
+			if (exhausted) return false;
+			List<D> fetched = fetch();
+			if (fetched.size() < fetchSize) exhausted = true;
+			if (fetched.isEmpty()) return false;
+			last = fetched.get(fetched.size() - 1);
+			chunk = fetched.iterator();
+			return true;
+		}
+
+		private List<D> fetch() {
+			EntityMapping mapping = EntityMapping.of(domainClass);
+			SqlStatements sql = statements(domainClass);
+			return execute(connection -> {
+				PreparedStatement query = query(connection, last == null ? sql.firstChunk() : sql.nextChunk(), fetchSize);
+				query.setFetchSize(fetchSize);
+				if (last != null) bind(query, 1, last.getId());
+				return readAll(query, mapping);
+			});
+		}
+
+		@Override
+		public D next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return chunk.next();
+		}
+
+		@Override
+		public void close() {
+			exhausted = true;
+			chunk = Collections.<D>emptyList().iterator();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package net.engio.daoism.dao.jdbc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A native SQL statement with named parameters (e.g. {@code WHERE v_host = :HOST}) translated to the positional
+ * parameters of JDBC. Colons within quoted literals or identifiers and PostgreSQL style casts ({@code ::}) are not
+ * treated as parameters. Parameters that are bound to collections are expanded to one positional parameter per element,
+ * such that they can be used with IN.
+ *
+ * @author Benjamin Diedrichsen
+ */
+final class NativeStatement {
+
+	// the fragments of the statement between the parameters, there is one more fragment than parameters
+	private final List<String> fragments;
+
+	private final List<String> parameters;
+
+	private final String sql;
+
+	private NativeStatement(List<String> fragments, List<String> parameters) {
+		this.fragments = fragments;
+		this.parameters = parameters;
+		StringBuilder sql = new StringBuilder(fragments.get(0));
+		for (int i = 0; i < parameters.size(); i++) {
+			sql.append('?').append(fragments.get(i + 1));
+		}
+		this.sql = sql.toString();
+	}
+
+	static NativeStatement parse(String statement) {
+		List<String> fragments = new ArrayList<String>();
+		List<String> parameters = new ArrayList<String>();
+		StringBuilder fragment = new StringBuilder();
+		char quote = 0;
+		int i = 0;
+		while (i < statement.length()) {
+			char current = statement.charAt(i);
+			if (quote != 0) {
+				if (current == quote) quote = 0;
+			} else if (current == '\'' || current == '"') {
+				quote = current;
+			} else if (current == ':' && i + 1 < statement.length() && statement.charAt(i + 1) == ':') {
+				fragment.append("::");
+				i += 2;
+				continue;
+			} else if (current == ':' && i + 1 < statement.length() && Character.isJavaIdentifierStart(statement.charAt(i + 1))) {
+				int end = i + 1;
+				while (end < statement.length() && Character.isJavaIdentifierPart(statement.charAt(end))) end++;
+				fragments.add(fragment.toString());
+				fragment.setLength(0);
+				parameters.add(statement.substring(i + 1, end));
+				i = end;
+				continue;
+			}
+			fragment.append(current);
+			i++;
+		}
+		fragments.add(fragment.toString());
+		return new NativeStatement(Collections.unmodifiableList(fragments), Collections.unmodifiableList(parameters));
+	}
+
+	/**
+	 * @return The statement with positional parameters, as long as no parameter is bound to a collection
+	 */
+	String getSql() {
+		return sql;
+	}
+
+	List<String> getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * Get the positional values of the parameters
+	 *
+	 * @param values The values by parameter name
+	 * @throws IllegalArgumentException If a parameter is not bound
+	 */
+	List<Object> values(Map<String, Object> values) {
+		List<Object> positional = new ArrayList<Object>(parameters.size());
+		for (String parameter : parameters) {
+			if (!values.containsKey(parameter)) {
+				throw new IllegalArgumentException("No value bound to parameter " + parameter + " of " + sql);
+			}
+			Object value = values.get(parameter);
+			if (value instanceof Collection) {
+				positional.addAll((Collection<?>) value);
+			} else {
+				positional.add(value);
+			}
+		}
+		return positional;
+	}
+
+	/**
+	 * Get the statement with positional parameters for the given values, see {@link #values(java.util.Map)}
+	 */
+	String getSql(Map<String, Object> values) {
+		boolean expanded = false;
+		for (String parameter : parameters) {
+			if (values.get(parameter) instanceof Collection) expanded = true;
+		}
+		if (!expanded) return sql;
+		StringBuilder sql = new StringBuilder(fragments.get(0));
+		for (int i = 0; i < parameters.size(); i++) {
+			Object value = values.get(parameters.get(i));
+			if (value instanceof Collection) {
+				int size = ((Collection<?>) value).size();
+				if (size == 0) {
+					throw new IllegalArgumentException("Collection bound to parameter " + parameters.get(i) + " must not be empty");
+				}
+				for (int element = 0; element < size; element++) {
+					sql.append(element > 0 ? ", ?" : "?");
+				}
+			} else {
+				sql.append('?');
+			}
+			sql.append(fragments.get(i + 1));
+		}
+		return sql.toString();
+	}
+
+	@Override
+	public String toString() {
+		return sql;
+	}
+}
@@ -0,0 +1,197 @@
+package net.engio.daoism.dao.jdbc;
+
+import net.engio.daoism.dao.sql.EntityMapping;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The SQL statements of the basic operations on a domain class, generated once from its {@link EntityMapping}.
+ * The columns of all selects are listed in the order of {@link EntityMapping#getColumns()}. Statements
+ * for a variable number of rows are generated once per number of rows.
+ *
+ * @author Benjamin Diedrichsen
+ */
+final class SqlStatements {
+
+	private final EntityMapping mapping;
+
+	private final String insert;
+
+	private final String update;
+
+	private final String delete;
+
+	private final String findById;
+
+	private final String findByIdForUpdate;
+
+	private final String findAll;
+
+	private final String count;
+
+	private final String exists;
+
+	private final String version;
+
+	private final String firstChunk;
+
+	private final String nextChunk;
+
+	private final ConcurrentMap<Integer, String> findByIds = new ConcurrentHashMap<Integer, String>();
+
+	private final ConcurrentMap<Integer, String> bulkDelete = new ConcurrentHashMap<Integer, String>();
+
+	private final ConcurrentMap<Integer, String> bulkDeleteVersioned = new ConcurrentHashMap<Integer, String>();
+
+	SqlStatements(EntityMapping mapping) {
+		this.mapping = mapping;
+		String table = mapping.getTable();
+		String id = mapping.getId().getName();
+		StringBuilder values = new StringBuilder("?");
+		for (int i = 1; i < mapping.getColumns().size(); i++) {
+			values.append(", ?");
+		}
+		insert = "INSERT INTO " + table + " (" + mapping.getColumnList() + ") VALUES (" + values + ")";
+		delete = "DELETE FROM " + table + " WHERE " + id + " = ?";
+		String select = "SELECT " + mapping.getColumnList() + " FROM " + table;
+		findById = select + " WHERE " + id + " = ?";
+		findByIdForUpdate = findById + " FOR UPDATE";
+		findAll = select;
+		firstChunk = select + " ORDER BY " + id;
+		nextChunk = select + " WHERE " + id + " > ? ORDER BY " + id;
+		count = "SELECT COUNT(*) FROM " + table;
+		exists = "SELECT COUNT(*) FROM " + table + " WHERE " + id + " = ?";
+		version = mapping.getVersion() != null
+				? "SELECT " + mapping.getVersion().getName() + " FROM " + table + " WHERE " + id + " = ?"
+				: null;
+		update = update(mapping);
+	}
+
+	/*
+	 * UPDATE table SET c1 = ?, ..., version = version + 1 WHERE id = ? AND version = ? AND (c1 IS DISTINCT FROM ? OR ...)
+	 * Rows are only written if any value changed, like the JPA providers do when merging unchanged domain objects.
+	 */
+	private static String update(EntityMapping mapping) {
+		if (mapping.getValues().isEmpty()) return null;
+		StringBuilder update = new StringBuilder("UPDATE ").append(mapping.getTable()).append(" SET ");
+		StringBuilder changed = new StringBuilder();
+		for (EntityMapping.Column column : mapping.getValues()) {
+			if (changed.length() > 0) {
+				update.append(", ");
+				changed.append(" OR ");
+			}
+			update.append(column.getName()).append(" = ?");
+			changed.append(column.getName()).append(" IS DISTINCT FROM ?");
+		}
+		if (mapping.getVersion() != null) {
+			String version = mapping.getVersion().getName();
+			update.append(", ").append(version).append(" = ").append(version).append(" + 1");
+		}
+		update.append(" WHERE ").append(mapping.getId().getName()).append(" = ?");
+		if (mapping.getVersion() != null) {
+			update.append(" AND ").append(mapping.getVersion().getName()).append(" = ?");
+		}
+		return update.append(" AND (").append(changed).append(')').toString();
+	}
+
+	/**
+	 * Parameters: all columns in the order of {@link EntityMapping#getColumns()}
+	 */
+	String insert() {
+		return insert;
+	}
+
+	/**
+	 * Parameters: the values, the id, the expected version (if versioned) and the values again.
+	 *
+	 * @return The update or null, if the domain class has no columns but id and version
+	 */
+	String update() {
+		return update;
+	}
+
+	String delete() {
+		return delete;
+	}
+
+	String findById() {
+		return findById;
+	}
+
+	String findByIdForUpdate() {
+		return findByIdForUpdate;
+	}
+
+	String findAll() {
+		return findAll;
+	}
+
+	String firstChunk() {
+		return firstChunk;
+	}
+
+	String nextChunk() {
+		return nextChunk;
+	}
+
+	String count() {
+		return count;
+	}
+
+	String exists() {
+		return exists;
+	}
+
+	/**
+	 * @return The select of the version by id or null, if the domain class is not versioned
+	 */
+	String version() {
+		return version;
+	}
+
+	String findByIds(int ids) {
+		String statement = findByIds.get(ids);
+		if (statement == null) {
+			statement = "SELECT " + mapping.getColumnList() + " FROM " + mapping.getTable() + " WHERE " + mapping.getId().getName() + " IN (" + placeholders(ids) + ")";
+			findByIds.putIfAbsent(ids, statement);
+		}
+		return statement;
+	}
+
+	String bulkDelete(int ids) {
+		String statement = bulkDelete.get(ids);
+		if (statement == null) {
+			statement = "DELETE FROM " + mapping.getTable() + " WHERE " + mapping.getId().getName() + " IN (" + placeholders(ids) + ")";
+			bulkDelete.putIfAbsent(ids, statement);
+		}
+		return statement;
+	}
+
+	/**
+	 * Parameters: id and version of each row
+	 */
+	String bulkDeleteVersioned(int rows) {
+		String statement = bulkDeleteVersioned.get(rows);
+		if (statement == null) {
+			StringBuilder delete = new StringBuilder("DELETE FROM ").append(mapping.getTable()).append(" WHERE ");
+			String row = "(" + mapping.getId().getName() + " = ? AND " + mapping.getVersion().getName() + " = ?)";
+			for (int i = 0; i < rows; i++) {
+				if (i > 0) delete.append(" OR ");
+				delete.append(row);
+			}
+			statement = delete.toString();
+			bulkDeleteVersioned.putIfAbsent(rows, statement);
+		}
+		return statement;
+	}
+
+	private static String placeholders(int count) {
+		StringBuilder placeholders = new StringBuilder(count * 3);
+		for (int i = 0; i < count; i++) {
+			if (i > 0) placeholders.append(", ");
+			placeholders.append('?');
+		}
+		return placeholders.toString();
+	}
+}
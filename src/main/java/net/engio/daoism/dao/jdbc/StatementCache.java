@@ -0,0 +1,94 @@
+package net.engio.daoism.dao.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A connection along with the statements that have been prepared on it. The least recently used statement is closed
+ * when the cache exceeds its capacity. Cached statements are reused as they are, callers must set all parameters
+ * and limits before executing them.
+ *
+ * Instances are not thread-safe, a connection is only used by one thread at a time.
+ *
+ * @author Benjamin Diedrichsen
+ */
+final class StatementCache {
+
+	private final Connection connection;
+
+	private final LinkedHashMap<String, PreparedStatement> statements;
+
+	// shared by all caches of a provider
+	private final LongAdder hits;
+
+	private final LongAdder misses;
+
+	// the time this connection has been released the last time
+	private long idleSince;
+
+	StatementCache(Connection connection, final int capacity, LongAdder hits, LongAdder misses) {
+		this.connection = connection;
+		this.hits = hits;
+		this.misses = misses;
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= capacity) return false;
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	Connection getConnection() {
+		return connection;
+	}
+
+	long getIdleSince() {
+		return idleSince;
+	}
+
+	void setIdleSince(long idleSince) {
+		this.idleSince = idleSince;
+	}
+
+	PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement statement = statements.get(sql);
+		if (statement != null) {
+			hits.increment();
+			return statement;
+		}
+		misses.increment();
+		statement = connection.prepareStatement(sql);
+		statements.put(sql, statement);
+		return statement;
+	}
+
+	/**
+	 * Close all cached statements and the connection
+	 */
+	void close() {
+		for (Iterator<PreparedStatement> cached = statements.values().iterator(); cached.hasNext(); ) {
+			closeQuietly(cached.next());
+			cached.remove();
+		}
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			// the connection is discarded anyway
+		}
+	}
+
+	private static void closeQuietly(PreparedStatement statement) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			// the statement is discarded anyway
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package net.engio.daoism.dao.jpa;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JDBC statement batching is configured per entity manager factory and each JPA provider uses its own
+ * set of properties for it. This class provides the properties that enable batch writing for the supported providers
+ * (Hibernate and EclipseLink) in a provider neutral way. Properties of providers that are not present are simply ignored.
+ *
+ * The properties need to be passed to the entity manager factory on creation, e.g. using
+ * {@code Persistence.createEntityManagerFactory(unitName, BatchWriting.properties(100))} or the
+ * jpaPropertyMap of a spring managed factory. Batch writing works best in combination with
+ * {@link net.engio.daoism.dao.IPersistenceProvider#persistAll(Class, java.util.List, int)}
+ * using the same batch size.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class BatchWriting {
+
+	public static final String HIBERNATE_BATCH_SIZE = "hibernate.jdbc.batch_size";
+
+	public static final String HIBERNATE_ORDER_INSERTS = "hibernate.order_inserts";
+
+	public static final String HIBERNATE_ORDER_UPDATES = "hibernate.order_updates";
+
+	public static final String HIBERNATE_BATCH_VERSIONED_DATA = "hibernate.jdbc.batch_versioned_data";
+
+	public static final String ECLIPSELINK_BATCH_WRITING = "eclipselink.jdbc.batch-writing";
+
+	public static final String ECLIPSELINK_BATCH_SIZE = "eclipselink.jdbc.batch-writing.size";
+
+	private BatchWriting() {
+	}
+
+	/**
+	 * Get the entity manager factory properties that enable JDBC batching with the given batch size
+	 *
+	 * @param batchSize The maximum number of statements sent to the database in one batch
+	 * @return A new and modifiable map of properties
+	 */
+	public static Map<String, String> properties(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be greater than zero but was " + batchSize);
+		}
+		String size = Integer.toString(batchSize);
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put(HIBERNATE_BATCH_SIZE, size);
+		// ordering statements by entity type allows to batch more of them
+		properties.put(HIBERNATE_ORDER_INSERTS, "true");
+		properties.put(HIBERNATE_ORDER_UPDATES, "true");
+		properties.put(HIBERNATE_BATCH_VERSIONED_DATA, "true");
+		properties.put(ECLIPSELINK_BATCH_WRITING, "JDBC");
+		properties.put(ECLIPSELINK_BATCH_SIZE, size);
+		return properties;
+	}
+
+}
@@ -0,0 +1,94 @@
+package net.engio.daoism.dao.jpa;
+
+import net.engio.daoism.dao.IResultIterator;
+
+import javax.persistence.EntityManager;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Base class for result iterators that fetch their results in chunks of a fixed size. Entities of a chunk
+ * are detached from the persistence context as soon as the next chunk is fetched (or the iterator is closed)
+ * such that the persistence context does not grow while iterating.
+ *
+ * @author Benjamin Diedrichsen
+ */
+abstract class ChunkedResultIterator<E> implements IResultIterator<E> {
+
+	private final EntityManager entityManager;
+
+	private final int fetchSize;
+
+	private List<E> chunk = Collections.emptyList();
+
+	private int position = 0;
+
+	private int fetched = 0;
+
+	private boolean exhausted = false;
+
+	private boolean closed = false;
+
+	ChunkedResultIterator(EntityManager entityManager, int fetchSize) {
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("Fetch size must be greater than zero but was " + fetchSize);
+		}
+		this.entityManager = entityManager;
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Fetch the next chunk of results.
+	 *
+	 * @param last The last element of the previous chunk or null, if the first chunk is fetched
+	 * @param fetched The number of elements that have been fetched so far
+	 * @param fetchSize The maximum number of elements to fetch
+	 * @return The next chunk of results. A chunk smaller than fetchSize marks the end of the results.
+	 */
+	protected abstract List<E> fetch(E last, int fetched, int fetchSize);
+
+	@Override
+	public boolean hasNext() {
+		if (closed) return false;
+		if (position < chunk.size()) return true;
+		if (exhausted) return false;
+		E last = chunk.isEmpty() ? null : chunk.get(chunk.size() - 1);
+		release();
+		chunk = fetch(last, fetched, fetchSize);
+		position = 0;
+		fetched += chunk.size();
+		exhausted = chunk.size() < fetchSize;
+		return !chunk.isEmpty();
+	}
+
+	@Override
+	public E next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return chunk.get(position++);
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("Results can not be removed using the iterator");
+	}
+
+	@Override
+	public void close() {
+		if (closed) return;
+		release();
+		chunk = Collections.emptyList();
+		closed = true;
+	}
+
+	private void release() {
+		for (E element : chunk) {
+			if (entityManager.contains(element)) {
+				entityManager.detach(element);
+			}
+		}
+	}
+
+}
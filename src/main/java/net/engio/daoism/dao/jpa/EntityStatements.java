@@ -0,0 +1,270 @@
+package net.engio.daoism.dao.jpa;
+
+import net.engio.daoism.dao.query.Options.FetchPlan;
+
+import javax.persistence.Version;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Member;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The JPQL statements that {@link JpaPersistenceProvider} uses for the standard operations on one domain class.
+ * The statements are derived from the meta model once and then reused for every call. Since the statement
+ * strings are identical for every call, they also hit the query plan caches of the JPA providers.
+ *
+ * Instances are immutable (apart from internal caching) and can be shared among threads.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class EntityStatements {
+
+	private final String entityName;
+
+	private final String idAttribute;
+
+	private final String versionAttribute;
+
+	private final String findAll;
+
+	private final String count;
+
+	private final String exists;
+
+	private final String findById;
+
+	private final String findByIds;
+
+	private final String firstChunk;
+
+	private final String nextChunk;
+
+	private final String bulkDelete;
+
+	// versioned bulk deletes need one statement per number of deleted objects
+	private final ConcurrentMap<Integer, String> bulkDeleteVersioned = new ConcurrentHashMap<Integer, String>();
+
+	private final ConcurrentMap<FetchPlan, String> findByIdFetched = new ConcurrentHashMap<FetchPlan, String>();
+
+	EntityStatements(EntityType<?> entityType) {
+		entityName = entityType.getName();
+		idAttribute = findIdAttribute(entityType);
+		versionAttribute = findVersionAttribute(entityType);
+		String id = "en." + idAttribute;
+		findAll = "SELECT en FROM " + entityName + " en";
+		count = "SELECT COUNT(en) FROM " + entityName + " en";
+		exists = count + " WHERE " + id + " = :id";
+		findById = findAll + " WHERE " + id + " = :id";
+		findByIds = findAll + " WHERE " + id + " IN :ids";
+		firstChunk = findAll + " ORDER BY " + id;
+		nextChunk = findAll + " WHERE " + id + " > :last ORDER BY " + id;
+		bulkDelete = "DELETE FROM " + entityName + " en WHERE " + id + " IN :ids";
+	}
+
+	private static String findIdAttribute(EntityType<?> entityType) {
+		for (SingularAttribute<?, ?> attribute : entityType.getSingularAttributes()) {
+			if (attribute.isId()) return attribute.getName();
+		}
+		throw new IllegalArgumentException("No single id attribute defined for " + entityType.getName());
+	}
+
+	private static String findVersionAttribute(EntityType<?> entityType) {
+		for (SingularAttribute<?, ?> attribute : entityType.getSingularAttributes()) {
+			// hibernate does not flag version attributes that are inherited from a mapped superclass
+			Member member = attribute.getJavaMember();
+			if (attribute.isVersion() || member instanceof AnnotatedElement && ((AnnotatedElement) member).isAnnotationPresent(Version.class)) {
+				return attribute.getName();
+			}
+		}
+		return null;
+	}
+
+	public String getEntityName() {
+		return entityName;
+	}
+
+	public String getIdAttribute() {
+		return idAttribute;
+	}
+
+	/**
+	 * @return The name of the version attribute or null, if the entity is not versioned
+	 */
+	public String getVersionAttribute() {
+		return versionAttribute;
+	}
+
+	/**
+	 * Select all entities
+	 */
+	public String findAll() {
+		return findAll;
+	}
+
+	/**
+	 * Count all entities
+	 */
+	public String count() {
+		return count;
+	}
+
+	/**
+	 * Count the entities with the id given by parameter :id
+	 */
+	public String exists() {
+		return exists;
+	}
+
+	/**
+	 * Select the entity with the id given by parameter :id
+	 */
+	public String findById() {
+		return findById;
+	}
+
+	/**
+	 * Select the entity with the id given by parameter :id and join fetch all associations of the fetch plan.
+	 * Collection valued associations produce one row per element, all referencing the same entity.
+	 */
+	public String findById(FetchPlan fetchPlan) {
+		String statement = findByIdFetched.get(fetchPlan);
+		if (statement == null) {
+			statement = "SELECT en FROM " + entityName + " en" + joinFetches("en", fetchPlan) + " WHERE en." + idAttribute + " = :id";
+			findByIdFetched.putIfAbsent(fetchPlan, statement);
+		}
+		return statement;
+	}
+
+	/**
+	 * Intermediate associations of nested paths are fetched as well, each join is given its own alias
+	 */
+	private static String joinFetches(String root, FetchPlan fetchPlan) {
+		StringBuilder joins = new StringBuilder();
+		Map<String, String> aliases = new HashMap<String, String>();
+		for (String association : fetchPlan.getAssociations()) {
+			String parent = root;
+			String path = null;
+			for (String segment : association.split("\\.")) {
+				path = path == null ? segment : path + "." + segment;
+				String alias = aliases.get(path);
+				if (alias == null) {
+					// derived from the root, such that the aliases of join fetches added to queries do not clash with their own
+					alias = root + "_f" + aliases.size();
+					aliases.put(path, alias);
+					joins.append(" LEFT JOIN FETCH ").append(parent).append('.').append(segment).append(' ').append(alias);
+				}
+				parent = alias;
+			}
+		}
+		return joins.toString();
+	}
+
+	/**
+	 * Add the join fetches of the fetch plan to a JPQL query that selects domain objects. The fetches are appended to the
+	 * FROM clause and the selection is made DISTINCT, such that fetching collections does not duplicate the results.
+	 *
+	 * @throws IllegalArgumentException If the query does not select a single identification variable
+	 */
+	static String withFetchPlan(String jpql, FetchPlan fetchPlan) {
+		String[] tokens = jpql.trim().split("\\s+", 4);
+		int selected = tokens.length > 1 && tokens[1].equalsIgnoreCase("DISTINCT") ? 2 : 1;
+		if (tokens.length < selected + 2 || !tokens[0].equalsIgnoreCase("SELECT") || !isIdentifier(tokens[selected])
+				|| !tokens[selected + 1].split("\\s+", 2)[0].equalsIgnoreCase("FROM")) {
+			throw new IllegalArgumentException("Fetch plans can only be applied to queries that select domain objects: " + jpql);
+		}
+		String root = tokens[selected];
+		String statement = selected == 1 ? "SELECT DISTINCT " + jpql.trim().substring(tokens[0].length()).trim() : jpql.trim();
+		int from = keyword(statement, 0, "FROM");
+		// the FROM clause ends with the first clause that follows it
+		int end = statement.length();
+		for (String clause : new String[]{"WHERE", "GROUP", "HAVING", "ORDER"}) {
+			int start = keyword(statement, from, clause);
+			if (start >= 0 && start < end) end = start;
+		}
+		String fetches = joinFetches(root, fetchPlan);
+		return end == statement.length()
+				? statement + fetches
+				: statement.substring(0, end).trim() + fetches + " " + statement.substring(end);
+	}
+
+	private static boolean isIdentifier(String token) {
+		if (token.isEmpty() || !Character.isJavaIdentifierStart(token.charAt(0))) return false;
+		for (int i = 1; i < token.length(); i++) {
+			if (!Character.isJavaIdentifierPart(token.charAt(i))) return false;
+		}
+		return true;
+	}
+
+	// the position of the keyword outside of literals and sub queries or -1
+	private static int keyword(String jpql, int from, String keyword) {
+		int depth = 0;
+		boolean quoted = false;
+		for (int i = from; i < jpql.length(); i++) {
+			char current = jpql.charAt(i);
+			if (current == '\'') quoted = !quoted;
+			if (quoted) continue;
+			if (current == '(') depth++;
+			else if (current == ')') depth--;
+			else if (depth == 0 && jpql.regionMatches(true, i, keyword, 0, keyword.length())
+					&& (i == 0 || !Character.isJavaIdentifierPart(jpql.charAt(i - 1)))
+					&& (i + keyword.length() == jpql.length() || !Character.isJavaIdentifierPart(jpql.charAt(i + keyword.length())))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Select all entities with an id contained in the collection given by parameter :ids
+	 */
+	public String findByIds() {
+		return findByIds;
+	}
+
+	/**
+	 * Select all entities ordered by id
+	 */
+	public String firstChunk() {
+		return firstChunk;
+	}
+
+	/**
+	 * Select all entities with an id greater than the id given by parameter :last ordered by id
+	 */
+	public String nextChunk() {
+		return nextChunk;
+	}
+
+	/**
+	 * Delete all entities with an id contained in the collection given by parameter :ids
+	 */
+	public String bulkDelete() {
+		return bulkDelete;
+	}
+
+	/**
+	 * Delete the entities with matching id and version as given by parameters :id0, :version0 ... :id{size-1}, :version{size-1}
+	 */
+	public String bulkDeleteVersioned(int size) {
+		if (versionAttribute == null) {
+			throw new IllegalArgumentException("No version attribute defined for " + entityName);
+		}
+		String statement = bulkDeleteVersioned.get(size);
+		if (statement == null) {
+			StringBuilder builder = new StringBuilder("DELETE FROM ").append(entityName).append(" en WHERE ");
+			for (int i = 0; i < size; i++) {
+				if (i > 0) builder.append(" OR ");
+				builder.append("(en.").append(idAttribute).append(" = :id").append(i)
+						.append(" AND en.").append(versionAttribute).append(" = :version").append(i).append(")");
+			}
+			statement = builder.toString();
+			bulkDeleteVersioned.putIfAbsent(size, statement);
+		}
+		return statement;
+	}
+
+}
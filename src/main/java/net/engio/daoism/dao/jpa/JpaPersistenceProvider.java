@@ -2,24 +2,51 @@ package net.engio.daoism.dao.jpa;
 
 import net.engio.daoism.Persistent;
 import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.IResultIterator;
 import net.engio.daoism.dao.IUnitOfWork;
+import net.engio.daoism.dao.cache.QueryResultCache;
 import net.engio.daoism.dao.query.LockType;
 import net.engio.daoism.dao.query.Options;
 import net.engio.daoism.dao.query.Options.AccessPlan;
+import net.engio.daoism.dao.query.Page;
 import net.engio.daoism.dao.query.Query;
+import net.engio.daoism.dao.query.QueryKey;
+import net.engio.daoism.dao.sql.EntityMapping;
+import net.engio.daoism.dao.sql.ISqlDialect;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.persistence.Cache;
 import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
 import javax.persistence.LockModeType;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.NoResultException;
+import javax.persistence.NonUniqueResultException;
+import javax.persistence.Tuple;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Order;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+import javax.persistence.metamodel.ManagedType;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
 
 
 /**
@@ -33,12 +60,179 @@ public abstract class JpaPersistenceProvider implements IPersistenceProvider {
 
 	private Logger log = LoggerFactory.getLogger(getClass());
 
+	private int maxQueryParameters = 500;
+
+	private final ConcurrentMap<Class<?>, EntityStatements> statements = new ConcurrentHashMap<Class<?>, EntityStatements>();
+
+	private volatile QueryResultCache queryResultCache;
+
+	private volatile SlowQueryLog slowQueryLog;
+
+	private volatile ISqlDialect sqlDialect;
+
+	private final ConcurrentMap<List<Object>, String> fetchStatements = new ConcurrentHashMap<List<Object>, String>();
+
+	// the statements of the named queries that are declared by annotations of the managed types
+	private volatile Map<String, String> namedStatements;
+
 	public abstract EntityManager entityManager();
+
+	public QueryResultCache getQueryResultCache() {
+		return queryResultCache;
+	}
+
+    /**
+     * Set the cache that holds the results of cacheable queries (see {@link Query#cacheable()}). Results are cached
+     * for {@link #findAll(Class, Query.TypedQuery)}, {@link #find(Class, Query.TypedQuery)} and {@link #runQuery(Class, Query)}
+     * if the result type is a domain class. Cached results of a domain class are invalidated whenever domain objects of that
+     * class are written through this provider, and once more when the transaction of the write completed (see {@link #afterTransaction(Runnable)}).
+     * Queries that run within a transaction neither read nor populate the cache, since their results may contain uncommitted writes.
+     * The cached domain objects are shared by all callers and must not be modified.
+     *
+     * @param queryResultCache The cache to use or null to disable caching of query results
+     */
+	public void setQueryResultCache(QueryResultCache queryResultCache) {
+		this.queryResultCache = queryResultCache;
+	}
+
+	public SlowQueryLog getSlowQueryLog() {
+		return slowQueryLog;
+	}
+
+    /**
+     * Set the log that reports slow operations and queries. Operations are only timed if a log is set.
+     *
+     * @param slowQueryLog The log to use or null to disable logging of slow operations
+     */
+	public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+		this.slowQueryLog = slowQueryLog;
+	}
+
+	public ISqlDialect getSqlDialect() {
+		return sqlDialect;
+	}
+
+    /**
+     * Set the SQL dialect of the underlying database. It is required for operations that JPA does not support in a
+     * portable way, like {@link #upsert(Class, Persistent)}.
+     *
+     * @param sqlDialect The dialect to use, see {@link net.engio.daoism.dao.sql.SqlDialects}
+     */
+	public void setSqlDialect(ISqlDialect sqlDialect) {
+		this.sqlDialect = sqlDialect;
+	}
+
+    /**
+     * Run a write operation on domain objects of the given class. Cached query results are invalidated before the
+     * write and after its transaction completed, since results might be read concurrently until it is committed.
+     */
+	private <R> R write(String operation, Class<?> domainClass, Supplier<R> execution) {
+		invalidateResults(domainClass);
+		try {
+			return timed(operation, domainClass, null, execution);
+		} finally {
+			if (queryResultCache != null) afterTransaction(() -> invalidateResults(domainClass));
+		}
+	}
+
+    /**
+     * Check whether the calling thread runs within a transaction that has not completed yet. The default implementation
+     * asks the resource local transaction of the entity manager and considers any entity manager that does not
+     * provide one (e.g. a container managed entity manager) to be transactional. Subclasses that take part in
+     * managed transactions should override this and {@link #afterTransaction(Runnable)}.
+     */
+	@Override
+	public boolean isTransactionActive() {
+		try {
+			return entityManager().getTransaction().isActive();
+		} catch (IllegalStateException e) {
+			return true;
+		}
+	}
+
+    /**
+     * Run the given callback once the transaction of the calling thread completed, or right away if no transaction is active.
+     * The default implementation can not observe the completion of transactions and always runs the callback right away.
+     */
+	protected void afterTransaction(Runnable callback) {
+		callback.run();
+	}
+
+	private void invalidateResults(Class<?> domainClass) {
+		QueryResultCache cache = queryResultCache;
+		if (cache != null) cache.invalidate(domainClass);
+	}
+
+    /**
+     * Run the query unless its results are available from the query result cache.
+     */
+	private <E> List<E> results(String operation, Class<?> domainClass, Class<E> resultType, Query source, Supplier<List<E>> query) {
+		QueryResultCache cache = queryResultCache;
+		if (cache == null || !source.isCacheable() || isTransactionActive()) {
+			return timed(operation, domainClass, source, query);
+		}
+		QueryKey key = QueryKey.of(resultType, source);
+		List<E> cached = cache.get(domainClass, key);
+		if (cached != null) {
+			return cached;
+		}
+		long generation = cache.generation(domainClass);
+		return cache.put(domainClass, key, timed(operation, domainClass, source, query), generation);
+	}
+
+    /**
+     * Run the given operation and report it to the slow query log if it took longer than the configured threshold
+     */
+	private <R> R timed(String operation, Class<?> domainClass, Query query, Supplier<R> execution) {
+		SlowQueryLog slowLog = slowQueryLog;
+		if (slowLog == null) {
+			return execution.get();
+		}
+		long start = System.nanoTime();
+		R result = execution.get();
+		long elapsed = System.nanoTime() - start;
+		if (slowLog.isSlow(elapsed)) {
+			Query.NativeQuery nativeQuery = nativeQueryOf(query);
+			Supplier<String> plan = nativeQuery != null ? () -> explain(nativeQuery) : null;
+			slowLog.report(operation, domainClass, query, rowsOf(result), elapsed, plan);
+		}
+		return result;
+	}
+
+	private static Query.NativeQuery nativeQueryOf(Query query) {
+		if (query == null) return null;
+		return query.getType().equals(Query.Type.Native) ? (Query.NativeQuery) query : null;
+	}
+
+	private static int rowsOf(Object result) {
+		if (result instanceof Collection) return ((Collection<?>) result).size();
+		if (result instanceof Map) return ((Map<?, ?>) result).size();
+		if (result instanceof Page) return ((Page<?>) result).getResults().size();
+		if (result instanceof Persistent) return 1;
+		return -1;
+	}
+
+    /**
+     * Capture the execution plan of a native query. The default implementation prefixes the query with EXPLAIN, which is
+     * understood by H2, Postgres and MySQL. Subclasses can override this to support other databases.
+     *
+     * @return The rows of the execution plan, separated by line breaks
+     */
+	protected String explain(Query.NativeQuery query) {
+		javax.persistence.Query explain = entityManager().createNativeQuery("EXPLAIN " + query.getQueryString());
+		query.forEachParameter(explain::setParameter);
+		StringBuilder plan = new StringBuilder();
+		for (Object row : explain.getResultList()) {
+			if (plan.length() > 0) plan.append('\n');
+			plan.append(row instanceof Object[] ? Arrays.toString((Object[]) row) : String.valueOf(row));
+		}
+		return plan.toString();
+	}
 	
 
 	@Override
 	public <D extends Persistent<? extends Serializable>> boolean delete(Class<D> domainClass, D domainObject) {
-		return deleteInternal(domainClass, domainObject);
+		return write("delete", domainClass, () -> deleteInternal(domainClass, domainObject));
 	}
 
     private <D extends Persistent<? extends Serializable>> boolean deleteInternal(Class<D> domainClass, D domainObject) {
@@ -58,6 +252,10 @@ public abstract class JpaPersistenceProvider implements IPersistenceProvider {
 
 	@Override
 	public <D extends Persistent<? extends Serializable>> boolean deleteAll(Class<D> domainClass, Collection<D> domainObjects) {
+		return write("deleteAll", domainClass, () -> deleteAllInternal(domainClass, domainObjects));
+	}
+
+	private <D extends Persistent<? extends Serializable>> boolean deleteAllInternal(Class<D> domainClass, Collection<D> domainObjects) {
 		boolean allDelected = true;
         for (D domainObject : domainObjects) {
 			allDelected = allDelected & deleteInternal(domainClass, domainObject);
@@ -65,13 +263,197 @@ public abstract class JpaPersistenceProvider implements IPersistenceProvider {
 		return allDelected;
 	}
 
+    /**
+     * Deletes the given domain objects with bulk delete statements. Each statement covers at most
+     * {@link #getMaxQueryParameters()} parameters, ids and versions are bound as separate parameters. Pending changes
+     * are flushed before any statement is run. Afterwards, the given domain objects and all managed copies of them are
+     * detached and evicted from the shared cache (see {@link #managedCopies(Class, java.util.Collection)}).
+     */
+	@Override
+	public <D extends Persistent<? extends Serializable>> boolean bulkDelete(Class<D> domainClass, Collection<D> domainObjects, boolean checkVersion) {
+		return write("bulkDelete", domainClass, () -> bulkDeleteInternal(domainClass, domainObjects, checkVersion));
+	}
+
+	private <D extends Persistent<? extends Serializable>> boolean bulkDeleteInternal(Class<D> domainClass, Collection<D> domainObjects, boolean checkVersion) {
+		if (domainObjects == null || domainObjects.isEmpty()) {
+			return true;
+		}
+		// duplicates would otherwise be counted as failed deletions
+		Map<Serializable, Long> versionsById = new LinkedHashMap<Serializable, Long>(domainObjects.size());
+		boolean allValid = true;
+		for (D domainObject : domainObjects) {
+			if (domainObject == null || domainObject.getId() == null) {
+				allValid = false;
+			} else {
+				versionsById.put(domainObject.getId(), domainObject.getVersion());
+			}
+		}
+		if (versionsById.isEmpty()) {
+			return false;
+		}
+		entityManager().flush();
+		List<D> managed = managedCopies(domainClass, versionsById.keySet());
+		EntityStatements statements = statements(domainClass);
+		int deleted = checkVersion
+				? bulkDeleteVersioned(statements, versionsById)
+				: bulkDelete(statements, versionsById.keySet());
+		evict(domainClass, managed);
+		evict(domainClass, domainObjects);
+		return allValid && deleted == versionsById.size();
+	}
+
+	private int bulkDelete(EntityStatements statements, Collection<Serializable> ids) {
+		String statement = statements.bulkDelete();
+		List<Serializable> chunk = new ArrayList<Serializable>(Math.min(ids.size(), getMaxQueryParameters()));
+		int deleted = 0;
+		for (Serializable id : ids) {
+			chunk.add(id);
+			if (chunk.size() == getMaxQueryParameters()) {
+				deleted += entityManager().createQuery(statement).setParameter("ids", chunk).executeUpdate();
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty()) {
+			deleted += entityManager().createQuery(statement).setParameter("ids", chunk).executeUpdate();
+		}
+		return deleted;
+	}
+
+	private int bulkDeleteVersioned(EntityStatements statements, Map<Serializable, Long> versionsById) {
+		int chunkSize = Math.max(1, getMaxQueryParameters() / 2);
+		List<Map.Entry<Serializable, Long>> entries = new ArrayList<Map.Entry<Serializable, Long>>(versionsById.entrySet());
+		int deleted = 0;
+		for (int start = 0; start < entries.size(); start += chunkSize) {
+			List<Map.Entry<Serializable, Long>> chunk = entries.subList(start, Math.min(start + chunkSize, entries.size()));
+			javax.persistence.Query delete = entityManager().createQuery(statements.bulkDeleteVersioned(chunk.size()));
+			for (int i = 0; i < chunk.size(); i++) {
+				delete.setParameter("id" + i, chunk.get(i).getKey());
+				delete.setParameter("version" + i, chunk.get(i).getValue());
+			}
+			deleted += delete.executeUpdate();
+		}
+		return deleted;
+	}
+
+    /**
+     * Look up the instances of the given ids that a subsequent bulk statement would leave stale in the persistence context.
+     * JPA can not look up managed instances by id without loading all others from the database one by one, but queries return
+     * the managed instance of every row they load. Thus the ids are queried like in {@link #findByIds(Class, java.util.Collection)},
+     * which also returns the rows that are not managed yet. They are detached along with the managed copies.
+     */
+	private <D extends Persistent<? extends Serializable>> List<D> managedCopies(Class<D> domainClass, Collection<Serializable> ids) {
+		Map<Serializable, D> found = new HashMap<Serializable, D>(ids.size());
+		fetchByIds(domainClass, ids, found);
+		return new ArrayList<D>(found.values());
+	}
+
+    /**
+     * Remove the given domain objects from the persistence context and the shared cache (if any)
+     */
+	private <D extends Persistent<? extends Serializable>> void evict(Class<D> domainClass, Collection<D> domainObjects) {
+		Cache sharedCache = entityManager().getEntityManagerFactory().getCache();
+		for (D domainObject : domainObjects) {
+			if (domainObject == null) continue;
+			if (entityManager().contains(domainObject)) {
+				entityManager().detach(domainObject);
+			}
+			if (sharedCache != null && domainObject.getId() != null) {
+				sharedCache.evict(domainClass, domainObject.getId());
+			}
+		}
+	}
+
+    /**
+     * Get the prepared statements for the given domain class. Statements are created on first access and cached
+     * for the lifetime of this provider.
+     */
+	protected EntityStatements statements(Class<?> domainClass) {
+		EntityStatements cached = statements.get(domainClass);
+		if (cached == null) {
+			cached = new EntityStatements(entityManager().getMetamodel().entity(domainClass));
+			EntityStatements concurrent = statements.putIfAbsent(domainClass, cached);
+			if (concurrent != null) cached = concurrent;
+		}
+		return cached;
+	}
+
+    /**
+     * The maximum number of parameters bound to a single statement. Operations on many domain objects
+     * are split into chunks accordingly. The default value is safe for all common databases.
+     */
+	public int getMaxQueryParameters() {
+		return maxQueryParameters;
+	}
+
+	public void setMaxQueryParameters(int maxQueryParameters) {
+		if (maxQueryParameters < 2) {
+			throw new IllegalArgumentException("At least two parameters per statement are required but was " + maxQueryParameters);
+		}
+		this.maxQueryParameters = maxQueryParameters;
+	}
+
 
 	@Override
 	public <D extends Persistent<? extends Serializable>> List<D> findAll(Class<D> domainClass) {
-		return entityManager().createQuery("SELECT en FROM " + domainClass.getName() + " en", domainClass)
+		return timed("findAll", domainClass, null, () -> findAllInternal(domainClass));
+	}
+
+	private <D extends Persistent<? extends Serializable>> List<D> findAllInternal(Class<D> domainClass) {
+		return entityManager().createQuery(statements(domainClass).findAll(), domainClass)
 			.getResultList();
 	}
 
+    /**
+     * Fetches the domain objects in chunks ordered by their id. Each chunk is selected by the id of the last domain object
+     * of the previous chunk (keyset pagination), so fetching a chunk takes the same time no matter how far the
+     * iteration has progressed.
+     */
+	@Override
+	public <D extends Persistent<? extends Serializable>> IResultIterator<D> iterateAll(final Class<D> domainClass, int fetchSize) {
+		final EntityStatements statements = statements(domainClass);
+		return new ChunkedResultIterator<D>(entityManager(), fetchSize) {
+			@Override
+			protected List<D> fetch(D last, int fetched, int fetchSize) {
+				javax.persistence.TypedQuery<D> chunk = last == null
+						? entityManager().createQuery(statements.firstChunk(), domainClass)
+						: entityManager().createQuery(statements.nextChunk(), domainClass).setParameter("last", last.getId());
+				chunk.setMaxResults(fetchSize);
+				QueryHints.setFetchSize(chunk, fetchSize);
+				return chunk.getResultList();
+			}
+		};
+	}
+
+    /**
+     * Fetches the results in chunks of the query. Queries with a keyset (see {@link Query#seek(String, String, Object)}) select
+     * each chunk by the key of the last result of the previous chunk, all others adjust the first result of the query for
+     * each chunk, which makes the database skip all preceding results.
+     */
+	@Override
+	public <D extends Persistent<? extends Serializable>> IResultIterator<D> iterateAll(final Class<D> domainClass, final Query.TypedQuery query, int fetchSize) {
+		final int firstResult = query.isFirstResultSet() ? query.getFirtResult() : 0;
+		final int resultLimit = query.hasResultLimit() ? query.getMaxResults() : Integer.MAX_VALUE;
+		final Query.Seek seek = query.getSeek();
+		return new ChunkedResultIterator<D>(entityManager(), fetchSize) {
+			@Override
+			protected List<D> fetch(D last, int fetched, int fetchSize) {
+				int remaining = resultLimit - fetched;
+				if (remaining <= 0) {
+					return Collections.emptyList();
+				}
+				javax.persistence.TypedQuery<D> chunk = transformQuery(domainClass, query);
+				if (seek == null) {
+					chunk.setFirstResult(firstResult + fetched);
+				} else if (last != null) {
+					chunk.setParameter(seek.getParameter(), seek.keyOf(last));
+				}
+				chunk.setMaxResults(Math.min(fetchSize, remaining));
+				QueryHints.setFetchSize(chunk, fetchSize);
+				return chunk.getResultList();
+			}
+		};
+	}
+
 	@Override
 	public <D extends Persistent<? extends Serializable>> D findById(Class<D> domainClass, Serializable id) {
 		return findById(domainClass, id, Options.Default());
@@ -79,9 +461,24 @@ public abstract class JpaPersistenceProvider implements IPersistenceProvider {
 
 	@Override
 	public <D extends Persistent<? extends Serializable>> D findById(Class<D> domainClass, Serializable id, AccessPlan options) {
+		return timed("findById", domainClass, null, () -> findByIdInternal(domainClass, id, options));
+	}
+
+	private <D extends Persistent<? extends Serializable>> D findByIdInternal(Class<D> domainClass, Serializable id, AccessPlan options) {
 		if (id == null) {
 			return null;
 		}
+		// read-only loading is only supported by query hints, fetch plans need join fetches
+		if (options.isReadOnly() || options.hasFetchPlan()) {
+			String statement = options.hasFetchPlan()
+					? statements(domainClass).findById(options.getFetchPlan())
+					: statements(domainClass).findById();
+			javax.persistence.TypedQuery<D> query = entityManager().createQuery(statement, domainClass)
+					.setParameter("id", id);
+			applyAccessPlan(query, options, false);
+			List<D> results = query.getResultList();
+			return results.isEmpty() ? null : results.get(0);
+		}
 		// non-refreshing with default lock is the standard behaviour of entityManager().find
 		if (!options.isRefresh() && options.getLockMode().equals(LockType.Default)) {
 			return entityManager().find(domainClass, id);
@@ -109,9 +506,91 @@ public abstract class JpaPersistenceProvider implements IPersistenceProvider {
 
 
 
+    /**
+     * Domain objects that are loaded already (see {@link #isLoaded(Class, java.io.Serializable)}) are looked up
+     * individually, all others are fetched with IN queries with at most {@link #getMaxQueryParameters()} ids each.
+     * Domain objects that are managed by the persistence context are returned as is: The queries flush pending changes,
+     * unless the flush mode is {@link FlushModeType#COMMIT}, in which case all ids that the queries did not find are
+     * looked up in the persistence context.
+     * The domain objects are mapped to the given ids, even if their ids are of a different (e.g. numeric) type.
+     */
+	@Override
+	public <D extends Persistent<? extends Serializable>> Map<Serializable, D> findByIds(Class<D> domainClass, Collection<? extends Serializable> ids) {
+		return timed("findByIds", domainClass, null, () -> findByIdsInternal(domainClass, ids));
+	}
+
+	private <D extends Persistent<? extends Serializable>> Map<Serializable, D> findByIdsInternal(Class<D> domainClass, Collection<? extends Serializable> ids) {
+		Set<Serializable> distinctIds = new LinkedHashSet<Serializable>(ids);
+		distinctIds.remove(null);
+		Map<Serializable, D> found = new HashMap<Serializable, D>(distinctIds.size());
+		List<Serializable> missing = new ArrayList<Serializable>(distinctIds.size());
+		for (Serializable id : distinctIds) {
+			if (isLoaded(domainClass, id)) {
+				D domainObject = entityManager().find(domainClass, id);
+				if (domainObject != null) found.put(id, domainObject);
+			} else {
+				missing.add(id);
+			}
+		}
+		fetchByIds(domainClass, missing, found);
+		boolean unflushed = entityManager().getFlushMode() == FlushModeType.COMMIT;
+		// restore the order of the given ids
+		Map<Serializable, D> result = new LinkedHashMap<Serializable, D>(found.size());
+		for (Serializable id : distinctIds) {
+			D domainObject = found.get(id);
+			if (domainObject == null && unflushed) {
+				// might have been persisted but not flushed yet
+				domainObject = entityManager().find(domainClass, id);
+			}
+			if (domainObject != null) result.put(id, domainObject);
+		}
+		return result;
+	}
+
+	private <D extends Persistent<? extends Serializable>> void fetchByIds(Class<D> domainClass, Collection<Serializable> ids, Map<Serializable, D> found) {
+		String statement = statements(domainClass).findByIds();
+		List<Serializable> chunk = new ArrayList<Serializable>(Math.min(ids.size(), getMaxQueryParameters()));
+		for (Serializable id : ids) {
+			chunk.add(id);
+			if (chunk.size() == getMaxQueryParameters()) {
+				fetchByIds(domainClass, statement, chunk, found);
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty()) {
+			fetchByIds(domainClass, statement, chunk, found);
+		}
+	}
+
+	private <D extends Persistent<? extends Serializable>> void fetchByIds(Class<D> domainClass, String statement, List<Serializable> ids, Map<Serializable, D> found) {
+		// the loaded ids may differ in type from the given ids, e.g. Integer and Long
+		Map<Object, Serializable> requested = new HashMap<Object, Serializable>(ids.size() * 2);
+		for (Serializable id : ids) {
+			requested.put(String.valueOf(id), id);
+			requested.put(id, id);
+		}
+		for (D domainObject : entityManager().createQuery(statement, domainClass).setParameter("ids", ids).getResultList()) {
+			Serializable id = requested.get(domainObject.getId());
+			if (id == null) id = requested.get(String.valueOf(domainObject.getId()));
+			found.put(id != null ? id : domainObject.getId(), domainObject);
+		}
+	}
+
+    /**
+     * Check whether the domain object with the given id can be looked up without a round trip to the database. The default
+     * implementation checks the shared cache of the entity manager factory. Domain objects of the persistence context are
+     * returned by the queries of {@link #findByIds(Class, java.util.Collection)}, since JPA can not look them up by id without
+     * loading the domain objects that are not managed (e.g. {@link EntityManager#getReference(Class, Object)} loads them with
+     * EclipseLink unless it is woven). Subclasses might additionally check the persistence context using the API of a specific JPA provider.
+     */
+	protected boolean isLoaded(Class<?> domainClass, Serializable id) {
+		Cache sharedCache = entityManager().getEntityManagerFactory().getCache();
+		return sharedCache != null && sharedCache.contains(domainClass, id);
+	}
+
 	@Override
 	public <D extends Persistent<? extends Serializable>> D persist(Class<D> domainClass, D domainObject) {
-		return persistInternal(domainClass, domainObject);
+		return write("persist", domainClass, () -> persistInternal(domainClass, domainObject));
 	}
 
     private <D extends Persistent<? extends Serializable>> D persistInternal(Class<D> domainClass, D domainObject) {
@@ -142,6 +621,10 @@ public abstract class JpaPersistenceProvider implements IPersistenceProvider {
 
 	@Override
 	public <D extends Persistent<? extends Serializable>> List<D> persistAll(Class<D> domainClass, List<D> domainObjects) {
+		return write("persistAll", domainClass, () -> persistAllInternal(domainClass, domainObjects));
+	}
+
+	private <D extends Persistent<? extends Serializable>> List<D> persistAllInternal(Class<D> domainClass, List<D> domainObjects) {
 		List<D> persistentObjects = new ArrayList<D>(domainObjects.size());
 		if (domainObjects != null) {
 			for (D domainObject : domainObjects) {
@@ -151,12 +634,123 @@ public abstract class JpaPersistenceProvider implements IPersistenceProvider {
 		return persistentObjects;
 	}
 
+    /**
+     * Persists the given domain objects in chunks of batchSize. In contrast to {@link #persistAll(Class, java.util.List)}
+     * updates are merged without an immediate flush. Instead, the persistence context is flushed and cleared
+     * after each chunk, such that the provider can group the generated statements and the number of managed objects
+     * never exceeds the batch size. To have the statements of a chunk sent to the database in JDBC batches, the
+     * entity manager factory needs to be configured accordingly, see {@link BatchWriting}.
+     */
+	@Override
+	public <D extends Persistent<? extends Serializable>> List<D> persistAll(Class<D> domainClass, List<D> domainObjects, int batchSize) {
+		return write("persistAll", domainClass, () -> persistAllInternal(domainClass, domainObjects, batchSize));
+	}
+
+	private <D extends Persistent<? extends Serializable>> List<D> persistAllInternal(Class<D> domainClass, List<D> domainObjects, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be greater than zero but was " + batchSize);
+		}
+		if (domainObjects == null) {
+			return new ArrayList<D>(0);
+		}
+		List<D> persistentObjects = new ArrayList<D>(domainObjects.size());
+		int unflushed = 0;
+		for (D domainObject : domainObjects) {
+			persistentObjects.add(persistBatched(domainObject));
+			if (++unflushed == batchSize) {
+				flushAndClear();
+				unflushed = 0;
+			}
+		}
+		if (unflushed > 0) {
+			flushAndClear();
+		}
+		return persistentObjects;
+	}
+
+    private <D extends Persistent<? extends Serializable>> D persistBatched(D domainObject) {
+        if (domainObject == null)
+            return null;
+        if (isPersistent(domainObject)) {
+            return entityManager().merge(domainObject);
+        }
+        entityManager().persist(domainObject);
+        return domainObject;
+    }
+
+    private void flushAndClear() {
+        entityManager().flush();
+        entityManager().clear();
+    }
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> boolean upsert(Class<D> domainClass, D domainObject) {
+		return write("upsert", domainClass, () -> upsertInternal(domainClass, Collections.singletonList(domainObject)));
+	}
+
+    /**
+     * Writes the given domain objects with the native upsert statement of the configured {@link ISqlDialect}. Each statement
+     * covers at most {@link #getMaxQueryParameters()} parameters. The statements are derived from the mapping annotations
+     * of the domain class (see {@link EntityMapping}) and bypass the JPA provider, thus no lifecycle callbacks are invoked.
+     * Pending changes are flushed before any statement is run. Afterwards, the given domain objects and all managed copies
+     * of them are detached and evicted from the shared cache (see {@link #managedCopies(Class, java.util.Collection)}).
+     */
+	@Override
+	public <D extends Persistent<? extends Serializable>> boolean upsertAll(Class<D> domainClass, Collection<D> domainObjects) {
+		return write("upsertAll", domainClass, () -> upsertInternal(domainClass, domainObjects));
+	}
+
+	private <D extends Persistent<? extends Serializable>> boolean upsertInternal(Class<D> domainClass, Collection<D> domainObjects) {
+		if (domainObjects == null || domainObjects.isEmpty()) {
+			return true;
+		}
+		ISqlDialect dialect = sqlDialect;
+		if (dialect == null) {
+			throw new IllegalStateException("Upserts require the SQL dialect of the database to be set");
+		}
+		// a single statement must not write the same row twice
+		Map<Serializable, D> byId = new LinkedHashMap<Serializable, D>(domainObjects.size());
+		boolean allValid = true;
+		for (D domainObject : domainObjects) {
+			if (domainObject == null || domainObject.getId() == null) {
+				allValid = false;
+			} else {
+				byId.put(domainObject.getId(), domainObject);
+			}
+		}
+		if (byId.isEmpty()) {
+			return false;
+		}
+		entityManager().flush();
+		List<D> managed = managedCopies(domainClass, byId.keySet());
+		EntityMapping mapping = EntityMapping.of(domainClass);
+		int chunkSize = Math.max(1, getMaxQueryParameters() / dialect.upsertParameterCount(mapping));
+		List<D> rows = new ArrayList<D>(byId.values());
+		int written = 0;
+		for (int start = 0; start < rows.size(); start += chunkSize) {
+			List<D> chunk = rows.subList(start, Math.min(start + chunkSize, rows.size()));
+			javax.persistence.Query upsert = entityManager().createNativeQuery(dialect.upsert(mapping, chunk.size()));
+			int position = 1;
+			for (D row : chunk) {
+				for (Object parameter : dialect.upsertParameters(mapping, row)) {
+					upsert.setParameter(position++, parameter);
+				}
+			}
+			written += upsert.executeUpdate();
+		}
+		evict(domainClass, managed);
+		evict(domainClass, domainObjects);
+		return allValid && written >= rows.size();
+	}
+
 	@Override
 	public void runInTransaction(IUnitOfWork t) {
-		UnitOfWork unit = (UnitOfWork) t;
-		unit.setEm(entityManager());
+		// units of work that are not JPA aware do not need an entity manager
+		if (t instanceof UnitOfWork) {
+			((UnitOfWork) t).setEm(entityManager());
+		}
 		try{
-			unit.execute();
+			t.execute();
 		} catch (Exception e) {
 			throw new RuntimeException(e); // promote exception to caller
 		}
@@ -165,29 +759,62 @@ public abstract class JpaPersistenceProvider implements IPersistenceProvider {
 
 	@Override
 	public <D extends Persistent<? extends Serializable>> long count(Class<D> domainClass) {
-        CriteriaBuilder builder = entityManager().getCriteriaBuilder();
-
-        // create the query with result of type long
-        CriteriaQuery countCriteria = builder.createQuery(domainClass);
-        countCriteria.from(domainClass);
-        Root<D> entityRoot = (Root<D>) countCriteria.getRoots()
-                .toArray()[0];
-        // now add the count projection
-        countCriteria.select(builder.count(entityRoot));
-        return (Long)entityManager().createQuery(countCriteria)
+		return timed("count", domainClass, null, () -> countInternal(domainClass));
+	}
+
+	private <D extends Persistent<? extends Serializable>> long countInternal(Class<D> domainClass) {
+        return entityManager().createQuery(statements(domainClass).count(), Long.class)
                 .getSingleResult();
 	}
 
+	@Override
+	public <D extends Persistent<? extends Serializable>> boolean exists(Class<D> domainClass, Serializable id) {
+		return timed("exists", domainClass, null, () -> existsInternal(domainClass, id));
+	}
+
+	private <D extends Persistent<? extends Serializable>> boolean existsInternal(Class<D> domainClass, Serializable id) {
+		if (id == null) {
+			return false;
+		}
+		return entityManager().createQuery(statements(domainClass).exists(), Long.class)
+				.setParameter("id", id)
+				.getSingleResult() > 0;
+	}
+
 
 	@Override
 	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> entityClass, Query.TypedQuery query) {
-		javax.persistence.TypedQuery<E> jpaQuery = transformQuery(entityClass, query);
-		return jpaQuery.getResultList();
+		return results("findAll", entityClass, entityClass, query, () -> transformQuery(entityClass, query, true).getResultList());
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> entityClass, Query.TypedQuery query, AccessPlan options) {
+		return timed("findAll", entityClass, query, () -> findAllWithPlan(entityClass, query, options));
+	}
+
+	private <E extends Persistent<? extends Serializable>> List<E> findAllWithPlan(Class<E> entityClass, Query.TypedQuery query, AccessPlan options) {
+		return transformQuery(entityClass, query, options).getResultList();
 	}
 
 	@Override
 	public <E extends Persistent<? extends Serializable>> E find(Class<E> entityClass, Query.TypedQuery query) {
-		javax.persistence.TypedQuery<E> jpaQuery = transformQuery(entityClass, query);
+		if (queryResultCache == null || !query.isCacheable() || isTransactionActive()) {
+			return find(entityClass, query, Options.Default());
+		}
+		List<E> results = findAll(entityClass, query);
+		if (results.size() > 1) {
+			throw new NonUniqueResultException("More than one result returned for find(" + entityClass.getSimpleName() + ") with query " + query);
+		}
+		return results.isEmpty() ? null : results.get(0);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E find(Class<E> entityClass, Query.TypedQuery query, AccessPlan options) {
+		return timed("find", entityClass, query, () -> findWithPlan(entityClass, query, options));
+	}
+
+	private <E extends Persistent<? extends Serializable>> E findWithPlan(Class<E> entityClass, Query.TypedQuery query, AccessPlan options) {
+		javax.persistence.TypedQuery<E> jpaQuery = transformQuery(entityClass, query, options);
 		try {
 			return jpaQuery.getSingleResult();
 		} catch (NoResultException e) {
@@ -198,19 +825,233 @@ public abstract class JpaPersistenceProvider implements IPersistenceProvider {
 
 	@Override
 	public <E> List<E> runQuery(Class<E> resultType, Query source){
-		if(source.getType().equals(Query.Type.Native)) {
+		if (Persistent.class.isAssignableFrom(resultType)) {
+			return results("runQuery", resultType, resultType, source, () -> resultList(createQuery(resultType, source)));
+		}
+		return timed("runQuery", null, source, () -> resultList(createQuery(resultType, source)));
+	}
+
+    /**
+     * Fetches one more result than the page size to find out whether a following page exists.
+     */
+	@Override
+	public <E> Page<E> runPagedQuery(Class<E> resultType, Query source) {
+		return timed("runPagedQuery", resultType, source, () -> runPagedQueryInternal(resultType, source));
+	}
+
+	private <E> Page<E> runPagedQueryInternal(Class<E> resultType, Query source) {
+		if (!source.isSeek() || !source.hasResultLimit()) {
+			throw new IllegalArgumentException("Paged queries must specify a seek and a result limit: " + source);
+		}
+		javax.persistence.Query jpaQuery = createQuery(resultType, source);
+		jpaQuery.setMaxResults(source.getMaxResults() + 1);
+		List<E> results = resultList(jpaQuery);
+		if (results.size() <= source.getMaxResults()) {
+			return new Page<E>(results, null);
+		}
+		results = new ArrayList<E>(results.subList(0, source.getMaxResults()));
+		Query.Seek continuation = source.getSeek().after(source.getSeek().keyOf(results.get(results.size() - 1)));
+		return new Page<E>(results, continuation);
+	}
+
+	// queries are created for their result type, only the results of native queries are not checked
+	@SuppressWarnings("unchecked")
+	private static <E> List<E> resultList(javax.persistence.Query query) {
+		return query.getResultList();
+	}
+
+	private <E> javax.persistence.Query createQuery(Class<E> resultType, Query source){
+		if(source instanceof Query.BoundNativeQuery) {
+			return transformTemplate(resultType, ((Query.BoundNativeQuery) source).getTemplate(), (Query.BoundNativeQuery) source, true);
+		}
+		else if(source.getType().equals(Query.Type.Native)) {
 			javax.persistence.Query nativeQuery;
 			nativeQuery = entityManager().createNativeQuery(((Query.NativeQuery) source).getQueryString());
 			configureQuery(nativeQuery, (Query.NativeQuery)source);
-			return nativeQuery.getResultList();
+			return nativeQuery;
+		}
+		else if(source.getType().equals(Query.Type.Projection)) {
+			return transformProjection(resultType, (Query.ProjectionQuery) source);
+		}
+		else if(source.getType().equals(Query.Type.Template)) {
+			return transformTemplate(resultType, ((Query.BoundQuery) source).getTemplate(), (Query.BoundQuery) source, true);
 		}
 		else{
-			javax.persistence.TypedQuery<E> jpaQuery  = transformQuery(resultType, (Query.TypedQuery)source);
-			return jpaQuery.getResultList();
+			return transformQuery(resultType, (Query.TypedQuery)source);
+		}
+	}
+
+	/**
+	 * Create the query for a bound template. Reusable queries are obtained from {@link #compiled(Query.Template, Class)}, they must not
+	 * be modified other than by binding parameters and result limits (which are reset for each execution).
+	 */
+	private javax.persistence.Query transformTemplate(Class<?> resultType, Query.Template template, Query.ParametrizedQuery source, boolean reusable){
+		javax.persistence.Query query = reusable ? compiled(template, resultType) : compile(template, resultType);
+		configureQuery(query, source);
+		if (reusable) {
+			if (!source.hasResultLimit()) query.setMaxResults(Integer.MAX_VALUE);
+			if (!source.isFirstResultSet()) query.setFirstResult(0);
+		}
+		return query;
+	}
+
+	/**
+	 * Get the query for the given template and result type. This implementation compiles a new query for each execution.
+	 * Providers that own their entity manager can cache compiled queries for as long as the entity manager is open.
+	 *
+	 * @see #compile(Query.Template, Class)
+	 */
+	protected javax.persistence.Query compiled(Query.Template template, Class<?> resultType){
+		return compile(template, resultType);
+	}
+
+	protected final javax.persistence.Query compile(Query.Template template, Class<?> resultType){
+		switch (template.getKind()) {
+			case Named:
+				return entityManager().createNamedQuery(template.getStatement(), resultType);
+			case Jpql:
+				return entityManager().createQuery(template.getStatement(), resultType);
+			default:
+				return entityManager().createNativeQuery(template.getStatement());
 		}
 	}
 
+	private <E> javax.persistence.TypedQuery<E> transformProjection(Class<E> resultType, Query.ProjectionQuery projection){
+		if (projection.getAttributes().isEmpty()) {
+			throw new IllegalArgumentException("Projections must select at least one attribute: " + projection);
+		}
+		CriteriaBuilder builder = entityManager().getCriteriaBuilder();
+		CriteriaQuery<E> criteria = builder.createQuery(resultType);
+		Root<?> root = criteria.from(projection.getDomainClass());
+		List<Selection<?>> selections = new ArrayList<Selection<?>>(projection.getAttributes().size());
+		for (String attribute : projection.getAttributes()) {
+			selections.add(path(root, attribute).alias(attribute));
+		}
+		if (resultType.equals(Object[].class) || resultType.equals(Tuple.class)) {
+			criteria.multiselect(selections);
+		} else if (selections.size() == 1 && resultType.isAssignableFrom(boxed(selections.get(0).getJavaType()))) {
+			// the type of the selection has been checked
+			@SuppressWarnings("unchecked")
+			Selection<E> selection = (Selection<E>) selections.get(0);
+			criteria.select(selection);
+		} else {
+			criteria.select(builder.construct(resultType, selections.toArray(new Selection<?>[selections.size()])));
+		}
+		List<Predicate> restrictions = new ArrayList<Predicate>(projection.getConditions().size());
+		for (Query.ProjectionQuery.Condition condition : projection.getConditions()) {
+			Path<?> attribute = path(root, condition.getAttribute());
+			restrictions.add(condition.getParameter() == null
+					? builder.isNull(attribute)
+					: builder.equal(attribute, builder.parameter(boxed(attribute.getJavaType()), condition.getParameter())));
+		}
+		criteria.where(restrictions.toArray(new Predicate[restrictions.size()]));
+		List<Order> orderings = new ArrayList<Order>(projection.getOrderings().size());
+		for (Query.ProjectionQuery.Ordering ordering : projection.getOrderings()) {
+			Path<?> attribute = path(root, ordering.getAttribute());
+			orderings.add(ordering.isAscending() ? builder.asc(attribute) : builder.desc(attribute));
+		}
+		criteria.orderBy(orderings);
+		javax.persistence.TypedQuery<E> jpaQuery = entityManager().createQuery(criteria);
+		configureQuery(jpaQuery, projection);
+		return jpaQuery;
+	}
+
+	private static Path<?> path(Root<?> root, String attribute) {
+		Path<?> path = root;
+		for (String segment : attribute.split("\\.")) {
+			path = path.get(segment);
+		}
+		return path;
+	}
+
+	private static Class<?> boxed(Class<?> type) {
+		if (!type.isPrimitive()) return type;
+		if (type == int.class) return Integer.class;
+		if (type == long.class) return Long.class;
+		if (type == boolean.class) return Boolean.class;
+		if (type == double.class) return Double.class;
+		if (type == float.class) return Float.class;
+		if (type == short.class) return Short.class;
+		if (type == byte.class) return Byte.class;
+		return Character.class;
+	}
+
+	/**
+	 * Create the query and apply the access plan. The associations of a fetch plan are added to JPQL queries as join fetches.
+	 * Named queries are rewritten the same way if they are declared by an annotation of a managed type (see {@link javax.persistence.NamedQuery}).
+	 * The fetch plans of other named queries (e.g. declared in orm.xml) are passed as query hints, which are only understood by EclipseLink.
+	 *
+	 * @throws UnsupportedOperationException If such a named query is run with a fetch plan by a provider that ignores the hints
+	 */
+	private <E> javax.persistence.TypedQuery<E> transformQuery(Class<E> resultType, Query.TypedQuery query, AccessPlan options){
+		if (!options.hasFetchPlan()) {
+			javax.persistence.TypedQuery<E> jpaQuery = transformQuery(resultType, query, isDefault(options));
+			applyAccessPlan(jpaQuery, options, false);
+			return jpaQuery;
+		}
+		boolean template = query.getType().equals(Query.Type.Template);
+		Query.Type kind = template ? ((Query.BoundQuery) query).getTemplate().getKind() : query.getType();
+		String jpql = null;
+		if (kind.equals(Query.Type.Jpql)) {
+			jpql = template ? ((Query.BoundQuery) query).getTemplate().getStatement() : ((Query.JpqlQuery) query).getQueryString();
+		} else if (kind.equals(Query.Type.Named)) {
+			jpql = namedStatements().get(template ? ((Query.BoundQuery) query).getTemplate().getStatement() : ((Query.NamedQuery) query).getName());
+		}
+		if (jpql != null) {
+			javax.persistence.TypedQuery<E> jpaQuery = entityManager().createQuery(fetching(jpql, options.getFetchPlan()), resultType);
+			configureQuery(jpaQuery, query);
+			applyAccessPlan(jpaQuery, options, false);
+			return jpaQuery;
+		}
+		javax.persistence.TypedQuery<E> jpaQuery = transformQuery(resultType, query, false);
+		applyAccessPlan(jpaQuery, options, true);
+		// providers only report the hints they understood
+		if (!jpaQuery.getHints().containsKey(QueryHints.ECLIPSELINK_LEFT_JOIN_FETCH)) {
+			throw new UnsupportedOperationException("The fetch plan can not be applied since the statement of the named query is unknown"
+					+ " and the persistence provider does not support fetch plan hints. Declare the named query by an annotation,"
+					+ " declare the join fetches in the named query or use a JPQL query instead: " + query);
+		}
+		return jpaQuery;
+	}
+
+	private Map<String, String> namedStatements() {
+		Map<String, String> statements = namedStatements;
+		if (statements == null) {
+			statements = new HashMap<String, String>();
+			for (ManagedType<?> type : entityManager().getMetamodel().getManagedTypes()) {
+				for (Class<?> current = type.getJavaType(); current != null && !current.equals(Object.class); current = current.getSuperclass()) {
+					NamedQueries queries = current.getAnnotation(NamedQueries.class);
+					if (queries != null) {
+						for (NamedQuery named : queries.value()) {
+							statements.put(named.name(), named.query());
+						}
+					}
+					NamedQuery named = current.getAnnotation(NamedQuery.class);
+					if (named != null) statements.put(named.name(), named.query());
+				}
+			}
+			namedStatements = statements;
+		}
+		return statements;
+	}
+
+	// the JPQL with the join fetches of the fetch plan
+	private String fetching(String jpql, Options.FetchPlan fetchPlan) {
+		List<Object> key = Arrays.<Object>asList(jpql, fetchPlan);
+		String statement = fetchStatements.get(key);
+		if (statement == null) {
+			statement = EntityStatements.withFetchPlan(jpql, fetchPlan);
+			// queries that are assembled dynamically would let the cache grow without bounds
+			if (fetchStatements.size() < 1000) fetchStatements.putIfAbsent(key, statement);
+		}
+		return statement;
+	}
+
 	private <E> javax.persistence.TypedQuery<E> transformQuery(Class<E> resultType, Query.TypedQuery query){
+		return transformQuery(resultType, query, false);
+	}
+
+	private <E> javax.persistence.TypedQuery<E> transformQuery(Class<E> resultType, Query.TypedQuery query, boolean reusable){
 		javax.persistence.TypedQuery<E> jpaQuery = null;
 		switch(query.getType()){
 			case Jpql:
@@ -221,6 +1062,12 @@ public abstract class JpaPersistenceProvider implements IPersistenceProvider {
 				jpaQuery =   entityManager().createNamedQuery(((Query.NamedQuery) query).getName(), resultType);
 				configureQuery(jpaQuery, (query));
 				break;
+			case Template:
+				// typed templates are compiled with the result type (see compile(Template, Class))
+				@SuppressWarnings("unchecked")
+				javax.persistence.TypedQuery<E> template = (javax.persistence.TypedQuery<E>) transformTemplate(resultType, ((Query.BoundQuery) query).getTemplate(), (Query.BoundQuery) query, reusable);
+				jpaQuery = template;
+				break;
 			default: throw new IllegalArgumentException("Unkown query type [" + query + "]. " +
 					"Only named or jpql queries are currently supported");
 		}
@@ -228,11 +1075,33 @@ public abstract class JpaPersistenceProvider implements IPersistenceProvider {
 	}
 
 	private void configureQuery(javax.persistence.Query query, Query.ParametrizedQuery source){
-		for (Query.NamedQuery.QueryParameter param : source.getParameters()) {
-			query.setParameter(param.getKey(), param.getValue());
-		}
+		source.forEachParameter(query::setParameter);
 		if (source.hasResultLimit()) query.setMaxResults(source.getMaxResults());
-		if(source.isFirstResultSet())query.setFirstResult(source.getFirtResult());
+		if(source.isFirstResultSet()){
+			if(source.isSeek()) throw new IllegalArgumentException("Keyset pagination can not be combined with a first result: " + source);
+			query.setFirstResult(source.getFirtResult());
+		}
+		if(source.isSeek()) query.setParameter(source.getSeek().getParameter(), source.getSeek().getAfter());
+	}
+
+	// queries that are run with the default plan are not modified by applyAccessPlan
+	private static boolean isDefault(AccessPlan options) {
+		return options.getLockMode() != LockType.PessimisticWrite && options.getLockMode() != LockType.Optimistic && !options.isRefresh() && !options.isReadOnly() && !options.hasFetchPlan();
+	}
+
+	private void applyAccessPlan(javax.persistence.Query query, AccessPlan options, boolean fetchByHint) {
+		switch (options.getLockMode()) {
+			case PessimisticWrite:
+				query.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+				break;
+			case Optimistic:
+				query.setLockMode(LockModeType.OPTIMISTIC);
+				break;
+			default: // no explicit lock
+		}
+		if (options.isRefresh()) QueryHints.setRefresh(query);
+		if (options.isReadOnly()) QueryHints.setReadOnly(query);
+		if (fetchByHint && options.hasFetchPlan()) QueryHints.setFetchPlan(query, options.getFetchPlan());
 	}
 
     public <D extends Persistent<? extends Serializable>> boolean isManaged(D domainObject) {
@@ -0,0 +1,80 @@
+package net.engio.daoism.dao.jpa;
+
+import net.engio.daoism.dao.query.Options;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Names of the query hints used by {@link JpaPersistenceProvider}. Hints are vendor specific and the JPA specification
+ * requires providers to ignore hints they do not recognize, so hints for all supported providers can be set at once.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class QueryHints {
+
+	public static final String HIBERNATE_FETCH_SIZE = "org.hibernate.fetchSize";
+
+	public static final String ECLIPSELINK_FETCH_SIZE = "eclipselink.jdbc.fetch-size";
+
+	public static final String HIBERNATE_READ_ONLY = "org.hibernate.readOnly";
+
+	public static final String ECLIPSELINK_READ_ONLY = "eclipselink.read-only";
+
+	public static final String ECLIPSELINK_REFRESH = "eclipselink.refresh";
+
+	public static final String CACHE_RETRIEVE_MODE = "javax.persistence.cache.retrieveMode";
+
+	public static final String ECLIPSELINK_LEFT_JOIN_FETCH = "eclipselink.left-join-fetch";
+
+	private QueryHints() {
+	}
+
+	/**
+	 * Set the number of rows fetched from the database in one round trip
+	 */
+	public static void setFetchSize(javax.persistence.Query query, int fetchSize) {
+		query.setHint(HIBERNATE_FETCH_SIZE, fetchSize);
+		query.setHint(ECLIPSELINK_FETCH_SIZE, fetchSize);
+	}
+
+	/**
+	 * Load the results without change tracking
+	 */
+	public static void setReadOnly(javax.persistence.Query query) {
+		for (Map.Entry<String, Object> hint : readOnly().entrySet()) {
+			query.setHint(hint.getKey(), hint.getValue());
+		}
+	}
+
+	/**
+	 * Load the results from the database, overwriting the state of cached or already managed instances
+	 */
+	public static void setRefresh(javax.persistence.Query query) {
+		query.setHint(ECLIPSELINK_REFRESH, "true");
+		query.setHint(CACHE_RETRIEVE_MODE, javax.persistence.CacheRetrieveMode.BYPASS);
+	}
+
+	/**
+	 * Load the associations of the fetch plan together with the results. The hint is only understood by EclipseLink, other
+	 * providers silently ignore it. {@link JpaPersistenceProvider} therefore adds join fetches to the statements of queries
+	 * and only uses the hint for named queries whose statement is unknown.
+	 */
+	public static void setFetchPlan(javax.persistence.Query query, Options.FetchPlan fetchPlan) {
+		// EclipseLink ignores the identification variable of the path
+		for (String association : fetchPlan.getAssociations()) {
+			query.setHint(ECLIPSELINK_LEFT_JOIN_FETCH, "en." + association);
+		}
+	}
+
+	/**
+	 * The properties that load domain objects without change tracking when passed to {@link javax.persistence.EntityManager#find}
+	 */
+	public static Map<String, Object> readOnly() {
+		Map<String, Object> hints = new HashMap<String, Object>(4);
+		hints.put(HIBERNATE_READ_ONLY, true);
+		hints.put(ECLIPSELINK_READ_ONLY, "true");
+		return hints;
+	}
+
+}
@@ -0,0 +1,151 @@
+package net.engio.daoism.dao.jpa;
+
+import net.engio.daoism.dao.query.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Logs queries and other operations of {@link JpaPersistenceProvider} that take longer than a configurable threshold.
+ * Each entry contains the operation, the query (including its parameters), the number of returned rows and the elapsed time.
+ * For native queries, the execution plan of the database can be captured as well (see {@link #setExplain(boolean)}).
+ *
+ * Entries are rate limited per operation and query: Within one interval, only the first entry is logged. The number of
+ * suppressed entries is reported with the next entry that is logged. Entries are written to the logger
+ * "net.engio.daoism.slowquery" with level WARN.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class SlowQueryLog {
+
+	private static final Logger log = LoggerFactory.getLogger("net.engio.daoism.slowquery");
+
+	// upper bound for the number of rate limiters, relevant if queries are built dynamically
+	private static final int MAX_LIMITERS = 1000;
+
+	private final long thresholdNanos;
+
+	private volatile boolean explain = false;
+
+	private volatile long intervalNanos = TimeUnit.MINUTES.toNanos(1);
+
+	private final ConcurrentMap<String, RateLimiter> limiters = new ConcurrentHashMap<String, RateLimiter>();
+
+	/**
+	 * @param thresholdMillis Operations that take longer are logged
+	 */
+	public SlowQueryLog(long thresholdMillis) {
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+	}
+
+	/**
+	 * Capture the execution plan of slow native queries by running them again prefixed with EXPLAIN (as supported by H2,
+	 * Postgres and MySQL). The plan is only captured for entries that are actually logged.
+	 */
+	public SlowQueryLog setExplain(boolean explain) {
+		this.explain = explain;
+		return this;
+	}
+
+	public boolean isExplain() {
+		return explain;
+	}
+
+	/**
+	 * Log the same operation and query at most once within the given interval
+	 */
+	public SlowQueryLog setRateLimit(long intervalMillis) {
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		return this;
+	}
+
+	public boolean isSlow(long elapsedNanos) {
+		return elapsedNanos > thresholdNanos;
+	}
+
+	/**
+	 * Log a slow operation unless the rate limit for this operation is exceeded.
+	 *
+	 * @param operation The name of the operation
+	 * @param domainClass The queried domain class (or null)
+	 * @param query The query that has been executed (or null)
+	 * @param rows The number of returned rows or a negative value if unknown
+	 * @param elapsedNanos The time the operation took
+	 * @param plan Supplies the execution plan (or null if not available)
+	 */
+	public void report(String operation, Class<?> domainClass, Query query, int rows, long elapsedNanos, Supplier<String> plan) {
+		String key = operation + (domainClass != null ? "[" + domainClass.getName() + "]" : "") + (query != null ? describe(query) : "");
+		long suppressed = limiter(key).acquire(System.nanoTime(), intervalNanos);
+		if (suppressed < 0) {
+			return;
+		}
+		StringBuilder entry = new StringBuilder("Slow operation ").append(operation);
+		if (domainClass != null) entry.append('(').append(domainClass.getSimpleName()).append(')');
+		entry.append(" took ").append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos)).append("ms");
+		if (rows >= 0) entry.append(", rows=").append(rows);
+		if (query != null) entry.append(", query=").append(query);
+		if (suppressed > 0) entry.append(" (").append(suppressed).append(" similar entries suppressed)");
+		if (explain && plan != null) {
+			try {
+				entry.append("\n").append(plan.get());
+			} catch (RuntimeException e) {
+				log.debug("Could not capture execution plan of " + query, e);
+			}
+		}
+		log.warn(entry.toString());
+	}
+
+	// parameters are not part of the key, all executions of the same query share one rate limit
+	private static String describe(Query query) {
+		switch (query.getType()) {
+			case Named:
+				return ((Query.NamedQuery) query).getName();
+			case Jpql:
+				return ((Query.JpqlQuery) query).getQueryString();
+			case Native:
+				return ((Query.NativeQuery) query).getQueryString();
+			case Template:
+				return ((Query.BoundQuery) query).getTemplate().getStatement();
+			default:
+				return query.toString();
+		}
+	}
+
+	private RateLimiter limiter(String key) {
+		RateLimiter limiter = limiters.get(key);
+		if (limiter == null) {
+			if (limiters.size() >= MAX_LIMITERS) limiters.clear();
+			RateLimiter created = new RateLimiter();
+			limiter = limiters.putIfAbsent(key, created);
+			if (limiter == null) limiter = created;
+		}
+		return limiter;
+	}
+
+	private static class RateLimiter {
+
+		private final AtomicLong lastLogged = new AtomicLong();
+
+		private final AtomicLong suppressed = new AtomicLong();
+
+		private volatile boolean logged = false;
+
+		/**
+		 * @return The number of suppressed entries since the last entry, or -1 if this entry needs to be suppressed
+		 */
+		private long acquire(long now, long interval) {
+			long last = lastLogged.get();
+			if ((!logged || now - last >= interval) && lastLogged.compareAndSet(last, now)) {
+				logged = true;
+				return suppressed.getAndSet(0);
+			}
+			suppressed.incrementAndGet();
+			return -1;
+		}
+	}
+}
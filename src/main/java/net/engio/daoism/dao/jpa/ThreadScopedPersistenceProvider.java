@@ -0,0 +1,306 @@
+package net.engio.daoism.dao.jpa;
+
+import net.engio.daoism.Persistent;
+import net.engio.daoism.dao.IExecutionScope;
+import net.engio.daoism.dao.IUnitOfWork;
+import net.engio.daoism.dao.query.Query;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A JPA persistence provider for unmanaged environments that binds one entity manager to each thread that runs a scope.
+ * All operations of this provider must be run within a scope, e.g. by running them with
+ * {@link net.engio.daoism.dao.AsyncTypedDao} which begins a new scope for each task.
+ *
+ * When the outermost scope of a thread ends, its persistence context is cleared, such that all loaded objects are detached,
+ * and the entity manager is kept for the next scope begun by any thread. At most {@link #setMaxIdleEntityManagers(int)}
+ * entity managers are kept, all others are closed. Thus the number of open entity managers is bounded by the number of
+ * concurrently running scopes plus the kept ones, no matter how many threads run scopes over time (e.g. one virtual thread per task).
+ * Kept entity managers are closed when the provider is closed.
+ *
+ * Transactions are resource local. Units of work and write operations are run in a transaction that is
+ * committed after the operation completed, unless a transaction is already active.
+ *
+ * Queries of {@link net.engio.daoism.dao.query.Query.Template}s are compiled once per entity manager and reused for all
+ * executions of the same template, including those of later scopes that reuse the entity manager.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class ThreadScopedPersistenceProvider extends JpaPersistenceProvider implements IExecutionScope, AutoCloseable {
+
+	private final EntityManagerFactory factory;
+
+	private final ThreadLocal<Scope> scope = new ThreadLocal<Scope>();
+
+	// the scopes that are not bound to any thread, the most recently used first
+	private final Deque<Scope> idle = new ConcurrentLinkedDeque<Scope>();
+
+	private final AtomicInteger open = new AtomicInteger();
+
+	private volatile int maxIdle = Runtime.getRuntime().availableProcessors();
+
+	private volatile boolean closed = false;
+
+	public ThreadScopedPersistenceProvider(EntityManagerFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Set the number of entity managers that are kept for following scopes when their scope ended (default is the number of
+	 * processors). Zero closes each entity manager when its scope ends.
+	 */
+	public void setMaxIdleEntityManagers(int maxIdle) {
+		if (maxIdle < 0) {
+			throw new IllegalArgumentException("The number of idle entity managers must not be negative but was " + maxIdle);
+		}
+		this.maxIdle = maxIdle;
+		while (idle.size() > maxIdle) {
+			Scope surplus = idle.pollLast();
+			if (surplus == null) break;
+			discard(surplus);
+		}
+	}
+
+	/**
+	 * @return The number of entity managers that are bound to a scope or kept for following scopes
+	 */
+	public int getOpenEntityManagers() {
+		return open.get();
+	}
+
+	@Override
+	public EntityManager entityManager() {
+		Scope current = scope.get();
+		if (current == null) {
+			throw new IllegalStateException("No entity manager is bound to thread " + Thread.currentThread().getName()
+					+ ". Operations need to be run within begin() and end()");
+		}
+		return current.entityManager;
+	}
+
+	@Override
+	public void begin() {
+		Scope current = scope.get();
+		if (current == null) {
+			current = idle.pollFirst();
+			if (current == null) {
+				current = new Scope(factory.createEntityManager());
+				open.incrementAndGet();
+			}
+			scope.set(current);
+		}
+		current.depth++;
+	}
+
+	@Override
+	public void end() {
+		Scope current = scope.get();
+		if (current == null) {
+			throw new IllegalStateException("No scope has been begun on thread " + Thread.currentThread().getName());
+		}
+		if (--current.depth > 0) {
+			return;
+		}
+		scope.remove();
+		boolean reusable = false;
+		try {
+			try {
+				if (current.entityManager.getTransaction().isActive()) {
+					current.entityManager.getTransaction().rollback();
+				}
+			} finally {
+				current.completed();
+			}
+			current.entityManager.clear();
+			reusable = true;
+		} finally {
+			if (reusable) release(current);
+			else discard(current);
+		}
+	}
+
+	private void release(Scope ended) {
+		if (closed || idle.size() >= maxIdle) {
+			discard(ended);
+			return;
+		}
+		idle.offerFirst(ended);
+		// the provider may have been closed after the idle scopes have been closed
+		if (closed && idle.remove(ended)) discard(ended);
+	}
+
+	private void discard(Scope scope) {
+		open.decrementAndGet();
+		scope.entityManager.close();
+	}
+
+	/**
+	 * Close all kept entity managers. Entity managers of scopes that are still running are closed when their scope ends.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		Scope kept;
+		while ((kept = idle.pollFirst()) != null) {
+			discard(kept);
+		}
+	}
+
+	@Override
+	public void runInTransaction(final IUnitOfWork t) {
+		transactional(() -> {
+			ThreadScopedPersistenceProvider.super.runInTransaction(t);
+			return null;
+		});
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> D persist(Class<D> domainClass, D domainObject) {
+		return transactional(() -> super.persist(domainClass, domainObject));
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> List<D> persistAll(Class<D> domainClass, List<D> domainObjects) {
+		return transactional(() -> super.persistAll(domainClass, domainObjects));
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> List<D> persistAll(Class<D> domainClass, List<D> domainObjects, int batchSize) {
+		return transactional(() -> super.persistAll(domainClass, domainObjects, batchSize));
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> boolean upsert(Class<D> domainClass, D domainObject) {
+		return transactional(() -> super.upsert(domainClass, domainObject));
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> boolean upsertAll(Class<D> domainClass, Collection<D> domainObjects) {
+		return transactional(() -> super.upsertAll(domainClass, domainObjects));
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> boolean delete(Class<D> domainClass, D domainObject) {
+		return transactional(() -> super.delete(domainClass, domainObject));
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> boolean deleteAll(Class<D> domainClass, Collection<D> domainObjects) {
+		return transactional(() -> super.deleteAll(domainClass, domainObjects));
+	}
+
+	@Override
+	public <D extends Persistent<? extends Serializable>> boolean bulkDelete(Class<D> domainClass, Collection<D> domainObjects, boolean checkVersion) {
+		return transactional(() -> super.bulkDelete(domainClass, domainObjects, checkVersion));
+	}
+
+	@Override
+	protected javax.persistence.Query compiled(Query.Template template, Class<?> resultType) {
+		Scope current = scope.get();
+		if (current == null) {
+			return super.compiled(template, resultType);
+		}
+		// the scope is only used by the thread it is bound to
+		CompiledQuery compiled = current.queries.get(template);
+		if (compiled == null || !compiled.resultType.equals(resultType)) {
+			compiled = new CompiledQuery(resultType, compile(template, resultType));
+			current.queries.put(template, compiled);
+		}
+		return compiled.query;
+	}
+
+	@Override
+	public boolean isTransactionActive() {
+		Scope current = scope.get();
+		return current != null && current.entityManager.getTransaction().isActive();
+	}
+
+	@Override
+	protected void afterTransaction(Runnable callback) {
+		Scope current = scope.get();
+		if (current != null && current.entityManager.getTransaction().isActive()) {
+			current.afterTransaction.add(callback);
+		} else {
+			callback.run();
+		}
+	}
+
+	/**
+	 * Run the given operation within a transaction. A new transaction is only started (and committed) if no
+	 * transaction is active.
+	 */
+	protected <R> R transactional(Supplier<R> operation) {
+		begin();
+		try {
+			EntityTransaction transaction = entityManager().getTransaction();
+			if (transaction.isActive()) {
+				return operation.get();
+			}
+			transaction.begin();
+			try {
+				R result = operation.get();
+				transaction.commit();
+				return result;
+			} catch (RuntimeException e) {
+				if (transaction.isActive()) transaction.rollback();
+				throw e;
+			} finally {
+				scope.get().completed();
+			}
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * An entity manager and its compiled queries. It is bound to one thread at a time.
+	 */
+	private static class Scope {
+
+		private final EntityManager entityManager;
+
+		private int depth = 0;
+
+		// queries are bound to the entity manager, thus they are cached for as long as it is open
+		private final Map<Query.Template, CompiledQuery> queries = new HashMap<Query.Template, CompiledQuery>();
+
+		// callbacks to run when the current transaction completed
+		private final List<Runnable> afterTransaction = new ArrayList<Runnable>();
+
+		private Scope(EntityManager entityManager) {
+			this.entityManager = entityManager;
+		}
+
+		private void completed() {
+			List<Runnable> callbacks = new ArrayList<Runnable>(afterTransaction);
+			afterTransaction.clear();
+			for (Runnable callback : callbacks) {
+				callback.run();
+			}
+		}
+	}
+
+	private static class CompiledQuery {
+
+		private final Class<?> resultType;
+
+		private final javax.persistence.Query query;
+
+		private CompiledQuery(Class<?> resultType, javax.persistence.Query query) {
+			this.resultType = resultType;
+			this.query = query;
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package net.engio.daoism.dao.memory;
+
+import javax.persistence.Entity;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
+import javax.persistence.Transient;
+import javax.persistence.Version;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The reflective view of a domain class that {@link InMemoryPersistenceProvider} needs to store copies of domain objects:
+ * the persistent fields, the version field, lifecycle callbacks and named queries. Fields are accessed directly,
+ * like JPA does with field access.
+ *
+ * Instances are immutable and cached per class (see {@link #of(Class)}).
+ *
+ * @author Benjamin Diedrichsen
+ */
+final class DomainClass {
+
+	private static final ConcurrentMap<Class<?>, DomainClass> cache = new ConcurrentHashMap<Class<?>, DomainClass>();
+
+	private final Class<?> type;
+
+	private final String entityName;
+
+	private final Constructor<?> constructor;
+
+	// all persistent fields of the class and its superclasses by name
+	private final Map<String, Field> fields;
+
+	private final Field version;
+
+	private final List<Method> prePersist;
+
+	private final List<Method> preUpdate;
+
+	private final Map<String, String> namedQueries;
+
+	private DomainClass(Class<?> type) {
+		this.type = type;
+		Entity entity = type.getAnnotation(Entity.class);
+		this.entityName = entity != null && !entity.name().isEmpty() ? entity.name() : type.getSimpleName();
+		try {
+			this.constructor = type.getDeclaredConstructor();
+			this.constructor.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException("Domain class " + type.getName() + " needs a constructor without arguments", e);
+		}
+		Map<String, Field> fields = new LinkedHashMap<String, Field>();
+		Field version = null;
+		List<Method> prePersist = new ArrayList<Method>();
+		List<Method> preUpdate = new ArrayList<Method>();
+		Map<String, String> namedQueries = new HashMap<String, String>();
+		// superclasses first, such that callbacks are invoked in the order of the class hierarchy
+		for (Class<?> current : hierarchy(type)) {
+			for (Field field : current.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())
+						|| field.isAnnotationPresent(Transient.class) || field.isSynthetic()) {
+					continue;
+				}
+				field.setAccessible(true);
+				fields.put(field.getName(), field);
+				if (field.isAnnotationPresent(Version.class)) version = field;
+			}
+			for (Method method : current.getDeclaredMethods()) {
+				if (method.getParameterTypes().length > 0) continue;
+				if (method.isAnnotationPresent(PrePersist.class)) prePersist.add(accessible(method));
+				if (method.isAnnotationPresent(PreUpdate.class)) preUpdate.add(accessible(method));
+			}
+			NamedQueries queries = current.getAnnotation(NamedQueries.class);
+			if (queries != null) {
+				for (NamedQuery query : queries.value()) {
+					namedQueries.put(query.name(), query.query());
+				}
+			}
+			NamedQuery query = current.getAnnotation(NamedQuery.class);
+			if (query != null) namedQueries.put(query.name(), query.query());
+		}
+		this.fields = Collections.unmodifiableMap(fields);
+		this.version = version;
+		this.prePersist = Collections.unmodifiableList(prePersist);
+		this.preUpdate = Collections.unmodifiableList(preUpdate);
+		this.namedQueries = Collections.unmodifiableMap(namedQueries);
+	}
+
+	static DomainClass of(Class<?> type) {
+		DomainClass domainClass = cache.get(type);
+		if (domainClass == null) {
+			domainClass = new DomainClass(type);
+			DomainClass existing = cache.putIfAbsent(type, domainClass);
+			if (existing != null) domainClass = existing;
+		}
+		return domainClass;
+	}
+
+	private static List<Class<?>> hierarchy(Class<?> type) {
+		List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+		for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+			hierarchy.add(0, current);
+		}
+		return hierarchy;
+	}
+
+	private static Method accessible(Method method) {
+		method.setAccessible(true);
+		return method;
+	}
+
+	Class<?> getType() {
+		return type;
+	}
+
+	String getEntityName() {
+		return entityName;
+	}
+
+	Map<String, String> getNamedQueries() {
+		return namedQueries;
+	}
+
+	boolean isVersioned() {
+		return version != null;
+	}
+
+	/**
+	 * Create a copy of the given domain object. Collections and maps are copied, such that adding or removing elements of
+	 * the copy does not affect the original. All other values (including associated domain objects) are shared.
+	 */
+	@SuppressWarnings("unchecked")
+	<E> E copy(E source) {
+		try {
+			E copy = (E) constructor.newInstance();
+			copyState(source, copy);
+			return copy;
+		} catch (InstantiationException e) {
+			throw new IllegalStateException("Could not instantiate " + type.getName(), e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Could not instantiate " + type.getName(), e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException("Could not instantiate " + type.getName(), e.getCause());
+		}
+	}
+
+	/**
+	 * Copy the persistent state of the source to the target
+	 */
+	void copyState(Object source, Object target) {
+		try {
+			for (Field field : fields.values()) {
+				field.set(target, copyValue(field.get(source)));
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Could not copy " + type.getName(), e);
+		}
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static Object copyValue(Object value) {
+		if (value instanceof SortedSet) return new TreeSet((SortedSet) value);
+		if (value instanceof Set) return new LinkedHashSet((Set) value);
+		if (value instanceof Collection) return new ArrayList((Collection) value);
+		if (value instanceof SortedMap) return new TreeMap((SortedMap) value);
+		if (value instanceof Map) return new LinkedHashMap((Map) value);
+		return value;
+	}
+
+	/**
+	 * Check whether any persistent field of the given objects differs (the version is not compared)
+	 */
+	boolean differs(Object one, Object other) {
+		try {
+			for (Field field : fields.values()) {
+				if (field != version && !Objects.equals(field.get(one), field.get(other))) {
+					return true;
+				}
+			}
+			return false;
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Could not compare " + type.getName(), e);
+		}
+	}
+
+	/**
+	 * Set the version of the given object, if the domain class has a version field
+	 */
+	void setVersion(Object target, long value) {
+		if (version == null) return;
+		try {
+			if (version.getType() == int.class || version.getType() == Integer.class) {
+				version.set(target, (int) value);
+			} else {
+				version.set(target, value);
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Could not set version of " + type.getName(), e);
+		}
+	}
+
+	void prePersist(Object target) {
+		invoke(prePersist, target, PrePersist.class);
+	}
+
+	void preUpdate(Object target) {
+		invoke(preUpdate, target, PreUpdate.class);
+	}
+
+	private void invoke(List<Method> callbacks, Object target, Class<? extends Annotation> event) {
+		for (Method callback : callbacks) {
+			try {
+				callback.invoke(target);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException("Could not invoke @" + event.getSimpleName() + " callback " + callback, e);
+			} catch (InvocationTargetException e) {
+				if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+				throw new IllegalStateException("@" + event.getSimpleName() + " callback " + callback + " failed", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Read the value of an attribute. Attributes of associated domain objects are read using dot notation, e.g. "server.host".
+	 *
+	 * @return The value of the attribute or null, if any domain object on the path is null
+	 * @throws IllegalArgumentException If the attribute does not exist
+	 */
+	Object get(Object source, String attribute) {
+		Object current = source;
+		int start = 0;
+		while (current != null) {
+			int end = attribute.indexOf('.', start);
+			String name = end < 0 ? attribute.substring(start) : attribute.substring(start, end);
+			DomainClass owner = current.getClass() == type ? this : of(current.getClass());
+			Field field = owner.fields.get(name);
+			if (field == null) {
+				throw new IllegalArgumentException("Unknown attribute " + name + " of " + owner.type.getName());
+			}
+			try {
+				current = field.get(current);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException("Could not read " + attribute + " of " + type.getName(), e);
+			}
+			if (end < 0) return current;
+			start = end + 1;
+		}
+		return null;
+	}
+
+	/**
+	 * @return The type of the given attribute, or null if it does not denote a field of this class (or an associated class)
+	 */
+	Class<?> typeOf(String attribute) {
+		DomainClass owner = this;
+		String[] path = attribute.split("\\.");
+		for (int i = 0; i < path.length; i++) {
+			Field field = owner.fields.get(path[i]);
+			if (field == null) return null;
+			if (i == path.length - 1) return field.getType();
+			owner = of(field.getType());
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "DomainClass{" + type.getName() + "}";
+	}
+}
@@ -0,0 +1,108 @@
+package net.engio.daoism.dao.memory;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the stored copies of all domain objects of one (concrete) domain class by primary key, along with the
+ * secondary indexes of that class. Stored copies are never handed out, callers receive copies of them.
+ *
+ * Writes of the same primary key must be serialized by the caller, writes of different primary keys and reads may
+ * run concurrently.
+ *
+ * @author Benjamin Diedrichsen
+ */
+final class EntityStore {
+
+	private final DomainClass domainClass;
+
+	private final ConcurrentMap<Serializable, Object> rows = new ConcurrentHashMap<Serializable, Object>();
+
+	private final ConcurrentMap<String, SecondaryIndex> indexes = new ConcurrentHashMap<String, SecondaryIndex>();
+
+	EntityStore(DomainClass domainClass) {
+		this.domainClass = domainClass;
+	}
+
+	DomainClass getDomainClass() {
+		return domainClass;
+	}
+
+	Object get(Serializable id) {
+		return rows.get(id);
+	}
+
+	Collection<Object> values() {
+		return rows.values();
+	}
+
+	Collection<Serializable> ids() {
+		return rows.keySet();
+	}
+
+	Set<Map.Entry<Serializable, Object>> entries() {
+		return rows.entrySet();
+	}
+
+	int size() {
+		return rows.size();
+	}
+
+	/**
+	 * Store the given copy and update all indexes. New index entries are added before the copy is stored and old entries
+	 * are removed afterwards, such that concurrent index lookups never miss the domain object.
+	 *
+	 * @return The previously stored copy or null
+	 */
+	Object put(Serializable id, Object row) {
+		for (SecondaryIndex index : indexes.values()) {
+			index.add(domainClass.get(row, index.getAttribute()), id);
+		}
+		Object previous = rows.put(id, row);
+		if (previous != null) unindex(id, previous, row);
+		return previous;
+	}
+
+	/**
+	 * @return The removed copy or null, if no domain object is stored with the given primary key
+	 */
+	Object remove(Serializable id) {
+		Object previous = rows.remove(id);
+		if (previous != null) unindex(id, previous, null);
+		return previous;
+	}
+
+	private void unindex(Serializable id, Object previous, Object current) {
+		for (SecondaryIndex index : indexes.values()) {
+			Object old = domainClass.get(previous, index.getAttribute());
+			// the entry of an unchanged value has just been added again
+			if (current != null && Values.Order.compare(old, domainClass.get(current, index.getAttribute())) == 0) continue;
+			index.remove(old, id);
+		}
+	}
+
+	/**
+	 * Create an index of the given attribute (unless it exists) and add all stored domain objects
+	 */
+	void createIndex(String attribute) {
+		if (indexes.containsKey(attribute)) return;
+		if (domainClass.typeOf(attribute) == null) {
+			throw new IllegalArgumentException("Unknown attribute " + attribute + " of " + domainClass.getType().getName());
+		}
+		SecondaryIndex index = new SecondaryIndex(attribute);
+		if (indexes.putIfAbsent(attribute, index) != null) return;
+		// writes that run concurrently update the new index as well. Stale entries of concurrently written domain objects
+		// are harmless, the predicates of a query are checked against the stored domain objects
+		for (Map.Entry<Serializable, Object> row : rows.entrySet()) {
+			index.add(domainClass.get(row.getValue(), attribute), row.getKey());
+		}
+	}
+
+	SecondaryIndex getIndex(String attribute) {
+		return indexes.get(attribute);
+	}
+}
@@ -0,0 +1,1115 @@
+package net.engio.daoism.dao.memory;
+
+import net.engio.daoism.Persistent;
+import net.engio.daoism.Versioned;
+import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.IResultIterator;
+import net.engio.daoism.dao.IUnitOfWork;
+import net.engio.daoism.dao.ListResultIterator;
+import net.engio.daoism.dao.query.LockType;
+import net.engio.daoism.dao.query.Options;
+import net.engio.daoism.dao.query.Options.AccessPlan;
+import net.engio.daoism.dao.query.Page;
+import net.engio.daoism.dao.query.Query;
+import net.engio.daoism.dao.query.Query.TypedQuery;
+
+import javax.persistence.EntityExistsException;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.NonUniqueResultException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PessimisticLockException;
+import javax.persistence.TransactionRequiredException;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * A persistence provider that keeps all domain objects in memory, e.g. for tests, caches or as a read replica of
+ * frequently read data (filled with {@link #upsertAll(Class, java.util.Collection)}). Domain objects are stored as copies
+ * in a concurrent map per domain class. Callers always receive copies of the stored objects, thus changes need to be
+ * persisted explicitly, just like with detached objects of JPA.
+ *
+ * Semantics follow the JPA providers as far as possible:
+ * <ul>
+ *     <li>The version of a domain object (see {@link javax.persistence.Version}) is checked and incremented with each update.
+ *     Stale updates fail with an {@link OptimisticLockException}. Domain objects with a version of -1 are new.</li>
+ *     <li>Each write operation runs in a transaction, units of work run all their operations in one transaction (see
+ *     {@link #runInTransaction(IUnitOfWork)}). Within a transaction, the same instance is returned for each read of
+ *     a domain object and changes of these instances are written when the transaction commits. If the transaction fails,
+ *     all changes are rolled back.</li>
+ *     <li>Written domain objects are locked until the transaction completes. Locks are striped, i.e. a fixed number of locks
+ *     is shared by all primary keys. Operations on many domain objects take all their locks up front in the order of their
+ *     stripes, such that concurrent batches can not deadlock each other. {@link LockType#PessimisticWrite} takes the same
+ *     lock when reading.</li>
+ *     <li>Named and JPQL queries are evaluated for simple predicates (see {@link SelectStatement}). Predicates on
+ *     attributes that are indexed (see {@link #createIndex(Class, String...)}) are answered by the index instead of scanning
+ *     all domain objects. Native queries are not supported.</li>
+ * </ul>
+ * Reads do not take any locks and may see changes of transactions that have not completed yet (read uncommitted).
+ * The primary keys of domain objects must be assigned by the application, generated values are not supported.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class InMemoryPersistenceProvider implements IPersistenceProvider {
+
+	public static final int DefaultLockStripes = 256;
+
+	private final ConcurrentMap<Class<?>, EntityStore> stores = new ConcurrentHashMap<Class<?>, EntityStore>();
+
+	// all domain classes that have been used with this provider by entity name
+	private final ConcurrentMap<String, Class<?>> entities = new ConcurrentHashMap<String, Class<?>>();
+
+	private final ConcurrentMap<String, String> namedQueries = new ConcurrentHashMap<String, String>();
+
+	private final ConcurrentMap<String, SelectStatement> statements = new ConcurrentHashMap<String, SelectStatement>();
+
+	private final ConcurrentMap<Class<?>, Set<String>> indexes = new ConcurrentHashMap<Class<?>, Set<String>>();
+
+	private final ReentrantLock[] stripes;
+
+	private final ThreadLocal<Transaction> transaction = new ThreadLocal<Transaction>();
+
+	private final LongAdder indexedQueries = new LongAdder();
+
+	private final LongAdder scannedQueries = new LongAdder();
+
+	private volatile long lockTimeoutMillis = 10000;
+
+	public InMemoryPersistenceProvider() {
+		this(DefaultLockStripes);
+	}
+
+	/**
+	 * @param lockStripes The number of locks that are shared by all primary keys. It is rounded up to the next power of two
+	 */
+	public InMemoryPersistenceProvider(int lockStripes) {
+		if (lockStripes < 1) {
+			throw new IllegalArgumentException("At least one lock stripe is required but was " + lockStripes);
+		}
+		int size = Integer.highestOneBit(lockStripes);
+		if (size < lockStripes) size <<= 1;
+		stripes = new ReentrantLock[size];
+		for (int i = 0; i < size; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+	}
+
+	public long getLockTimeout() {
+		return lockTimeoutMillis;
+	}
+
+	/**
+	 * @param millis The time to wait for a lock before a {@link LockTimeoutException} is thrown. Since locks are held until
+	 *               the end of a transaction, this also resolves deadlocks between transactions.
+	 */
+	public void setLockTimeout(long millis) {
+		this.lockTimeoutMillis = millis;
+	}
+
+	/**
+	 * Index the given attributes of the domain class and its subclasses. Existing domain objects are added to the index.
+	 *
+	 * @param attributes The attributes to index, attributes of associated domain objects can be indexed using dot notation
+	 */
+	public void createIndex(Class<?> domainClass, String... attributes) {
+		Set<String> indexed = indexes.get(domainClass);
+		if (indexed == null) {
+			Set<String> created = new CopyOnWriteArraySet<String>();
+			indexed = indexes.putIfAbsent(domainClass, created);
+			if (indexed == null) indexed = created;
+		}
+		for (String attribute : attributes) {
+			indexed.add(attribute);
+			for (EntityStore store : storesOf(domainClass)) {
+				store.createIndex(attribute);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of queries that have been answered using an index
+	 */
+	public long getIndexedQueries() {
+		return indexedQueries.sum();
+	}
+
+	/**
+	 * @return The number of queries that needed to scan all domain objects of a domain class
+	 */
+	public long getScannedQueries() {
+		return scannedQueries.sum();
+	}
+
+	/**
+	 * Remove all domain objects. Indexes are kept. Must not be called while transactions are running.
+	 */
+	public void clear() {
+		for (EntityStore store : stores.values()) {
+			for (Serializable id : new ArrayList<Serializable>(store.ids())) {
+				store.remove(id);
+			}
+		}
+	}
+
+	private DomainClass register(Class<?> type) {
+		DomainClass domainClass = DomainClass.of(type);
+		if (entities.putIfAbsent(domainClass.getEntityName(), type) == null) {
+			for (Map.Entry<String, String> query : domainClass.getNamedQueries().entrySet()) {
+				namedQueries.putIfAbsent(query.getKey(), query.getValue());
+			}
+		}
+		return domainClass;
+	}
+
+	private EntityStore storeOf(Class<?> type) {
+		EntityStore store = stores.get(type);
+		if (store == null) {
+			EntityStore created = new EntityStore(register(type));
+			store = stores.putIfAbsent(type, created);
+			if (store == null) {
+				store = created;
+				for (Map.Entry<Class<?>, Set<String>> indexed : indexes.entrySet()) {
+					if (!indexed.getKey().isAssignableFrom(type)) continue;
+					for (String attribute : indexed.getValue()) {
+						store.createIndex(attribute);
+					}
+				}
+			}
+		}
+		return store;
+	}
+
+	// the stores of the given domain class and all its subclasses
+	private List<EntityStore> storesOf(Class<?> domainClass) {
+		register(domainClass);
+		List<EntityStore> matching = new ArrayList<EntityStore>(1);
+		for (EntityStore store : stores.values()) {
+			if (domainClass.isAssignableFrom(store.getDomainClass().getType())) matching.add(store);
+		}
+		return matching;
+	}
+
+	private static Serializable idOf(Persistent<? extends Serializable> domainObject) {
+		Serializable id = domainObject.getId();
+		if (id == null) {
+			throw new IllegalArgumentException("Domain objects need a primary key assigned by the application: " + domainObject);
+		}
+		return id;
+	}
+
+	private static long versionOf(Object row) {
+		return ((Versioned) row).getVersion();
+	}
+
+	/**
+	 * Run the work in the transaction of the calling thread. A new transaction is begun (and completed) if none is active.
+	 */
+	private <R> R transactional(Supplier<R> work) {
+		Transaction current = transaction.get();
+		if (current != null) {
+			return work.get();
+		}
+		current = new Transaction();
+		transaction.set(current);
+		try {
+			R result = work.get();
+			commit(current);
+			return result;
+		} catch (RuntimeException e) {
+			rollback(current);
+			throw e;
+		} catch (Error e) {
+			rollback(current);
+			throw e;
+		} finally {
+			transaction.remove();
+		}
+	}
+
+	private void commit(Transaction tx) {
+		flushManaged(tx);
+		for (Map.Entry<Key, Long> read : tx.optimisticReads.entrySet()) {
+			Key key = read.getKey();
+			if (tx.written.contains(key)) continue;
+			Object row = key.store.get(key.id);
+			if (row == null || versionOf(row) != read.getValue()) {
+				throw new OptimisticLockException("Domain object " + key + " has been modified since it has been read with an optimistic lock");
+			}
+		}
+		tx.undoLog.clear();
+		release(tx);
+	}
+
+	private void rollback(Transaction tx) {
+		try {
+			while (!tx.undoLog.isEmpty()) {
+				Undo undo = tx.undoLog.pop();
+				if (undo.previous == null) {
+					undo.store.remove(undo.id);
+				} else {
+					undo.store.put(undo.id, undo.previous);
+				}
+			}
+		} finally {
+			release(tx);
+		}
+	}
+
+	private void release(Transaction tx) {
+		for (ReentrantLock lock : tx.locks) {
+			lock.unlock();
+		}
+		tx.locks.clear();
+	}
+
+	private int stripeOf(Key key) {
+		int hash = key.hashCode();
+		return (hash ^ (hash >>> 16)) & (stripes.length - 1);
+	}
+
+	private void lock(Transaction tx, Key key) {
+		ReentrantLock stripe = stripes[stripeOf(key)];
+		if (tx.locks.contains(stripe)) return;
+		try {
+			if (!stripe.tryLock(lockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				throw new LockTimeoutException("Could not lock " + key + " within " + lockTimeoutMillis + "ms");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PessimisticLockException("Interrupted while waiting for the lock of " + key);
+		}
+		tx.locks.add(stripe);
+	}
+
+	/**
+	 * Lock all given domain objects in the order of their stripes, such that concurrent callers can not deadlock each other
+	 */
+	private void lockAll(Transaction tx, Collection<Key> keys) {
+		List<Key> ordered = new ArrayList<Key>(keys);
+		Collections.sort(ordered, (first, second) -> Integer.compare(stripeOf(first), stripeOf(second)));
+		for (Key key : ordered) {
+			lock(tx, key);
+		}
+	}
+
+	private static void store(Transaction tx, Key key, Object row) {
+		Object previous = key.store.put(key.id, row);
+		tx.undoLog.push(new Undo(key.store, key.id, previous));
+		tx.written.add(key);
+	}
+
+	private static Object unstore(Transaction tx, Key key) {
+		Object previous = key.store.remove(key.id);
+		if (previous != null) {
+			tx.undoLog.push(new Undo(key.store, key.id, previous));
+			tx.written.add(key);
+		}
+		tx.managed.remove(key);
+		return previous;
+	}
+
+	/**
+	 * Write the managed instance, if it has been changed. The caller holds the lock of the domain object.
+	 */
+	private void flush(Transaction tx, Key key, Object managed) {
+		DomainClass domainClass = key.store.getDomainClass();
+		Object current = key.store.get(key.id);
+		if (current == null) {
+			throw new OptimisticLockException("Domain object " + key + " has been deleted", null, managed);
+		}
+		if (!domainClass.differs(managed, current)) return;
+		if (domainClass.isVersioned() && versionOf(managed) != versionOf(current)) {
+			throw new OptimisticLockException("Domain object " + key + " has been modified concurrently: version "
+					+ versionOf(managed) + " is stale, current version is " + versionOf(current), null, managed);
+		}
+		domainClass.preUpdate(managed);
+		domainClass.setVersion(managed, versionOf(current) + 1);
+		store(tx, key, domainClass.copy(managed));
+	}
+
+	/**
+	 * Write all changed managed instances. Instances that have only been read are not locked. The locks of the changed
+	 * instances are taken in the order of their stripes, such that concurrent flushes can not deadlock each other.
+	 * Changes are checked again (along with the version) once the lock is held.
+	 */
+	private void flushManaged(Transaction tx) {
+		List<Map.Entry<Key, Object>> changed = new ArrayList<Map.Entry<Key, Object>>();
+		for (Map.Entry<Key, Object> managed : tx.managed.entrySet()) {
+			Key key = managed.getKey();
+			Object current = key.store.get(key.id);
+			// domain objects deleted by other transactions are not resurrected
+			if (current != null && key.store.getDomainClass().differs(managed.getValue(), current)) changed.add(managed);
+		}
+		if (changed.isEmpty()) return;
+		List<Key> keys = new ArrayList<Key>(changed.size());
+		for (Map.Entry<Key, Object> managed : changed) {
+			keys.add(managed.getKey());
+		}
+		lockAll(tx, keys);
+		for (Map.Entry<Key, Object> managed : changed) {
+			flush(tx, managed.getKey(), managed.getValue());
+		}
+	}
+
+	/**
+	 * Get the instance that represents the stored domain object for the caller: the managed instance, if the calling thread runs
+	 * a transaction, or a copy otherwise
+	 */
+	@SuppressWarnings("unchecked")
+	private <E> E materialize(Key key, Object row, boolean readOnly) {
+		Transaction tx = transaction.get();
+		if (tx == null || readOnly) {
+			return (E) key.store.getDomainClass().copy(row);
+		}
+		Object managed = tx.managed.get(key);
+		if (managed == null) {
+			managed = key.store.getDomainClass().copy(row);
+			tx.managed.put(key, managed);
+		}
+		return (E) managed;
+	}
+
+	// applies locks and refreshes of the access plan to a domain object that has just been read
+	private <E> E access(Key key, AccessPlan options) {
+		Transaction tx = transaction.get();
+		LockType mode = options.getLockMode();
+		if (mode == LockType.PessimisticWrite) lock(tx, key);
+		Object row = key.store.get(key.id);
+		if (row == null) return null;
+		boolean managed = tx != null && tx.managed.containsKey(key);
+		E result = materialize(key, row, options.isReadOnly());
+		if (managed && options.isRefresh()) key.store.getDomainClass().copyState(row, result);
+		if (mode == LockType.Optimistic && !tx.optimisticReads.containsKey(key)) {
+			tx.optimisticReads.put(key, versionOf(row));
+		}
+		return result;
+	}
+
+	private void requireTransaction(AccessPlan options) {
+		if ((options.getLockMode() == LockType.PessimisticWrite || options.getLockMode() == LockType.Optimistic)
+				&& transaction.get() == null) {
+			throw new TransactionRequiredException("Reading with lock mode " + options.getLockMode() + " requires a transaction");
+		}
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean delete(Class<E> domainClass, E entity) {
+		if (entity == null || entity.getId() == null) return false;
+		return transactional(() -> deleteInternal(entity));
+	}
+
+	private <E extends Persistent<? extends Serializable>> boolean deleteInternal(E entity) {
+		if (entity == null || entity.getId() == null) return false;
+		Transaction tx = transaction.get();
+		Key key = new Key(storeOf(entity.getClass()), entity.getId());
+		lock(tx, key);
+		return unstore(tx, key) != null;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean deleteAll(Class<E> domainClass, Collection<E> entities) {
+		return transactional(() -> {
+			lockAll(transaction.get(), keysOf(entities));
+			boolean allDeleted = true;
+			for (E entity : entities) {
+				allDeleted = deleteInternal(entity) & allDeleted;
+			}
+			return allDeleted;
+		});
+	}
+
+	// the keys of all domain objects that have a primary key, others are rejected by the operation itself
+	private <E extends Persistent<? extends Serializable>> List<Key> keysOf(Collection<E> entities) {
+		List<Key> keys = new ArrayList<Key>(entities.size());
+		for (E entity : entities) {
+			if (entity != null && entity.getId() != null) keys.add(new Key(storeOf(entity.getClass()), entity.getId()));
+		}
+		return keys;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean bulkDelete(Class<E> domainClass, Collection<E> entities, boolean checkVersion) {
+		if (entities == null || entities.isEmpty()) return true;
+		return transactional(() -> {
+			// duplicates would otherwise be counted as failed deletions
+			Map<Key, Long> versionsByKey = new LinkedHashMap<Key, Long>(entities.size());
+			boolean allValid = true;
+			for (E entity : entities) {
+				if (entity == null || entity.getId() == null) {
+					allValid = false;
+				} else {
+					versionsByKey.put(new Key(storeOf(entity.getClass()), entity.getId()), entity.getVersion());
+				}
+			}
+			if (versionsByKey.isEmpty()) return false;
+			Transaction tx = transaction.get();
+			lockAll(tx, versionsByKey.keySet());
+			int deleted = 0;
+			for (Map.Entry<Key, Long> versioned : versionsByKey.entrySet()) {
+				Key key = versioned.getKey();
+				Object row = key.store.get(key.id);
+				if (row == null || checkVersion && versionOf(row) != versioned.getValue()) continue;
+				unstore(tx, key);
+				deleted++;
+			}
+			return allValid && deleted == versionsByKey.size();
+		});
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass) {
+		List<E> all = new ArrayList<E>();
+		for (EntityStore store : storesOf(domainClass)) {
+			for (Map.Entry<Serializable, Object> row : store.entries()) {
+				all.add(this.<E>materialize(new Key(store, row.getKey()), row.getValue(), false));
+			}
+		}
+		return all;
+	}
+
+	/**
+	 * Iterates over the domain objects that exist when the iterator is created. Domain objects are copied while iterating,
+	 * they are never managed.
+	 */
+	@Override
+	public <E extends Persistent<? extends Serializable>> IResultIterator<E> iterateAll(Class<E> domainClass, int fetchSize) {
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("Fetch size must be greater than zero but was " + fetchSize);
+		}
+		List<Key> keys = new ArrayList<Key>();
+		for (EntityStore store : storesOf(domainClass)) {
+			for (Serializable id : store.ids()) {
+				keys.add(new Key(store, id));
+			}
+		}
+		return new CopyingIterator<E>(keys);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id) {
+		return findById(domainClass, id, Options.Default());
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id, AccessPlan options) {
+		if (id == null) return null;
+		requireTransaction(options);
+		for (EntityStore store : storesOf(domainClass)) {
+			E found = access(new Key(store, id), options);
+			if (found != null) return found;
+		}
+		return null;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> Map<Serializable, E> findByIds(Class<E> domainClass, Collection<? extends Serializable> ids) {
+		Map<Serializable, E> found = new LinkedHashMap<Serializable, E>();
+		for (Serializable id : new LinkedHashSet<Serializable>(ids)) {
+			E domainObject = findById(domainClass, id);
+			if (domainObject != null) found.put(id, domainObject);
+		}
+		return found;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E persist(Class<E> domainClass, E entity) {
+		if (entity == null) return null;
+		return transactional(() -> persistInternal(entity));
+	}
+
+	/**
+	 * Inserts new domain objects and returns them. Updates are written to the managed instance, which is returned.
+	 */
+	@SuppressWarnings("unchecked")
+	private <E extends Persistent<? extends Serializable>> E persistInternal(E entity) {
+		if (entity == null) return null;
+		Transaction tx = transaction.get();
+		EntityStore store = storeOf(entity.getClass());
+		DomainClass domainClass = store.getDomainClass();
+		Key key = new Key(store, idOf(entity));
+		lock(tx, key);
+		Object current = store.get(key.id);
+		boolean isNew = domainClass.isVersioned() ? entity.getVersion() < 0 : current == null;
+		if (isNew) {
+			if (current != null) {
+				throw new EntityExistsException("A domain object with primary key " + key.id + " exists already: " + entity);
+			}
+			domainClass.prePersist(entity);
+			domainClass.setVersion(entity, 0);
+			store(tx, key, domainClass.copy(entity));
+			tx.managed.put(key, entity);
+			return entity;
+		}
+		Object managed = tx.managed.get(key);
+		if (managed != entity) {
+			if (current == null) {
+				throw new OptimisticLockException("Domain object " + key + " has been deleted", null, entity);
+			}
+			if (managed == null) {
+				managed = domainClass.copy(entity);
+				tx.managed.put(key, managed);
+			} else {
+				domainClass.copyState(entity, managed);
+			}
+		}
+		flush(tx, key, managed);
+		return (E) managed;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> persistAll(Class<E> domainClass, List<E> entities) {
+		return transactional(() -> {
+			lockAll(transaction.get(), keysOf(entities));
+			List<E> persisted = new ArrayList<E>(entities.size());
+			for (E entity : entities) {
+				persisted.add(persistInternal(entity));
+			}
+			return persisted;
+		});
+	}
+
+	/**
+	 * Persists the domain objects like {@link #persistAll(Class, java.util.List)}, but writes and detaches all managed
+	 * instances after each batch
+	 */
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> persistAll(Class<E> domainClass, List<E> entities, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be greater than zero but was " + batchSize);
+		}
+		return transactional(() -> {
+			Transaction tx = transaction.get();
+			lockAll(tx, keysOf(entities));
+			List<E> persisted = new ArrayList<E>(entities.size());
+			int unflushed = 0;
+			for (E entity : entities) {
+				persisted.add(persistInternal(entity));
+				if (++unflushed == batchSize) {
+					flushManaged(tx);
+					tx.managed.clear();
+					unflushed = 0;
+				}
+			}
+			return persisted;
+		});
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean upsert(Class<E> domainClass, E entity) {
+		if (entity == null || entity.getId() == null) return false;
+		return upsertAll(domainClass, Collections.singletonList(entity));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean upsertAll(Class<E> domainClass, Collection<E> entities) {
+		return transactional(() -> {
+			Transaction tx = transaction.get();
+			// the last occurrence of a primary key wins
+			Map<Key, E> rows = new LinkedHashMap<Key, E>(entities.size());
+			boolean allValid = true;
+			for (E entity : entities) {
+				if (entity == null || entity.getId() == null) {
+					allValid = false;
+				} else {
+					rows.put(new Key(storeOf(entity.getClass()), entity.getId()), entity);
+				}
+			}
+			lockAll(tx, rows.keySet());
+			for (Map.Entry<Key, E> row : rows.entrySet()) {
+				Key key = row.getKey();
+				DomainClass type = key.store.getDomainClass();
+				Object current = key.store.get(key.id);
+				Object copy = type.copy(row.getValue());
+				type.setVersion(copy, current == null ? 0 : versionOf(current) + 1);
+				store(tx, key, copy);
+				// like the JPA providers, managed instances are not updated but detached
+				tx.managed.remove(key);
+			}
+			return allValid;
+		});
+	}
+
+	/**
+	 * Runs the unit of work in a transaction. If a transaction is active already, the unit of work joins it.
+	 * If the unit of work fails, all changes of the transaction are rolled back.
+	 */
+	@Override
+	public void runInTransaction(IUnitOfWork unit) {
+		transactional(() -> {
+			try {
+				unit.execute();
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new RuntimeException(e); // promote exception to caller
+			}
+			return null;
+		});
+	}
+
+	@Override
+	public boolean isTransactionActive() {
+		return transaction.get() != null;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> long count(Class<E> domainClass) {
+		long count = 0;
+		for (EntityStore store : storesOf(domainClass)) {
+			count += store.size();
+		}
+		return count;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean exists(Class<E> domainClass, Serializable id) {
+		if (id == null) return false;
+		for (EntityStore store : storesOf(domainClass)) {
+			if (store.get(id) != null) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, TypedQuery query) {
+		return findAll(domainClass, query, Options.Default());
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, TypedQuery query, AccessPlan options) {
+		register(domainClass);
+		requireTransaction(options);
+		SelectStatement statement = statementOf(query);
+		if (statement.isCount() || !statement.getSelections().isEmpty()) {
+			throw new IllegalArgumentException("The query does not select domain objects, use runQuery() instead: " + query);
+		}
+		List<E> results = new ArrayList<E>();
+		for (Key key : limit(select(statement, query), query, -1)) {
+			E result = access(key, options);
+			if (result != null) results.add(result);
+		}
+		return results;
+	}
+
+	/**
+	 * Iterates over the results of the query, which are fetched at once
+	 */
+	@Override
+	public <E extends Persistent<? extends Serializable>> IResultIterator<E> iterateAll(Class<E> domainClass, TypedQuery query, int fetchSize) {
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("Fetch size must be greater than zero but was " + fetchSize);
+		}
+		return new ListResultIterator<E>(findAll(domainClass, query));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E find(Class<E> domainClass, TypedQuery query) {
+		return find(domainClass, query, Options.Default());
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E find(Class<E> domainClass, TypedQuery query, AccessPlan options) {
+		List<E> results = findAll(domainClass, query, options);
+		if (results.size() > 1) {
+			throw new NonUniqueResultException("More than one result returned for find(" + domainClass.getSimpleName() + ") with query " + query);
+		}
+		return results.isEmpty() ? null : results.get(0);
+	}
+
+	@Override
+	public <E> List<E> runQuery(Class<E> resultType, Query source) {
+		return runQuery(resultType, source, -1);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <E> List<E> runQuery(Class<E> resultType, Query source, int maxResults) {
+		if (Persistent.class.isAssignableFrom(resultType)) register(resultType);
+		SelectStatement statement = statementOf(source);
+		List<Key> rows = select(statement, source);
+		if (statement.isCount()) {
+			return Collections.singletonList((E) Long.valueOf(rows.size()));
+		}
+		if (statement.isDistinct() && !statement.getSelections().isEmpty()) {
+			// duplicates are removed before the rows are limited
+			rows = distinct(rows, statement.getSelections());
+		}
+		List<E> results = new ArrayList<E>();
+		for (Key key : limit(rows, source, maxResults)) {
+			Object row = key.store.get(key.id);
+			if (row == null) continue;
+			if (statement.getSelections().isEmpty()) {
+				results.add(this.<E>materialize(key, row, false));
+			} else {
+				results.add(project(resultType, key.store.getDomainClass(), row, statement.getSelections()));
+			}
+		}
+		return results;
+	}
+
+	// the first row of each distinct combination of the selected values, in the order of the rows
+	private static List<Key> distinct(List<Key> rows, List<String> attributes) {
+		Set<List<Object>> selected = new HashSet<List<Object>>();
+		List<Key> distinct = new ArrayList<Key>();
+		for (Key key : rows) {
+			Object row = key.store.get(key.id);
+			if (row == null) continue;
+			Object[] values = new Object[attributes.size()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = key.store.getDomainClass().get(row, attributes.get(i));
+			}
+			if (selected.add(Arrays.asList(values))) distinct.add(key);
+		}
+		return distinct;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E> E project(Class<E> resultType, DomainClass domainClass, Object row, List<String> attributes) {
+		Object[] values = new Object[attributes.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = domainClass.get(row, attributes.get(i));
+		}
+		if (resultType.equals(Object[].class) || resultType.equals(Object.class) && values.length > 1) {
+			return (E) values;
+		}
+		if (values.length == 1 && (values[0] == null || resultType.isInstance(values[0]))) {
+			return (E) values[0];
+		}
+		for (Constructor<?> constructor : resultType.getConstructors()) {
+			if (constructor.getParameterTypes().length != values.length) continue;
+			try {
+				return (E) constructor.newInstance(values);
+			} catch (IllegalArgumentException e) {
+				// parameter types do not match, try the next constructor
+			} catch (InstantiationException e) {
+				throw new IllegalArgumentException("Could not create " + resultType.getName() + " from " + attributes, e);
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException("Could not create " + resultType.getName() + " from " + attributes, e);
+			} catch (InvocationTargetException e) {
+				throw new IllegalArgumentException("Could not create " + resultType.getName() + " from " + attributes, e.getCause());
+			}
+		}
+		throw new IllegalArgumentException("Results of type " + resultType.getName() + " can not be created from " + attributes);
+	}
+
+	/**
+	 * Fetches one more result than the page size to find out whether a following page exists.
+	 */
+	@Override
+	public <E> Page<E> runPagedQuery(Class<E> resultType, Query source) {
+		if (!source.isSeek() || !source.hasResultLimit()) {
+			throw new IllegalArgumentException("Paged queries must specify a seek and a result limit: " + source);
+		}
+		List<E> results = runQuery(resultType, source, source.getMaxResults() + 1);
+		if (results.size() <= source.getMaxResults()) {
+			return new Page<E>(results, null);
+		}
+		results = new ArrayList<E>(results.subList(0, source.getMaxResults()));
+		Query.Seek continuation = source.getSeek().after(source.getSeek().keyOf(results.get(results.size() - 1)));
+		return new Page<E>(results, continuation);
+	}
+
+	@Override
+	public void flush() {
+		Transaction tx = transaction.get();
+		if (tx != null) flushManaged(tx);
+	}
+
+	private SelectStatement statementOf(Query source) {
+		switch (source.getType()) {
+			case Jpql:
+				return parsed(((Query.JpqlQuery) source).getQueryString());
+			case Named:
+				return parsed(namedQuery(((Query.NamedQuery) source).getName()));
+			case Projection:
+				return SelectStatement.of((Query.ProjectionQuery) source);
+			case Template:
+				Query.Template template = ((Query.BoundQuery) source).getTemplate();
+				if (template.getKind() == Query.Type.Named) return parsed(namedQuery(template.getStatement()));
+				if (template.getKind() == Query.Type.Jpql) return parsed(template.getStatement());
+				throw new UnsupportedOperationException("Native queries can not be evaluated in memory: " + source);
+			default:
+				throw new UnsupportedOperationException("Native queries can not be evaluated in memory: " + source);
+		}
+	}
+
+	private String namedQuery(String name) {
+		String statement = namedQueries.get(name);
+		if (statement == null) {
+			throw new IllegalArgumentException("Unknown named query " + name + ". Named queries of a domain class are known once the domain class has been used");
+		}
+		return statement;
+	}
+
+	private SelectStatement parsed(String jpql) {
+		SelectStatement statement = statements.get(jpql);
+		if (statement == null) {
+			statement = SelectStatement.parse(jpql);
+			statements.putIfAbsent(jpql, statement);
+		}
+		return statement;
+	}
+
+	private Class<?> domainClassOf(SelectStatement statement) {
+		if (statement.getDomainClass() != null) return statement.getDomainClass();
+		Class<?> domainClass = entities.get(statement.getEntityName());
+		if (domainClass == null) {
+			throw new IllegalArgumentException("Unknown entity " + statement.getEntityName() + ". Domain classes are known once they have been used");
+		}
+		return domainClass;
+	}
+
+	private static Map<String, Object> parametersOf(Query source) {
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		if (source instanceof Query.ParametrizedQuery) {
+			((Query.ParametrizedQuery) source).forEachParameter(parameters::put);
+		}
+		if (source.isSeek()) {
+			if (source.isFirstResultSet()) {
+				throw new IllegalArgumentException("Keyset pagination can not be combined with a first result: " + source);
+			}
+			parameters.put(source.getSeek().getParameter(), source.getSeek().getAfter());
+		}
+		return parameters;
+	}
+
+	/**
+	 * Find the domain objects that match all conditions of the statement, in the order of the statement
+	 */
+	private List<Key> select(SelectStatement statement, Query source) {
+		Map<String, Object> parameters = parametersOf(source);
+		List<SelectStatement.Bound> conditions = new ArrayList<SelectStatement.Bound>(statement.getConditions().size());
+		for (SelectStatement.Condition condition : statement.getConditions()) {
+			conditions.add(condition.bind(parameters));
+		}
+		List<Key> matching = new ArrayList<Key>();
+		final Map<Key, Object> rows = new HashMap<Key, Object>();
+		for (EntityStore store : storesOf(domainClassOf(statement))) {
+			Collection<Serializable> candidates = candidates(store, conditions);
+			if (candidates == null) {
+				scannedQueries.increment();
+				for (Map.Entry<Serializable, Object> row : store.entries()) {
+					select(store, row.getKey(), row.getValue(), conditions, matching, rows);
+				}
+			} else {
+				indexedQueries.increment();
+				for (Serializable id : candidates) {
+					select(store, id, store.get(id), conditions, matching, rows);
+				}
+			}
+		}
+		if (!statement.getOrderings().isEmpty()) {
+			Collections.sort(matching, ordering(statement.getOrderings(), rows));
+		}
+		return matching;
+	}
+
+	private static void select(EntityStore store, Serializable id, Object row, List<SelectStatement.Bound> conditions,
+			List<Key> matching, Map<Key, Object> rows) {
+		if (row == null) return;
+		for (SelectStatement.Bound condition : conditions) {
+			if (!condition.matches(row, store.getDomainClass())) return;
+		}
+		Key key = new Key(store, id);
+		matching.add(key);
+		rows.put(key, row);
+	}
+
+	private static Comparator<Key> ordering(List<SelectStatement.Ordering> orderings, final Map<Key, Object> rows) {
+		return (one, other) -> {
+			for (SelectStatement.Ordering ordering : orderings) {
+				Object first = one.store.getDomainClass().get(rows.get(one), ordering.getAttribute());
+				Object second = other.store.getDomainClass().get(rows.get(other), ordering.getAttribute());
+				int order = Values.Order.compare(first, second);
+				if (order != 0) return ordering.isAscending() ? order : -order;
+			}
+			return 0;
+		};
+	}
+
+	/**
+	 * Look up the primary keys of the candidates with an index of the store. Equality is preferred over ranges.
+	 *
+	 * @return The candidates or null, if no condition can be answered by an index
+	 */
+	private static Collection<Serializable> candidates(EntityStore store, List<SelectStatement.Bound> conditions) {
+		SelectStatement.Bound range = null;
+		for (SelectStatement.Bound condition : conditions) {
+			SecondaryIndex index = store.getIndex(condition.getAttribute());
+			if (index == null) continue;
+			switch (condition.getOperator()) {
+				case Equal:
+					return new LinkedHashSet<Serializable>(index.equalTo(condition.getValue(0)));
+				case IsNull:
+					return new LinkedHashSet<Serializable>(index.isNull());
+				case In:
+					Set<Serializable> ids = new LinkedHashSet<Serializable>();
+					for (Object value : condition.getValues()) {
+						ids.addAll(index.equalTo(value));
+					}
+					return ids;
+				case Less:
+				case LessOrEqual:
+				case Greater:
+				case GreaterOrEqual:
+				case Between:
+					if (range == null) range = condition;
+					break;
+				default:
+			}
+		}
+		if (range == null) return null;
+		SecondaryIndex index = store.getIndex(range.getAttribute());
+		for (Object value : range.getValues()) {
+			// comparisons with null never match
+			if (value == null) return Collections.emptySet();
+		}
+		Collection<Serializable> ids;
+		switch (range.getOperator()) {
+			case Less:
+				ids = index.range(null, false, range.getValue(0), false);
+				break;
+			case LessOrEqual:
+				ids = index.range(null, false, range.getValue(0), true);
+				break;
+			case Greater:
+				ids = index.range(range.getValue(0), false, null, false);
+				break;
+			case GreaterOrEqual:
+				ids = index.range(range.getValue(0), true, null, false);
+				break;
+			default:
+				ids = index.range(range.getValue(0), true, range.getValue(1), true);
+		}
+		// stale index entries may contain a primary key twice
+		return new LinkedHashSet<Serializable>(ids);
+	}
+
+	private static List<Key> limit(List<Key> rows, Query source, int maxResults) {
+		int first = source.isFirstResultSet() ? source.getFirtResult() : 0;
+		int max = maxResults > 0 ? maxResults : source.hasResultLimit() ? source.getMaxResults() : Integer.MAX_VALUE;
+		if (first == 0 && rows.size() <= max) return rows;
+		if (first >= rows.size()) return Collections.emptyList();
+		return rows.subList(first, (int) Math.min(rows.size(), (long) first + max));
+	}
+
+	// identifies a stored domain object
+	private static final class Key {
+
+		private final EntityStore store;
+
+		private final Serializable id;
+
+		private Key(EntityStore store, Serializable id) {
+			this.store = store;
+			this.id = id;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (this == other) return true;
+			if (!(other instanceof Key)) return false;
+			return store == ((Key) other).store && id.equals(((Key) other).id);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * store.hashCode() + id.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return store.getDomainClass().getType().getSimpleName() + "[" + id + "]";
+		}
+	}
+
+	private static final class Undo {
+
+		private final EntityStore store;
+
+		private final Serializable id;
+
+		private final Object previous;
+
+		private Undo(EntityStore store, Serializable id, Object previous) {
+			this.store = store;
+			this.id = id;
+			this.previous = previous;
+		}
+	}
+
+	// the state of the transaction of one thread
+	private static final class Transaction {
+
+		private final Map<Key, Object> managed = new LinkedHashMap<Key, Object>();
+
+		private final Map<Key, Long> optimisticReads = new HashMap<Key, Long>();
+
+		private final Set<Key> written = new HashSet<Key>();
+
+		private final Deque<Undo> undoLog = new ArrayDeque<Undo>();
+
+		private final Set<ReentrantLock> locks = Collections.newSetFromMap(new IdentityHashMap<ReentrantLock, Boolean>());
+	}
+
+	// copies the domain objects lazily, such that memory consumption does not depend on the number of domain objects
+	private final class CopyingIterator<E> implements IResultIterator<E> {
+
+		private final Iterator<Key> keys;
+
+		private E next;
+
+		private CopyingIterator(List<Key> keys) {
+			this.keys = keys.iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && keys.hasNext()) {
+				Key key = keys.next();
+				Object row = key.store.get(key.id);
+				if (row != null) next = materialize(key, row, true);
+			}
+			return next != null;
+		}
+
+		@Override
+		public E next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			E current = next;
+			next = null;
+			return current;
+		}
+
+		@Override
+		public void close() {
+			next = null;
+			while (keys.hasNext()) keys.next();
+		}
+	}
+}
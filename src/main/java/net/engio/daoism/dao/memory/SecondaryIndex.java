@@ -0,0 +1,111 @@
+package net.engio.daoism.dao.memory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A sorted index of the values of one attribute that maps each value to the primary keys of the domain objects
+ * holding that value. It answers equality and range predicates without scanning all domain objects.
+ *
+ * The index is updated concurrently with lookups. A lookup may thus return primary keys of domain objects that
+ * do not match anymore, the predicates must be checked against the returned domain objects.
+ *
+ * @author Benjamin Diedrichsen
+ */
+final class SecondaryIndex {
+
+	private final String attribute;
+
+	private final ConcurrentNavigableMap<Object, Bucket> values = new ConcurrentSkipListMap<Object, Bucket>(Values.Order);
+
+	private final Set<Serializable> nulls = ConcurrentHashMap.newKeySet();
+
+	SecondaryIndex(String attribute) {
+		this.attribute = attribute;
+	}
+
+	String getAttribute() {
+		return attribute;
+	}
+
+	void add(Object value, Serializable id) {
+		if (value == null) {
+			nulls.add(id);
+			return;
+		}
+		while (true) {
+			Bucket bucket = values.computeIfAbsent(value, key -> new Bucket());
+			synchronized (bucket) {
+				// a bucket that has been removed concurrently is replaced
+				if (!bucket.removed) {
+					bucket.ids.add(id);
+					return;
+				}
+			}
+		}
+	}
+
+	void remove(Object value, Serializable id) {
+		if (value == null) {
+			nulls.remove(id);
+			return;
+		}
+		Bucket bucket = values.get(value);
+		if (bucket == null) return;
+		synchronized (bucket) {
+			bucket.ids.remove(id);
+			if (bucket.ids.isEmpty() && !bucket.removed) {
+				bucket.removed = true;
+				values.remove(value, bucket);
+			}
+		}
+	}
+
+	Collection<Serializable> equalTo(Object value) {
+		if (value == null) return Collections.emptySet();
+		Bucket bucket = values.get(value);
+		return bucket == null ? Collections.<Serializable>emptySet() : bucket.ids;
+	}
+
+	Collection<Serializable> isNull() {
+		return nulls;
+	}
+
+	/**
+	 * @param from The lower bound or null, if the range is not bounded below
+	 * @param to The upper bound or null, if the range is not bounded above
+	 */
+	Collection<Serializable> range(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+		NavigableMap<Object, Bucket> range = values;
+		if (from != null && to != null) {
+			if (Values.compare(from, to) > 0) return Collections.emptySet();
+			range = values.subMap(from, fromInclusive, to, toInclusive);
+		} else if (from != null) {
+			range = values.tailMap(from, fromInclusive);
+		} else if (to != null) {
+			range = values.headMap(to, toInclusive);
+		}
+		List<Serializable> ids = new ArrayList<Serializable>();
+		for (Bucket matching : range.values()) {
+			ids.addAll(matching.ids);
+		}
+		return ids;
+	}
+
+	// the primary keys of the domain objects that hold one value. Buckets are only modified while holding their monitor,
+	// such that an id is never added to a bucket that has been removed from the index
+	private static class Bucket {
+
+		private final Set<Serializable> ids = ConcurrentHashMap.newKeySet();
+
+		private boolean removed = false;
+	}
+}
@@ -0,0 +1,549 @@
+package net.engio.daoism.dao.memory;
+
+import net.engio.daoism.dao.query.Query;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A parsed JPQL select statement of the subset that {@link InMemoryPersistenceProvider} evaluates:
+ * <pre>
+ * SELECT [DISTINCT] alias | COUNT([DISTINCT] alias) | alias.attribute, ... FROM Entity [AS] alias
+ * [WHERE condition [AND condition]*]
+ * [ORDER BY alias.attribute [ASC|DESC], ...]
+ * </pre>
+ * Conditions compare an attribute with a parameter or literal (=, &lt;&gt;, !=, &lt;, &lt;=, &gt;, &gt;=, [NOT] LIKE, [NOT] IN,
+ * BETWEEN ... AND ...) or test it for null (IS [NOT] NULL). Attributes of associated domain objects are accessed with dot notation.
+ * Disjunctions, joins, sub queries and functions are not supported. Without joins each domain object is selected at most once,
+ * thus DISTINCT only removes duplicate rows of selected attributes.
+ *
+ * Instances are immutable and can be cached by statement.
+ *
+ * @author Benjamin Diedrichsen
+ */
+final class SelectStatement {
+
+	enum Operator {
+		Equal, NotEqual, Less, LessOrEqual, Greater, GreaterOrEqual, Like, NotLike, In, NotIn, IsNull, IsNotNull, Between
+	}
+
+	private final String entityName;
+
+	private final Class<?> domainClass;
+
+	private final boolean count;
+
+	private final boolean distinct;
+
+	// the selected attributes, empty if the domain objects are selected
+	private final List<String> selections;
+
+	private final List<Condition> conditions;
+
+	private final List<Ordering> orderings;
+
+	private SelectStatement(String entityName, Class<?> domainClass, boolean count, boolean distinct, List<String> selections,
+			List<Condition> conditions, List<Ordering> orderings) {
+		this.entityName = entityName;
+		this.domainClass = domainClass;
+		this.count = count;
+		this.distinct = distinct;
+		this.selections = Collections.unmodifiableList(selections);
+		this.conditions = Collections.unmodifiableList(conditions);
+		this.orderings = Collections.unmodifiableList(orderings);
+	}
+
+	/**
+	 * @return The name of the queried entity or null, if the domain class is known (see {@link #getDomainClass()})
+	 */
+	String getEntityName() {
+		return entityName;
+	}
+
+	Class<?> getDomainClass() {
+		return domainClass;
+	}
+
+	boolean isCount() {
+		return count;
+	}
+
+	/**
+	 * @return true, if duplicate rows of selected attributes are removed
+	 */
+	boolean isDistinct() {
+		return distinct;
+	}
+
+	List<String> getSelections() {
+		return selections;
+	}
+
+	List<Condition> getConditions() {
+		return conditions;
+	}
+
+	List<Ordering> getOrderings() {
+		return orderings;
+	}
+
+	/**
+	 * Create the statement of a projection query
+	 */
+	static SelectStatement of(Query.ProjectionQuery projection) {
+		if (projection.getAttributes().isEmpty()) {
+			throw new IllegalArgumentException("Projections must select at least one attribute: " + projection);
+		}
+		List<Condition> conditions = new ArrayList<Condition>();
+		for (Query.ProjectionQuery.Condition condition : projection.getConditions()) {
+			conditions.add(condition.getParameter() == null
+					? new Condition(condition.getAttribute(), Operator.IsNull)
+					: new Condition(condition.getAttribute(), Operator.Equal, Operand.parameter(condition.getParameter())));
+		}
+		List<Ordering> orderings = new ArrayList<Ordering>();
+		for (Query.ProjectionQuery.Ordering ordering : projection.getOrderings()) {
+			orderings.add(new Ordering(ordering.getAttribute(), ordering.isAscending()));
+		}
+		return new SelectStatement(null, projection.getDomainClass(), false, false, new ArrayList<String>(projection.getAttributes()),
+				conditions, orderings);
+	}
+
+	/**
+	 * @throws IllegalArgumentException If the statement can not be parsed or uses unsupported features
+	 */
+	static SelectStatement parse(String jpql) {
+		return new Parser(jpql).parse();
+	}
+
+	/**
+	 * A value of a condition: either a parameter that is bound when the statement is executed or a literal
+	 */
+	static final class Operand {
+
+		private final String parameter;
+
+		private final Object literal;
+
+		private Operand(String parameter, Object literal) {
+			this.parameter = parameter;
+			this.literal = literal;
+		}
+
+		static Operand parameter(String name) {
+			return new Operand(name, null);
+		}
+
+		static Operand literal(Object value) {
+			return new Operand(null, value);
+		}
+
+		Object value(Map<String, Object> parameters) {
+			if (parameter == null) return literal;
+			if (!parameters.containsKey(parameter)) {
+				throw new IllegalArgumentException("No value bound to parameter " + parameter);
+			}
+			return parameters.get(parameter);
+		}
+
+		@Override
+		public String toString() {
+			return parameter != null ? ":" + parameter : String.valueOf(literal);
+		}
+	}
+
+	static final class Condition {
+
+		private final String attribute;
+
+		private final Operator operator;
+
+		private final List<Operand> operands;
+
+		private Condition(String attribute, Operator operator, Operand... operands) {
+			this.attribute = attribute;
+			this.operator = operator;
+			this.operands = Arrays.asList(operands);
+		}
+
+		private Condition(String attribute, Operator operator, List<Operand> operands) {
+			this.attribute = attribute;
+			this.operator = operator;
+			this.operands = operands;
+		}
+
+		String getAttribute() {
+			return attribute;
+		}
+
+		Operator getOperator() {
+			return operator;
+		}
+
+		/**
+		 * Resolve the operands of this condition with the given parameter values
+		 */
+		Bound bind(Map<String, Object> parameters) {
+			List<Object> values = new ArrayList<Object>(operands.size());
+			for (Operand operand : operands) {
+				Object value = operand.value(parameters);
+				// a collection bound to a parameter of an IN condition contributes all its elements
+				if ((operator == Operator.In || operator == Operator.NotIn) && value instanceof Collection) {
+					values.addAll((Collection<?>) value);
+				} else {
+					values.add(value);
+				}
+			}
+			return new Bound(this, values);
+		}
+
+		@Override
+		public String toString() {
+			return attribute + " " + operator + " " + operands;
+		}
+	}
+
+	/**
+	 * A condition with resolved values
+	 */
+	static final class Bound {
+
+		private final Condition condition;
+
+		private final List<Object> values;
+
+		private final Pattern pattern;
+
+		private Bound(Condition condition, List<Object> values) {
+			this.condition = condition;
+			this.values = values;
+			this.pattern = condition.operator == Operator.Like || condition.operator == Operator.NotLike
+					? like(String.valueOf(values.get(0)))
+					: null;
+		}
+
+		String getAttribute() {
+			return condition.attribute;
+		}
+
+		Operator getOperator() {
+			return condition.operator;
+		}
+
+		Object getValue(int index) {
+			return values.get(index);
+		}
+
+		List<Object> getValues() {
+			return values;
+		}
+
+		/**
+		 * Evaluate the condition like SQL does: comparisons with null never match
+		 */
+		boolean matches(Object row, DomainClass domainClass) {
+			Object actual = domainClass.get(row, condition.attribute);
+			switch (condition.operator) {
+				case IsNull:
+					return actual == null;
+				case IsNotNull:
+					return actual != null;
+				default:
+			}
+			if (actual == null) return false;
+			switch (condition.operator) {
+				case Equal:
+					return Values.equal(actual, values.get(0));
+				case NotEqual:
+					return values.get(0) != null && !Values.equal(actual, values.get(0));
+				case Less:
+					return values.get(0) != null && Values.compare(actual, values.get(0)) < 0;
+				case LessOrEqual:
+					return values.get(0) != null && Values.compare(actual, values.get(0)) <= 0;
+				case Greater:
+					return values.get(0) != null && Values.compare(actual, values.get(0)) > 0;
+				case GreaterOrEqual:
+					return values.get(0) != null && Values.compare(actual, values.get(0)) >= 0;
+				case Between:
+					return values.get(0) != null && values.get(1) != null
+							&& Values.compare(actual, values.get(0)) >= 0 && Values.compare(actual, values.get(1)) <= 0;
+				case Like:
+					return pattern.matcher(actual.toString()).matches();
+				case NotLike:
+					return !pattern.matcher(actual.toString()).matches();
+				case In:
+					return contains(actual);
+				case NotIn:
+					return !contains(actual);
+				default:
+					throw new IllegalStateException("Unknown operator " + condition.operator);
+			}
+		}
+
+		private boolean contains(Object actual) {
+			for (Object value : values) {
+				if (Values.equal(actual, value)) return true;
+			}
+			return false;
+		}
+
+		// % matches any number of characters, _ matches exactly one character
+		private static Pattern like(String pattern) {
+			StringBuilder regex = new StringBuilder(pattern.length() + 8);
+			StringBuilder literal = new StringBuilder();
+			for (char c : pattern.toCharArray()) {
+				if (c == '%' || c == '_') {
+					if (literal.length() > 0) regex.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+					regex.append(c == '%' ? ".*" : ".");
+				} else {
+					literal.append(c);
+				}
+			}
+			if (literal.length() > 0) regex.append(Pattern.quote(literal.toString()));
+			return Pattern.compile(regex.toString(), Pattern.DOTALL);
+		}
+	}
+
+	static final class Ordering {
+
+		private final String attribute;
+
+		private final boolean ascending;
+
+		private Ordering(String attribute, boolean ascending) {
+			this.attribute = attribute;
+			this.ascending = ascending;
+		}
+
+		String getAttribute() {
+			return attribute;
+		}
+
+		boolean isAscending() {
+			return ascending;
+		}
+	}
+
+	private static final class Parser {
+
+		private final String statement;
+
+		private final List<String> tokens = new ArrayList<String>();
+
+		private int position = 0;
+
+		private String alias;
+
+		private Parser(String statement) {
+			this.statement = statement;
+			tokenize();
+		}
+
+		private void tokenize() {
+			int i = 0;
+			while (i < statement.length()) {
+				char c = statement.charAt(i);
+				if (Character.isWhitespace(c)) {
+					i++;
+				} else if (c == '\'') {
+					// string literals keep their quotes to be distinguished from identifiers, '' escapes a quote
+					StringBuilder literal = new StringBuilder("'");
+					i++;
+					while (true) {
+						if (i >= statement.length()) throw error("Unterminated string literal");
+						char next = statement.charAt(i++);
+						if (next == '\'') {
+							if (i < statement.length() && statement.charAt(i) == '\'') {
+								literal.append('\'');
+								i++;
+							} else {
+								break;
+							}
+						} else {
+							literal.append(next);
+						}
+					}
+					tokens.add(literal.toString());
+				} else if (c == '<' || c == '>' || c == '!') {
+					boolean twoChars = i + 1 < statement.length()
+							&& (statement.charAt(i + 1) == '=' || c == '<' && statement.charAt(i + 1) == '>');
+					tokens.add(statement.substring(i, twoChars ? i + 2 : i + 1));
+					i += twoChars ? 2 : 1;
+				} else if (c == '=' || c == '(' || c == ')' || c == ',') {
+					tokens.add(String.valueOf(c));
+					i++;
+				} else {
+					int start = i;
+					while (i < statement.length() && isPartOfWord(statement.charAt(i))) i++;
+					if (start == i) throw error("Unexpected character '" + c + "'");
+					tokens.add(statement.substring(start, i));
+				}
+			}
+		}
+
+		private static boolean isPartOfWord(char c) {
+			return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == ':' || c == '$' || c == '-';
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " in query: " + statement);
+		}
+
+		private String peek() {
+			return position < tokens.size() ? tokens.get(position) : null;
+		}
+
+		private boolean peekKeyword(String keyword) {
+			return keyword.equalsIgnoreCase(peek());
+		}
+
+		private String next() {
+			if (position >= tokens.size()) throw error("Unexpected end");
+			return tokens.get(position++);
+		}
+
+		private boolean accept(String keyword) {
+			if (peekKeyword(keyword)) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String keyword) {
+			String token = next();
+			if (!keyword.equalsIgnoreCase(token)) throw error("Expected " + keyword + " but found " + token);
+		}
+
+		private SelectStatement parse() {
+			expect("SELECT");
+			boolean distinct = accept("DISTINCT");
+			boolean count = false;
+			List<String> selected = new ArrayList<String>();
+			if (accept("COUNT")) {
+				expect("(");
+				distinct = accept("DISTINCT");
+				selected.add(next());
+				expect(")");
+				count = true;
+			} else {
+				selected.add(next());
+				while (accept(",")) selected.add(next());
+			}
+			expect("FROM");
+			String entityName = next();
+			accept("AS");
+			String candidate = peek();
+			if (candidate == null || isKeyword(candidate)) throw error("An identification variable is required");
+			alias = next();
+			List<String> selections = new ArrayList<String>();
+			for (String selection : selected) {
+				if (selection.equals(alias)) {
+					if (selected.size() > 1) throw error("Domain objects can not be selected along with attributes");
+				} else if (count && distinct) {
+					throw error("Counting distinct attribute values is not supported");
+				} else if (!count) {
+					selections.add(attribute(selection));
+				}
+			}
+			List<Condition> conditions = new ArrayList<Condition>();
+			if (accept("WHERE")) {
+				conditions.add(condition());
+				while (accept("AND")) conditions.add(condition());
+			}
+			List<Ordering> orderings = new ArrayList<Ordering>();
+			if (accept("ORDER")) {
+				expect("BY");
+				do {
+					String attribute = attribute(next());
+					boolean ascending = !accept("DESC");
+					if (ascending) accept("ASC");
+					orderings.add(new Ordering(attribute, ascending));
+				} while (accept(","));
+			}
+			if (peek() != null) {
+				if (peekKeyword("OR")) throw error("Disjunctions are not supported");
+				throw error("Unsupported clause " + peek());
+			}
+			return new SelectStatement(entityName, null, count, distinct, selections, conditions, orderings);
+		}
+
+		private static boolean isKeyword(String token) {
+			String upper = token.toUpperCase(Locale.ENGLISH);
+			return upper.equals("WHERE") || upper.equals("ORDER") || upper.equals("JOIN") || upper.equals("LEFT") || upper.equals("INNER");
+		}
+
+		// strips the identification variable from a path expression
+		private String attribute(String path) {
+			if (path.startsWith(alias + ".")) return path.substring(alias.length() + 1);
+			if (path.equals(alias)) throw error("Comparisons of domain objects are not supported");
+			if (path.startsWith(":") || path.startsWith("'")) throw error("Expected an attribute but found " + path);
+			return path;
+		}
+
+		private Condition condition() {
+			if (peekKeyword("(") || peekKeyword("NOT")) throw error("Nested or negated conditions are not supported");
+			String attribute = attribute(next());
+			if (accept("IS")) {
+				boolean not = accept("NOT");
+				expect("NULL");
+				return new Condition(attribute, not ? Operator.IsNotNull : Operator.IsNull);
+			}
+			boolean not = accept("NOT");
+			if (accept("LIKE")) {
+				return new Condition(attribute, not ? Operator.NotLike : Operator.Like, operand());
+			}
+			if (accept("IN")) {
+				List<Operand> operands = new ArrayList<Operand>();
+				if (accept("(")) {
+					do {
+						operands.add(operand());
+					} while (accept(","));
+					expect(")");
+				} else {
+					operands.add(operand());
+				}
+				return new Condition(attribute, not ? Operator.NotIn : Operator.In, operands);
+			}
+			if (accept("BETWEEN")) {
+				if (not) throw error("NOT BETWEEN is not supported");
+				Operand from = operand();
+				expect("AND");
+				return new Condition(attribute, Operator.Between, from, operand());
+			}
+			if (not) throw error("Expected LIKE or IN after NOT");
+			String operator = next();
+			Operator comparison;
+			if (operator.equals("=")) comparison = Operator.Equal;
+			else if (operator.equals("<>") || operator.equals("!=")) comparison = Operator.NotEqual;
+			else if (operator.equals("<")) comparison = Operator.Less;
+			else if (operator.equals("<=")) comparison = Operator.LessOrEqual;
+			else if (operator.equals(">")) comparison = Operator.Greater;
+			else if (operator.equals(">=")) comparison = Operator.GreaterOrEqual;
+			else throw error("Unsupported operator " + operator);
+			return new Condition(attribute, comparison, operand());
+		}
+
+		private Operand operand() {
+			String token = next();
+			if (token.startsWith(":")) return Operand.parameter(token.substring(1));
+			if (token.startsWith("'")) return Operand.literal(token.substring(1));
+			if (token.equalsIgnoreCase("TRUE")) return Operand.literal(Boolean.TRUE);
+			if (token.equalsIgnoreCase("FALSE")) return Operand.literal(Boolean.FALSE);
+			try {
+				if (token.endsWith("L") || token.endsWith("l")) return Operand.literal(Long.valueOf(token.substring(0, token.length() - 1)));
+				if (token.contains(".")) return Operand.literal(new BigDecimal(token));
+				return Operand.literal(Long.valueOf(token));
+			} catch (NumberFormatException e) {
+				throw error("Unsupported operand " + token);
+			}
+		}
+	}
+}
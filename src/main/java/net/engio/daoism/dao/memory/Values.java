@@ -0,0 +1,76 @@
+package net.engio.daoism.dao.memory;
+
+import java.math.BigDecimal;
+import java.util.Comparator;
+
+/**
+ * Compares attribute values and query parameters like a database would: numbers are compared by value regardless of
+ * their type (e.g. an Integer parameter matches a Long attribute) and enums may be compared to their names.
+ *
+ * @author Benjamin Diedrichsen
+ */
+final class Values {
+
+	/**
+	 * Orders values ascending with null values first
+	 */
+	static final Comparator<Object> Order = (one, other) -> {
+		if (one == null) return other == null ? 0 : -1;
+		if (other == null) return 1;
+		return compare(one, other);
+	};
+
+	private Values() {
+	}
+
+	/**
+	 * Compare two non-null values
+	 *
+	 * @throws IllegalArgumentException If the values can not be compared
+	 */
+	@SuppressWarnings("unchecked")
+	static int compare(Object one, Object other) {
+		if (one instanceof Number && other instanceof Number) {
+			return compareNumbers((Number) one, (Number) other);
+		}
+		if (one instanceof Enum && other instanceof String) {
+			return ((Enum<?>) one).name().compareTo((String) other);
+		}
+		if (one instanceof String && other instanceof Enum) {
+			return ((String) one).compareTo(((Enum<?>) other).name());
+		}
+		if (one instanceof Comparable && (one.getClass().isInstance(other) || other.getClass().isInstance(one))) {
+			return ((Comparable<Object>) one).compareTo(other);
+		}
+		throw new IllegalArgumentException("Can not compare " + one + " (" + one.getClass().getName() + ") to "
+				+ other + " (" + other.getClass().getName() + ")");
+	}
+
+	static boolean equal(Object one, Object other) {
+		if (one == null || other == null) return false;
+		if (one.equals(other)) return true;
+		return isComparable(one, other) && compare(one, other) == 0;
+	}
+
+	private static boolean isComparable(Object one, Object other) {
+		return one instanceof Number && other instanceof Number
+				|| one instanceof Enum && other instanceof String
+				|| one instanceof String && other instanceof Enum
+				|| one instanceof Comparable && (one.getClass().isInstance(other) || other.getClass().isInstance(one));
+	}
+
+	private static int compareNumbers(Number one, Number other) {
+		if (isIntegral(one) && isIntegral(other)) {
+			return Long.compare(one.longValue(), other.longValue());
+		}
+		return toDecimal(one).compareTo(toDecimal(other));
+	}
+
+	private static boolean isIntegral(Number number) {
+		return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte;
+	}
+
+	private static BigDecimal toDecimal(Number number) {
+		return number instanceof BigDecimal ? (BigDecimal) number : new BigDecimal(number.toString());
+	}
+}
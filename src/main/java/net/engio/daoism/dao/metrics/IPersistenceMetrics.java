@@ -0,0 +1,29 @@
+package net.engio.daoism.dao.metrics;
+
+import javax.management.MXBean;
+import java.util.List;
+
+/**
+ * The management interface of {@link MetricsPersistenceProvider}. It is exposed as MXBean, so it can be read
+ * with any JMX client (e.g. jconsole) without additional classes on the client side.
+ *
+ * @author Benjamin Diedrichsen
+ */
+@MXBean
+public interface IPersistenceMetrics {
+
+	/**
+	 * @return The statistics of all operations and queries that have been executed at least once
+	 */
+	List<OperationStatistics> getOperations();
+
+	/**
+	 * @return The statistics of the operations and queries with the highest 99th percentile latency, slowest first
+	 */
+	List<OperationStatistics> getSlowest(int limit);
+
+	/**
+	 * Discard all collected metrics
+	 */
+	void reset();
+}
@@ -0,0 +1,125 @@
+package net.engio.daoism.dao.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values (e.g. latencies in nanoseconds) with bounded relative error.
+ * Values are counted in log-linear buckets: Small values have one bucket each, larger values share a bucket with
+ * all values of the same magnitude that have the same four most significant bits. Thus, reported percentiles are at most
+ * 1/16 (6.25%) above the actual value, independent of the magnitude, and the memory footprint is constant.
+ *
+ * Recording a value is wait-free apart from contention on the counters. Percentiles are computed from a
+ * non-atomic view of the buckets, which is accurate enough for monitoring purposes.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class LatencyHistogram {
+
+	// number of buckets per power of two, must be a power of two itself
+	private static final int SUB_BUCKETS = 16;
+
+	private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+	// values below are counted in buckets of their own
+	private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+
+	private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	private final LongAdder sum = new LongAdder();
+
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public void record(long value) {
+		if (value < 0) value = 0;
+		buckets.incrementAndGet(index(value));
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	static int index(long value) {
+		if (value < LINEAR_LIMIT) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+		return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return The largest value that is counted in the bucket with the given index
+	 */
+	static long upperBound(int index) {
+		if (index < LINEAR_LIMIT) {
+			return index;
+		}
+		int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+		long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	/**
+	 * Take a snapshot of the recorded values
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		return new Snapshot(counts, total, sum.sum(), max.get());
+	}
+
+	public static class Snapshot {
+
+		private final long[] counts;
+
+		private final long count;
+
+		private final long sum;
+
+		private final long max;
+
+		private Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * @param percentile A value between 0 and 100
+		 * @return An upper bound of the value below which the given percentage of values fall
+		 */
+		public long getPercentile(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(upperBound(i), max);
+				}
+			}
+			return max;
+		}
+	}
+}
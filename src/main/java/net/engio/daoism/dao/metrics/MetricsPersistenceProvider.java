@@ -0,0 +1,401 @@
+package net.engio.daoism.dao.metrics;
+
+import net.engio.daoism.Persistent;
+import net.engio.daoism.dao.DelegatingPersistenceProvider;
+import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.IResultIterator;
+import net.engio.daoism.dao.IUnitOfWork;
+import net.engio.daoism.dao.query.Options.AccessPlan;
+import net.engio.daoism.dao.query.Page;
+import net.engio.daoism.dao.query.Query;
+import net.engio.daoism.dao.query.Query.TypedQuery;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * A persistence provider that records metrics for all operations of another persistence provider. Metrics are
+ * collected per operation and domain class (e.g. "findById[VServer]") and additionally per query. Named queries are
+ * measured by their name (e.g. "named[vserver-by-host]"), templates by their statement (e.g. "jpql[SELECT ...]"),
+ * projections by their domain class and all other JPQL and native queries together ("jpql" and "native"), such that
+ * queries that are assembled dynamically do not create metrics of their own.
+ * See {@link OperationStatistics} for the available metrics.
+ *
+ * About {@link #MAX_OPERATIONS} operations and queries are measured separately, the metrics of any further ones are
+ * recorded as {@value #OTHER_OPERATIONS}.
+ *
+ * Recording is lock-free and adds a few hundred nanoseconds to each operation. The collected metrics can be read
+ * using {@link #getOperations()} or, after calling {@link #registerMBean(String)}, with any JMX client.
+ *
+ * Note: The metrics of {@link #iterateAll(Class, int)} only cover the creation of the iterator but not the subsequent
+ * fetching of results.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class MetricsPersistenceProvider extends DelegatingPersistenceProvider implements IPersistenceMetrics {
+
+	public static final int MAX_OPERATIONS = 1000;
+
+	public static final String OTHER_OPERATIONS = "other";
+
+	private static final Operation Delete = new Operation("delete");
+
+	private static final Operation DeleteAll = new Operation("deleteAll");
+
+	private static final Operation BulkDelete = new Operation("bulkDelete");
+
+	private static final Operation FindAll = new Operation("findAll");
+
+	private static final Operation IterateAll = new Operation("iterateAll");
+
+	private static final Operation FindById = new Operation("findById");
+
+	private static final Operation FindByIds = new Operation("findByIds");
+
+	private static final Operation Persist = new Operation("persist");
+
+	private static final Operation PersistAll = new Operation("persistAll");
+
+	private static final Operation Upsert = new Operation("upsert");
+
+	private static final Operation UpsertAll = new Operation("upsertAll");
+
+	private static final Operation RunInTransaction = new Operation("runInTransaction");
+
+	private static final Operation Count = new Operation("count");
+
+	private static final Operation Exists = new Operation("exists");
+
+	private static final Operation Find = new Operation("find");
+
+	private static final Operation RunQuery = new Operation("runQuery");
+
+	private static final Operation RunPagedQuery = new Operation("runPagedQuery");
+
+	private static final Operation Flush = new Operation("flush");
+
+	private static final Operation Projection = new Operation("projection");
+
+	private static final ToIntFunction<Object> NoResults = result -> -1;
+
+	private static final ToIntFunction<Object> SingleResult = result -> result == null ? 0 : 1;
+
+	private static final ToIntFunction<Object> Results = result -> {
+		if (result instanceof Collection) return ((Collection<?>) result).size();
+		if (result instanceof Map) return ((Map<?, ?>) result).size();
+		if (result instanceof Page) return ((Page<?>) result).getResults().size();
+		return -1;
+	};
+
+	private volatile ConcurrentMap<String, OperationMetrics> metrics = new ConcurrentHashMap<String, OperationMetrics>();
+
+	// the names of named queries and templates by the name of the named query or the template itself
+	private final ConcurrentMap<Object, String> queryNames = new ConcurrentHashMap<Object, String>();
+
+	private ObjectName registration;
+
+	public MetricsPersistenceProvider(IPersistenceProvider delegate) {
+		super(delegate);
+	}
+
+	/**
+	 * Register this provider as MXBean with the platform MBean server
+	 *
+	 * @param name The name that distinguishes this provider from other instances
+	 * @return The object name of the registered MXBean
+	 */
+	public synchronized ObjectName registerMBean(String name) {
+		try {
+			ObjectName objectName = new ObjectName("net.engio.daoism:type=PersistenceMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			registration = objectName;
+			return objectName;
+		} catch (JMException e) {
+			throw new IllegalStateException("Could not register persistence metrics " + name, e);
+		}
+	}
+
+	public synchronized void unregisterMBean() {
+		if (registration == null) return;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(registration)) server.unregisterMBean(registration);
+			registration = null;
+		} catch (JMException e) {
+			throw new IllegalStateException("Could not unregister persistence metrics " + registration, e);
+		}
+	}
+
+	@Override
+	public List<OperationStatistics> getOperations() {
+		List<OperationStatistics> statistics = new ArrayList<OperationStatistics>(metrics.size());
+		for (OperationMetrics operation : metrics.values()) {
+			statistics.add(operation.getStatistics());
+		}
+		Collections.sort(statistics, new Comparator<OperationStatistics>() {
+			@Override
+			public int compare(OperationStatistics one, OperationStatistics other) {
+				return one.getName().compareTo(other.getName());
+			}
+		});
+		return statistics;
+	}
+
+	@Override
+	public List<OperationStatistics> getSlowest(int limit) {
+		List<OperationStatistics> statistics = getOperations();
+		Collections.sort(statistics, new Comparator<OperationStatistics>() {
+			@Override
+			public int compare(OperationStatistics one, OperationStatistics other) {
+				return Long.compare(other.getP99Micros(), one.getP99Micros());
+			}
+		});
+		return statistics.subList(0, Math.min(limit, statistics.size()));
+	}
+
+	/**
+	 * @return The statistics of the given operation or query, or null if it has not been executed
+	 */
+	public OperationStatistics getStatistics(String operation) {
+		OperationMetrics operationMetrics = metrics.get(operation);
+		return operationMetrics == null ? null : operationMetrics.getStatistics();
+	}
+
+	@Override
+	public void reset() {
+		metrics = new ConcurrentHashMap<String, OperationMetrics>();
+	}
+
+	private OperationMetrics metrics(String name) {
+		ConcurrentMap<String, OperationMetrics> current = metrics;
+		OperationMetrics operation = current.get(name);
+		if (operation == null) {
+			// one entry is left for the other operations
+			if (current.size() >= MAX_OPERATIONS - 1 && !name.equals(OTHER_OPERATIONS)) return metrics(OTHER_OPERATIONS);
+			OperationMetrics created = new OperationMetrics(name);
+			operation = current.putIfAbsent(name, created);
+			if (operation == null) operation = created;
+		}
+		return operation;
+	}
+
+	/**
+	 * Run and measure the given operation. Queries are measured as operation of their own as well.
+	 */
+	private <R> R measure(Operation operation, Class<?> domainClass, Query query, ToIntFunction<Object> results, Supplier<R> execution) {
+		OperationMetrics operationMetrics = metrics(domainClass == null ? operation.name : operation.names.get(domainClass));
+		OperationMetrics queryMetrics = query == null ? null : metrics(nameOf(query));
+		long start = System.nanoTime();
+		R result;
+		try {
+			result = execution.get();
+		} catch (RuntimeException e) {
+			long duration = System.nanoTime() - start;
+			operationMetrics.failure(duration);
+			if (queryMetrics != null) queryMetrics.failure(duration);
+			throw e;
+		} catch (Error e) {
+			long duration = System.nanoTime() - start;
+			operationMetrics.failure(duration);
+			if (queryMetrics != null) queryMetrics.failure(duration);
+			throw e;
+		}
+		long duration = System.nanoTime() - start;
+		int resultCount = results.applyAsInt(result);
+		operationMetrics.success(duration, resultCount);
+		if (queryMetrics != null) queryMetrics.success(duration, resultCount);
+		return result;
+	}
+
+	private String nameOf(Query query) {
+		switch (query.getType()) {
+			case Named:
+				return named(((Query.NamedQuery) query).getName());
+			case Jpql:
+				return "jpql";
+			case Native:
+				return query instanceof Query.BoundNativeQuery ? named(((Query.BoundNativeQuery) query).getTemplate()) : "native";
+			case Projection:
+				return Projection.names.get(((Query.ProjectionQuery) query).getDomainClass());
+			case Template:
+				return named(((Query.BoundQuery) query).getTemplate());
+			default:
+				return query.getType().toString();
+		}
+	}
+
+	// the names are created once for each named query and template, the number of both is bounded by the code that defines them
+	private String named(Object query) {
+		String name = queryNames.get(query);
+		if (name == null) {
+			if (query instanceof Query.Template) {
+				// bound templates are measured like the query they are defined with
+				Query.Template template = (Query.Template) query;
+				name = template.getKind().toString().toLowerCase() + "[" + template.getStatement() + "]";
+			} else {
+				name = "named[" + query + "]";
+			}
+			if (queryNames.size() < MAX_OPERATIONS) queryNames.putIfAbsent(query, name);
+		}
+		return name;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean delete(Class<E> domainClass, E entity) {
+		return measure(Delete, domainClass, null, NoResults, () -> super.delete(domainClass, entity));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean deleteAll(Class<E> domainClass, Collection<E> entities) {
+		return measure(DeleteAll, domainClass, null, NoResults, () -> super.deleteAll(domainClass, entities));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean bulkDelete(Class<E> domainClass, Collection<E> entities, boolean checkVersion) {
+		return measure(BulkDelete, domainClass, null, NoResults, () -> super.bulkDelete(domainClass, entities, checkVersion));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass) {
+		return measure(FindAll, domainClass, null, Results, () -> super.findAll(domainClass));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> IResultIterator<E> iterateAll(Class<E> domainClass, int fetchSize) {
+		return measure(IterateAll, domainClass, null, NoResults, () -> super.iterateAll(domainClass, fetchSize));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id) {
+		return measure(FindById, domainClass, null, SingleResult, () -> super.findById(domainClass, id));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id, AccessPlan options) {
+		return measure(FindById, domainClass, null, SingleResult, () -> super.findById(domainClass, id, options));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> Map<Serializable, E> findByIds(Class<E> domainClass, Collection<? extends Serializable> ids) {
+		return measure(FindByIds, domainClass, null, Results, () -> super.findByIds(domainClass, ids));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E persist(Class<E> domainClass, E entity) {
+		return measure(Persist, domainClass, null, NoResults, () -> super.persist(domainClass, entity));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> persistAll(Class<E> domainClass, List<E> entities) {
+		return measure(PersistAll, domainClass, null, Results, () -> super.persistAll(domainClass, entities));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> persistAll(Class<E> domainClass, List<E> entities, int batchSize) {
+		return measure(PersistAll, domainClass, null, Results, () -> super.persistAll(domainClass, entities, batchSize));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean upsert(Class<E> domainClass, E entity) {
+		return measure(Upsert, domainClass, null, NoResults, () -> super.upsert(domainClass, entity));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean upsertAll(Class<E> domainClass, Collection<E> entities) {
+		return measure(UpsertAll, domainClass, null, NoResults, () -> super.upsertAll(domainClass, entities));
+	}
+
+	@Override
+	public void runInTransaction(IUnitOfWork t) {
+		measure(RunInTransaction, null, null, NoResults, () -> {
+			super.runInTransaction(t);
+			return null;
+		});
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> long count(Class<E> domainClass) {
+		return measure(Count, domainClass, null, NoResults, () -> super.count(domainClass));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean exists(Class<E> domainClass, Serializable id) {
+		return measure(Exists, domainClass, null, NoResults, () -> super.exists(domainClass, id));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, TypedQuery query) {
+		return measure(FindAll, domainClass, query, Results, () -> super.findAll(domainClass, query));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, TypedQuery query, AccessPlan options) {
+		return measure(FindAll, domainClass, query, Results, () -> super.findAll(domainClass, query, options));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> IResultIterator<E> iterateAll(Class<E> domainClass, TypedQuery query, int fetchSize) {
+		return measure(IterateAll, domainClass, query, NoResults, () -> super.iterateAll(domainClass, query, fetchSize));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E find(Class<E> domainClass, TypedQuery query) {
+		return measure(Find, domainClass, query, SingleResult, () -> super.find(domainClass, query));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E find(Class<E> domainClass, TypedQuery query, AccessPlan options) {
+		return measure(Find, domainClass, query, SingleResult, () -> super.find(domainClass, query, options));
+	}
+
+	@Override
+	public <E> List<E> runQuery(Class<E> resultType, Query source) {
+		return measure(RunQuery, resultType, source, Results, () -> super.runQuery(resultType, source));
+	}
+
+	@Override
+	public <E> Page<E> runPagedQuery(Class<E> resultType, Query source) {
+		return measure(RunPagedQuery, resultType, source, Results, () -> super.runPagedQuery(resultType, source));
+	}
+
+	@Override
+	public void flush() {
+		measure(Flush, null, null, NoResults, () -> {
+			super.flush();
+			return null;
+		});
+	}
+
+	/**
+	 * The name of an operation and its names per domain class, which are created once for each class
+	 */
+	private static final class Operation {
+
+		private final String name;
+
+		private final ClassValue<String> names;
+
+		private Operation(String name) {
+			this.name = name;
+			this.names = new ClassValue<String>() {
+				@Override
+				protected String computeValue(Class<?> domainClass) {
+					return Operation.this.name + "[" + domainClass.getSimpleName() + "]";
+				}
+			};
+		}
+	}
+}
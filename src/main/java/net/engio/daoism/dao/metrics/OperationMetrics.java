@@ -0,0 +1,77 @@
+package net.engio.daoism.dao.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the metrics of one type of operation (or one query): the latency of each execution, the number of failed
+ * executions and the number of returned results. All counters are lock-free.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class OperationMetrics {
+
+	private final String name;
+
+	private final long started = System.nanoTime();
+
+	private final LatencyHistogram latencies = new LatencyHistogram();
+
+	private final LongAdder errors = new LongAdder();
+
+	private final LongAdder results = new LongAdder();
+
+	private final LongAccumulator maxResults = new LongAccumulator(Math::max, 0);
+
+	public OperationMetrics(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Record a successful execution
+	 *
+	 * @param nanos The duration of the execution
+	 * @param resultCount The number of results returned by the execution or a negative value if the operation does not return results
+	 */
+	public void success(long nanos, int resultCount) {
+		latencies.record(nanos);
+		if (resultCount >= 0) {
+			results.add(resultCount);
+			maxResults.accumulate(resultCount);
+		}
+	}
+
+	/**
+	 * Record a failed execution
+	 *
+	 * @param nanos The time until the execution failed
+	 */
+	public void failure(long nanos) {
+		latencies.record(nanos);
+		errors.increment();
+	}
+
+	public OperationStatistics getStatistics() {
+		LatencyHistogram.Snapshot snapshot = latencies.snapshot();
+		double seconds = Math.max(1, System.nanoTime() - started) / (double) TimeUnit.SECONDS.toNanos(1);
+		return new OperationStatistics(name,
+				snapshot.getCount(),
+				errors.sum(),
+				snapshot.getCount() / seconds,
+				micros(snapshot.getMean()),
+				micros(snapshot.getPercentile(50)),
+				micros(snapshot.getPercentile(99)),
+				micros(snapshot.getMax()),
+				results.sum(),
+				maxResults.get());
+	}
+
+	private static long micros(double nanos) {
+		return Math.round(nanos / 1000);
+	}
+}
@@ -0,0 +1,104 @@
+package net.engio.daoism.dao.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * An immutable snapshot of the {@link OperationMetrics} of one type of operation (or one query).
+ * Latencies are given in microseconds, the throughput is the average number of executions per second
+ * since the metrics have been created.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class OperationStatistics {
+
+	private final String name;
+
+	private final long count;
+
+	private final long errors;
+
+	private final double throughput;
+
+	private final long meanMicros;
+
+	private final long p50Micros;
+
+	private final long p99Micros;
+
+	private final long maxMicros;
+
+	private final long results;
+
+	private final long maxResults;
+
+	@ConstructorProperties({"name", "count", "errors", "throughput", "meanMicros", "p50Micros", "p99Micros", "maxMicros", "results", "maxResults"})
+	public OperationStatistics(String name, long count, long errors, double throughput, long meanMicros, long p50Micros,
+							   long p99Micros, long maxMicros, long results, long maxResults) {
+		this.name = name;
+		this.count = count;
+		this.errors = errors;
+		this.throughput = throughput;
+		this.meanMicros = meanMicros;
+		this.p50Micros = p50Micros;
+		this.p99Micros = p99Micros;
+		this.maxMicros = maxMicros;
+		this.results = results;
+		this.maxResults = maxResults;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The number of executions (including failed executions)
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	public double getThroughput() {
+		return throughput;
+	}
+
+	public long getMeanMicros() {
+		return meanMicros;
+	}
+
+	public long getP50Micros() {
+		return p50Micros;
+	}
+
+	public long getP99Micros() {
+		return p99Micros;
+	}
+
+	public long getMaxMicros() {
+		return maxMicros;
+	}
+
+	/**
+	 * @return The total number of results returned by all executions
+	 */
+	public long getResults() {
+		return results;
+	}
+
+	/**
+	 * @return The largest number of results returned by a single execution
+	 */
+	public long getMaxResults() {
+		return maxResults;
+	}
+
+	@Override
+	public String toString() {
+		return name + "{count=" + count + ", errors=" + errors + ", throughput=" + String.format("%.1f", throughput) + "/s"
+				+ ", mean=" + meanMicros + "us, p50=" + p50Micros + "us, p99=" + p99Micros + "us, max=" + maxMicros + "us"
+				+ ", results=" + results + ", maxResults=" + maxResults + "}";
+	}
+}
@@ -1,5 +1,10 @@
 package net.engio.daoism.dao.query;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Configures additional options that may influence query execution, e.g. a write lock etc.
  */
@@ -25,6 +30,24 @@ public class Options {
 		return Default().Lock(lockMode);
 	}
 
+	public static AccessPlan ReadOnly(){
+		return Default().ReadOnly();
+	}
+
+	public static AccessPlan Fetch(FetchPlan fetchPlan){
+		return Default().Fetch(fetchPlan);
+	}
+
+	/**
+	 * Create a new (empty) fetch plan. Fetch plans are immutable and meant to be defined once
+	 * (e.g. as constants) and reused for all access paths that need the same object graph.
+	 *
+	 * @param name The name that identifies the plan, e.g. in logs
+	 */
+	public static FetchPlan FetchPlan(String name){
+		return new FetchPlan(name, Collections.<String>emptyList());
+	}
+
 
     public static class AccessPlan{
 		
@@ -32,6 +55,10 @@ public class Options {
 		
 		private boolean refresh = false;
 
+		private boolean readOnly = false;
+
+		private FetchPlan fetchPlan;
+
 
 		public LockType getLockMode() {
 			return lockMode;
@@ -55,6 +82,96 @@ public class Options {
 		}
 
 
+		public boolean isReadOnly() {
+			return readOnly;
+		}
+
+		/**
+		 * Load domain objects that will not be modified. The persistence technology may skip
+		 * change tracking (e.g. snapshots for dirty checking) for these objects. Modifications made to
+		 * them are not guaranteed to be written to persistent storage.
+		 */
+		public AccessPlan ReadOnly() {
+			this.readOnly = true;
+			return this;
+		}
+
+
+		public FetchPlan getFetchPlan() {
+			return fetchPlan;
+		}
+
+
+		public boolean hasFetchPlan() {
+			return fetchPlan != null && !fetchPlan.getAssociations().isEmpty();
+		}
+
+		/**
+		 * Load the associations of the given fetch plan together with the domain objects
+		 */
+		public AccessPlan Fetch(FetchPlan fetchPlan) {
+			this.fetchPlan = fetchPlan;
+			return this;
+		}
+
+
+	}
+
+	/**
+	 * A fetch plan defines the associations that are loaded together with a domain object, i.e. the part of the
+	 * object graph that is needed by a specific access path. Loading them in the same round trip avoids
+	 * the separate selects that would otherwise be issued when lazy associations are accessed one by one.
+	 *
+	 * Associations of associated objects are specified using dot notation, e.g. "nics.ports".
+	 * Fetching more than one collection valued association at once can multiply the number of rows returned
+	 * and might not be supported by all persistence technologies.
+	 */
+	public static class FetchPlan{
+
+		private final String name;
+
+		private final List<String> associations;
+
+		private FetchPlan(String name, List<String> associations){
+			if(name == null) throw new IllegalArgumentException("Fetch plans must be named");
+			this.name = name;
+			this.associations = associations;
+		}
+
+		/**
+		 * Create a new fetch plan that additionally loads the given associations
+		 */
+		public FetchPlan fetch(String... associations){
+			List<String> extended = new ArrayList<String>(this.associations);
+			extended.addAll(Arrays.asList(associations));
+			return new FetchPlan(name, Collections.unmodifiableList(extended));
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		public List<String> getAssociations(){
+			return associations;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof FetchPlan)) return false;
+			FetchPlan other = (FetchPlan) o;
+			return name.equals(other.name) && associations.equals(other.associations);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * name.hashCode() + associations.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return "FetchPlan{" + name + associations + "}";
+		}
 	}
 
 }
@@ -0,0 +1,48 @@
+package net.engio.daoism.dao.query;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A page of results of a query that uses keyset pagination (see {@link Query#seek(String, String, Object)}).
+ * The continuation of a page is used to request the following page.
+ *
+ * Pages are serializable if their results are.
+ *
+ * @param <E> The type of results
+ */
+public class Page<E> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<E> results;
+
+	private final Query.Seek continuation;
+
+	public Page(List<E> results, Query.Seek continuation) {
+		this.results = results;
+		this.continuation = continuation;
+	}
+
+	public List<E> getResults() {
+		return results;
+	}
+
+	/**
+	 * Check whether more results exist after this page
+	 */
+	public boolean hasNext() {
+		return continuation != null;
+	}
+
+	/**
+	 * Get the token to request the following page with {@link Query#seek(Query.Seek)}. It is serializable and may be handed
+	 * out to clients of an API.
+	 *
+	 * @return The continuation token or null, if this page is the last page
+	 */
+	public Query.Seek getContinuation() {
+		return continuation;
+	}
+
+}
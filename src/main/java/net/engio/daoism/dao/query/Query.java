@@ -1,13 +1,20 @@
 package net.engio.daoism.dao.query;
 
+import net.engio.daoism.utils.ReflectionUtils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.BiConsumer;
 
 
 public abstract class Query{
 
 	public static enum Type{
-		Native, Named, Jpql
+		Native, Named, Jpql, Projection, Template
 	}
 
 	public static NamedQuery Named(String queryName){
@@ -22,10 +29,43 @@ public abstract class Query{
 		return new NativeQuery(queryString);
 	}
 
+	/**
+	 * Select only some attributes of the given domain class instead of the complete domain objects.
+	 * See {@link ProjectionQuery}
+	 */
+	public static ProjectionQuery Projection(Class<?> domainClass){
+		return new ProjectionQuery(domainClass);
+	}
+
+	/**
+	 * Define an immutable template for the named query with the given parameters. See {@link Template}
+	 */
+	public static Template NamedTemplate(String queryName, String... parameters){
+		return new Template(Type.Named, queryName, parameters);
+	}
+
+	/**
+	 * Define an immutable template for the given JPQL query with the given parameters. See {@link Template}
+	 */
+	public static Template JpqlTemplate(String queryString, String... parameters){
+		return new Template(Type.Jpql, queryString, parameters);
+	}
+
+	/**
+	 * Define an immutable template for the given native query with the given parameters. See {@link NativeTemplate}
+	 */
+	public static NativeTemplate NativeTemplate(String queryString, String... parameters){
+		return new NativeTemplate(new Template(Type.Native, queryString, parameters));
+	}
+
 	private int maxResults = -1;
 
 	private int firstResult = -1;
 
+	private Seek seek;
+
+	private boolean cacheable = false;
+
 	public <T extends Query> T setMaxResults(int bound){
 		maxResults = bound;
 		return (T)this;
@@ -53,11 +93,125 @@ public abstract class Query{
 		return maxResults > 0;
 	}
 
+	/**
+	 * Use keyset pagination instead of offsets to page through the results of this query. The query itself must restrict
+	 * its results to keys greater than the given parameter and order them by that key, e.g.
+	 * {@code SELECT vs FROM VServer vs WHERE vs.uuid > :LAST ORDER BY vs.uuid}. The key of the last row of a page
+	 * is read from the given property of the result objects and is bound to the parameter when the next page is requested.
+	 *
+	 * Use the result limit of the query to specify the page size.
+	 *
+	 * @param parameter The name of the parameter that holds the last seen key
+	 * @param keyProperty The property of the result objects that holds the key
+	 * @param after The key after which the requested page starts. Must precede all keys to request the first page.
+	 */
+	public Query seek(String parameter, String keyProperty, Object after){
+		return seek(new Seek(parameter, keyProperty, -1, after));
+	}
+
+	/**
+	 * Use keyset pagination for queries that return rows of values (e.g. native queries).
+	 * See {@link #seek(String, String, Object)}
+	 *
+	 * @param parameter The name of the parameter that holds the last seen key
+	 * @param keyColumn The (0-based) index of the column that holds the key
+	 * @param after The key after which the requested page starts. Must precede all keys to request the first page.
+	 */
+	public Query seek(String parameter, int keyColumn, Object after){
+		return seek(new Seek(parameter, null, keyColumn, after));
+	}
+
+	/**
+	 * Continue keyset pagination with the continuation of a previously returned page.
+	 * See {@link Page#getContinuation()}
+	 */
+	public Query seek(Seek continuation){
+		seek = continuation;
+		return this;
+	}
+
+	public boolean isSeek(){
+		return seek != null;
+	}
+
+	public Seek getSeek(){
+		return seek;
+	}
+
+	/**
+	 * Allow the results of this query to be served from the query result cache of the persistence provider (if one is configured).
+	 * Only results of queries for domain objects are cached. They are invalidated whenever a domain object of the queried
+	 * domain class is written through the same persistence provider. Cached results are unmodifiable.
+	 */
+	public Query cacheable(){
+		cacheable = true;
+		return this;
+	}
+
+	public boolean isCacheable(){
+		return cacheable;
+	}
+
 	public abstract Type getType();
 
+	/**
+	 * The definition of a keyset page: the parameter that restricts the results and the key after which the page starts.
+	 * Instances are immutable and can be handed out as continuation token.
+	 */
+	public static class Seek implements Serializable{
+
+		private static final long serialVersionUID = 1L;
+
+		private final String parameter;
+
+		private final String keyProperty;
+
+		private final int keyColumn;
+
+		private final Object after;
+
+		private Seek(String parameter, String keyProperty, int keyColumn, Object after){
+			if(parameter == null) throw new IllegalArgumentException("The seek parameter may not be null");
+			if(keyProperty == null && keyColumn < 0) throw new IllegalArgumentException("Either key property or key column must be specified");
+			this.parameter = parameter;
+			this.keyProperty = keyProperty;
+			this.keyColumn = keyColumn;
+			this.after = after;
+		}
+
+		public String getParameter(){
+			return parameter;
+		}
+
+		public Object getAfter(){
+			return after;
+		}
+
+		/**
+		 * Read the key from a result row
+		 */
+		public Object keyOf(Object row){
+			if(keyProperty != null) return ReflectionUtils.getProperty(row, keyProperty, true);
+			return row instanceof Object[] ? ((Object[])row)[keyColumn] : row;
+		}
+
+		/**
+		 * Create the seek that continues after the given key
+		 */
+		public Seek after(Object key){
+			return new Seek(parameter, keyProperty, keyColumn, key);
+		}
+
+		@Override
+		public String toString() {
+			return "Seek{" + parameter + " > " + after + "}";
+		}
+	}
+
 	public abstract static class ParametrizedQuery extends Query{
 
-		private List<QueryParameter> parameters = new LinkedList<QueryParameter>();
+		// created with the first parameter, most queries have only a few parameters
+		private List<QueryParameter> parameters;
 
 		private ParametrizedQuery(){
 
@@ -68,10 +222,21 @@ public abstract class Query{
 		}
 
 		public List<QueryParameter> getParameters(){
-			return  parameters;
+			return parameters == null ? Collections.emptyList() : parameters;
+		}
+
+		/**
+		 * Pass the name and value of each parameter of this query to the given consumer
+		 */
+		public void forEachParameter(BiConsumer<String, Object> consumer){
+			if(parameters == null) return;
+			for(QueryParameter<?> parameter : parameters){
+				consumer.accept(parameter.getKey(), parameter.getValue());
+			}
 		}
 
 		protected <T extends ParametrizedQuery> T addParameter(QueryParameter param){
+			if(parameters == null) parameters = new ArrayList<QueryParameter>(4);
 			parameters.add(param);
 			return (T) this;
 		}
@@ -95,6 +260,11 @@ public abstract class Query{
 				return (T)ParametrizedQuery.this.addParameter(this);
 			}
 
+			@Override
+			public String toString() {
+				return key + "=" + value;
+			}
+
 		}
 
 
@@ -130,11 +300,40 @@ public abstract class Query{
 			return super.setFirstResult(bound);
 		}
 
+		@Override
+		public NamedQuery cacheable(){
+			super.cacheable();
+			return this;
+		}
+
+		@Override
+		public NamedQuery seek(String parameter, String keyProperty, Object after){
+			super.seek(parameter, keyProperty, after);
+			return this;
+		}
+
+		@Override
+		public NamedQuery seek(String parameter, int keyColumn, Object after){
+			super.seek(parameter, keyColumn, after);
+			return this;
+		}
+
+		@Override
+		public NamedQuery seek(Seek continuation){
+			super.seek(continuation);
+			return this;
+		}
+
 
 		@Override
 		public Type getType() {
 			return Type.Named;
 		}
+
+		@Override
+		public String toString() {
+			return "Named{" + name + ", parameters=" + getParameters() + "}";
+		}
 	}
 
 	public static class JpqlQuery extends TypedQuery{
@@ -163,11 +362,190 @@ public abstract class Query{
 			return super.setFirstResult(bound);
 		}
 
+		@Override
+		public JpqlQuery cacheable(){
+			super.cacheable();
+			return this;
+		}
+
+		@Override
+		public JpqlQuery seek(String parameter, String keyProperty, Object after){
+			super.seek(parameter, keyProperty, after);
+			return this;
+		}
+
+		@Override
+		public JpqlQuery seek(String parameter, int keyColumn, Object after){
+			super.seek(parameter, keyColumn, after);
+			return this;
+		}
+
+		@Override
+		public JpqlQuery seek(Seek continuation){
+			super.seek(continuation);
+			return this;
+		}
+
 
 		@Override
 		public Type getType() {
 			return Type.Jpql;
 		}
+
+		@Override
+		public String toString() {
+			return "Jpql{" + query + ", parameters=" + getParameters() + "}";
+		}
+	}
+
+	/**
+	 * A query that selects a subset of the attributes of a domain class. The selected values are not
+	 * turned into (managed) domain objects but into instances of the result type that is specified when running the query:
+	 * <ul>
+	 *     <li>Object[] - one array per row, the values are ordered like the selected attributes</li>
+	 *     <li>javax.persistence.Tuple - one tuple per row, the values can be accessed by their attribute name</li>
+	 *     <li>the type of the attribute - if only one attribute is selected</li>
+	 *     <li>any other class - the values are passed to a constructor of that class that matches the selected attributes</li>
+	 * </ul>
+	 * The results are never managed by the persistence context, i.e. no snapshots are kept for dirty checking.
+	 *
+	 * Attributes of associated domain objects can be selected using dot notation, e.g. "owner.name".
+	 */
+	public static class ProjectionQuery extends ParametrizedQuery{
+
+		private final Class<?> domainClass;
+
+		private final List<String> attributes = new ArrayList<String>();
+
+		private final List<Condition> conditions = new LinkedList<Condition>();
+
+		private final List<Ordering> orderings = new LinkedList<Ordering>();
+
+		private ProjectionQuery(Class<?> domainClass){
+			if(domainClass == null) throw new IllegalArgumentException("The domain class may not be null");
+			this.domainClass = domainClass;
+		}
+
+		public ProjectionQuery select(String... attributes){
+			this.attributes.addAll(Arrays.asList(attributes));
+			return this;
+		}
+
+		/**
+		 * Restrict the results to rows where the given attribute equals the given value (or is null if the value is null)
+		 */
+		public ProjectionQuery where(String attribute, Object value){
+			if(value == null){
+				conditions.add(new Condition(attribute, null));
+				return this;
+			}
+			// conditions are bound as parameters to keep the statement reusable
+			String parameter = "condition" + conditions.size();
+			conditions.add(new Condition(attribute, parameter));
+			return new QueryParameter<ProjectionQuery>(parameter).to(value);
+		}
+
+		public ProjectionQuery orderBy(String attribute, boolean ascending){
+			orderings.add(new Ordering(attribute, ascending));
+			return this;
+		}
+
+		public Class<?> getDomainClass(){
+			return domainClass;
+		}
+
+		public List<String> getAttributes(){
+			return Collections.unmodifiableList(attributes);
+		}
+
+		public List<Condition> getConditions(){
+			return Collections.unmodifiableList(conditions);
+		}
+
+		public List<Ordering> getOrderings(){
+			return Collections.unmodifiableList(orderings);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public ProjectionQuery setMaxResults(int bound){
+			return super.setMaxResults(bound);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public ProjectionQuery setFirstResult(int bound){
+			return super.setFirstResult(bound);
+		}
+
+		@Override
+		public ProjectionQuery cacheable(){
+			super.cacheable();
+			return this;
+		}
+
+		@Override
+		public Type getType() {
+			return Type.Projection;
+		}
+
+		@Override
+		public String toString() {
+			return "Projection{" + domainClass.getSimpleName() + attributes + " where " + conditions + " order by " + orderings + ", parameters=" + getParameters() + "}";
+		}
+
+		public static class Condition{
+
+			private final String attribute;
+
+			private final String parameter;
+
+			private Condition(String attribute, String parameter){
+				this.attribute = attribute;
+				this.parameter = parameter;
+			}
+
+			public String getAttribute(){
+				return attribute;
+			}
+
+			/**
+			 * The name of the parameter that holds the value of this condition or null if the attribute must be null
+			 */
+			public String getParameter(){
+				return parameter;
+			}
+
+			@Override
+			public String toString() {
+				return parameter == null ? attribute + " is null" : attribute + " = :" + parameter;
+			}
+		}
+
+		public static class Ordering{
+
+			private final String attribute;
+
+			private final boolean ascending;
+
+			private Ordering(String attribute, boolean ascending){
+				this.attribute = attribute;
+				this.ascending = ascending;
+			}
+
+			public String getAttribute(){
+				return attribute;
+			}
+
+			public boolean isAscending(){
+				return ascending;
+			}
+
+			@Override
+			public String toString() {
+				return attribute + (ascending ? " asc" : " desc");
+			}
+		}
 	}
 
 	public static class NativeQuery extends ParametrizedQuery{
@@ -196,14 +574,305 @@ public abstract class Query{
 			return super.setFirstResult(bound);
 		}
 
+		@Override
+		public NativeQuery cacheable(){
+			super.cacheable();
+			return this;
+		}
+
+		@Override
+		public NativeQuery seek(String parameter, String keyProperty, Object after){
+			super.seek(parameter, keyProperty, after);
+			return this;
+		}
+
+		@Override
+		public NativeQuery seek(String parameter, int keyColumn, Object after){
+			super.seek(parameter, keyColumn, after);
+			return this;
+		}
+
+		@Override
+		public NativeQuery seek(Seek continuation){
+			super.seek(continuation);
+			return this;
+		}
+
 
 		@Override
 		public Type getType() {
 			return Type.Native;
 		}
+
+		@Override
+		public String toString() {
+			return "Native{" + query + ", parameters=" + getParameters() + "}";
+		}
+	}
+
+
+
+	/**
+	 * An immutable definition of a named or JPQL query and its parameters. Templates are thread-safe and meant to be
+	 * defined once (e.g. as constants) and bound to parameter values for each execution:
+	 * <pre>
+	 * static final Query.Template ByHost = Query.NamedTemplate("vserver-by-host", "HOST");
+	 * ...
+	 * dao.findAll(ByHost.bind(host));
+	 * </pre>
+	 * Binding a template only allocates the {@link BoundQuery} itself, the values are kept in the given array.
+	 * Persistence providers may use the template as key to reuse the compiled form of the query.
+	 */
+	public static final class Template{
+
+		private final Type kind;
+
+		private final String statement;
+
+		private final String[] parameters;
+
+		private final List<String> parameterList;
+
+		private Template(Type kind, String statement, String[] parameters){
+			if(statement == null) throw new IllegalArgumentException("The query of a template may not be null");
+			this.kind = kind;
+			this.statement = statement;
+			this.parameters = parameters.clone();
+			this.parameterList = Collections.unmodifiableList(Arrays.asList(this.parameters));
+		}
+
+		/**
+		 * Bind the template to the given parameter values. The values are matched to the parameters of the template
+		 * by position and are not copied, thus the array must not be modified afterwards.
+		 */
+		public BoundQuery bind(Object... values){
+			return new BoundQuery(this, checked(values));
+		}
+
+		private Object[] checked(Object[] values){
+			if(values.length != parameters.length){
+				throw new IllegalArgumentException("Expected " + parameters.length + " parameter values but got " + values.length + " for " + this);
+			}
+			return values;
+		}
+
+		/**
+		 * The type of the underlying query: Named, Jpql or Native
+		 */
+		public Type getKind(){
+			return kind;
+		}
+
+		/**
+		 * The name of the named query or the query string of JPQL and native queries
+		 */
+		public String getStatement(){
+			return statement;
+		}
+
+		public List<String> getParameters(){
+			return parameterList;
+		}
+
+		@Override
+		public String toString() {
+			return "Template{" + kind + ":" + statement + ", parameters=" + parameterList + "}";
+		}
+	}
+
+	/**
+	 * An immutable definition of a native query and its parameters, see {@link Template}. Native queries return rows of values,
+	 * thus their bound queries are not typed and need to be run as query:
+	 * <pre>
+	 * static final Query.NativeTemplate HostsOf = Query.NativeTemplate("SELECT v_host FROM VSERVER WHERE v_name = :NAME", "NAME");
+	 * ...
+	 * dao.query(String.class, HostsOf.bind(name));
+	 * </pre>
+	 */
+	public static final class NativeTemplate{
+
+		private final Template template;
+
+		private NativeTemplate(Template template){
+			this.template = template;
+		}
+
+		/**
+		 * Bind the template to the given parameter values. See {@link Template#bind(Object...)}
+		 */
+		public BoundNativeQuery bind(Object... values){
+			return new BoundNativeQuery(template, template.checked(values));
+		}
+
+		public String getStatement(){
+			return template.getStatement();
+		}
+
+		public List<String> getParameters(){
+			return template.getParameters();
+		}
+
+		@Override
+		public String toString() {
+			return template.toString();
+		}
+	}
+
+	/**
+	 * A {@link Template} bound to parameter values. Additional parameters (e.g. for keyset pagination) and result limits can be
+	 * set like on any other query, they only apply to this instance.
+	 */
+	public static class BoundQuery extends TypedQuery{
+
+		private final Template template;
+
+		private final Object[] values;
+
+		private BoundQuery(Template template, Object[] values){
+			this.template = template;
+			this.values = values;
+		}
+
+		public Template getTemplate(){
+			return template;
+		}
+
+		public Object getValue(int index){
+			return values[index];
+		}
+
+		public QueryParameter<BoundQuery> set(String key){
+			return new QueryParameter<BoundQuery>(key);
+		}
+
+		@Override
+		public void forEachParameter(BiConsumer<String, Object> consumer){
+			for(int i = 0; i < values.length; i++){
+				consumer.accept(template.parameters[i], values[i]);
+			}
+			super.forEachParameter(consumer);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public BoundQuery setMaxResults(int bound){
+			return super.setMaxResults(bound);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public BoundQuery setFirstResult(int bound){
+			return super.setFirstResult(bound);
+		}
+
+		@Override
+		public BoundQuery cacheable(){
+			super.cacheable();
+			return this;
+		}
+
+		@Override
+		public BoundQuery seek(String parameter, String keyProperty, Object after){
+			super.seek(parameter, keyProperty, after);
+			return this;
+		}
+
+		@Override
+		public BoundQuery seek(String parameter, int keyColumn, Object after){
+			super.seek(parameter, keyColumn, after);
+			return this;
+		}
+
+		@Override
+		public BoundQuery seek(Seek continuation){
+			super.seek(continuation);
+			return this;
+		}
+
+		@Override
+		public Type getType() {
+			return Type.Template;
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder parameters = new StringBuilder("[");
+			forEachParameter((key, value) -> parameters.append(parameters.length() > 1 ? ", " : "").append(key).append('=').append(value));
+			return "Template{" + template.kind + ":" + template.statement + ", parameters=" + parameters.append(']') + "}";
+		}
 	}
 
+	/**
+	 * A {@link NativeTemplate} bound to parameter values. It is run like any other native query, persistence providers
+	 * may use its template to reuse the compiled form of the query.
+	 */
+	public static class BoundNativeQuery extends NativeQuery{
+
+		private final Template template;
+
+		private final Object[] values;
+
+		private BoundNativeQuery(Template template, Object[] values){
+			super(template.getStatement());
+			this.template = template;
+			this.values = values;
+		}
+
+		public Template getTemplate(){
+			return template;
+		}
+
+		public Object getValue(int index){
+			return values[index];
+		}
+
+		@Override
+		public void forEachParameter(BiConsumer<String, Object> consumer){
+			for(int i = 0; i < values.length; i++){
+				consumer.accept(template.parameters[i], values[i]);
+			}
+			super.forEachParameter(consumer);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public BoundNativeQuery setMaxResults(int bound){
+			return (BoundNativeQuery) super.setMaxResults(bound);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public BoundNativeQuery setFirstResult(int bound){
+			return (BoundNativeQuery) super.setFirstResult(bound);
+		}
+
+		@Override
+		public BoundNativeQuery cacheable(){
+			return (BoundNativeQuery) super.cacheable();
+		}
 
+		@Override
+		public BoundNativeQuery seek(String parameter, String keyProperty, Object after){
+			return (BoundNativeQuery) super.seek(parameter, keyProperty, after);
+		}
+
+		@Override
+		public BoundNativeQuery seek(String parameter, int keyColumn, Object after){
+			return (BoundNativeQuery) super.seek(parameter, keyColumn, after);
+		}
+
+		@Override
+		public BoundNativeQuery seek(Seek continuation){
+			return (BoundNativeQuery) super.seek(continuation);
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder parameters = new StringBuilder("[");
+			forEachParameter((key, value) -> parameters.append(parameters.length() > 1 ? ", " : "").append(key).append('=').append(value));
+			return "Template{" + template.kind + ":" + template.statement + ", parameters=" + parameters.append(']') + "}";
+		}
+	}
 
 }
 
@@ -0,0 +1,97 @@
+package net.engio.daoism.dao.query;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Identifies the results of a query execution: Two keys are equal if they were created for the same query
+ * (the same name or statement) with the same parameter values, paging and result type. Parameter values
+ * are compared using their equals method. Bound {@link Query.Template}s are equal to the corresponding named, JPQL or
+ * native queries.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public final class QueryKey {
+
+	private final Class<?> resultType;
+
+	private final Query.Type type;
+
+	private final String statement;
+
+	private final Map<String, Object> parameters;
+
+	private final int firstResult;
+
+	private final int maxResults;
+
+	private final Object seekAfter;
+
+	private final int hashCode;
+
+	private QueryKey(Class<?> resultType, Query query) {
+		this.resultType = resultType;
+		this.type = query.getType() == Query.Type.Template ? ((Query.BoundQuery) query).getTemplate().getKind() : query.getType();
+		this.statement = statementOf(query);
+		this.parameters = new HashMap<String, Object>();
+		if (query instanceof Query.ParametrizedQuery) {
+			((Query.ParametrizedQuery) query).forEachParameter(parameters::put);
+		}
+		this.firstResult = query.getFirtResult();
+		this.maxResults = query.getMaxResults();
+		this.seekAfter = query.isSeek() ? query.getSeek().getAfter() : null;
+		int hash = resultType.hashCode();
+		hash = 31 * hash + type.hashCode();
+		hash = 31 * hash + statement.hashCode();
+		hash = 31 * hash + parameters.hashCode();
+		hash = 31 * hash + firstResult;
+		hash = 31 * hash + maxResults;
+		hash = 31 * hash + (seekAfter == null ? 0 : seekAfter.hashCode());
+		this.hashCode = hash;
+	}
+
+	public static QueryKey of(Class<?> resultType, Query query) {
+		return new QueryKey(resultType, query);
+	}
+
+	private static String statementOf(Query query) {
+		switch (query.getType()) {
+			case Named:
+				return ((Query.NamedQuery) query).getName();
+			case Jpql:
+				return ((Query.JpqlQuery) query).getQueryString();
+			case Native:
+				return ((Query.NativeQuery) query).getQueryString();
+			case Template:
+				return ((Query.BoundQuery) query).getTemplate().getStatement();
+			default: // projections are fully described by their attributes, conditions and orderings
+				return query.toString();
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof QueryKey)) return false;
+		QueryKey other = (QueryKey) o;
+		return hashCode == other.hashCode
+				&& resultType.equals(other.resultType)
+				&& type == other.type
+				&& statement.equals(other.statement)
+				&& parameters.equals(other.parameters)
+				&& firstResult == other.firstResult
+				&& maxResults == other.maxResults
+				&& (seekAfter == null ? other.seekAfter == null : seekAfter.equals(other.seekAfter));
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public String toString() {
+		return "QueryKey{" + type + ":" + statement + parameters + ", first=" + firstResult + ", max=" + maxResults
+				+ (seekAfter != null ? ", after=" + seekAfter : "") + "}";
+	}
+}
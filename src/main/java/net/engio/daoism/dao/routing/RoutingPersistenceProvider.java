@@ -0,0 +1,428 @@
+package net.engio.daoism.dao.routing;
+
+import net.engio.daoism.Persistent;
+import net.engio.daoism.dao.DelegatingPersistenceProvider;
+import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.IResultIterator;
+import net.engio.daoism.dao.IUnitOfWork;
+import net.engio.daoism.dao.query.LockType;
+import net.engio.daoism.dao.query.Options.AccessPlan;
+import net.engio.daoism.dao.query.Page;
+import net.engio.daoism.dao.query.Query;
+import net.engio.daoism.dao.query.Query.TypedQuery;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A persistence provider that splits reads and writes between a primary and any number of replicas, e.g. providers
+ * connected to read-only replicas of the primary database. All writes and units of work are run by the primary (the delegate).
+ * Reads are balanced across the replicas, except for the following reads which are run by the primary:
+ * <ul>
+ *     <li>reads that specify a lock or refresh</li>
+ *     <li>native queries, they may have side effects</li>
+ *     <li>reads within a unit of work that is run by this provider (read-your-writes)</li>
+ *     <li>reads of a thread within the configured stickiness after it has written through this provider (see {@link #setStickiness(long)})</li>
+ * </ul>
+ *
+ * Replicas are selected round-robin or by least latency. With least latency, the replica with the lowest product of
+ * average latency (exponentially weighted) and running reads is selected. A small share of reads is still distributed round-robin
+ * such that the latency of slower replicas is measured again after they recovered. Only successful reads are measured.
+ *
+ * If a read fails on a replica, it is run again by the primary. If it succeeds there, the replica is considered unavailable and
+ * does not get any reads for the failure backoff (see {@link #setFailureBackoff(long)}), which doubles with each consecutive
+ * failure. Reads that fail on the primary as well are considered faulty themselves, their replica is not penalised.
+ * If no replica is available, all reads are run by the primary.
+ *
+ * Note: Replicas are usually updated asynchronously. Reads outside of units of work may thus return stale domain objects.
+ * Units of work that are run on the primary directly (instead of through this provider) are not detected.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class RoutingPersistenceProvider extends DelegatingPersistenceProvider {
+
+	public static enum Balancing {
+		RoundRobin, LeastLatency
+	}
+
+	// every n-th selection is round-robin, such that latencies of all replicas stay up to date
+	private static final int PROBE_INTERVAL = 64;
+
+	// the backoff doubles with each consecutive failure of a replica up to 2^n times the configured backoff
+	private static final int MAX_BACKOFF_DOUBLINGS = 5;
+
+	private final Replica[] replicas;
+
+	private final Balancing balancing;
+
+	private final AtomicLong selections = new AtomicLong();
+
+	private final LongAdder primaryReads = new LongAdder();
+
+	// set while the calling thread runs a unit of work
+	private final ThreadLocal<Boolean> inUnitOfWork = new ThreadLocal<Boolean>();
+
+	// time of the last write of the calling thread
+	private final ThreadLocal<Long> lastWrite = new ThreadLocal<Long>();
+
+	private volatile long stickinessNanos = 0;
+
+	private volatile long failureBackoffNanos = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * @param primary The provider that runs all writes and the reads that require the primary
+	 * @param replicas The providers that run all other reads. Must not be empty
+	 */
+	public RoutingPersistenceProvider(IPersistenceProvider primary, List<? extends IPersistenceProvider> replicas, Balancing balancing) {
+		super(primary);
+		if (replicas == null || replicas.isEmpty()) {
+			throw new IllegalArgumentException("At least one replica is required");
+		}
+		this.replicas = new Replica[replicas.size()];
+		for (int i = 0; i < this.replicas.length; i++) {
+			this.replicas[i] = new Replica(replicas.get(i));
+		}
+		this.balancing = balancing;
+	}
+
+	/**
+	 * Route all reads of a thread to the primary for the given time after it has written a domain object through this provider.
+	 * This hides the replication lag from threads that read their own writes. Disabled by default.
+	 */
+	public RoutingPersistenceProvider setStickiness(long millis) {
+		this.stickinessNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+		return this;
+	}
+
+	/**
+	 * Stop routing reads to a replica for the given time after a read failed on it (default is one second).
+	 * The time doubles with each consecutive failure of the replica.
+	 */
+	public RoutingPersistenceProvider setFailureBackoff(long millis) {
+		this.failureBackoffNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+		return this;
+	}
+
+	public IPersistenceProvider getPrimary() {
+		return getDelegate();
+	}
+
+	public int getReplicaCount() {
+		return replicas.length;
+	}
+
+	/**
+	 * @return The number of reads that have been run by the primary
+	 */
+	public long getPrimaryReads() {
+		return primaryReads.sum();
+	}
+
+	/**
+	 * @return The number of reads that have been run by the replica with the given index
+	 */
+	public long getReplicaReads(int replica) {
+		return replicas[replica].reads.sum();
+	}
+
+	/**
+	 * @return The exponentially weighted average latency of the replica with the given index
+	 */
+	public long getReplicaLatencyMicros(int replica) {
+		return TimeUnit.NANOSECONDS.toMicros(replicas[replica].latency);
+	}
+
+	/**
+	 * @return The number of consecutive failed reads of the replica with the given index
+	 */
+	public int getReplicaFailures(int replica) {
+		return replicas[replica].failures.get();
+	}
+
+	/**
+	 * @return True, if the replica with the given index gets reads, i.e. it did not fail within its current backoff
+	 */
+	public boolean isReplicaAvailable(int replica) {
+		return replicas[replica].isAvailable(System.nanoTime());
+	}
+
+	private boolean requiresPrimary() {
+		if (inUnitOfWork.get() != null) {
+			return true;
+		}
+		Long written = lastWrite.get();
+		if (written == null) {
+			return false;
+		}
+		if (System.nanoTime() - written < stickinessNanos) {
+			return true;
+		}
+		lastWrite.remove();
+		return false;
+	}
+
+	private static boolean requiresPrimary(AccessPlan options) {
+		return options.isRefresh() || (options.getLockMode() != LockType.Default && options.getLockMode() != LockType.None);
+	}
+
+	private static boolean requiresPrimary(Query query) {
+		Query.Type type = query.getType();
+		if (type == Query.Type.Template) {
+			type = ((Query.BoundQuery) query).getTemplate().getKind();
+		}
+		return type == Query.Type.Native;
+	}
+
+	private <R> R read(boolean primary, Supplier<R> onPrimary, Function<IPersistenceProvider, R> onReplica) {
+		if (primary || requiresPrimary()) {
+			primaryReads.increment();
+			return onPrimary.get();
+		}
+		Replica replica = select();
+		if (replica == null) {
+			primaryReads.increment();
+			return onPrimary.get();
+		}
+		replica.running.incrementAndGet();
+		long start = System.nanoTime();
+		R result;
+		try {
+			result = onReplica.apply(replica.provider);
+		} catch (RuntimeException failure) {
+			replica.running.decrementAndGet();
+			return failover(replica, failure, onPrimary);
+		}
+		replica.record(System.nanoTime() - start);
+		return result;
+	}
+
+	/**
+	 * Run the read that failed on the given replica by the primary. The replica is penalised only if the read
+	 * succeeds on the primary, otherwise the read itself is faulty.
+	 */
+	private <R> R failover(Replica replica, RuntimeException failure, Supplier<R> onPrimary) {
+		primaryReads.increment();
+		R result;
+		try {
+			result = onPrimary.get();
+		} catch (RuntimeException e) {
+			e.addSuppressed(failure);
+			throw e;
+		}
+		replica.failed(failureBackoffNanos);
+		return result;
+	}
+
+	/**
+	 * @return The replica to run the next read or null, if no replica is available
+	 */
+	private Replica select() {
+		long now = System.nanoTime();
+		long selection = selections.getAndIncrement();
+		if (replicas.length == 1 || balancing == Balancing.RoundRobin || selection % PROBE_INTERVAL == 0) {
+			for (int i = 0; i < replicas.length; i++) {
+				Replica candidate = replicas[(int) ((selection + i) % replicas.length)];
+				if (candidate.isAvailable(now)) return candidate;
+			}
+			return null;
+		}
+		Replica selected = null;
+		double lowest = Double.MAX_VALUE;
+		for (Replica replica : replicas) {
+			if (!replica.isAvailable(now)) continue;
+			double score = (double) replica.latency * (replica.running.get() + 1);
+			if (selected == null || score < lowest) {
+				lowest = score;
+				selected = replica;
+			}
+		}
+		return selected;
+	}
+
+	private <R> R write(Supplier<R> write) {
+		try {
+			return write.get();
+		} finally {
+			if (stickinessNanos > 0) lastWrite.set(System.nanoTime());
+		}
+	}
+
+	@Override
+	public void runInTransaction(IUnitOfWork t) {
+		if (inUnitOfWork.get() != null) {
+			super.runInTransaction(t);
+			return;
+		}
+		inUnitOfWork.set(Boolean.TRUE);
+		try {
+			write(() -> {
+				RoutingPersistenceProvider.super.runInTransaction(t);
+				return null;
+			});
+		} finally {
+			inUnitOfWork.remove();
+		}
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean delete(Class<E> domainClass, E entity) {
+		return write(() -> super.delete(domainClass, entity));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean deleteAll(Class<E> domainClass, Collection<E> entities) {
+		return write(() -> super.deleteAll(domainClass, entities));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean bulkDelete(Class<E> domainClass, Collection<E> entities, boolean checkVersion) {
+		return write(() -> super.bulkDelete(domainClass, entities, checkVersion));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E persist(Class<E> domainClass, E entity) {
+		return write(() -> super.persist(domainClass, entity));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> persistAll(Class<E> domainClass, List<E> entities) {
+		return write(() -> super.persistAll(domainClass, entities));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> persistAll(Class<E> domainClass, List<E> entities, int batchSize) {
+		return write(() -> super.persistAll(domainClass, entities, batchSize));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean upsert(Class<E> domainClass, E entity) {
+		return write(() -> super.upsert(domainClass, entity));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean upsertAll(Class<E> domainClass, Collection<E> entities) {
+		return write(() -> super.upsertAll(domainClass, entities));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass) {
+		return read(false, () -> super.findAll(domainClass), replica -> replica.findAll(domainClass));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> IResultIterator<E> iterateAll(Class<E> domainClass, int fetchSize) {
+		return read(false, () -> super.iterateAll(domainClass, fetchSize), replica -> replica.iterateAll(domainClass, fetchSize));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id) {
+		return read(false, () -> super.findById(domainClass, id), replica -> replica.findById(domainClass, id));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id, AccessPlan options) {
+		return read(requiresPrimary(options), () -> super.findById(domainClass, id, options), replica -> replica.findById(domainClass, id, options));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> Map<Serializable, E> findByIds(Class<E> domainClass, Collection<? extends Serializable> ids) {
+		return read(false, () -> super.findByIds(domainClass, ids), replica -> replica.findByIds(domainClass, ids));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> long count(Class<E> domainClass) {
+		return read(false, () -> super.count(domainClass), replica -> replica.count(domainClass));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean exists(Class<E> domainClass, Serializable id) {
+		return read(false, () -> super.exists(domainClass, id), replica -> replica.exists(domainClass, id));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, TypedQuery query) {
+		return read(requiresPrimary(query), () -> super.findAll(domainClass, query), replica -> replica.findAll(domainClass, query));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, TypedQuery query, AccessPlan options) {
+		return read(requiresPrimary(query) || requiresPrimary(options), () -> super.findAll(domainClass, query, options),
+				replica -> replica.findAll(domainClass, query, options));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> IResultIterator<E> iterateAll(Class<E> domainClass, TypedQuery query, int fetchSize) {
+		return read(requiresPrimary(query), () -> super.iterateAll(domainClass, query, fetchSize), replica -> replica.iterateAll(domainClass, query, fetchSize));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E find(Class<E> domainClass, TypedQuery query) {
+		return read(requiresPrimary(query), () -> super.find(domainClass, query), replica -> replica.find(domainClass, query));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E find(Class<E> domainClass, TypedQuery query, AccessPlan options) {
+		return read(requiresPrimary(query) || requiresPrimary(options), () -> super.find(domainClass, query, options),
+				replica -> replica.find(domainClass, query, options));
+	}
+
+	@Override
+	public <E> List<E> runQuery(Class<E> resultType, Query source) {
+		return read(requiresPrimary(source), () -> super.runQuery(resultType, source), replica -> replica.runQuery(resultType, source));
+	}
+
+	@Override
+	public <E> Page<E> runPagedQuery(Class<E> resultType, Query source) {
+		return read(requiresPrimary(source), () -> super.runPagedQuery(resultType, source), replica -> replica.runPagedQuery(resultType, source));
+	}
+
+	private static class Replica {
+
+		// weight of a new sample in the average latency
+		private static final int SMOOTHING = 8;
+
+		private final IPersistenceProvider provider;
+
+		private final LongAdder reads = new LongAdder();
+
+		private final AtomicLong running = new AtomicLong();
+
+		// updates might get lost under contention, which does not matter for balancing
+		private volatile long latency = 0;
+
+		private final AtomicInteger failures = new AtomicInteger();
+
+		// the replica does not get reads before this time
+		private volatile long unavailableUntil;
+
+		private Replica(IPersistenceProvider provider) {
+			this.provider = provider;
+			this.unavailableUntil = System.nanoTime();
+		}
+
+		private boolean isAvailable(long now) {
+			return now - unavailableUntil >= 0;
+		}
+
+		private void record(long nanos) {
+			running.decrementAndGet();
+			reads.increment();
+			failures.set(0);
+			long current = latency;
+			latency = current == 0 ? nanos : current + (nanos - current) / SMOOTHING;
+		}
+
+		private void failed(long backoffNanos) {
+			int consecutive = failures.incrementAndGet();
+			unavailableUntil = System.nanoTime() + (backoffNanos << Math.min(consecutive - 1, MAX_BACKOFF_DOUBLINGS));
+		}
+	}
+}
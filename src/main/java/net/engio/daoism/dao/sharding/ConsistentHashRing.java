@@ -0,0 +1,109 @@
+package net.engio.daoism.dao.sharding;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps keys to nodes by consistent hashing. Each node is placed on a ring of 64 bit hash values at a number of
+ * positions (virtual nodes) derived from its name. A key is mapped to the first node at or after the hash of the key.
+ * Since the positions of a node only depend on its name, adding or removing a node only moves the keys between that node
+ * and its neighbours on the ring, roughly 1/n of all keys. The virtual nodes spread the keys evenly across the nodes.
+ *
+ * Instances are immutable and thus thread-safe.
+ *
+ * @author Benjamin Diedrichsen
+ *
+ * @param <N> The type of nodes
+ */
+public class ConsistentHashRing<N> {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	// the positions of all virtual nodes in ascending order and the node at each position
+	private final long[] positions;
+
+	private final Object[] nodes;
+
+	/**
+	 * @param nodes The nodes by their names. Names must be stable, they determine the positions of the nodes on the ring
+	 * @param virtualNodes The number of positions of each node on the ring
+	 */
+	public ConsistentHashRing(Map<String, N> nodes, int virtualNodes) {
+		if (nodes == null || nodes.isEmpty()) {
+			throw new IllegalArgumentException("At least one node is required");
+		}
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("At least one virtual node per node is required but was " + virtualNodes);
+		}
+		List<Position> ring = new ArrayList<Position>(nodes.size() * virtualNodes);
+		for (Map.Entry<String, N> node : nodes.entrySet()) {
+			for (int i = 0; i < virtualNodes; i++) {
+				ring.add(new Position(hash(node.getKey() + "#" + i), node.getKey(), node.getValue()));
+			}
+		}
+		Collections.sort(ring);
+		this.positions = new long[ring.size()];
+		this.nodes = new Object[ring.size()];
+		for (int i = 0; i < ring.size(); i++) {
+			positions[i] = ring.get(i).hash;
+			this.nodes[i] = ring.get(i).node;
+		}
+	}
+
+	/**
+	 * @return The node that is responsible for the given key
+	 */
+	@SuppressWarnings("unchecked")
+	public N locate(Object key) {
+		long hash = hash(String.valueOf(key));
+		int index = Arrays.binarySearch(positions, hash);
+		if (index < 0) index = -index - 1;
+		return (N) nodes[index == positions.length ? 0 : index];
+	}
+
+	/**
+	 * 64 bit FNV-1a of the UTF-8 bytes, followed by the finalizer of MurmurHash3 to spread similar keys
+	 * (e.g. sequential ids) across the whole ring
+	 */
+	static long hash(String key) {
+		long hash = FNV_OFFSET;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= FNV_PRIME;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	private static class Position implements Comparable<Position> {
+
+		private final long hash;
+
+		private final String name;
+
+		private final Object node;
+
+		private Position(long hash, String name, Object node) {
+			this.hash = hash;
+			this.name = name;
+			this.node = node;
+		}
+
+		// positions of different nodes with the same hash are ordered by name to keep the ring deterministic
+		@Override
+		public int compareTo(Position other) {
+			int byHash = Long.compare(hash, other.hash);
+			return byHash != 0 ? byHash : name.compareTo(other.name);
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package net.engio.daoism.dao.sharding;
+
+import net.engio.daoism.dao.IUnitOfWork;
+
+import java.io.Serializable;
+
+/**
+ * A unit of work that operates on the domain objects of a single shard. It is run in a transaction of the shard that is
+ * responsible for its shard key (see {@link ShardedPersistenceProvider#runInTransaction(net.engio.daoism.dao.IUnitOfWork)}).
+ *
+ * @author Benjamin Diedrichsen
+ */
+public interface IShardedUnitOfWork extends IUnitOfWork {
+
+	/**
+	 * @return The primary key that selects the shard, usually the primary key of the domain object the unit of work is about
+	 */
+	Serializable getShardKey();
+
+}
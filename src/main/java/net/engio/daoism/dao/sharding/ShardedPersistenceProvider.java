@@ -0,0 +1,717 @@
+package net.engio.daoism.dao.sharding;
+
+import net.engio.daoism.Persistent;
+import net.engio.daoism.dao.IExecutionScope;
+import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.IResultIterator;
+import net.engio.daoism.dao.IUnitOfWork;
+import net.engio.daoism.dao.ListResultIterator;
+import net.engio.daoism.dao.jpa.ThreadScopedPersistenceProvider;
+import net.engio.daoism.dao.query.Options;
+import net.engio.daoism.dao.query.Options.AccessPlan;
+import net.engio.daoism.dao.query.Page;
+import net.engio.daoism.dao.query.Query;
+import net.engio.daoism.dao.query.Query.TypedQuery;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.NonUniqueResultException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A persistence provider that partitions the domain objects across several shards, each of them a persistence provider
+ * connected to a database of its own. Domain objects are assigned to shards by consistent hashing of their primary key
+ * (see {@link ConsistentHashRing}), thus the primary key must be assigned by the application before a domain object is persisted.
+ *
+ * Operations on single domain objects are routed to the responsible shard and run on the calling thread. Batch operations
+ * (e.g. {@link #persistAll(Class, java.util.List)}) are split per shard and reads that can not be routed by primary key
+ * (e.g. {@link #findAll(Class, TypedQuery)} or {@link #count(Class)}) are run on all shards. The shards are processed concurrently,
+ * one of them on the calling thread and all others by the given executor. If a shard is an {@link IExecutionScope}
+ * (e.g. a {@link ThreadScopedPersistenceProvider}), a scope is begun for each of its operations.
+ *
+ * The results of queries are merged as follows:
+ * <ul>
+ *     <li>Queries that use keyset pagination are merged in the order of their keys. Use {@link #findAll(Class, TypedQuery, Comparator)}
+ *     or {@link #runQuery(Class, Query, Comparator)} to merge the results of other ordered queries.</li>
+ *     <li>Results of unordered queries are concatenated in the order of the shards. The order of a query (e.g. ORDER BY)
+ *     is only kept across shards if it is passed as a comparator.</li>
+ *     <li>First result and result limit are applied to the merged results. Each shard is queried for the first
+ *     (first result + result limit) results. Queries with a first result or result limit need a seek or a comparator,
+ *     otherwise the merged results would be an arbitrary selection of the results of all shards.</li>
+ *     <li>A single result is expected from at most one shard. Otherwise a {@link NonUniqueResultException} is thrown.</li>
+ * </ul>
+ * Results of aggregate queries (e.g. SELECT COUNT(...)) can not be merged, the results of all shards are returned.
+ *
+ * Note: Batch operations are not atomic across shards. If a shard fails, the changes of the other shards have been
+ * written nonetheless. Units of work are run by a single shard, thus they need to identify it (see {@link IShardedUnitOfWork}).
+ * Queries are modified while they are executed and must not be shared by concurrent threads.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class ShardedPersistenceProvider implements IPersistenceProvider, AutoCloseable {
+
+	public static final int DefaultVirtualNodes = 128;
+
+	private final List<Shard> shards;
+
+	private final ConsistentHashRing<Shard> ring;
+
+	private final Executor executor;
+
+	// the providers that have been created for the shards, they are closed with this provider
+	private final List<ThreadScopedPersistenceProvider> owned = new ArrayList<ThreadScopedPersistenceProvider>();
+
+	/**
+	 * @param shards The persistence providers of the shards by name. The names determine the assignment of domain
+	 *               objects to shards and must not be changed.
+	 * @param executor The executor that processes the shards of batch operations and scatter-gather reads
+	 */
+	public ShardedPersistenceProvider(Map<String, ? extends IPersistenceProvider> shards, Executor executor) {
+		this(shards, executor, DefaultVirtualNodes);
+	}
+
+	/**
+	 * @param virtualNodes The number of positions of each shard on the hash ring
+	 */
+	public ShardedPersistenceProvider(Map<String, ? extends IPersistenceProvider> shards, Executor executor, int virtualNodes) {
+		if (shards == null || shards.isEmpty() || executor == null) {
+			throw new IllegalArgumentException("At least one shard and an executor are required");
+		}
+		Map<String, Shard> byName = new LinkedHashMap<String, Shard>();
+		for (Map.Entry<String, ? extends IPersistenceProvider> shard : shards.entrySet()) {
+			if (shard.getValue() == null) {
+				throw new IllegalArgumentException("The persistence provider of shard " + shard.getKey() + " may not be null");
+			}
+			byName.put(shard.getKey(), new Shard(shard.getKey(), shard.getValue()));
+		}
+		this.shards = Collections.unmodifiableList(new ArrayList<Shard>(byName.values()));
+		this.ring = new ConsistentHashRing<Shard>(byName, virtualNodes);
+		this.executor = executor;
+	}
+
+	/**
+	 * Create a sharded provider with a {@link ThreadScopedPersistenceProvider} for each of the given entity manager factories.
+	 * Each of them keeps at most as many idle entity managers as there are processors, no matter how many threads the executor
+	 * runs. They are closed when the sharded provider is closed.
+	 *
+	 * @param factories The entity manager factories of the shards by name
+	 */
+	public static ShardedPersistenceProvider forFactories(Map<String, EntityManagerFactory> factories, Executor executor) {
+		Map<String, ThreadScopedPersistenceProvider> shards = new LinkedHashMap<String, ThreadScopedPersistenceProvider>();
+		for (Map.Entry<String, EntityManagerFactory> factory : factories.entrySet()) {
+			shards.put(factory.getKey(), new ThreadScopedPersistenceProvider(factory.getValue()));
+		}
+		ShardedPersistenceProvider sharded = new ShardedPersistenceProvider(shards, executor);
+		sharded.owned.addAll(shards.values());
+		return sharded;
+	}
+
+	/**
+	 * Close the shard providers that have been created by {@link #forFactories(Map, Executor)}. Providers that have been
+	 * passed to the constructor are not closed.
+	 */
+	@Override
+	public void close() {
+		for (ThreadScopedPersistenceProvider provider : owned) {
+			provider.close();
+		}
+	}
+
+	public int getShardCount() {
+		return shards.size();
+	}
+
+	public IPersistenceProvider getShard(int index) {
+		return shards.get(index).provider;
+	}
+
+	/**
+	 * @return The persistence provider of the shard that is responsible for the given primary key
+	 */
+	public IPersistenceProvider getShardOf(Serializable id) {
+		return shardOf(id).provider;
+	}
+
+	private Shard shardOf(Serializable id) {
+		if (id == null) {
+			throw new IllegalArgumentException("Domain objects need a primary key to be assigned to a shard");
+		}
+		return ring.locate(id);
+	}
+
+	private Shard shardOf(Persistent<? extends Serializable> entity) {
+		return shardOf(entity.getId());
+	}
+
+	// split the given domain objects by shard, keeping their order
+	private <E extends Persistent<? extends Serializable>> Map<Shard, List<E>> partition(Collection<E> entities) {
+		Map<Shard, List<E>> partitions = new LinkedHashMap<Shard, List<E>>();
+		for (E entity : entities) {
+			Shard shard = shardOf(entity);
+			List<E> partition = partitions.get(shard);
+			if (partition == null) {
+				partition = new ArrayList<E>();
+				partitions.put(shard, partition);
+			}
+			partition.add(entity);
+		}
+		return partitions;
+	}
+
+	/**
+	 * Run the operation on all given shards concurrently and return their results in the order of the shards. The first shard
+	 * is processed by the calling thread.
+	 */
+	private <R> List<R> scatter(Collection<Shard> targets, Function<Shard, R> operation) {
+		if (targets.size() == 1) {
+			Shard shard = targets.iterator().next();
+			return Collections.singletonList(shard.run(() -> operation.apply(shard)));
+		}
+		List<CompletableFuture<R>> pending = new ArrayList<CompletableFuture<R>>(targets.size());
+		Shard local = null;
+		for (final Shard shard : targets) {
+			if (local == null) {
+				local = shard;
+				pending.add(null);
+			} else {
+				pending.add(CompletableFuture.supplyAsync(() -> shard.run(() -> operation.apply(shard)), executor));
+			}
+		}
+		final Shard first = local;
+		R localResult;
+		try {
+			localResult = first.run(() -> operation.apply(first));
+		} catch (RuntimeException e) {
+			// wait for the other shards, their changes must not overlap with a retry of the caller
+			CompletableFuture.allOf(pending.subList(1, pending.size()).toArray(new CompletableFuture<?>[0])).exceptionally(f -> null).join();
+			throw e;
+		}
+		List<R> results = new ArrayList<R>(targets.size());
+		results.add(localResult);
+		RuntimeException failure = null;
+		for (CompletableFuture<R> result : pending.subList(1, pending.size())) {
+			try {
+				results.add(join(result));
+			} catch (RuntimeException e) {
+				if (failure == null) failure = e;
+			}
+		}
+		if (failure != null) throw failure;
+		return results;
+	}
+
+	private <R> List<R> scatter(Function<IPersistenceProvider, R> operation) {
+		return scatter(shards, shard -> operation.apply(shard.provider));
+	}
+
+	private static <R> R join(CompletableFuture<R> running) {
+		try {
+			return running.join();
+		} catch (CompletionException e) {
+			// rethrow the original exception of the shard
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error) throw (Error) e.getCause();
+			throw e;
+		}
+	}
+
+	private static boolean all(List<Boolean> results) {
+		for (Boolean result : results) {
+			if (!result) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Run the query on all shards and merge the results. First result and result limit of the query are applied to the
+	 * merged results.
+	 *
+	 * @throws IllegalArgumentException If the query has a first result or result limit but neither a seek nor an order is given
+	 */
+	private <R> List<R> scatterQuery(Query query, Comparator<? super R> order, Function<IPersistenceProvider, List<R>> read) {
+		Comparator<? super R> mergeOrder = order == null ? keyOrder(query) : order;
+		if (mergeOrder == null && (query.hasResultLimit() || query.isFirstResultSet())) {
+			throw new IllegalArgumentException("Results of all shards can only be limited in a defined order, use keyset pagination"
+					+ " or pass the order of the query as a comparator: " + query);
+		}
+		if (shards.size() == 1) {
+			return shards.get(0).run(() -> read.apply(shards.get(0).provider));
+		}
+		int firstResult = query.getFirtResult();
+		int maxResults = query.getMaxResults();
+		int skip = query.isFirstResultSet() ? firstResult : 0;
+		query.setFirstResult(-1);
+		if (query.hasResultLimit()) {
+			query.setMaxResults((int) Math.min(Integer.MAX_VALUE, (long) skip + maxResults));
+		}
+		List<List<R>> results;
+		try {
+			results = scatter(read);
+		} finally {
+			query.setFirstResult(firstResult);
+			query.setMaxResults(maxResults);
+		}
+		List<R> merged = merge(results, mergeOrder);
+		int end = query.hasResultLimit() ? (int) Math.min(merged.size(), (long) skip + maxResults) : merged.size();
+		return skip >= end ? new ArrayList<R>() : new ArrayList<R>(merged.subList(skip, end));
+	}
+
+	private static <R> List<R> merge(List<List<R>> results, Comparator<? super R> order) {
+		int size = 0;
+		for (List<R> result : results) {
+			size += result.size();
+		}
+		List<R> merged = new ArrayList<R>(size);
+		for (List<R> result : results) {
+			merged.addAll(result);
+		}
+		// the results of each shard are ordered already, the stable sort detects these runs and merges them in O(n log k) for k shards
+		if (order != null) Collections.sort(merged, order);
+		return merged;
+	}
+
+	// orders the results of a keyset query by their keys
+	private static Comparator<Object> keyOrder(Query query) {
+		if (!query.isSeek()) return null;
+		final Query.Seek seek = query.getSeek();
+		return (one, other) -> compareKeys(seek.keyOf(one), seek.keyOf(other));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int compareKeys(Object one, Object other) {
+		if (one == null) return other == null ? 0 : -1;
+		if (other == null) return 1;
+		return ((Comparable<Object>) one).compareTo(other);
+	}
+
+	private static <E> E single(List<E> results, Object query) {
+		E found = null;
+		for (E result : results) {
+			if (result == null) continue;
+			if (found != null) {
+				throw new NonUniqueResultException("More than one shard returned a result for query " + query);
+			}
+			found = result;
+		}
+		return found;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean delete(Class<E> domainClass, E entity) {
+		Shard shard = shardOf(entity);
+		return shard.run(() -> shard.provider.delete(domainClass, entity));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean deleteAll(Class<E> domainClass, Collection<E> entities) {
+		Map<Shard, List<E>> partitions = partition(entities);
+		if (partitions.isEmpty()) return true;
+		return all(scatter(partitions.keySet(), shard -> shard.provider.deleteAll(domainClass, partitions.get(shard))));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean bulkDelete(Class<E> domainClass, Collection<E> entities, boolean checkVersion) {
+		Map<Shard, List<E>> partitions = partition(entities);
+		if (partitions.isEmpty()) return true;
+		return all(scatter(partitions.keySet(), shard -> shard.provider.bulkDelete(domainClass, partitions.get(shard), checkVersion)));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass) {
+		return merge(scatter(provider -> provider.findAll(domainClass)), null);
+	}
+
+	/**
+	 * Iterates over the domain objects shard by shard. The iterator must be used and closed by the calling thread.
+	 */
+	@Override
+	public <E extends Persistent<? extends Serializable>> IResultIterator<E> iterateAll(Class<E> domainClass, int fetchSize) {
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("Fetch size must be greater than zero but was " + fetchSize);
+		}
+		return new ShardIterator<E>(provider -> provider.iterateAll(domainClass, fetchSize));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id) {
+		return findById(domainClass, id, Options.Default());
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id, AccessPlan options) {
+		if (id == null) return null;
+		Shard shard = shardOf(id);
+		return shard.run(() -> shard.provider.findById(domainClass, id, options));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> Map<Serializable, E> findByIds(Class<E> domainClass, Collection<? extends Serializable> ids) {
+		Map<Shard, List<Serializable>> partitions = new LinkedHashMap<Shard, List<Serializable>>();
+		for (Serializable id : ids) {
+			if (id == null) continue;
+			Shard shard = shardOf(id);
+			List<Serializable> partition = partitions.get(shard);
+			if (partition == null) {
+				partition = new ArrayList<Serializable>();
+				partitions.put(shard, partition);
+			}
+			partition.add(id);
+		}
+		Map<Serializable, E> found = new LinkedHashMap<Serializable, E>();
+		if (partitions.isEmpty()) return found;
+		Map<Serializable, E> byId = new HashMap<Serializable, E>();
+		for (Map<Serializable, E> result : scatter(partitions.keySet(), shard -> shard.provider.findByIds(domainClass, partitions.get(shard)))) {
+			byId.putAll(result);
+		}
+		// iterate in the order of the given primary keys
+		for (Serializable id : ids) {
+			E entity = id == null ? null : byId.get(id);
+			if (entity != null && !found.containsKey(id)) found.put(id, entity);
+		}
+		return found;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E persist(Class<E> domainClass, E entity) {
+		Shard shard = shardOf(entity);
+		return shard.run(() -> shard.provider.persist(domainClass, entity));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> persistAll(Class<E> domainClass, List<E> entities) {
+		return persistAll(entities, (provider, partition) -> provider.persistAll(domainClass, partition));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> persistAll(Class<E> domainClass, List<E> entities, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be greater than zero but was " + batchSize);
+		}
+		return persistAll(entities, (provider, partition) -> provider.persistAll(domainClass, partition, batchSize));
+	}
+
+	// returns the persisted objects in the order of the given objects
+	private <E extends Persistent<? extends Serializable>> List<E> persistAll(List<E> entities,
+			BiFunction<IPersistenceProvider, List<E>, List<E>> persist) {
+		Map<Shard, List<E>> partitions = partition(entities);
+		if (partitions.isEmpty()) return new ArrayList<E>();
+		List<Shard> targets = new ArrayList<Shard>(partitions.keySet());
+		List<List<E>> results = scatter(targets, shard -> persist.apply(shard.provider, partitions.get(shard)));
+		Map<Shard, Integer> positions = new HashMap<Shard, Integer>();
+		List<E> persisted = new ArrayList<E>(entities.size());
+		for (E entity : entities) {
+			Shard shard = shardOf(entity);
+			List<E> result = results.get(targets.indexOf(shard));
+			Integer position = positions.get(shard);
+			position = position == null ? 0 : position;
+			if (position < result.size()) persisted.add(result.get(position));
+			positions.put(shard, position + 1);
+		}
+		return persisted;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean upsert(Class<E> domainClass, E entity) {
+		if (entity.getId() == null) return false;
+		Shard shard = shardOf(entity);
+		return shard.run(() -> shard.provider.upsert(domainClass, entity));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean upsertAll(Class<E> domainClass, Collection<E> entities) {
+		List<E> identified = new ArrayList<E>(entities.size());
+		for (E entity : entities) {
+			if (entity.getId() != null) identified.add(entity);
+		}
+		Map<Shard, List<E>> partitions = partition(identified);
+		boolean written = partitions.isEmpty()
+				|| all(scatter(partitions.keySet(), shard -> shard.provider.upsertAll(domainClass, partitions.get(shard))));
+		return written && identified.size() == entities.size();
+	}
+
+	/**
+	 * Run the unit of work in a transaction of the shard that is responsible for its shard key (see {@link IShardedUnitOfWork}).
+	 * Units of work can not span multiple shards, thus other units of work are only accepted if there is a single shard.
+	 *
+	 * @throws IllegalArgumentException If the unit of work does not identify its shard and more than one shard is configured
+	 */
+	@Override
+	public void runInTransaction(IUnitOfWork unit) {
+		if (unit instanceof IShardedUnitOfWork) {
+			runInTransaction(((IShardedUnitOfWork) unit).getShardKey(), unit);
+			return;
+		}
+		if (shards.size() > 1) {
+			throw new IllegalArgumentException("Units of work can not span " + shards.size() + " shards, implement "
+					+ IShardedUnitOfWork.class.getSimpleName() + " to select the shard of a primary key: " + unit);
+		}
+		runInTransaction(shards.get(0), unit);
+	}
+
+	/**
+	 * Only units of work that identify their shard can be run if there is more than one shard
+	 */
+	@Override
+	public boolean supportsUnitsOfWork() {
+		return shards.size() == 1;
+	}
+
+	/**
+	 * A transaction is active if the calling thread runs within a transaction of any shard
+	 */
+	@Override
+	public boolean isTransactionActive() {
+		for (Shard shard : shards) {
+			if (shard.provider.isTransactionActive()) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Run the unit of work in a transaction of the shard that is responsible for the given primary key. Only operations on domain
+	 * objects of that shard are part of the transaction. Operations that involve other shards are run in transactions of their own.
+	 *
+	 * @param id The primary key that selects the shard
+	 * @param unit The unit of work that will be run in a transaction
+	 */
+	public void runInTransaction(Serializable id, IUnitOfWork unit) {
+		runInTransaction(shardOf(id), unit);
+	}
+
+	private void runInTransaction(Shard shard, IUnitOfWork unit) {
+		shard.run(() -> {
+			shard.provider.runInTransaction(unit);
+			return null;
+		});
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> long count(Class<E> domainClass) {
+		long count = 0;
+		for (Long shardCount : scatter(provider -> provider.count(domainClass))) {
+			count += shardCount;
+		}
+		return count;
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> boolean exists(Class<E> domainClass, Serializable id) {
+		if (id == null) return false;
+		Shard shard = shardOf(id);
+		return shard.run(() -> shard.provider.exists(domainClass, id));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, TypedQuery query) {
+		return findAll(domainClass, query, Options.Default());
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, TypedQuery query, AccessPlan options) {
+		return scatterQuery(query, null, provider -> provider.findAll(domainClass, query, options));
+	}
+
+	/**
+	 * Execute an ordered query on all shards and merge the results in the given order
+	 *
+	 * @param order The order that is specified by the query (e.g. ORDER BY)
+	 */
+	public <E extends Persistent<? extends Serializable>> List<E> findAll(Class<E> domainClass, TypedQuery query, Comparator<? super E> order) {
+		return scatterQuery(query, order, provider -> provider.findAll(domainClass, query));
+	}
+
+	/**
+	 * Iterates over the results of the query shard by shard, unless the query has a result limit. Limited results are merged
+	 * like with {@link #findAll(Class, TypedQuery)}, thus they need a seek. The iterator must be used and closed by the calling thread.
+	 */
+	@Override
+	public <E extends Persistent<? extends Serializable>> IResultIterator<E> iterateAll(Class<E> domainClass, TypedQuery query, int fetchSize) {
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("Fetch size must be greater than zero but was " + fetchSize);
+		}
+		if (shards.size() > 1 && (query.hasResultLimit() || query.isFirstResultSet())) {
+			return new ListResultIterator<E>(findAll(domainClass, query));
+		}
+		return new ShardIterator<E>(provider -> provider.iterateAll(domainClass, query, fetchSize));
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E find(Class<E> domainClass, TypedQuery query) {
+		return single(scatter(provider -> provider.find(domainClass, query)), query);
+	}
+
+	@Override
+	public <E extends Persistent<? extends Serializable>> E find(Class<E> domainClass, TypedQuery query, AccessPlan options) {
+		return single(scatter(provider -> provider.find(domainClass, query, options)), query);
+	}
+
+	@Override
+	public <E> List<E> runQuery(Class<E> resultType, Query source) {
+		return scatterQuery(source, null, provider -> provider.runQuery(resultType, source));
+	}
+
+	/**
+	 * Execute an ordered query on all shards and merge the results in the given order
+	 *
+	 * @param order The order that is specified by the query (e.g. ORDER BY)
+	 */
+	public <E> List<E> runQuery(Class<E> resultType, Query source, Comparator<? super E> order) {
+		return scatterQuery(source, order, provider -> provider.runQuery(resultType, source));
+	}
+
+	/**
+	 * Requests the page from all shards and merges them in the order of their keys
+	 */
+	@Override
+	public <E> Page<E> runPagedQuery(Class<E> resultType, Query source) {
+		if (!source.isSeek() || !source.hasResultLimit()) {
+			throw new IllegalArgumentException("A paged query requires a seek and a result limit: " + source);
+		}
+		List<Page<E>> pages = scatter(provider -> provider.runPagedQuery(resultType, source));
+		boolean more = false;
+		List<List<E>> results = new ArrayList<List<E>>(pages.size());
+		for (Page<E> page : pages) {
+			more |= page.hasNext();
+			results.add(page.getResults());
+		}
+		List<E> merged = merge(results, keyOrder(source));
+		int pageSize = source.getMaxResults();
+		if (merged.size() > pageSize) {
+			merged = new ArrayList<E>(merged.subList(0, pageSize));
+			more = true;
+		}
+		Query.Seek continuation = more && !merged.isEmpty()
+				? source.getSeek().after(source.getSeek().keyOf(merged.get(merged.size() - 1)))
+				: null;
+		return new Page<E>(merged, continuation);
+	}
+
+	/**
+	 * Flushes all shards on the calling thread, since pending changes are bound to the thread that made them
+	 */
+	@Override
+	public void flush() {
+		for (Shard shard : shards) {
+			shard.run(() -> {
+				shard.provider.flush();
+				return null;
+			});
+		}
+	}
+
+	private static class Shard {
+
+		private final String name;
+
+		private final IPersistenceProvider provider;
+
+		private Shard(String name, IPersistenceProvider provider) {
+			this.name = name;
+			this.provider = provider;
+		}
+
+		private <R> R run(Supplier<R> operation) {
+			if (!(provider instanceof IExecutionScope)) {
+				return operation.get();
+			}
+			IExecutionScope scope = (IExecutionScope) provider;
+			scope.begin();
+			try {
+				return operation.get();
+			} finally {
+				scope.end();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Shard{" + name + "}";
+		}
+	}
+
+	/**
+	 * Iterates over the results of all shards, one shard after another. The scope of a shard is held until its results
+	 * have been iterated.
+	 */
+	private class ShardIterator<E> implements IResultIterator<E> {
+
+		private final Function<IPersistenceProvider, IResultIterator<E>> open;
+
+		private int next = 0;
+
+		private IResultIterator<E> current;
+
+		private IExecutionScope scope;
+
+		private boolean closed = false;
+
+		private ShardIterator(Function<IPersistenceProvider, IResultIterator<E>> open) {
+			this.open = open;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!closed && (current == null || !current.hasNext())) {
+				release();
+				if (next == shards.size()) {
+					closed = true;
+					break;
+				}
+				IPersistenceProvider provider = shards.get(next++).provider;
+				if (provider instanceof IExecutionScope) {
+					scope = (IExecutionScope) provider;
+					scope.begin();
+				}
+				try {
+					current = open.apply(provider);
+				} catch (RuntimeException e) {
+					close();
+					throw e;
+				}
+			}
+			return !closed;
+		}
+
+		@Override
+		public E next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return current.next();
+		}
+
+		private void release() {
+			try {
+				if (current != null) current.close();
+			} finally {
+				current = null;
+				if (scope != null) {
+					scope.end();
+					scope = null;
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				release();
+			}
+		}
+	}
+}
@@ -0,0 +1,552 @@
+package net.engio.daoism.dao.sql;
+
+import javax.persistence.ElementCollection;
+import javax.persistence.Embedded;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToMany;
+import javax.persistence.ManyToOne;
+import javax.persistence.MappedSuperclass;
+import javax.persistence.OneToMany;
+import javax.persistence.OneToOne;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.Transient;
+import javax.persistence.Version;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The mapping of a domain class to a table as defined by its JPA annotations. It is used for operations that access the
+ * database with plain SQL instead of the query language of the JPA provider. The mapping is read once per domain class and
+ * applies the defaults of the JPA specification for table, column and join column names.
+ *
+ * Supported are entities with field access, including the fields of mapped super classes, a single id column and an optional
+ * version column. Basic values, temporal values, enums and single valued associations (by the id of the referenced entity)
+ * are mapped to columns. Collection valued associations, inverse sides of associations and transient fields are ignored.
+ * Embeddables and entity inheritance are not supported.
+ *
+ * Domain objects can also be created from rows (see {@link Column#set(Object, Object)}), thus the mapping can serve as the
+ * basis of a persistence provider that does not rely on JPA at all. Fields are accessed by method handles that are created
+ * along with the mapping. Lifecycle callbacks ({@link PrePersist}, {@link PreUpdate}) declared by the entity or its mapped
+ * super classes can be invoked explicitly.
+ *
+ * Instances are immutable and can be shared among threads.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class EntityMapping {
+
+	private static final ConcurrentMap<Class<?>, EntityMapping> mappings = new ConcurrentHashMap<Class<?>, EntityMapping>();
+
+	private final Class<?> entityClass;
+
+	private final String table;
+
+	private final Column id;
+
+	private final Column version;
+
+	// id first, version last
+	private final List<Column> columns;
+
+	// all columns except id and version
+	private final List<Column> values;
+
+	private final String columnList;
+
+	// by upper case column name
+	private final Map<String, Column> columnsByName;
+
+	// by name of the mapped field
+	private final Map<String, Column> columnsByAttribute;
+
+	private final MethodHandle constructor;
+
+	private final List<MethodHandle> prePersist;
+
+	private final List<MethodHandle> preUpdate;
+
+	/**
+	 * Get the mapping of the given domain class. Mappings are read on first access and cached afterwards.
+	 *
+	 * @throws IllegalArgumentException If the class is not an entity or uses mappings that are not supported
+	 */
+	public static EntityMapping of(Class<?> entityClass) {
+		EntityMapping mapping = mappings.get(entityClass);
+		if (mapping == null) {
+			mapping = new EntityMapping(entityClass);
+			EntityMapping concurrent = mappings.putIfAbsent(entityClass, mapping);
+			if (concurrent != null) mapping = concurrent;
+		}
+		return mapping;
+	}
+
+	private EntityMapping(Class<?> entityClass) {
+		Entity entity = entityClass.getAnnotation(Entity.class);
+		if (entity == null) {
+			throw new IllegalArgumentException(entityClass.getName() + " is not an entity");
+		}
+		this.entityClass = entityClass;
+		Table tableAnnotation = entityClass.getAnnotation(Table.class);
+		if (tableAnnotation != null && !tableAnnotation.name().isEmpty()) {
+			table = tableAnnotation.name();
+		} else {
+			table = entity.name().isEmpty() ? entityClass.getSimpleName() : entity.name();
+		}
+		List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+		for (Class<?> current = entityClass.getSuperclass(); current != null && !current.equals(Object.class); current = current.getSuperclass()) {
+			if (current.isAnnotationPresent(Entity.class)) {
+				throw new IllegalArgumentException("Entity inheritance is not supported: " + entityClass.getName() + " extends " + current.getName());
+			}
+			if (current.isAnnotationPresent(MappedSuperclass.class)) {
+				hierarchy.add(0, current);
+			}
+		}
+		hierarchy.add(entityClass);
+		try {
+			Constructor<?> noArguments = entityClass.getDeclaredConstructor();
+			noArguments.setAccessible(true);
+			constructor = MethodHandles.lookup().unreflectConstructor(noArguments);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException("Entity " + entityClass.getName() + " needs a constructor without arguments", e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Can not access the constructor of " + entityClass.getName(), e);
+		}
+		List<MethodHandle> prePersistCallbacks = new ArrayList<MethodHandle>();
+		List<MethodHandle> preUpdateCallbacks = new ArrayList<MethodHandle>();
+		Column idColumn = null;
+		Column versionColumn = null;
+		List<Column> valueColumns = new ArrayList<Column>();
+		for (Class<?> current : hierarchy) {
+			for (Field field : current.getDeclaredFields()) {
+				if (!isMapped(field)) continue;
+				Column column = new Column(field);
+				if (field.isAnnotationPresent(Id.class)) {
+					if (idColumn != null) {
+						throw new IllegalArgumentException("Composite ids are not supported: " + entityClass.getName());
+					}
+					idColumn = column;
+				} else if (field.isAnnotationPresent(Version.class)) {
+					versionColumn = column;
+				} else {
+					valueColumns.add(column);
+				}
+			}
+			for (Method method : current.getDeclaredMethods()) {
+				if (method.getParameterTypes().length > 0) continue;
+				if (method.isAnnotationPresent(PrePersist.class)) prePersistCallbacks.add(callback(method));
+				if (method.isAnnotationPresent(PreUpdate.class)) preUpdateCallbacks.add(callback(method));
+			}
+		}
+		if (idColumn == null) {
+			throw new IllegalArgumentException("No id field defined for " + entityClass.getName() + ". Only field access is supported");
+		}
+		id = idColumn;
+		version = versionColumn;
+		values = Collections.unmodifiableList(valueColumns);
+		List<Column> allColumns = new ArrayList<Column>(valueColumns.size() + 2);
+		allColumns.add(idColumn);
+		allColumns.addAll(valueColumns);
+		if (versionColumn != null) allColumns.add(versionColumn);
+		columns = Collections.unmodifiableList(allColumns);
+		StringBuilder list = new StringBuilder();
+		for (Column column : columns) {
+			if (list.length() > 0) list.append(", ");
+			list.append(column.getName());
+		}
+		columnList = list.toString();
+		Map<String, Column> byName = new HashMap<String, Column>();
+		Map<String, Column> byAttribute = new HashMap<String, Column>();
+		for (Column column : columns) {
+			byName.put(column.getName().toUpperCase(Locale.ROOT), column);
+			byAttribute.put(column.getField().getName(), column);
+		}
+		columnsByName = Collections.unmodifiableMap(byName);
+		columnsByAttribute = Collections.unmodifiableMap(byAttribute);
+		prePersist = Collections.unmodifiableList(prePersistCallbacks);
+		preUpdate = Collections.unmodifiableList(preUpdateCallbacks);
+	}
+
+	private static MethodHandle callback(Method method) {
+		method.setAccessible(true);
+		try {
+			return MethodHandles.lookup().unreflect(method);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Can not access lifecycle callback " + method, e);
+		}
+	}
+
+	private static boolean isMapped(Field field) {
+		int modifiers = field.getModifiers();
+		if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+			return false;
+		}
+		if (field.isAnnotationPresent(Embedded.class) || field.isAnnotationPresent(EmbeddedId.class)) {
+			throw new IllegalArgumentException("Embeddables are not supported: " + field);
+		}
+		if (field.isAnnotationPresent(Transient.class)
+				|| field.isAnnotationPresent(OneToMany.class)
+				|| field.isAnnotationPresent(ManyToMany.class)
+				|| field.isAnnotationPresent(ElementCollection.class)) {
+			return false;
+		}
+		OneToOne oneToOne = field.getAnnotation(OneToOne.class);
+		return oneToOne == null || oneToOne.mappedBy().isEmpty();
+	}
+
+	// resolved without reading the full mapping, since associations might be cyclic
+	private static String idColumnOf(Class<?> entityClass) {
+		for (Class<?> current = entityClass; current != null && !current.equals(Object.class); current = current.getSuperclass()) {
+			for (Field field : current.getDeclaredFields()) {
+				if (!field.isAnnotationPresent(Id.class)) continue;
+				javax.persistence.Column column = field.getAnnotation(javax.persistence.Column.class);
+				return column != null && !column.name().isEmpty() ? column.name() : field.getName();
+			}
+		}
+		throw new IllegalArgumentException("No id field defined for " + entityClass.getName() + ". Only field access is supported");
+	}
+
+	public Class<?> getEntityClass() {
+		return entityClass;
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	public Column getId() {
+		return id;
+	}
+
+	/**
+	 * @return The version column or null, if the entity is not versioned
+	 */
+	public Column getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return All columns, starting with the id column and ending with the version column (if any)
+	 */
+	public List<Column> getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @return All columns except id and version
+	 */
+	public List<Column> getValues() {
+		return values;
+	}
+
+	/**
+	 * @return The comma separated names of all columns in the order of {@link #getColumns()}
+	 */
+	public String getColumnList() {
+		return columnList;
+	}
+
+	/**
+	 * @param name The name of a column (case insensitive)
+	 * @return The column or null, if no column with the given name is mapped
+	 */
+	public Column getColumn(String name) {
+		return columnsByName.get(name.toUpperCase(Locale.ROOT));
+	}
+
+	/**
+	 * @param attribute The name of a mapped field
+	 * @return The column of the field or null, if the field is not mapped to a column
+	 */
+	public Column getColumnOf(String attribute) {
+		return columnsByAttribute.get(attribute);
+	}
+
+	/**
+	 * Create a new instance of the domain class using its constructor without arguments
+	 */
+	public Object newInstance() {
+		try {
+			return constructor.invoke();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException("Could not instantiate " + entityClass.getName(), e);
+		}
+	}
+
+	/**
+	 * Create a new instance of the domain class that holds the values of all mapped fields of the given domain object.
+	 * Values are not copied, thus associated domain objects are shared.
+	 */
+	public Object copy(Object domainObject) {
+		Object copy = newInstance();
+		for (Column column : columns) {
+			column.copy(domainObject, copy);
+		}
+		return copy;
+	}
+
+	/**
+	 * Invoke the {@link PrePersist} callbacks of the given domain object
+	 */
+	public void prePersist(Object domainObject) {
+		invoke(prePersist, domainObject);
+	}
+
+	/**
+	 * Invoke the {@link PreUpdate} callbacks of the given domain object
+	 */
+	public void preUpdate(Object domainObject) {
+		invoke(preUpdate, domainObject);
+	}
+
+	private void invoke(List<MethodHandle> callbacks, Object domainObject) {
+		for (MethodHandle callback : callbacks) {
+			try {
+				callback.invoke(domainObject);
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new IllegalStateException("Lifecycle callback of " + entityClass.getName() + " failed", e);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "EntityMapping{" + entityClass.getName() + " -> " + table + "}";
+	}
+
+	/**
+	 * A column that is mapped to a field of the domain class. Values are read from the field and converted to the
+	 * type that is bound to the JDBC statement. Values read from a JDBC result set are converted back to the type
+	 * of the field.
+	 */
+	public static class Column {
+
+		private final String name;
+
+		private final Field field;
+
+		private final MethodHandle getter;
+
+		private final MethodHandle setter;
+
+		private final TemporalType temporal;
+
+		private final EnumType enumerated;
+
+		// the referenced entity for single valued associations
+		private final Class<?> association;
+
+		private Column(Field field) {
+			this.field = field;
+			field.setAccessible(true);
+			try {
+				getter = MethodHandles.lookup().unreflectGetter(field);
+				setter = MethodHandles.lookup().unreflectSetter(field);
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException("Can not access " + field, e);
+			}
+			Temporal temporalAnnotation = field.getAnnotation(Temporal.class);
+			temporal = temporalAnnotation != null ? temporalAnnotation.value() : TemporalType.TIMESTAMP;
+			Enumerated enumeratedAnnotation = field.getAnnotation(Enumerated.class);
+			enumerated = enumeratedAnnotation != null ? enumeratedAnnotation.value() : EnumType.ORDINAL;
+			if (field.isAnnotationPresent(ManyToOne.class) || field.isAnnotationPresent(OneToOne.class)) {
+				association = field.getType();
+				JoinColumn joinColumn = field.getAnnotation(JoinColumn.class);
+				name = joinColumn != null && !joinColumn.name().isEmpty()
+						? joinColumn.name()
+						: field.getName() + "_" + idColumnOf(association);
+			} else {
+				association = null;
+				javax.persistence.Column column = field.getAnnotation(javax.persistence.Column.class);
+				name = column != null && !column.name().isEmpty() ? column.name() : field.getName();
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Field getField() {
+			return field;
+		}
+
+		/**
+		 * @return True, if the column references another entity by its id
+		 */
+		public boolean isAssociation() {
+			return association != null;
+		}
+
+		/**
+		 * Read the value of this column from the given domain object
+		 *
+		 * @return The value as it is bound to a JDBC statement
+		 */
+		public Object get(Object domainObject) {
+			Object value;
+			try {
+				value = getter.invoke(domainObject);
+			} catch (Throwable e) {
+				throw new IllegalStateException("Could not read " + field, e);
+			}
+			return value == null ? null : toJdbc(value);
+		}
+
+		/**
+		 * Write a value that has been read from a JDBC result set to the field of the given domain object. Null values
+		 * are not written to primitive fields. Single valued associations are set to a new instance of the referenced
+		 * entity that only holds the id.
+		 *
+		 * @throws IllegalArgumentException If the value can not be converted to the type of the field
+		 */
+		public void set(Object domainObject, Object value) {
+			if (value == null && field.getType().isPrimitive()) return;
+			write(domainObject, fromJdbc(value));
+		}
+
+		/**
+		 * Copy the value of the field from one domain object to another
+		 */
+		public void copy(Object source, Object target) {
+			try {
+				write(target, getter.invoke(source));
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new IllegalStateException("Could not read " + field, e);
+			}
+		}
+
+		private void write(Object domainObject, Object value) {
+			try {
+				setter.invoke(domainObject, value);
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new IllegalStateException("Could not write " + field, e);
+			}
+		}
+
+		/**
+		 * Convert a value that has been read from a JDBC result set to the type of the field
+		 *
+		 * @throws IllegalArgumentException If the value can not be converted
+		 */
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public Object fromJdbc(Object value) {
+			if (value == null) return null;
+			Class<?> type = boxed(field.getType());
+			if (association != null) {
+				EntityMapping referenced = EntityMapping.of(association);
+				Object reference = referenced.newInstance();
+				referenced.getId().set(reference, value);
+				return reference;
+			}
+			if (type.isInstance(value)) {
+				return value;
+			}
+			if (type.isEnum()) {
+				return value instanceof Number
+						? type.getEnumConstants()[((Number) value).intValue()]
+						: Enum.valueOf((Class<Enum>) type, value.toString());
+			}
+			if (value instanceof Number) {
+				Number number = (Number) value;
+				if (type == Long.class) return number.longValue();
+				if (type == Integer.class) return number.intValue();
+				if (type == Short.class) return number.shortValue();
+				if (type == Byte.class) return number.byteValue();
+				if (type == Double.class) return number.doubleValue();
+				if (type == Float.class) return number.floatValue();
+				if (type == Boolean.class) return number.intValue() != 0;
+				if (type == BigDecimal.class) return new BigDecimal(number.toString());
+				if (type == BigInteger.class) return new BigDecimal(number.toString()).toBigInteger();
+			}
+			if (value instanceof Date) {
+				long time = ((Date) value).getTime();
+				if (type == Date.class) return new Date(time);
+				if (type == java.sql.Timestamp.class) return new java.sql.Timestamp(time);
+				if (type == java.sql.Date.class) return new java.sql.Date(time);
+				if (type == java.sql.Time.class) return new java.sql.Time(time);
+				if (Calendar.class.isAssignableFrom(type)) {
+					Calendar calendar = Calendar.getInstance();
+					calendar.setTimeInMillis(time);
+					return calendar;
+				}
+			}
+			if (type == Character.class && value instanceof String && ((String) value).length() == 1) {
+				return ((String) value).charAt(0);
+			}
+			throw new IllegalArgumentException("Can not convert " + value.getClass().getName() + " to " + field);
+		}
+
+		private static Class<?> boxed(Class<?> type) {
+			if (!type.isPrimitive()) return type;
+			if (type == int.class) return Integer.class;
+			if (type == long.class) return Long.class;
+			if (type == boolean.class) return Boolean.class;
+			if (type == double.class) return Double.class;
+			if (type == float.class) return Float.class;
+			if (type == short.class) return Short.class;
+			if (type == byte.class) return Byte.class;
+			return Character.class;
+		}
+
+		private Object toJdbc(Object value) {
+			if (association != null) {
+				return EntityMapping.of(association).getId().get(value);
+			}
+			if (value instanceof Enum) {
+				return enumerated == EnumType.STRING ? ((Enum<?>) value).name() : ((Enum<?>) value).ordinal();
+			}
+			if (value instanceof Calendar) {
+				value = ((Calendar) value).getTime();
+			}
+			if (value instanceof Date && !(value instanceof java.sql.Date || value instanceof java.sql.Time || value instanceof java.sql.Timestamp)) {
+				long time = ((Date) value).getTime();
+				switch (temporal) {
+					case DATE:
+						return new java.sql.Date(time);
+					case TIME:
+						return new java.sql.Time(time);
+					default:
+						return new java.sql.Timestamp(time);
+				}
+			}
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package net.engio.daoism.dao.sql;
+
+/**
+ * SQL dialect of H2. Upserts are written with MERGE INTO ... KEY (id) VALUES, the version of a row is derived from the
+ * version of the existing row (if any) by a sub select on the id. Thus, the id is bound twice per row.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class H2Dialect implements ISqlDialect {
+
+	@Override
+	public String upsert(EntityMapping mapping, int rows) {
+		if (rows < 1) {
+			throw new IllegalArgumentException("At least one row is required but was " + rows);
+		}
+		String id = mapping.getId().getName();
+		StringBuilder row = new StringBuilder("(?");
+		for (int i = 0; i < mapping.getValues().size(); i++) {
+			row.append(", ?");
+		}
+		if (mapping.getVersion() != null) {
+			row.append(", COALESCE((SELECT ").append(mapping.getVersion().getName()).append(" FROM ").append(mapping.getTable())
+					.append(" WHERE ").append(id).append(" = ?) + 1, 0)");
+		}
+		row.append(')');
+		StringBuilder statement = new StringBuilder("MERGE INTO ").append(mapping.getTable())
+				.append(" (").append(mapping.getColumnList()).append(") KEY (").append(id).append(") VALUES ");
+		for (int i = 0; i < rows; i++) {
+			if (i > 0) statement.append(", ");
+			statement.append(row);
+		}
+		return statement.toString();
+	}
+
+	@Override
+	public int upsertParameterCount(EntityMapping mapping) {
+		return mapping.getValues().size() + (mapping.getVersion() != null ? 2 : 1);
+	}
+
+	@Override
+	public Object[] upsertParameters(EntityMapping mapping, Object domainObject) {
+		Object[] parameters = new Object[upsertParameterCount(mapping)];
+		Object id = mapping.getId().get(domainObject);
+		parameters[0] = id;
+		for (int i = 0; i < mapping.getValues().size(); i++) {
+			parameters[i + 1] = mapping.getValues().get(i).get(domainObject);
+		}
+		if (mapping.getVersion() != null) {
+			parameters[parameters.length - 1] = id;
+		}
+		return parameters;
+	}
+}
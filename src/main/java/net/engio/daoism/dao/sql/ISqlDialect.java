@@ -0,0 +1,32 @@
+package net.engio.daoism.dao.sql;
+
+/**
+ * Generates the database specific SQL for operations that have no portable equivalent in JPA, like the native
+ * insert-or-update (upsert) of rows.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public interface ISqlDialect {
+
+	/**
+	 * Create a single statement that inserts the given number of rows or updates a row if a row with the same id
+	 * already exists. The parameters of each row are given by {@link #upsertParameters(EntityMapping, Object)} and bound
+	 * one row after the other. Versioned rows are inserted with version zero, the version of updated rows is incremented.
+	 * The same id must not occur in more than one row of the statement.
+	 *
+	 * @param mapping The mapping of the written domain class
+	 * @param rows The number of rows written by the statement. Must be greater than zero
+	 */
+	String upsert(EntityMapping mapping, int rows);
+
+	/**
+	 * @return The number of parameters bound per row of an upsert statement
+	 */
+	int upsertParameterCount(EntityMapping mapping);
+
+	/**
+	 * @return The parameters of the row that represents the given domain object in an upsert statement
+	 */
+	Object[] upsertParameters(EntityMapping mapping, Object domainObject);
+
+}
@@ -0,0 +1,61 @@
+package net.engio.daoism.dao.sql;
+
+/**
+ * SQL dialect of PostgreSQL. Upserts are written with INSERT ... ON CONFLICT (id) DO UPDATE, which requires
+ * PostgreSQL 9.5 or later.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class PostgresDialect implements ISqlDialect {
+
+	@Override
+	public String upsert(EntityMapping mapping, int rows) {
+		if (rows < 1) {
+			throw new IllegalArgumentException("At least one row is required but was " + rows);
+		}
+		StringBuilder row = new StringBuilder("(?");
+		for (int i = 0; i < mapping.getValues().size(); i++) {
+			row.append(", ?");
+		}
+		if (mapping.getVersion() != null) {
+			row.append(", 0");
+		}
+		row.append(')');
+		StringBuilder statement = new StringBuilder("INSERT INTO ").append(mapping.getTable())
+				.append(" (").append(mapping.getColumnList()).append(") VALUES ");
+		for (int i = 0; i < rows; i++) {
+			if (i > 0) statement.append(", ");
+			statement.append(row);
+		}
+		statement.append(" ON CONFLICT (").append(mapping.getId().getName()).append(") ");
+		if (mapping.getValues().isEmpty() && mapping.getVersion() == null) {
+			return statement.append("DO NOTHING").toString();
+		}
+		statement.append("DO UPDATE SET ");
+		String separator = "";
+		for (EntityMapping.Column column : mapping.getValues()) {
+			statement.append(separator).append(column.getName()).append(" = EXCLUDED.").append(column.getName());
+			separator = ", ";
+		}
+		if (mapping.getVersion() != null) {
+			String version = mapping.getVersion().getName();
+			statement.append(separator).append(version).append(" = ").append(mapping.getTable()).append('.').append(version).append(" + 1");
+		}
+		return statement.toString();
+	}
+
+	@Override
+	public int upsertParameterCount(EntityMapping mapping) {
+		return mapping.getValues().size() + 1;
+	}
+
+	@Override
+	public Object[] upsertParameters(EntityMapping mapping, Object domainObject) {
+		Object[] parameters = new Object[upsertParameterCount(mapping)];
+		parameters[0] = mapping.getId().get(domainObject);
+		for (int i = 0; i < mapping.getValues().size(); i++) {
+			parameters[i + 1] = mapping.getValues().get(i).get(domainObject);
+		}
+		return parameters;
+	}
+}
@@ -0,0 +1,31 @@
+package net.engio.daoism.dao.sql;
+
+/**
+ * The SQL dialects of the supported databases
+ *
+ * @author Benjamin Diedrichsen
+ */
+public final class SqlDialects {
+
+	public static final ISqlDialect H2 = new H2Dialect();
+
+	public static final ISqlDialect Postgres = new PostgresDialect();
+
+	private SqlDialects() {
+	}
+
+	/**
+	 * Get the dialect of a database by its product name, as returned by {@link java.sql.DatabaseMetaData#getDatabaseProductName()}
+	 *
+	 * @throws IllegalArgumentException If the database is not supported
+	 */
+	public static ISqlDialect forDatabase(String productName) {
+		if ("H2".equalsIgnoreCase(productName)) {
+			return H2;
+		}
+		if ("PostgreSQL".equalsIgnoreCase(productName)) {
+			return Postgres;
+		}
+		throw new IllegalArgumentException("No SQL dialect available for database " + productName);
+	}
+}
@@ -1,17 +1,27 @@
 package net.engio.daoism.test;
 
 import net.engio.daoism.Persistent;
+import net.engio.daoism.dao.IResultIterator;
 import net.engio.daoism.dao.ITypedDao;
+import org.junit.Assume;
 import org.junit.Test;
 
 import java.io.Serializable;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
 
 /**
  * This test implements generic test methods for the basic CRUD operations. After successfully running a test method the state of the
  * database will not have changed, every modification will have been reverted.
+ *
+ * The generic scenarios can also be run as a load test from a number of concurrent threads (see {@link #loadTest()}).
+ * It is skipped unless the number of threads is configured with the system property {@value #LOAD_TEST_THREADS}.
  * 
  * 
  * @author Benjamin Diedrichsen
@@ -21,6 +31,21 @@ import java.util.Random;
  */
 public abstract class CrudTest<KEY extends Serializable, EN extends Persistent<KEY>> extends JUnitTest {
 
+	/**
+	 * The number of concurrent threads of the load test
+	 */
+	public static final String LOAD_TEST_THREADS = "daoism.loadtest.threads";
+
+	/**
+	 * The duration of the load test in seconds (default is 10)
+	 */
+	public static final String LOAD_TEST_DURATION = "daoism.loadtest.duration";
+
+	/**
+	 * The number of iterations per thread. If set, the load test runs until all iterations completed instead of a fixed duration
+	 */
+	public static final String LOAD_TEST_ITERATIONS = "daoism.loadtest.iterations";
+
 	private long entityCount;
 	
 	
@@ -98,6 +123,33 @@ public abstract class CrudTest<KEY extends Serializable, EN extends Persistent<K
 		removeAll(entities);
 	}
 
+	@Test
+	public void iterateAll() {
+		List<EN> entities = getDao().persistAll(createInitialEntities());
+		Set<KEY> iterated = new HashSet<KEY>();
+		IResultIterator<EN> allAggregates = getDao().iterateAll(2);
+		try {
+			while (allAggregates.hasNext()) {
+				// every aggregate is returned exactly once
+				assertTrue(iterated.add(allAggregates.next().getId()));
+			}
+		} finally {
+			allAggregates.close();
+		}
+		assertEquals(getDao().countAll(), (long) iterated.size());
+		for (EN aggregate : entities) {
+			assertTrue(aggregate + " is not returned by iterateAll()", iterated.contains(aggregate.getId()));
+		}
+		// closing the stream view closes the iterator
+		Stream<EN> stream = getDao().iterateAll(2).stream();
+		try {
+			assertEquals(getDao().countAll(), stream.count());
+		} finally {
+			stream.close();
+		}
+		removeAll(entities);
+	}
+
 	@Test
 	public void count() {
 		long start, created, end;
@@ -123,8 +175,10 @@ public abstract class CrudTest<KEY extends Serializable, EN extends Persistent<K
 			assertNotNull(getDao().findById(entity.getId()));
 			assertEquals(entity.getId(), getDao().findById(entity.getId())
                     .getId());
+			assertTrue(getDao().exists(entity.getId()));
 			remove(entity);
 			assertNull(getDao().findById(entity.getId()));
+			assertFalse(getDao().exists(entity.getId()));
 		} catch (Exception e) {
 			e.printStackTrace();
 			fail(e.getMessage());
@@ -149,6 +203,32 @@ public abstract class CrudTest<KEY extends Serializable, EN extends Persistent<K
 
 	}
 
+	/**
+	 * Test batched persistence of a set of aggregates. The batch size is chosen such that at least one
+	 * incomplete batch is written
+	 */
+	@Test
+	public void persistAllBatched() {
+		List<EN> allEntities = createInitialEntities();
+		allEntities.addAll(createInitialEntities());
+		allEntities = getDao().persistAll(allEntities, Math.max(1, allEntities.size() / 2 - 1));
+		for (EN aggregate : allEntities) {
+			assertNotNull(getDao().findById(aggregate.getId()));
+		}
+		// persisting again updates all aggregates
+		for (EN aggregate : allEntities) {
+			modifyEntity(aggregate);
+		}
+		List<EN> updatedEntities = getDao().persistAll(allEntities, 2);
+		for (int i = 0; i < allEntities.size(); i++) {
+			assertFalse(getDao().isSameVersion(allEntities.get(i), updatedEntities.get(i)));
+		}
+		removeAll(updatedEntities);
+		for (EN aggregate : allEntities) {
+			assertNull(getDao().findById(aggregate.getId()));
+		}
+	}
+
 	@Test
 	public void findById() {
 		List<EN> allEntities = getDao().findAll();
@@ -172,6 +252,29 @@ public abstract class CrudTest<KEY extends Serializable, EN extends Persistent<K
 		}
 	}
 
+	@Test
+	public void findByIds() {
+		List<EN> allEntities = getDao().persistAll(createInitialEntities());
+		List<KEY> ids = new LinkedList<KEY>();
+		for (EN entity : allEntities) {
+			// reversed order and duplicates
+			ids.add(0, entity.getId());
+			ids.add(entity.getId());
+		}
+		List<EN> found = getDao().findByIds(ids);
+		assertEquals(allEntities.size(), found.size());
+		for (int i = 0; i < found.size(); i++) {
+			assertEquals(ids.get(i), found.get(i).getId());
+		}
+		Map<KEY, EN> foundById = getDao().findByIdsAsMap(ids);
+		assertEquals(allEntities.size(), foundById.size());
+		for (EN entity : allEntities) {
+			assertEquals(entity.getId(), foundById.get(entity.getId()).getId());
+		}
+		removeAll(allEntities);
+		assertTrue(getDao().findByIds(ids).isEmpty());
+	}
+
 	@Test
 	public void singleDelete() {
 		EN entity = createPersistentEntity();
@@ -191,6 +294,27 @@ public abstract class CrudTest<KEY extends Serializable, EN extends Persistent<K
 			assertNull(getDao().findById(entity.getId()));
 	}
 
+	@Test
+	public void bulkDelete() {
+		List<EN> allEntities = getDao().persistAll(createInitialEntities());
+		EN stale = allEntities.get(0);
+		modifyEntity(stale);
+		EN current = getDao().persist(stale);
+		// the stale version must not be deleted if versions are checked
+		assertFalse(getDao().bulkDelete(allEntities.subList(0, 1), true));
+		assertNotNull(getDao().findById(current.getId()));
+
+		allEntities.set(0, current);
+		assertTrue(getDao().bulkDelete(allEntities, true));
+		for (EN entity : allEntities)
+			assertNull(getDao().findById(entity.getId()));
+
+		allEntities = getDao().persistAll(createInitialEntities());
+		assertTrue(getDao().bulkDelete(allEntities, false));
+		for (EN entity : allEntities)
+			assertNull(getDao().findById(entity.getId()));
+	}
+
 	private EN createPersistentEntity() {
 		EN entity = createValidEntity();
 		return getDao().persist(entity);
@@ -223,6 +347,81 @@ public abstract class CrudTest<KEY extends Serializable, EN extends Persistent<K
         assertFalse(getDao().isSameVersion(entityTwo, getDao().persist(entityTwo)));
     }
 
+	/**
+	 * Create the load test that is run by {@link #loadTest()}. By default, it is configured by system properties
+	 * (see {@link #LOAD_TEST_THREADS}, {@link #LOAD_TEST_DURATION}, {@link #LOAD_TEST_ITERATIONS}).
+	 *
+	 * @return The configured load test or null if the load test should be skipped
+	 */
+	protected LoadTest createLoadTest() {
+		Integer threads = Integer.getInteger(LOAD_TEST_THREADS);
+		if (threads == null) return null;
+		LoadTest loadTest = new LoadTest(threads).setDuration(Long.getLong(LOAD_TEST_DURATION, 10) * 1000);
+		Long iterations = Long.getLong(LOAD_TEST_ITERATIONS);
+		if (iterations != null) loadTest.setIterations(iterations);
+		return loadTest;
+	}
+
+	/**
+	 * Run the CRUD operations concurrently: Each iteration persists, reads, updates and deletes entities of its own
+	 * and updates one of a few shared entities, which are contended by all threads and thus provoke optimistic lock failures.
+	 * Optimistic lock failures and deadlocks are reported but tolerated, any other failure fails the test.
+	 */
+	@Test
+	public void loadTest() throws InterruptedException {
+		final LoadTest loadTest = createLoadTest();
+		Assume.assumeTrue(loadTest != null);
+		final List<EN> shared = getDao().persistAll(createInitialEntities());
+		try {
+			LoadTest.Report report = loadTest.run(new Runnable() {
+				@Override
+				public void run() {
+					runLoadTestIteration(loadTest, shared);
+				}
+			});
+			log.info("Load test of " + getClass().getSimpleName() + ": " + report);
+			for (Throwable failure : report.getRecordedFailures()) {
+				log.error("Load test operation failed", failure);
+			}
+			assertTrue("Load test did not complete any iteration", report.getIterations() > 0);
+			assertEquals(0L, report.getFailures());
+		} finally {
+			getDao().bulkDelete(shared, false);
+		}
+	}
+
+	private void runLoadTestIteration(LoadTest loadTest, List<EN> shared) {
+		EN entity = loadTest.measure("persist", () -> createPersistentEntity());
+		List<EN> entities = null;
+		try {
+			final KEY id = entity.getId();
+			final EN found = loadTest.measure("findById", () -> {
+				EN result = getDao().findById(id);
+				if (result == null) throw new IllegalStateException("Persisted entity " + id + " not found");
+				return result;
+			});
+			modifyEntity(found);
+			entity = loadTest.measure("update", () -> getDao().persist(found));
+			final KEY sharedId = shared.get(ThreadLocalRandom.current().nextInt(shared.size())).getId();
+			loadTest.measure("updateShared", () -> {
+				EN current = getDao().findById(sharedId);
+				modifyEntity(current);
+				return getDao().persist(current);
+			});
+			entities = loadTest.measure("persistAll", () -> getDao().persistAll(createInitialEntities()));
+		} finally {
+			final EN persisted = entity;
+			loadTest.measure("delete", () -> remove(persisted));
+			if (entities != null) {
+				final List<EN> persistedEntities = entities;
+				loadTest.measure("deleteAll", () -> {
+					removeAll(persistedEntities);
+					return null;
+				});
+			}
+		}
+	}
+
     /*
     @Test
     public void testIsManaged() {
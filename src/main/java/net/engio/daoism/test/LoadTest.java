@@ -0,0 +1,258 @@
+package net.engio.daoism.test;
+
+import net.engio.daoism.dao.metrics.OperationMetrics;
+import net.engio.daoism.dao.metrics.OperationStatistics;
+import net.engio.daoism.utils.ExceptionUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs a scenario repeatedly from a number of concurrent threads, either for a fixed duration or a fixed number of
+ * iterations per thread. The scenario measures its individual operations with {@link #measure(String, Supplier)}.
+ * Failed operations are classified as optimistic lock failures, deadlocks or other failures (see {@link ExceptionUtils}).
+ * A failing operation ends the current iteration of the scenario, the thread continues with the next iteration.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class LoadTest {
+
+	// the number of unexpected failures that are kept for diagnosis
+	private static final int MAX_RECORDED_FAILURES = 10;
+
+	private final int threads;
+
+	private long durationMillis = TimeUnit.SECONDS.toMillis(10);
+
+	private long iterations = 0;
+
+	private final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<String, OperationMetrics>();
+
+	private final AtomicLong optimisticLockFailures = new AtomicLong();
+
+	private final AtomicLong deadlocks = new AtomicLong();
+
+	private final AtomicLong failures = new AtomicLong();
+
+	private final List<Throwable> recordedFailures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+	public LoadTest(int threads) {
+		if (threads < 1) throw new IllegalArgumentException("At least one thread is required");
+		this.threads = threads;
+	}
+
+	/**
+	 * Run the scenario for the given time (default is 10 seconds)
+	 */
+	public LoadTest setDuration(long durationMillis) {
+		this.durationMillis = durationMillis;
+		return this;
+	}
+
+	/**
+	 * Run the scenario the given number of times on each thread instead of running it for a fixed duration
+	 */
+	public LoadTest setIterations(long iterations) {
+		this.iterations = iterations;
+		return this;
+	}
+
+	/**
+	 * Run and measure an operation of the scenario. Exceptions are recorded and rethrown.
+	 */
+	public <R> R measure(String operation, Supplier<R> execution) {
+		OperationMetrics metrics = metrics(operation);
+		long start = System.nanoTime();
+		try {
+			R result = execution.get();
+			metrics.success(System.nanoTime() - start, -1);
+			return result;
+		} catch (RuntimeException e) {
+			metrics.failure(System.nanoTime() - start);
+			record(e);
+			throw e;
+		}
+	}
+
+	private void record(RuntimeException failure) {
+		if (ExceptionUtils.isOptimisticLockFailure(failure)) {
+			optimisticLockFailures.incrementAndGet();
+		} else if (ExceptionUtils.isDeadlock(failure)) {
+			deadlocks.incrementAndGet();
+		} else {
+			failures.incrementAndGet();
+			if (recordedFailures.size() < MAX_RECORDED_FAILURES) recordedFailures.add(failure);
+		}
+	}
+
+	private OperationMetrics metrics(String name) {
+		OperationMetrics metrics = operations.get(name);
+		if (metrics == null) {
+			OperationMetrics created = new OperationMetrics(name);
+			metrics = operations.putIfAbsent(name, created);
+			if (metrics == null) metrics = created;
+		}
+		return metrics;
+	}
+
+	/**
+	 * Run the scenario from all threads and wait until they finished
+	 *
+	 * @return The report of this run
+	 */
+	public Report run(final Runnable scenario) throws InterruptedException {
+		final CountDownLatch ready = new CountDownLatch(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicLong completed = new AtomicLong();
+		final AtomicLong aborted = new AtomicLong();
+		final long[] deadline = new long[1];
+		List<Thread> workers = new ArrayList<Thread>(threads);
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ready.countDown();
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (long iteration = 0; iterations > 0 ? iteration < iterations : System.nanoTime() < deadline[0]; iteration++) {
+						try {
+							scenario.run();
+							completed.incrementAndGet();
+						} catch (RuntimeException e) {
+							// failures of measured operations have been recorded already
+							aborted.incrementAndGet();
+						}
+					}
+				}
+			}, "load-test-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+		ready.await();
+		long started = System.nanoTime();
+		deadline[0] = started + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		// starting the workers publishes the deadline
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		long elapsed = System.nanoTime() - started;
+		Map<String, OperationStatistics> statistics = new TreeMap<String, OperationStatistics>();
+		for (OperationMetrics metrics : operations.values()) {
+			statistics.put(metrics.getName(), metrics.getStatistics());
+		}
+		return new Report(threads, elapsed, completed.get(), aborted.get(), statistics, optimisticLockFailures.get(),
+				deadlocks.get(), failures.get(), new ArrayList<Throwable>(recordedFailures));
+	}
+
+	public static class Report {
+
+		private final int threads;
+
+		private final long elapsedNanos;
+
+		private final long iterations;
+
+		private final long abortedIterations;
+
+		private final Map<String, OperationStatistics> operations;
+
+		private final long optimisticLockFailures;
+
+		private final long deadlocks;
+
+		private final long failures;
+
+		private final List<Throwable> recordedFailures;
+
+		private Report(int threads, long elapsedNanos, long iterations, long abortedIterations, Map<String, OperationStatistics> operations,
+					   long optimisticLockFailures, long deadlocks, long failures, List<Throwable> recordedFailures) {
+			this.threads = threads;
+			this.elapsedNanos = elapsedNanos;
+			this.iterations = iterations;
+			this.abortedIterations = abortedIterations;
+			this.operations = Collections.unmodifiableMap(operations);
+			this.optimisticLockFailures = optimisticLockFailures;
+			this.deadlocks = deadlocks;
+			this.failures = failures;
+			this.recordedFailures = Collections.unmodifiableList(recordedFailures);
+		}
+
+		/**
+		 * @return The number of iterations of the scenario that completed without failure
+		 */
+		public long getIterations() {
+			return iterations;
+		}
+
+		public long getAbortedIterations() {
+			return abortedIterations;
+		}
+
+		/**
+		 * @return The number of completed iterations per second
+		 */
+		public double getThroughput() {
+			return iterations / (Math.max(1, elapsedNanos) / (double) TimeUnit.SECONDS.toNanos(1));
+		}
+
+		/**
+		 * @return The statistics of each operation of the scenario by name. Note that the throughput of the operations
+		 * is based on the lifetime of their metrics which starts with their first execution.
+		 */
+		public Map<String, OperationStatistics> getOperations() {
+			return operations;
+		}
+
+		public long getOptimisticLockFailures() {
+			return optimisticLockFailures;
+		}
+
+		public long getDeadlocks() {
+			return deadlocks;
+		}
+
+		/**
+		 * @return The number of operations that failed for other reasons than optimistic locking or deadlocks
+		 */
+		public long getFailures() {
+			return failures;
+		}
+
+		/**
+		 * @return Some of the other failures, for diagnosis
+		 */
+		public List<Throwable> getRecordedFailures() {
+			return recordedFailures;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder()
+					.append(threads).append(" threads, ")
+					.append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos)).append("ms, ")
+					.append(iterations).append(" iterations (").append(abortedIterations).append(" aborted), ")
+					.append(String.format("%.1f", getThroughput())).append(" iterations/s, ")
+					.append("optimistic lock failures=").append(optimisticLockFailures)
+					.append(", deadlocks=").append(deadlocks)
+					.append(", other failures=").append(failures);
+			for (OperationStatistics operation : operations.values()) {
+				report.append("\n  ").append(operation);
+			}
+			return report.toString();
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package net.engio.daoism.utils;
+
+import java.sql.SQLException;
+
+/**
+ * Classifies exceptions thrown by persistence operations. JPA providers and frameworks like Spring wrap the
+ * original exception differently, thus the whole chain of causes is inspected.
+ *
+ * @author Benjamin Diedrichsen
+ */
+public class ExceptionUtils {
+
+	// SQL states of deadlocks and serialization failures (e.g. H2 and MySQL use 40001, Postgres uses 40P01 for deadlocks)
+	private static final String SERIALIZATION_FAILURE = "40001";
+
+	private static final String DEADLOCK_DETECTED = "40P01";
+
+	/**
+	 * @return The first exception in the chain of causes (including the exception itself) that is an instance of the given type,
+	 * or null if there is none
+	 */
+	public static <T extends Throwable> T findCause(Throwable exception, Class<T> type) {
+		for (Throwable current = exception; current != null; current = next(current)) {
+			if (type.isInstance(current)) {
+				return type.cast(current);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Check whether the exception has been caused by a concurrent modification of a versioned entity. Besides
+	 * {@link javax.persistence.OptimisticLockException} the provider specific exceptions of Hibernate (StaleObjectStateException)
+	 * and Spring (ObjectOptimisticLockingFailureException) are recognized by their name.
+	 */
+	public static boolean isOptimisticLockFailure(Throwable exception) {
+		for (Throwable current = exception; current != null; current = next(current)) {
+			if (current instanceof javax.persistence.OptimisticLockException) {
+				return true;
+			}
+			String name = current.getClass().getSimpleName();
+			if (name.contains("OptimisticLock") || name.startsWith("StaleObjectState") || name.startsWith("StaleState")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether the exception has been caused by a deadlock (or serialization failure) that has been detected by the database
+	 */
+	public static boolean isDeadlock(Throwable exception) {
+		for (Throwable current = exception; current != null; current = next(current)) {
+			if (current instanceof SQLException) {
+				String state = ((SQLException) current).getSQLState();
+				if (SERIALIZATION_FAILURE.equals(state) || DEADLOCK_DETECTED.equals(state)) {
+					return true;
+				}
+			}
+			if (current.getClass().getSimpleName().contains("Deadlock")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Throwable next(Throwable exception) {
+		Throwable cause = exception.getCause();
+		if (cause == null && exception instanceof SQLException) {
+			cause = ((SQLException) exception).getNextException();
+		}
+		return cause == exception ? null : cause;
+	}
+}
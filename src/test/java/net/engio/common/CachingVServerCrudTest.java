@@ -0,0 +1,98 @@
+package net.engio.common;
+
+import net.engio.common.base.VServerProviderCrudTest;
+import net.engio.common.domain.DbPersistenceProvider;
+import net.engio.common.domain.VServer;
+import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.cache.BoundedCache;
+import net.engio.daoism.dao.cache.CacheStatistics;
+import net.engio.daoism.dao.cache.CachingPersistenceProvider;
+import net.engio.daoism.dao.query.LockType;
+import net.engio.daoism.dao.query.Options;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Arrays;
+
+/**
+ * Runs all CRUD tests against a DAO that reads through the entity cache
+ */
+public class CachingVServerCrudTest extends VServerProviderCrudTest {
+
+    @Autowired
+    private DbPersistenceProvider persistenceProvider;
+
+    private CachingPersistenceProvider cache;
+
+    @Override
+    public void setUp() {
+        cache = new CachingPersistenceProvider(persistenceProvider, 100, 60000, BoundedCache.Eviction.LRU);
+        super.setUp();
+    }
+
+    @Override
+    protected IPersistenceProvider provider() {
+        return cache;
+    }
+
+    @Test
+    public void cachedReads() {
+        VServer vServer = dao.persist(createValidEntity());
+        CacheStatistics before = cache.getStatistics();
+        VServer first = dao.findById(vServer.getId());
+        VServer second = dao.findById(vServer.getId());
+        // each read returns a copy, modifications of one caller are not visible to others
+        assertFalse(first == second);
+        assertEquals(first.getHost(), second.getHost());
+        modifyEntity(second);
+        assertEquals(first.getHost(), dao.findById(vServer.getId()).getHost());
+        assertEquals(first.getHost(), dao.findByIds(Arrays.asList(vServer.getId())).get(0).getHost());
+        // locks and refresh bypass the cache
+        assertEquals(first.getHost(), dao.findById(vServer.getId(), Options.Lock(LockType.None)).getHost());
+        dao.findById(vServer.getId(), Options.Refresh());
+        CacheStatistics after = cache.getStatistics();
+        assertEquals(before.getHits() + 4, after.getHits());
+        assertEquals(before.getMisses() + 1, after.getMisses());
+
+        // writes invalidate
+        modifyEntity(first);
+        VServer modified = dao.persist(first);
+        VServer reloaded = dao.findById(vServer.getId());
+        assertEquals(modified.getHost(), reloaded.getHost());
+        assertEquals(modified.getVersion(), reloaded.getVersion());
+        remove(reloaded);
+        assertNull(dao.findById(vServer.getId()));
+    }
+
+    @Test
+    public void sharedReads() {
+        cache.setCopyOnRead(false);
+        VServer vServer = dao.persist(createValidEntity());
+        VServer first = dao.findById(vServer.getId());
+        assertTrue(first == dao.findById(vServer.getId()));
+        assertTrue(first == dao.findById(vServer.getId(), Options.Lock(LockType.None)));
+        assertFalse(first == dao.findById(vServer.getId(), Options.Refresh()));
+        remove(first);
+        assertNull(dao.findById(vServer.getId()));
+    }
+
+    @Test
+    public void boundedCache() {
+        BoundedCache<String, String> bounded = new BoundedCache<String, String>(4, 0, BoundedCache.Eviction.LRU);
+        // invalidations of other keys do not reject values
+        long generation = bounded.generation("hot");
+        bounded.invalidate("other");
+        assertTrue(bounded.put("hot", "stale", generation));
+        bounded.invalidate("hot");
+        assertFalse(bounded.put("hot", "stale", generation));
+        assertTrue(bounded.put("hot", "fresh", bounded.generation("hot")));
+        // entries that are read get a second chance
+        for (int i = 0; i < 20; i++) {
+            assertEquals("fresh", bounded.get("hot"));
+            bounded.put("cold-" + i, "cold");
+            assertTrue(bounded.size() <= 4);
+        }
+        assertEquals("fresh", bounded.get("hot"));
+        assertEquals(17L, bounded.getStatistics().getEvictions());
+    }
+}
@@ -0,0 +1,164 @@
+package net.engio.common;
+
+import net.engio.common.base.VServerProviderCrudTest;
+import net.engio.common.domain.DbPersistenceProvider;
+import net.engio.common.domain.VServer;
+import net.engio.daoism.Persistent;
+import net.engio.daoism.dao.DelegatingPersistenceProvider;
+import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.cache.CoalescingPersistenceProvider;
+import net.engio.daoism.dao.query.Options;
+import net.engio.daoism.dao.query.Options.AccessPlan;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs all CRUD tests against a DAO that coalesces concurrent identical reads
+ */
+public class CoalescingVServerCrudTest extends VServerProviderCrudTest {
+
+    @Autowired
+    private DbPersistenceProvider persistenceProvider;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private CoalescingPersistenceProvider coalescing;
+
+    @Override
+    public void setUp() {
+        coalescing = new CoalescingPersistenceProvider(persistenceProvider);
+        super.setUp();
+    }
+
+    @Override
+    protected IPersistenceProvider provider() {
+        return coalescing;
+    }
+
+    @Test
+    public void coalescedReads() throws Exception {
+        final VServer vServer = dao.persist(createValidEntity());
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger executed = new AtomicInteger();
+        // blocks all reads until released such that concurrent reads overlap
+        IPersistenceProvider blocking = new DelegatingPersistenceProvider(persistenceProvider) {
+            @Override
+            public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id) {
+                await();
+                return super.findById(domainClass, id);
+            }
+
+            @Override
+            public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id, AccessPlan options) {
+                await();
+                return super.findById(domainClass, id, options);
+            }
+
+            private void await() {
+                executed.incrementAndGet();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        final CoalescingPersistenceProvider coalescing = new CoalescingPersistenceProvider(blocking);
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            List<CompletableFuture<VServer>> reads = new ArrayList<CompletableFuture<VServer>>();
+            for (int i = 0; i < 4; i++) {
+                reads.add(CompletableFuture.supplyAsync(() -> coalescing.findById(VServer.class, vServer.getId()), executor));
+            }
+            // refreshing reads are never coalesced
+            CompletableFuture<VServer> refresh = CompletableFuture.supplyAsync(
+                    () -> coalescing.findById(VServer.class, vServer.getId(), Options.Refresh()), executor);
+            long deadline = System.currentTimeMillis() + 10000;
+            while ((coalescing.getCoalescedReads() < 3 || executed.get() < 2) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            List<VServer> results = new ArrayList<VServer>();
+            for (CompletableFuture<VServer> read : reads) {
+                VServer result = read.get(10, TimeUnit.SECONDS);
+                assertEquals(vServer.getId(), result.getId());
+                // waiting readers receive copies, not the instances of the executing reader
+                for (VServer other : results) {
+                    assertTrue(result != other);
+                }
+                results.add(result);
+            }
+            assertEquals(vServer.getId(), refresh.get(10, TimeUnit.SECONDS).getId());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(3L, coalescing.getCoalescedReads());
+        assertEquals(1L, coalescing.getExecutedReads());
+        assertEquals(2, executed.get());
+        remove(vServer);
+    }
+
+    @Test
+    public void readsInTransactionsAreNotCoalesced() throws Exception {
+        final VServer vServer = dao.persist(createValidEntity());
+        final Thread transactional = Thread.currentThread();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch reading = new CountDownLatch(1);
+        // blocks the reads of all other threads until released
+        IPersistenceProvider blocking = new DelegatingPersistenceProvider(persistenceProvider) {
+            @Override
+            public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id) {
+                if (Thread.currentThread() != transactional) {
+                    reading.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return super.findById(domainClass, id);
+            }
+        };
+        final CoalescingPersistenceProvider coalescing = new CoalescingPersistenceProvider(blocking);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CompletableFuture<VServer> outside = CompletableFuture.supplyAsync(() -> coalescing.findById(VServer.class, vServer.getId()), executor);
+            assertTrue(reading.await(10, TimeUnit.SECONDS));
+            final String host = UUID.randomUUID().toString();
+            new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    assertTrue(coalescing.isTransactionActive());
+                    VServer modified = persistenceProvider.findById(VServer.class, vServer.getId());
+                    modified.setHost(host);
+                    // must see its own change instead of joining the read outside of the transaction
+                    assertEquals(host, coalescing.findById(VServer.class, vServer.getId()).getHost());
+                }
+            });
+            release.countDown();
+            assertEquals(vServer.getId(), outside.get(10, TimeUnit.SECONDS).getId());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        assertEquals(0L, coalescing.getCoalescedReads());
+        assertEquals(1L, coalescing.getExecutedReads());
+        remove(dao.findById(vServer.getId()));
+    }
+}
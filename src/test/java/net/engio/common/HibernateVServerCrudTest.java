@@ -0,0 +1,155 @@
+package net.engio.common;
+
+import net.engio.common.base.InMemoryDatabases;
+import net.engio.common.base.JpaEntityScanner;
+import net.engio.common.base.VServerProviderCrudTest;
+import net.engio.common.domain.Queries;
+import net.engio.common.domain.VNic;
+import net.engio.common.domain.VServer;
+import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.IResultIterator;
+import net.engio.daoism.dao.ITypedDao;
+import net.engio.daoism.dao.jpa.ThreadScopedPersistenceProvider;
+import net.engio.daoism.dao.query.Options;
+import net.engio.daoism.dao.query.Query;
+import net.engio.daoism.dao.sql.SqlDialects;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.orm.jpa.persistenceunit.MutablePersistenceUnitInfo;
+import org.springframework.orm.jpa.persistenceunit.PersistenceUnitPostProcessor;
+import org.springframework.orm.jpa.vendor.Database;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+
+import javax.persistence.EntityManagerFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs all CRUD tests against Hibernate (instead of EclipseLink) with an in-memory database of its own and tests the
+ * features that do not rely on provider specific query hints.
+ */
+public class HibernateVServerCrudTest extends VServerProviderCrudTest {
+
+    // the database is created once and shared by all test methods
+    private static EntityManagerFactory factory;
+
+    private static ThreadScopedPersistenceProvider hibernate;
+
+    @Autowired
+    private JpaEntityScanner jpaEntityScanner;
+
+    @Override
+    public void setUp() {
+        if (factory == null) {
+            HibernateJpaVendorAdapter jpaAdapter = new HibernateJpaVendorAdapter();
+            jpaAdapter.setDatabase(Database.H2);
+            // the entities are listed by the scanner, the class file reader of hibernate does not understand java 8 byte code
+            factory = InMemoryDatabases.create("hibernate", jpaAdapter, new PersistenceUnitPostProcessor[]{jpaEntityScanner,
+                    new PersistenceUnitPostProcessor() {
+                        @Override
+                        public void postProcessPersistenceUnitInfo(MutablePersistenceUnitInfo pui) {
+                            pui.setExcludeUnlistedClasses(true);
+                            pui.setPersistenceUnitRootUrl(null);
+                        }
+                    }});
+            hibernate = new ThreadScopedPersistenceProvider(factory);
+            hibernate.setSqlDialect(SqlDialects.H2);
+        }
+        super.setUp();
+    }
+
+    @Override
+    protected IPersistenceProvider provider() {
+        return hibernate;
+    }
+
+    /**
+     * Runs each operation of the DAO within a scope of its own, like the operations of a DAO in a managed environment.
+     * The scope of an iterator ends when it is closed.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    protected ITypedDao<String, VServer> getDao() {
+        return (ITypedDao<String, VServer>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ITypedDao.class},
+                (proxy, method, args) -> {
+                    hibernate.begin();
+                    boolean iterating = false;
+                    try {
+                        Object result = method.invoke(dao, args);
+                        if (result instanceof IResultIterator) {
+                            iterating = true;
+                            return scoped((IResultIterator<?>) result);
+                        }
+                        return result;
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    } finally {
+                        if (!iterating) hibernate.end();
+                    }
+                });
+    }
+
+    private static <E> IResultIterator<E> scoped(final IResultIterator<E> iterator) {
+        return new IResultIterator<E>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public E next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+                try {
+                    iterator.close();
+                } finally {
+                    hibernate.end();
+                }
+            }
+        };
+    }
+
+    @AfterClass
+    public static void closeDatabase() {
+        if (hibernate != null) hibernate.close();
+        if (factory != null) factory.close();
+        hibernate = null;
+        factory = null;
+    }
+
+    @Test
+    public void fetchPlan() {
+        VServer vServer = getDao().persist(createValidEntity());
+        List<VNic> vNics = hibernate.persistAll(VNic.class, Arrays.asList(new VNic().setServer(vServer).setMac("a"), new VNic().setServer(vServer).setMac("b")));
+        hibernate.begin();
+        try {
+            // named queries are rewritten like JPQL queries since Hibernate ignores the fetch plan hints
+            assertFetched(dao.findAll(Queries.VServer.ByUuid(vServer.getUuid()), Options.Fetch(VServer.WithNics)));
+            assertFetched(dao.findAll(Query.JpqlTemplate("SELECT vs FROM VServer vs WHERE vs.uuid = :UUID ORDER BY vs.host", "UUID")
+                    .bind(vServer.getUuid()), Options.Fetch(VServer.WithNics)));
+            assertFetched(dao.findAll(Query.Jpql("SELECT DISTINCT vs FROM VServer vs WHERE vs.uuid = :UUID")
+                    .set("UUID").to(vServer.getUuid()), Options.Fetch(VServer.WithNics)));
+            assertFetched(dao.findAll(Query.Jpql("SELECT vs FROM VServer vs JOIN vs.nics n WHERE vs.uuid = :UUID AND n.mac = 'a'")
+                    .set("UUID").to(vServer.getUuid()), Options.Fetch(VServer.WithNics)));
+            assertFetched(dao.findAll(Query.Jpql("SELECT vs FROM VServer vs WHERE vs.uuid IN (SELECT n.server.uuid FROM VNic n WHERE n.mac = 'b')"
+                    + " AND vs.uuid = :UUID ORDER BY vs.host").set("UUID").to(vServer.getUuid()), Options.Fetch(VServer.WithNics)));
+        } finally {
+            hibernate.end();
+            hibernate.deleteAll(VNic.class, vNics);
+            remove(vServer);
+        }
+    }
+
+    private void assertFetched(List<VServer> servers) {
+        assertEquals(1, servers.size());
+        // the servers are detached, thus their nics can only be accessed if they have been fetched with them
+        hibernate.entityManager().clear();
+        assertEquals(2, servers.get(0).getNics().size());
+    }
+}
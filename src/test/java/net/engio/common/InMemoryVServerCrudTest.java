@@ -0,0 +1,239 @@
+package net.engio.common;
+
+import net.engio.common.base.VServerProviderCrudTest;
+import net.engio.common.domain.Queries;
+import net.engio.common.domain.VServer;
+import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.IUnitOfWork;
+import net.engio.daoism.dao.memory.InMemoryPersistenceProvider;
+import net.engio.daoism.dao.query.LockType;
+import net.engio.daoism.dao.query.Options;
+import net.engio.daoism.dao.query.Page;
+import net.engio.daoism.dao.query.Query;
+import org.junit.Test;
+
+import javax.persistence.OptimisticLockException;
+import javax.persistence.TransactionRequiredException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs all CRUD tests against the in-memory persistence provider, which does not use the database of the test context.
+ */
+public class InMemoryVServerCrudTest extends VServerProviderCrudTest {
+
+    private InMemoryPersistenceProvider memory;
+
+    @Override
+    public void setUp() {
+        memory = new InMemoryPersistenceProvider();
+        memory.createIndex(VServer.class, "host", "uuid");
+        super.setUp();
+    }
+
+    @Override
+    protected IPersistenceProvider provider() {
+        return memory;
+    }
+
+    @Test
+    public void indexedQueries() {
+        List<VServer> servers = new ArrayList<VServer>();
+        for (int i = 0; i < 10; i++) {
+            VServer server = createValidEntity();
+            server.setHost("memory-" + i);
+            servers.add(server);
+        }
+        servers = dao.persistAll(servers);
+        try {
+            long indexed = memory.getIndexedQueries();
+            long scanned = memory.getScannedQueries();
+            assertEquals(servers.get(3).getId(), dao.find(Queries.VServer.ByHost("memory-3")).getId());
+            List<VServer> range = dao.findAll(Query.Jpql("SELECT vs FROM VServer vs WHERE vs.host >= :FROM AND vs.host < :TO ORDER BY vs.host DESC")
+                    .set("FROM").to("memory-2").set("TO").to("memory-5"));
+            assertEquals(3, range.size());
+            assertEquals("memory-4", range.get(0).getHost());
+            assertEquals("memory-2", range.get(2).getHost());
+            assertEquals(indexed + 2, memory.getIndexedQueries());
+            assertEquals(scanned, memory.getScannedQueries());
+
+            // predicates on attributes without index scan all servers
+            assertEquals(10, dao.findAll(Query.Jpql("SELECT vs FROM VServer vs WHERE vs.host LIKE 'memory-%'")).size());
+            assertEquals(scanned + 1, memory.getScannedQueries());
+
+            // the index follows updates
+            VServer renamed = dao.findById(servers.get(3).getId());
+            renamed.setHost("renamed");
+            dao.persist(renamed);
+            assertNull(dao.find(Queries.VServer.ByHost("memory-3")));
+            assertEquals(renamed.getId(), dao.find(Queries.VServer.ByHost("renamed")).getId());
+        } finally {
+            assertTrue(dao.bulkDelete(servers, false));
+        }
+    }
+
+    @Test
+    public void distinctQueries() {
+        List<VServer> servers = new ArrayList<VServer>();
+        for (String host : new String[]{"distinct-b", "distinct-a", "distinct-b", "distinct-c", "distinct-a"}) {
+            VServer server = createValidEntity();
+            server.setHost(host);
+            servers.add(server);
+        }
+        servers = dao.persistAll(servers);
+        try {
+            // duplicates are removed before the results are limited
+            assertEquals(Arrays.asList("distinct-a", "distinct-b"), dao.query(String.class,
+                    Query.Jpql("SELECT DISTINCT vs.host FROM VServer vs WHERE vs.host LIKE 'distinct-%' ORDER BY vs.host").setMaxResults(2)));
+            assertEquals(5, dao.query(String.class, Query.Jpql("SELECT vs.host FROM VServer vs WHERE vs.host LIKE 'distinct-%'")).size());
+            assertEquals(5, dao.findAll(Query.Jpql("SELECT DISTINCT vs FROM VServer vs WHERE vs.host LIKE 'distinct-%'")).size());
+            try {
+                dao.query(Long.class, Query.Jpql("SELECT COUNT(DISTINCT vs.host) FROM VServer vs"));
+                fail("Counting distinct values is not supported");
+            } catch (IllegalArgumentException expected) {
+            }
+        } finally {
+            assertTrue(dao.bulkDelete(servers, false));
+        }
+    }
+
+    @Test
+    public void optimisticLocking() {
+        VServer server = dao.persist(createValidEntity());
+        VServer first = dao.findById(server.getId());
+        VServer second = dao.findById(server.getId());
+        modifyEntity(first);
+        dao.persist(first);
+        modifyEntity(second);
+        try {
+            dao.persist(second);
+            fail("Stale update must fail");
+        } catch (OptimisticLockException expected) {
+        }
+        try {
+            dao.findById(server.getId(), Options.Lock(LockType.Optimistic));
+            fail("Locks require a transaction");
+        } catch (TransactionRequiredException expected) {
+        }
+        assertTrue(dao.delete(dao.findById(server.getId())));
+    }
+
+    @Test
+    public void rollback() {
+        final VServer server = dao.persist(createValidEntity());
+        final String host = server.getHost();
+        try {
+            memory.runInTransaction(new IUnitOfWork() {
+                @Override
+                public void execute() throws Exception {
+                    VServer managed = memory.findById(VServer.class, server.getId(), Options.Lock(LockType.PessimisticWrite));
+                    managed.setHost("changed");
+                    memory.persist(VServer.class, createValidEntity());
+                    memory.flush();
+                    throw new IllegalStateException("rollback");
+                }
+            });
+            fail("The unit of work must fail");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1L, dao.countAll());
+        assertEquals(host, dao.findById(server.getId()).getHost());
+        assertNull(dao.find(Queries.VServer.ByHost("changed")));
+        assertTrue(dao.delete(server));
+    }
+
+    @Test
+    public void readsDoNotLock() throws Exception {
+        final VServer server = dao.persist(createValidEntity());
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread writer = new Thread(() -> memory.runInTransaction(new IUnitOfWork() {
+            @Override
+            public void execute() throws Exception {
+                memory.findById(VServer.class, server.getId(), Options.Lock(LockType.PessimisticWrite));
+                locked.countDown();
+                done.await();
+            }
+        }));
+        writer.start();
+        memory.setLockTimeout(100);
+        try {
+            assertTrue(locked.await(10, TimeUnit.SECONDS));
+            // the server is read (and thus managed) but not changed, committing does not need its lock
+            memory.runInTransaction(new IUnitOfWork() {
+                @Override
+                public void execute() throws Exception {
+                    assertFalse(memory.findAll(VServer.class).isEmpty());
+                }
+            });
+        } finally {
+            done.countDown();
+            writer.join();
+        }
+        assertTrue(dao.delete(server));
+    }
+
+    @Test
+    public void concurrentBatchesDoNotDeadlock() throws Exception {
+        List<VServer> servers = new ArrayList<VServer>();
+        for (int i = 0; i < 64; i++) servers.add(createValidEntity());
+        servers = dao.persistAll(servers);
+        final List<VServer> ascending = servers;
+        final List<VServer> descending = new ArrayList<VServer>(servers);
+        Collections.reverse(descending);
+        memory.setLockTimeout(2000);
+        final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<Thread>();
+        for (final List<VServer> batch : Arrays.asList(ascending, descending, ascending, descending)) {
+            Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < 50; i++) {
+                        assertTrue(memory.upsertAll(VServer.class, batch));
+                        // concurrent batches may have deleted some of them already
+                        memory.bulkDelete(VServer.class, batch, false);
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        start.countDown();
+        for (Thread writer : writers) writer.join();
+        assertTrue(failures.toString(), failures.isEmpty());
+        dao.bulkDelete(servers, false);
+    }
+
+    @Test
+    public void pagedQueries() {
+        List<VServer> servers = new ArrayList<VServer>();
+        for (int i = 0; i < 10; i++) {
+            servers.add(createValidEntity());
+        }
+        servers = dao.persistAll(servers);
+        try {
+            List<String> paged = new ArrayList<String>();
+            Page<VServer> page = memory.runPagedQuery(VServer.class, Queries.VServer.FirstPage(4));
+            while (true) {
+                assertTrue(page.getResults().size() <= 4);
+                for (VServer server : page.getResults()) {
+                    if (!paged.isEmpty()) assertTrue(paged.get(paged.size() - 1).compareTo(server.getId()) < 0);
+                    paged.add(server.getId());
+                }
+                if (!page.hasNext()) break;
+                page = memory.runPagedQuery(VServer.class, Queries.VServer.NextPage(page.getContinuation(), 4));
+            }
+            assertEquals(10, paged.size());
+        } finally {
+            assertTrue(dao.bulkDelete(servers, false));
+        }
+    }
+}
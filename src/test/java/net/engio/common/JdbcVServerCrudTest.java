@@ -0,0 +1,125 @@
+package net.engio.common;
+
+import net.engio.common.base.VServerProviderCrudTest;
+import net.engio.common.domain.VServer;
+import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.IUnitOfWork;
+import net.engio.daoism.dao.jdbc.JdbcPersistenceProvider;
+import net.engio.daoism.dao.query.Query;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.persistence.OptimisticLockException;
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Runs all CRUD tests against the plain JDBC persistence provider, which shares the database (and the schema generated
+ * by the JPA provider) with the other tests.
+ */
+public class JdbcVServerCrudTest extends VServerProviderCrudTest {
+
+    @Autowired
+    private DataSource dataSource;
+
+    private JdbcPersistenceProvider jdbc;
+
+    @Override
+    public void setUp() {
+        jdbc = new JdbcPersistenceProvider(dataSource);
+        super.setUp();
+    }
+
+    @Override
+    protected IPersistenceProvider provider() {
+        return jdbc;
+    }
+
+    @Override
+    public void tearDown() {
+        super.tearDown();
+        jdbc.close();
+    }
+
+    @Test
+    public void statementCaching() {
+        // statements are cached by connection, they are only reused if connections are kept open
+        jdbc.setMaxIdleConnections(1);
+        VServer server = dao.persist(createValidEntity());
+        assertNotNull(dao.findById(server.getId()));
+        long misses = jdbc.getStatementCacheMisses();
+        long hits = jdbc.getStatementCacheHits();
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(dao.findById(server.getId()));
+        }
+        assertEquals(misses, jdbc.getStatementCacheMisses());
+        assertEquals(hits + 10, jdbc.getStatementCacheHits());
+        assertTrue(dao.delete(server));
+    }
+
+    @Test
+    public void optimisticLocking() {
+        VServer server = dao.persist(createValidEntity());
+        VServer first = dao.findById(server.getId());
+        VServer second = dao.findById(server.getId());
+        modifyEntity(first);
+        VServer updated = dao.persist(first);
+        assertEquals(server.getVersion() + 1, updated.getVersion());
+        // unchanged domain objects are not written
+        assertEquals(updated.getVersion(), dao.persist(updated).getVersion());
+        modifyEntity(second);
+        try {
+            dao.persist(second);
+            fail("Stale update must fail");
+        } catch (OptimisticLockException expected) {
+        }
+        assertTrue(dao.delete(updated));
+    }
+
+    @Test
+    public void nativeQueries() {
+        VServer server = createValidEntity();
+        server.setHost("jdbc-native");
+        server = dao.persist(server);
+        try {
+            // the columns of native queries are mapped to domain objects by name
+            List<VServer> byHost = dao.query(VServer.class, Query.NativeTemplate("SELECT * FROM VSERVER WHERE v_host = :HOST", "HOST").bind("jdbc-native"));
+            assertEquals(1, byHost.size());
+            VServer found = byHost.get(0);
+            assertEquals(server.getId(), found.getId());
+            assertEquals(server.getVersion(), found.getVersion());
+            assertEquals("jdbc-native", found.getHost());
+            List<String> hosts = dao.query(String.class, Query.NativeSql("SELECT v_host FROM VSERVER WHERE v_uuid = :UUID")
+                    .set("UUID").to(server.getId()));
+            assertEquals(1, hosts.size());
+            assertEquals("jdbc-native", hosts.get(0));
+        } finally {
+            assertTrue(dao.delete(server));
+        }
+    }
+
+    @Test
+    public void rollback() {
+        final VServer server = dao.persist(createValidEntity());
+        final String host = server.getHost();
+        long count = dao.countAll();
+        try {
+            jdbc.runInTransaction(new IUnitOfWork() {
+                @Override
+                public void execute() throws Exception {
+                    VServer changed = jdbc.findById(VServer.class, server.getId());
+                    changed.setHost("changed");
+                    jdbc.persist(VServer.class, changed);
+                    jdbc.persist(VServer.class, createValidEntity());
+                    throw new IllegalStateException("rollback");
+                }
+            });
+            fail("The unit of work must fail");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(count, dao.countAll());
+        assertEquals(host, dao.findById(server.getId()).getHost());
+        assertTrue(dao.delete(server));
+    }
+}
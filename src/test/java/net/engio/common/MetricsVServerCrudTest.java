@@ -0,0 +1,93 @@
+package net.engio.common;
+
+import net.engio.common.base.VServerProviderCrudTest;
+import net.engio.common.domain.DbPersistenceProvider;
+import net.engio.common.domain.Queries;
+import net.engio.common.domain.VServer;
+import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.metrics.MetricsPersistenceProvider;
+import net.engio.daoism.dao.metrics.OperationStatistics;
+import net.engio.daoism.dao.query.Query;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Runs all CRUD tests against a DAO that records metrics of all operations
+ */
+public class MetricsVServerCrudTest extends VServerProviderCrudTest {
+
+    @Autowired
+    private DbPersistenceProvider persistenceProvider;
+
+    private MetricsPersistenceProvider metrics;
+
+    @Override
+    public void setUp() {
+        metrics = new MetricsPersistenceProvider(persistenceProvider);
+        super.setUp();
+    }
+
+    @Override
+    protected IPersistenceProvider provider() {
+        return metrics;
+    }
+
+    @Test
+    public void recordedMetrics() throws Exception {
+        metrics.reset();
+        VServer vServer = dao.persist(createValidEntity());
+        for (int i = 0; i < 10; i++) dao.findById(vServer.getId());
+        dao.findById("unknown");
+        dao.findAll(Queries.VServer.ByHost(vServer.getHost()));
+        try {
+            dao.findAll(Queries.VServer.ByHost(vServer.getHost()).set("UNKNOWN").to(1));
+            fail();
+        } catch (RuntimeException e) {
+            // expected: the parameter is not defined by the query
+        }
+
+        OperationStatistics findById = metrics.getStatistics("findById[VServer]");
+        assertEquals(11L, findById.getCount());
+        assertEquals(10L, findById.getResults());
+        assertEquals(0L, findById.getErrors());
+        assertTrue(findById.getP50Micros() <= findById.getP99Micros());
+        assertTrue(findById.getP99Micros() <= findById.getMaxMicros());
+
+        OperationStatistics byHost = metrics.getStatistics("named[" + Queries.VServer.ByHost + "]");
+        assertEquals(2L, byHost.getCount());
+        assertEquals(1L, byHost.getErrors());
+        assertEquals(1L, byHost.getMaxResults());
+        assertFalse(metrics.getSlowest(1).isEmpty());
+
+        // ad hoc queries are measured together
+        dao.findAll(Query.Jpql("SELECT vs FROM VServer vs WHERE vs.host = :HOST").set("HOST").to(vServer.getHost()));
+        dao.findAll(Query.Jpql("SELECT vs FROM VServer vs WHERE vs.uuid = :UUID").set("UUID").to(vServer.getId()));
+        assertEquals(2L, metrics.getStatistics("jpql").getCount());
+
+        ObjectName name = metrics.registerMBean("test");
+        try {
+            Object[] operations = (Object[]) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Operations");
+            assertEquals(metrics.getOperations().size(), operations.length);
+        } finally {
+            metrics.unregisterMBean();
+        }
+        remove(vServer);
+    }
+
+    @Test
+    public void boundedOperations() {
+        metrics.reset();
+        for (int i = 0; i < MetricsPersistenceProvider.MAX_OPERATIONS + 10; i++) {
+            try {
+                dao.findAll(Query.Named("unknown-" + i));
+                fail();
+            } catch (RuntimeException expected) {
+            }
+        }
+        assertEquals(MetricsPersistenceProvider.MAX_OPERATIONS, metrics.getOperations().size());
+        assertTrue(metrics.getStatistics(MetricsPersistenceProvider.OTHER_OPERATIONS).getErrors() > 10);
+    }
+}
@@ -0,0 +1,139 @@
+package net.engio.common;
+
+import net.engio.common.base.InMemoryDatabases;
+import net.engio.common.base.JpaEntityScanner;
+import net.engio.common.base.VServerProviderCrudTest;
+import net.engio.common.domain.DbPersistenceProvider;
+import net.engio.common.domain.VServer;
+import net.engio.daoism.Persistent;
+import net.engio.daoism.dao.DelegatingPersistenceProvider;
+import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.jpa.ThreadScopedPersistenceProvider;
+import net.engio.daoism.dao.jpa.UnitOfWork;
+import net.engio.daoism.dao.query.LockType;
+import net.engio.daoism.dao.query.Options;
+import net.engio.daoism.dao.routing.RoutingPersistenceProvider;
+import net.engio.daoism.dao.sql.SqlDialects;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.orm.jpa.JpaVendorAdapter;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs all CRUD tests against a DAO that balances reads across two replicas (both connected to the primary database)
+ * and tests the routing of reads with a replica that is connected to a database of its own.
+ */
+public class RoutingVServerCrudTest extends VServerProviderCrudTest {
+
+    @Autowired
+    private DbPersistenceProvider persistenceProvider;
+
+    @Autowired
+    private JpaVendorAdapter jpaAdapter;
+
+    @Autowired
+    private JpaEntityScanner jpaEntityScanner;
+
+    private RoutingPersistenceProvider routing;
+
+    @Override
+    public void setUp() {
+        routing = new RoutingPersistenceProvider(persistenceProvider, Arrays.asList(persistenceProvider, persistenceProvider),
+                RoutingPersistenceProvider.Balancing.LeastLatency);
+        super.setUp();
+    }
+
+    @Override
+    protected IPersistenceProvider provider() {
+        return routing;
+    }
+
+    @Test
+    public void readWriteSplitting() {
+        EntityManagerFactory replicaFactory = InMemoryDatabases.create("replica", jpaAdapter, jpaEntityScanner);
+        ThreadScopedPersistenceProvider replica = new ThreadScopedPersistenceProvider(replicaFactory);
+        replica.setSqlDialect(SqlDialects.H2);
+        final RoutingPersistenceProvider routing = new RoutingPersistenceProvider(persistenceProvider,
+                Collections.singletonList(replica), RoutingPersistenceProvider.Balancing.RoundRobin);
+        final VServer vServer = routing.persist(VServer.class, createValidEntity());
+        replica.begin();
+        try {
+            // writes are not replicated yet
+            assertNull(routing.findById(VServer.class, vServer.getId()));
+            assertEquals(0L, routing.count(VServer.class));
+            assertEquals(2L, routing.getReplicaReads(0));
+            // refreshs, locks and units of work are run by the primary
+            assertNotNull(routing.findById(VServer.class, vServer.getId(), Options.Refresh()));
+            routing.runInTransaction(new UnitOfWork() {
+                @Override
+                public void execute() throws Exception {
+                    assertNotNull(routing.findById(VServer.class, vServer.getId(), Options.Lock(LockType.PessimisticWrite)));
+                    assertNotNull(routing.findById(VServer.class, vServer.getId()));
+                }
+            });
+            assertEquals(3L, routing.getPrimaryReads());
+            // a thread reads its own writes within the stickiness
+            routing.setStickiness(60000);
+            vServer.setHost(UUID.randomUUID().toString());
+            routing.persist(VServer.class, vServer);
+            assertNotNull(routing.findById(VServer.class, vServer.getId()));
+            assertEquals(4L, routing.getPrimaryReads());
+            routing.setStickiness(0);
+
+            assertTrue(replica.upsert(VServer.class, vServer));
+            assertEquals(vServer.getHost(), routing.findById(VServer.class, vServer.getId()).getHost());
+            assertEquals(3L, routing.getReplicaReads(0));
+        } finally {
+            replica.end();
+            replica.close();
+            replicaFactory.close();
+        }
+        remove(persistenceProvider.findById(VServer.class, vServer.getId()));
+    }
+
+    @Test
+    public void failover() {
+        final AtomicBoolean down = new AtomicBoolean(true);
+        IPersistenceProvider failing = new DelegatingPersistenceProvider(persistenceProvider) {
+            @Override
+            public <E extends Persistent<? extends Serializable>> E findById(Class<E> domainClass, Serializable id) {
+                if (down.get()) throw new PersistenceException("replica is down");
+                return super.findById(domainClass, id);
+            }
+        };
+        RoutingPersistenceProvider routing = new RoutingPersistenceProvider(persistenceProvider,
+                Arrays.asList(failing, persistenceProvider), RoutingPersistenceProvider.Balancing.LeastLatency)
+                .setFailureBackoff(60000);
+        VServer vServer = routing.persist(VServer.class, createValidEntity());
+        // the first selection is round-robin, the failed read is run by the primary
+        for (int i = 0; i < 10; i++) {
+            assertEquals(vServer.getId(), routing.findById(VServer.class, vServer.getId()).getId());
+        }
+        assertEquals(1L, routing.getPrimaryReads());
+        assertEquals(1, routing.getReplicaFailures(0));
+        assertFalse(routing.isReplicaAvailable(0));
+        // failed reads are not measured, thus the failing replica does not look fast
+        assertEquals(0L, routing.getReplicaReads(0));
+        assertEquals(0L, routing.getReplicaLatencyMicros(0));
+        assertEquals(9L, routing.getReplicaReads(1));
+
+        // the replica gets reads again after its backoff and a successful read resets its failures
+        RoutingPersistenceProvider recovering = new RoutingPersistenceProvider(persistenceProvider,
+                Collections.singletonList(failing), RoutingPersistenceProvider.Balancing.RoundRobin).setFailureBackoff(0);
+        assertNotNull(recovering.findById(VServer.class, vServer.getId()));
+        assertEquals(1, recovering.getReplicaFailures(0));
+        assertTrue(recovering.isReplicaAvailable(0));
+        down.set(false);
+        assertNotNull(recovering.findById(VServer.class, vServer.getId()));
+        assertEquals(0, recovering.getReplicaFailures(0));
+        assertEquals(1L, recovering.getReplicaReads(0));
+        remove(vServer);
+    }
+}
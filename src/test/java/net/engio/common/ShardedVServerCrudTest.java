@@ -0,0 +1,264 @@
+package net.engio.common;
+
+import net.engio.common.base.InMemoryDatabases;
+import net.engio.common.base.JpaEntityScanner;
+import net.engio.common.base.VServerProviderCrudTest;
+import net.engio.common.domain.Queries;
+import net.engio.common.domain.VServer;
+import net.engio.daoism.dao.IExecutionScope;
+import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.IUnitOfWork;
+import net.engio.daoism.dao.WriteBehindBuffer;
+import net.engio.daoism.dao.jpa.ThreadScopedPersistenceProvider;
+import net.engio.daoism.dao.query.Page;
+import net.engio.daoism.dao.query.Query;
+import net.engio.daoism.dao.sharding.ConsistentHashRing;
+import net.engio.daoism.dao.sharding.IShardedUnitOfWork;
+import net.engio.daoism.dao.sharding.ShardedPersistenceProvider;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.orm.jpa.JpaVendorAdapter;
+
+import javax.persistence.EntityManagerFactory;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs all CRUD tests against a DAO that partitions the servers across three in-memory databases and tests
+ * the assignment of servers to shards as well as the merging of query results.
+ */
+public class ShardedVServerCrudTest extends VServerProviderCrudTest {
+
+    // the databases are created once and shared by all test methods
+    private static final Map<String, EntityManagerFactory> factories = new LinkedHashMap<String, EntityManagerFactory>();
+
+    private static ExecutorService executor;
+
+    private static ShardedPersistenceProvider sharded;
+
+    @Autowired
+    private JpaVendorAdapter jpaAdapter;
+
+    @Autowired
+    private JpaEntityScanner jpaEntityScanner;
+
+    @Override
+    public void setUp() {
+        if (sharded == null) {
+            for (String shard : new String[]{"shard-a", "shard-b", "shard-c"}) {
+                factories.put(shard, InMemoryDatabases.create(shard, jpaAdapter, jpaEntityScanner));
+            }
+            executor = Executors.newFixedThreadPool(4);
+            sharded = ShardedPersistenceProvider.forFactories(factories, executor);
+        }
+        super.setUp();
+    }
+
+    @Override
+    protected IPersistenceProvider provider() {
+        return sharded;
+    }
+
+    @AfterClass
+    public static void closeShards() {
+        if (executor != null) executor.shutdown();
+        if (sharded != null) sharded.close();
+        for (EntityManagerFactory factory : factories.values()) {
+            factory.close();
+        }
+        factories.clear();
+        sharded = null;
+    }
+
+    @Override
+    protected void addEntities(List<VServer> entities) {
+        for (int i = 0; i < 6; i++) {
+            entities.add(createValidEntity());
+        }
+    }
+
+    @Test
+    public void distribution() {
+        List<VServer> servers = new ArrayList<VServer>();
+        for (int i = 0; i < 60; i++) {
+            servers.add(createValidEntity());
+        }
+        servers = dao.persistAll(servers);
+        try {
+            long total = 0;
+            for (int i = 0; i < sharded.getShardCount(); i++) {
+                long count = countOn(sharded.getShard(i));
+                assertTrue("Shard " + i + " holds no servers", count > 0);
+                total += count;
+            }
+            assertEquals(dao.countAll(), total);
+            // every server is stored by the shard of its id
+            for (VServer server : servers) {
+                IPersistenceProvider shard = sharded.getShardOf(server.getId());
+                ((IExecutionScope) shard).begin();
+                try {
+                    assertNotNull(shard.findById(VServer.class, server.getId()));
+                } finally {
+                    ((IExecutionScope) shard).end();
+                }
+            }
+        } finally {
+            assertTrue(dao.bulkDelete(servers, false));
+        }
+    }
+
+    private long countOn(IPersistenceProvider shard) {
+        ((IExecutionScope) shard).begin();
+        try {
+            return shard.count(VServer.class);
+        } finally {
+            ((IExecutionScope) shard).end();
+        }
+    }
+
+    @Test
+    public void unitsOfWork() throws Exception {
+        final VServer server = dao.persist(createValidEntity());
+        final String host = UUID.randomUUID().toString();
+        // units of work that identify their shard are run in a transaction of that shard
+        dao.runTransactional(new IShardedUnitOfWork() {
+            @Override
+            public Serializable getShardKey() {
+                return server.getId();
+            }
+
+            @Override
+            public void execute() throws Exception {
+                VServer loaded = dao.findById(server.getId());
+                loaded.setHost(host);
+                dao.persist(loaded);
+            }
+        });
+        assertEquals(host, dao.findById(server.getId()).getHost());
+        try {
+            dao.runTransactional(new IUnitOfWork() {
+                @Override
+                public void execute() throws Exception {
+                    fail("Units of work without shard key must not be run by one of several shards");
+                }
+            });
+            fail("Expected units of work without shard key to be rejected");
+        } catch (IllegalArgumentException expected) {
+            // units of work can not span shards
+        }
+        assertFalse(sharded.supportsUnitsOfWork());
+        try {
+            new WriteBehindBuffer(sharded, 8, 4, 50).close();
+            fail("Expected the write-behind buffer to reject a provider that does not support arbitrary units of work");
+        } catch (IllegalArgumentException expected) {
+            // groups of persists span shards
+        }
+        assertTrue(dao.delete(server));
+    }
+
+    @Test
+    public void boundedEntityManagers() {
+        List<VServer> servers = new ArrayList<VServer>();
+        for (int i = 0; i < 30; i++) {
+            servers.add(createValidEntity());
+        }
+        servers = dao.persistAll(servers);
+        try {
+            for (int i = 0; i < 20; i++) {
+                assertTrue(dao.countAll() >= servers.size());
+            }
+            // the threads of the executor share the idle entity managers of each shard
+            for (int i = 0; i < sharded.getShardCount(); i++) {
+                int open = ((ThreadScopedPersistenceProvider) sharded.getShard(i)).getOpenEntityManagers();
+                assertTrue("Shard " + i + " keeps " + open + " entity managers", open <= Runtime.getRuntime().availableProcessors());
+            }
+        } finally {
+            assertTrue(dao.bulkDelete(servers, false));
+        }
+    }
+
+    @Test
+    public void consistentHashing() {
+        Map<String, String> nodes = new HashMap<String, String>();
+        for (String node : new String[]{"a", "b", "c"}) {
+            nodes.put(node, node);
+        }
+        ConsistentHashRing<String> three = new ConsistentHashRing<String>(nodes, 128);
+        nodes.put("d", "d");
+        ConsistentHashRing<String> four = new ConsistentHashRing<String>(nodes, 128);
+        int moved = 0;
+        for (int i = 0; i < 10000; i++) {
+            String key = UUID.randomUUID().toString();
+            if (!three.locate(key).equals(four.locate(key))) {
+                // keys only move to the added node
+                assertEquals("d", four.locate(key));
+                moved++;
+            }
+        }
+        // roughly a quarter of the keys is moved
+        assertTrue("Moved " + moved + " keys", moved > 1500 && moved < 3500);
+    }
+
+    @Test
+    public void mergedQueries() {
+        String prefix = "sharded-" + System.currentTimeMillis() + "-";
+        List<VServer> servers = new ArrayList<VServer>();
+        for (int i = 0; i < 10; i++) {
+            VServer server = createValidEntity();
+            server.setHost(prefix + i);
+            servers.add(server);
+        }
+        servers = dao.persistAll(servers);
+        try {
+            // first result and result limit apply to the merged results
+            Query.JpqlQuery byHost = Query.Jpql("SELECT vs FROM VServer vs WHERE vs.host LIKE :PREFIX ORDER BY vs.host")
+                    .set("PREFIX").to(prefix + "%").setFirstResult(2).setMaxResults(5);
+            List<VServer> found = sharded.findAll(VServer.class, byHost, new Comparator<VServer>() {
+                @Override
+                public int compare(VServer one, VServer other) {
+                    return one.getHost().compareTo(other.getHost());
+                }
+            });
+            assertEquals(5, found.size());
+            for (int i = 0; i < found.size(); i++) {
+                assertEquals(prefix + (i + 2), found.get(i).getHost());
+            }
+            assertEquals(2, byHost.getFirtResult());
+            assertEquals(5, byHost.getMaxResults());
+            try {
+                sharded.findAll(VServer.class, byHost);
+                fail("Limited results of all shards need an order");
+            } catch (IllegalArgumentException expected) {
+            }
+            assertEquals(servers.get(3).getId(), dao.find(Queries.VServer.ByHost(prefix + 3)).getId());
+
+            // pages of all shards are merged in the order of their keys
+            List<String> paged = new ArrayList<String>();
+            Page<VServer> page = sharded.runPagedQuery(VServer.class, Queries.VServer.FirstPage(4));
+            while (true) {
+                assertTrue(page.getResults().size() <= 4);
+                for (VServer server : page.getResults()) {
+                    if (!paged.isEmpty()) assertTrue(paged.get(paged.size() - 1).compareTo(server.getId()) < 0);
+                    paged.add(server.getId());
+                }
+                if (!page.hasNext()) break;
+                page = sharded.runPagedQuery(VServer.class, Queries.VServer.NextPage(page.getContinuation(), 4));
+            }
+            assertEquals(dao.countAll(), (long) paged.size());
+            for (VServer server : servers) {
+                assertTrue(paged.contains(server.getId()));
+            }
+        } finally {
+            assertTrue(dao.bulkDelete(servers, false));
+        }
+    }
+}
@@ -1,20 +1,54 @@
 package net.engio.common;
 
 import net.engio.common.base.SpringAwareCrudTest;
+import net.engio.common.domain.DbPersistenceProvider;
 import net.engio.common.domain.Queries;
+import net.engio.common.domain.VNic;
+import net.engio.common.domain.VResource;
 import net.engio.common.domain.VServerDao;
+import net.engio.daoism.dao.AsyncTypedDao;
 import net.engio.daoism.dao.ITypedDao;
+import net.engio.daoism.dao.RetryPolicy;
+import net.engio.daoism.dao.RetryingTransactionRunner;
+import net.engio.daoism.dao.TypedDao;
+import net.engio.daoism.dao.IExecutionScope;
+import net.engio.daoism.dao.IResultIterator;
+import net.engio.daoism.dao.WriteBehindBuffer;
+import net.engio.daoism.dao.cache.BoundedCache;
+import net.engio.daoism.dao.cache.QueryResultCache;
+import net.engio.daoism.dao.jpa.SlowQueryLog;
+import net.engio.daoism.dao.jpa.ThreadScopedPersistenceProvider;
+import net.engio.daoism.dao.IPersistenceProvider;
 import net.engio.common.domain.VServer;
 import net.engio.daoism.dao.jpa.UnitOfWork;
 import net.engio.daoism.dao.query.LockType;
 import net.engio.daoism.dao.query.Options;
+import net.engio.daoism.dao.query.Page;
 import net.engio.daoism.dao.query.Query;
+import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
 import javax.persistence.TransactionRequiredException;
+import javax.persistence.Tuple;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Supplier;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class VServerCrudTest extends SpringAwareCrudTest<String, VServer> {
@@ -23,6 +57,12 @@ public class VServerCrudTest extends SpringAwareCrudTest<String, VServer> {
     @Autowired
     private VServerDao dao;
 
+    @Autowired
+    private DbPersistenceProvider persistenceProvider;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
     @Override
     protected VServer createValidEntity() {
         VServer vserver = new VServer();
@@ -47,6 +87,510 @@ public class VServerCrudTest extends SpringAwareCrudTest<String, VServer> {
         entities.add(createValidEntity());
     }
 
+    @Test
+    public void keysetPagination(){
+        List<VServer> vServers = dao.persistAll(Arrays.asList(createValidEntity(), createValidEntity(), createValidEntity()));
+        List<String> pagedIds = new LinkedList<String>();
+        Page<VServer> page = dao.findPage(Queries.VServer.FirstPage(2));
+        while(true){
+            assertTrue(page.getResults().size() <= 2);
+            for(VServer vServer : page.getResults()) pagedIds.add(vServer.getId());
+            if(!page.hasNext()) break;
+            page = dao.findPage(Queries.VServer.NextPage(page.getContinuation(), 2));
+        }
+        assertEquals(dao.countAll(), (long)pagedIds.size());
+        List<String> sortedIds = new ArrayList<String>(pagedIds);
+        Collections.sort(sortedIds);
+        assertEquals(sortedIds, pagedIds);
+        for(VServer vServer : vServers) assertTrue(pagedIds.contains(vServer.getId()));
+
+        // the chunks of iterated queries seek past the last result, removing preceding results does not skip any
+        List<String> iteratedIds = new LinkedList<String>();
+        IResultIterator<VServer> iterator = dao.iterateAll(Queries.VServer.FirstPage(Integer.MAX_VALUE), 1);
+        try{
+            while(iterator.hasNext()){
+                VServer vServer = iterator.next();
+                iteratedIds.add(vServer.getId());
+                if(iteratedIds.size() == 1) remove(dao.findById(vServer.getId()));
+            }
+        }finally {
+            iterator.close();
+        }
+        assertEquals(sortedIds, iteratedIds);
+        removeAll(dao.findByIds(iteratedIds));
+    }
+
+    @Test
+    public void asyncFindById(){
+        List<VServer> vServers = dao.persistAll(Arrays.asList(createValidEntity(), createValidEntity(), createValidEntity()));
+        ExecutorService executor = AsyncTypedDao.newDefaultExecutor();
+        try{
+            AsyncTypedDao<String, VServer> async = new AsyncTypedDao<String, VServer>(dao, executor);
+            List<CompletableFuture<VServer>> lookups = new ArrayList<CompletableFuture<VServer>>();
+            for(VServer vServer : vServers) lookups.add(async.findById(vServer.getId()));
+            CompletableFuture.allOf(lookups.toArray(new CompletableFuture[lookups.size()])).join();
+            for(int i = 0; i < vServers.size(); i++){
+                assertEquals(vServers.get(i).getId(), lookups.get(i).join().getId());
+            }
+            assertEquals(dao.countAll(), (long)async.countAll().join());
+        }finally {
+            executor.shutdown();
+        }
+        removeAll(vServers);
+    }
+
+    @Test
+    public void asyncTasksShareBoundedEntityManagers(){
+        List<VServer> vServers = dao.persistAll(Arrays.asList(createValidEntity(), createValidEntity()));
+        final ThreadScopedPersistenceProvider scoped = new ThreadScopedPersistenceProvider(entityManagerFactory);
+        scoped.setMaxIdleEntityManagers(2);
+        ITypedDao<String, VServer> scopedDao = new TypedDao<String, VServer>(String.class, VServer.class) {
+            @Override
+            protected IPersistenceProvider getPersistenceProvider() {
+                return scoped;
+            }
+        };
+        ExecutorService executor = AsyncTypedDao.newDefaultExecutor();
+        try{
+            AsyncTypedDao<String, VServer> async = new AsyncTypedDao<String, VServer>(scopedDao, executor, scoped);
+            List<CompletableFuture<?>> tasks = new ArrayList<CompletableFuture<?>>();
+            for(int i = 0; i < 200; i++){
+                tasks.add(i % 2 == 0 ? async.findById(vServers.get(i % vServers.size()).getId()) : async.countAll());
+            }
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture[tasks.size()])).join();
+            assertEquals(vServers.get(0).getId(), ((VServer)tasks.get(0).join()).getId());
+            assertTrue(scoped.getOpenEntityManagers() <= 2);
+        }finally {
+            executor.shutdown();
+            scoped.close();
+        }
+        assertEquals(0, scoped.getOpenEntityManagers());
+        removeAll(vServers);
+    }
+
+    @Test
+    public void writeBehind() throws Exception {
+        final WriteBehindBuffer buffer = new WriteBehindBuffer(persistenceProvider, 8, 4, 50);
+        ExecutorService producers = Executors.newFixedThreadPool(4);
+        List<CompletableFuture<VServer>> persists = new ArrayList<CompletableFuture<VServer>>();
+        try{
+            List<CompletableFuture<CompletableFuture<VServer>>> submitted = new ArrayList<CompletableFuture<CompletableFuture<VServer>>>();
+            for(int i = 0; i < 20; i++){
+                submitted.add(CompletableFuture.supplyAsync(() -> buffer.persist(VServer.class, createValidEntity()), producers));
+            }
+            for(CompletableFuture<CompletableFuture<VServer>> persist : submitted) persists.add(persist.join());
+        }finally {
+            producers.shutdown();
+            buffer.close();
+        }
+        List<VServer> vServers = new ArrayList<VServer>();
+        for(CompletableFuture<VServer> persist : persists){
+            VServer vServer = persist.get();
+            assertNotNull(dao.findById(vServer.getId()));
+            vServers.add(vServer);
+        }
+        assertEquals(20L, buffer.getWrittenEntities());
+        // groups contain at most four persists
+        assertTrue(buffer.getCommittedGroups() >= 5);
+        try{
+            buffer.persist(VServer.class, createValidEntity());
+            fail("Closed buffers must not accept persists");
+        }catch (IllegalStateException expected){}
+        removeAll(vServers);
+    }
+
+    @Test
+    public void writeBehindSurvivesFailingScope() throws Exception {
+        final AtomicInteger begun = new AtomicInteger();
+        IExecutionScope failingOnce = new IExecutionScope() {
+            @Override
+            public void begin() {
+                if(begun.incrementAndGet() == 1) throw new IllegalStateException("scope unavailable");
+            }
+
+            @Override
+            public void end() {}
+        };
+        WriteBehindBuffer buffer = new WriteBehindBuffer(persistenceProvider, 4, 1, 10, failingOnce);
+        VServer persisted;
+        try{
+            try{
+                buffer.persist(VServer.class, createValidEntity()).get(10, TimeUnit.SECONDS);
+                fail("The persist must fail with the scope");
+            }catch (ExecutionException expected){
+                assertTrue(expected.getCause() instanceof IllegalStateException);
+            }
+            // the writer is still alive
+            persisted = buffer.persist(VServer.class, createValidEntity()).get(10, TimeUnit.SECONDS);
+        }finally {
+            buffer.close();
+        }
+        assertNotNull(dao.findById(persisted.getId()));
+        remove(persisted);
+    }
+
+    @Test
+    public void upsert(){
+        VServer inserted = createValidEntity();
+        assertTrue(dao.upsert(inserted));
+        VServer fetched = dao.findById(inserted.getId(), Options.Refresh());
+        assertEquals(inserted.getHost(), fetched.getHost());
+        assertEquals(0L, fetched.getVersion());
+        // updates increment the version, no matter which version has been upserted
+        inserted.setHost(UUID.randomUUID().toString());
+        assertTrue(dao.upsert(inserted));
+        fetched = dao.findById(inserted.getId(), Options.Refresh());
+        assertEquals(inserted.getHost(), fetched.getHost());
+        assertEquals(1L, fetched.getVersion());
+
+        VServer persisted = dao.persist(createValidEntity());
+        persisted.setHost(UUID.randomUUID().toString());
+        VServer duplicate = createValidEntity();
+        duplicate.setUuid(inserted.getUuid());
+        List<VServer> vServers = Arrays.asList(persisted, inserted, createValidEntity(), createValidEntity());
+        List<VServer> upserted = new ArrayList<VServer>(vServers);
+        upserted.add(duplicate);
+        // two rows per statement
+        persistenceProvider.setMaxQueryParameters(20);
+        try{
+            assertTrue(dao.upsertAll(upserted));
+        }finally {
+            persistenceProvider.setMaxQueryParameters(500);
+        }
+        for(VServer vServer : Arrays.asList(persisted, vServers.get(2), vServers.get(3))){
+            assertEquals(vServer.getHost(), dao.findById(vServer.getId(), Options.Refresh()).getHost());
+        }
+        // the last occurrence of an id wins
+        assertEquals(duplicate.getHost(), dao.findById(inserted.getId(), Options.Refresh()).getHost());
+
+        VServer withoutId = createValidEntity();
+        withoutId.setUuid(null);
+        assertFalse(dao.upsert(withoutId));
+        removeAll(vServers);
+    }
+
+    @Test
+    public void bulkWritesDetachManagedCopies(){
+        final VServer stored = dao.persist(createValidEntity());
+        dao.runTransactional(new UnitOfWork() {
+            @Override
+            public void execute() throws Exception {
+                EntityManager entityManager = persistenceProvider.entityManager();
+                VServer managed = dao.findById(stored.getId());
+                assertTrue(entityManager.contains(managed));
+                // another instance with the id of the managed domain object is written
+                VServer copy = createValidEntity();
+                copy.setUuid(stored.getUuid());
+                assertTrue(dao.upsert(copy));
+                assertFalse(entityManager.contains(managed));
+                assertEquals(copy.getHost(), dao.findById(stored.getId()).getHost());
+
+                managed = dao.findById(stored.getId());
+                assertTrue(dao.bulkDelete(Arrays.asList(copy), false));
+                assertFalse(entityManager.contains(managed));
+                assertNull(dao.findById(stored.getId()));
+            }
+        });
+        assertNull(dao.findById(stored.getId()));
+    }
+
+    @Test
+    public void retryOnConflict(){
+        final VServer vServer = dao.persist(createValidEntity());
+        final String host = UUID.randomUUID().toString();
+        final AtomicInteger attempts = new AtomicInteger();
+        RetryingTransactionRunner runner = new RetryingTransactionRunner(persistenceProvider, new RetryPolicy(3).setBackoff(1, 10));
+        runner.run("change-host", new UnitOfWork() {
+            @Override
+            public void execute() throws Exception {
+                VServer loaded = em.find(VServer.class, vServer.getId());
+                if(attempts.incrementAndGet() == 1){
+                    // a concurrent transaction modifies the same server before this one commits
+                    persistenceProvider.runInTransaction(new UnitOfWork() {
+                        @Override
+                        public void execute() throws Exception {
+                            em.find(VServer.class, vServer.getId()).setHost(UUID.randomUUID().toString());
+                        }
+                    });
+                }
+                loaded.setHost(host);
+            }
+        });
+        assertEquals(2, attempts.get());
+        assertEquals(host, dao.findById(vServer.getId(), Options.Refresh()).getHost());
+        RetryingTransactionRunner.UnitStatistics statistics = runner.getStatistics("change-host");
+        assertEquals(1L, statistics.getExecutions());
+        assertEquals(1L, statistics.getConflicts());
+        assertEquals(1L, statistics.getRetries());
+        assertEquals(1L, statistics.getSuccesses());
+
+        // non-retryable failures are thrown immediately
+        attempts.set(0);
+        try{
+            runner.run("failing", new UnitOfWork() {
+                @Override
+                public void execute() throws Exception {
+                    attempts.incrementAndGet();
+                    throw new IllegalStateException("not retryable");
+                }
+            });
+            fail("Failures must be propagated");
+        }catch (RuntimeException expected){}
+        assertEquals(1, attempts.get());
+        assertEquals(1L, runner.getStatistics("failing").getFailures());
+        remove(dao.findById(vServer.getId(), Options.Refresh()));
+    }
+
+    @Test
+    public void projection(){
+        VServer vServer = dao.persist(createValidEntity());
+        Query.ProjectionQuery byUuid = Query.Projection(VServer.class).select("uuid", "host").where("uuid", vServer.getUuid());
+
+        Object[] row = dao.query(Object[].class, byUuid).get(0);
+        assertEquals(vServer.getUuid(), row[0]);
+        assertEquals(vServer.getHost(), row[1]);
+
+        Tuple tuple = dao.query(Tuple.class, byUuid).get(0);
+        assertEquals(vServer.getHost(), tuple.get("host"));
+
+        Summary summary = dao.query(Summary.class, byUuid).get(0);
+        assertEquals(vServer.getUuid(), summary.uuid);
+        assertEquals(vServer.getHost(), summary.host);
+
+        List<String> hosts = dao.query(String.class, Query.Projection(VServer.class).select("host")
+                .where("uuid", vServer.getUuid()).orderBy("host", true));
+        assertEquals(Collections.singletonList(vServer.getHost()), hosts);
+        remove(vServer);
+    }
+
+    @Test
+    public void queryTemplate(){
+        Query.Template byHost = Query.JpqlTemplate("SELECT vs FROM VServer vs WHERE vs.host = :host", "host");
+        VServer one = createValidEntity();
+        one.setHost(UUID.randomUUID().toString());
+        VServer two = createValidEntity();
+        two.setHost(UUID.randomUUID().toString());
+        List<VServer> vServers = dao.persistAll(Arrays.asList(one, two));
+        assertEquals(one.getId(), dao.find(byHost.bind(one.getHost())).getId());
+        assertEquals(two.getId(), dao.find(byHost.bind(two.getHost())).getId());
+
+        // the thread scoped provider compiles the query once per thread
+        final Set<javax.persistence.Query> compiled = Collections.newSetFromMap(new IdentityHashMap<javax.persistence.Query, Boolean>());
+        ThreadScopedPersistenceProvider scoped = new ThreadScopedPersistenceProvider(entityManagerFactory){
+            @Override
+            protected javax.persistence.Query compiled(Query.Template template, Class<?> resultType) {
+                javax.persistence.Query query = super.compiled(template, resultType);
+                compiled.add(query);
+                return query;
+            }
+        };
+        scoped.begin();
+        try{
+            assertEquals(one.getId(), scoped.findAll(VServer.class, byHost.bind(one.getHost())).get(0).getId());
+            assertEquals(two.getId(), scoped.findAll(VServer.class, byHost.bind(two.getHost())).get(0).getId());
+            assertEquals(1, scoped.findAll(VServer.class, byHost.bind(one.getHost()).setMaxResults(1)).size());
+            assertEquals(1, compiled.size());
+        }finally {
+            scoped.end();
+        }
+        // native templates are run as query (EclipseLink binds named parameters of native queries prefixed with ?)
+        Query.NativeTemplate hostOf = Query.NativeTemplate("SELECT v_host FROM VSERVER WHERE v_uuid = ?UUID", "UUID");
+        assertEquals(Arrays.asList(one.getHost()), dao.query(String.class, hostOf.bind(one.getId())));
+        scoped.begin();
+        try{
+            assertEquals(two.getId(), scoped.findAll(VServer.class, byHost.bind(two.getHost())).get(0).getId());
+            assertEquals(Arrays.asList(one.getHost()), scoped.runQuery(String.class, hostOf.bind(one.getId())));
+            assertEquals(Arrays.asList(two.getHost()), scoped.runQuery(String.class, hostOf.bind(two.getId())));
+            assertEquals(2, compiled.size());
+        }finally {
+            scoped.end();
+            scoped.close();
+        }
+        try{
+            byHost.bind();
+            fail("Missing parameter values must be rejected");
+        }catch (IllegalArgumentException expected){}
+        removeAll(vServers);
+    }
+
+    @Test
+    public void readOnlyAccess(){
+        final VServer vServer = dao.persist(createValidEntity());
+        assertEquals(vServer.getId(), dao.findById(vServer.getId(), Options.ReadOnly()).getId());
+        assertEquals(vServer.getId(), dao.find(Queries.VServer.ByUuid(vServer.getUuid()), Options.ReadOnly()).getId());
+        final String host = UUID.randomUUID().toString();
+        dao.runTransactional(new UnitOfWork() {
+            @Override
+            public void execute() throws Exception {
+                // changes to read-only objects are not flushed
+                List<VServer> readOnly = dao.findAll(Queries.VServer.ByUuid(vServer.getUuid()), Options.ReadOnly());
+                assertEquals(1, readOnly.size());
+                readOnly.get(0).setHost(host);
+            }
+        });
+        assertTrue(dao.findAll(Queries.VServer.ByHost(host)).isEmpty());
+        remove(dao.findById(vServer.getId(), Options.Refresh()));
+    }
+
+    @Test
+    public void findByIdsInPersistenceContext(){
+        final VServer stored = dao.persist(createValidEntity());
+        final VServer pending = createValidEntity();
+        dao.runTransactional(new UnitOfWork() {
+            @Override
+            public void execute() throws Exception {
+                EntityManager entityManager = persistenceProvider.entityManager();
+                entityManager.setFlushMode(FlushModeType.COMMIT);
+                try {
+                    VServer managed = dao.findById(stored.getId());
+                    entityManager.persist(pending);
+                    // managed domain objects are returned, even if they have not been flushed
+                    Map<String, VServer> found = dao.findByIdsAsMap(Arrays.asList(pending.getId(), stored.getId()));
+                    assertEquals(Arrays.asList(pending.getId(), stored.getId()), new ArrayList<String>(found.keySet()));
+                    assertTrue(managed == found.get(stored.getId()));
+                    assertTrue(pending == found.get(pending.getId()));
+                } finally {
+                    entityManager.setFlushMode(FlushModeType.AUTO);
+                }
+            }
+        });
+        removeAll(dao.findByIds(Arrays.asList(stored.getId(), pending.getId())));
+    }
+
+    @Test
+    public void fetchPlan(){
+        VServer vServer = dao.persist(createValidEntity());
+        ITypedDao<String, VNic> nics = new TypedDao<String, VNic>(String.class, VNic.class) {
+            @Override
+            protected IPersistenceProvider getPersistenceProvider() {
+                return persistenceProvider;
+            }
+        };
+        List<VNic> vNics = nics.persistAll(Arrays.asList(new VNic().setServer(vServer).setMac("a"), new VNic().setServer(vServer).setMac("b")));
+
+        // the inverse side of the association is not maintained by persisting the nics
+        VServer fetched = dao.findById(vServer.getId(), Options.Fetch(VServer.WithNics).Refresh());
+        assertEquals(2, fetched.getNics().size());
+        fetched = dao.findById(vServer.getId(), Options.Fetch(VServer.WithNics).ReadOnly());
+        assertEquals(2, fetched.getNics().size());
+        // fetching a collection must not duplicate the results
+        List<VServer> byUuid = dao.findAll(Queries.VServer.ByUuid(vServer.getUuid()), Options.Fetch(VServer.WithNics));
+        assertEquals(1, byUuid.size());
+        assertEquals(2, byUuid.get(0).getNics().size());
+        // the join fetches are added to JPQL queries, such that the fetch plan does not depend on provider specific hints
+        byUuid = dao.findAll(Query.JpqlTemplate("SELECT vs FROM VServer vs WHERE vs.uuid = :UUID ORDER BY vs.host", "UUID")
+                .bind(vServer.getUuid()), Options.Fetch(VServer.WithNics));
+        assertEquals(1, byUuid.size());
+        assertEquals(2, byUuid.get(0).getNics().size());
+        // queries that are distinct already, join the fetched association or contain sub queries
+        for (Query.TypedQuery query : Arrays.<Query.TypedQuery>asList(
+                Query.Jpql("SELECT DISTINCT vs FROM VServer vs WHERE vs.uuid = :UUID").set("UUID").to(vServer.getUuid()),
+                Query.Jpql("SELECT vs FROM VServer vs JOIN vs.nics n WHERE vs.uuid = :UUID AND n.mac = 'a'").set("UUID").to(vServer.getUuid()),
+                Query.Jpql("SELECT vs FROM VServer vs WHERE vs.uuid IN (SELECT n.server.uuid FROM VNic n WHERE n.mac = 'b') AND vs.uuid = :UUID ORDER BY vs.host")
+                        .set("UUID").to(vServer.getUuid()))) {
+            byUuid = dao.findAll(query, Options.Fetch(VServer.WithNics).Refresh());
+            assertEquals(1, byUuid.size());
+            assertEquals(2, byUuid.get(0).getNics().size());
+        }
+
+        VNic withServer = nics.findById(vNics.get(0).getId(), Options.Fetch(Options.FetchPlan("nic-with-server").fetch("server", "server.nics")));
+        assertEquals(vServer.getId(), withServer.getServer().getId());
+        assertNull(dao.findById("unknown", Options.Fetch(VServer.WithNics)));
+
+        nics.deleteAll(vNics);
+        remove(vServer);
+    }
+
+    @Test
+    public void queryResultCache(){
+        VServer vServer = dao.persist(createValidEntity());
+        QueryResultCache cache = new QueryResultCache(100, 60000, BoundedCache.Eviction.LRU);
+        persistenceProvider.setQueryResultCache(cache);
+        try{
+            List<VServer> byHost = dao.findAll(Queries.VServer.ByHost(vServer.getHost()).cacheable());
+            assertEquals(1, byHost.size());
+            assertTrue(byHost == dao.findAll(Queries.VServer.ByHost(vServer.getHost()).cacheable()));
+            assertEquals(vServer.getId(), dao.find(Queries.VServer.ByHost(vServer.getHost()).cacheable()).getId());
+            assertEquals(2L, cache.getStatistics().getHits());
+            // queries that are not cacheable are always run
+            assertFalse(byHost == dao.findAll(Queries.VServer.ByHost(vServer.getHost())));
+
+            // writes invalidate all results of the domain class
+            String host = vServer.getHost();
+            modifyEntity(vServer);
+            vServer = dao.persist(vServer);
+            assertTrue(dao.findAll(Queries.VServer.ByHost(host).cacheable()).isEmpty());
+            assertEquals(1, dao.findAll(Queries.VServer.ByHost(vServer.getHost()).cacheable()).size());
+
+            // queries within a transaction bypass the cache since they may see uncommitted writes
+            final String current = vServer.getHost();
+            final long hits = cache.getStatistics().getHits();
+            dao.runTransactional(new UnitOfWork() {
+                @Override
+                public void execute() throws Exception {
+                    List<VServer> first = dao.findAll(Queries.VServer.ByHost(current).cacheable());
+                    assertEquals(1, first.size());
+                    assertFalse(first == dao.findAll(Queries.VServer.ByHost(current).cacheable()));
+                }
+            });
+            assertEquals(hits, cache.getStatistics().getHits());
+
+            // writes of a super class invalidate results of its subclasses and vice versa
+            long generation = cache.generation(VServer.class);
+            cache.invalidate(VResource.class);
+            assertFalse(generation == cache.generation(VServer.class));
+            generation = cache.generation(VResource.class);
+            cache.invalidate(VServer.class);
+            assertFalse(generation == cache.generation(VResource.class));
+            generation = cache.generation(VNic.class);
+            cache.invalidate(VServer.class);
+            assertEquals(generation, cache.generation(VNic.class));
+        }finally {
+            persistenceProvider.setQueryResultCache(null);
+        }
+        remove(vServer);
+    }
+
+    @Test
+    public void slowQueryLog(){
+        final List<String> entries = new LinkedList<String>();
+        SlowQueryLog slowQueryLog = new SlowQueryLog(0){
+            @Override
+            public void report(String operation, Class<?> domainClass, Query query, int rows, long elapsedNanos, Supplier<String> plan) {
+                entries.add(operation + (plan != null ? ":" + plan.get() : ""));
+                super.report(operation, domainClass, query, rows, elapsedNanos, plan);
+            }
+        }.setExplain(true);
+        persistenceProvider.setSlowQueryLog(slowQueryLog);
+        try{
+            VServer vServer = dao.persist(createValidEntity());
+            dao.findById(vServer.getId());
+            dao.findAll(Queries.VServer.ByUuid(vServer.getUuid()));
+            dao.query(Object[].class, Query.NativeSql("SELECT v_uuid FROM VServer"));
+            remove(vServer);
+        }finally {
+            persistenceProvider.setSlowQueryLog(null);
+        }
+        assertTrue(entries.contains("persist"));
+        assertTrue(entries.contains("findById"));
+        assertTrue(entries.contains("findAll"));
+        String explained = entries.get(3);
+        assertTrue(explained.startsWith("runQuery:"));
+        assertTrue(explained.toUpperCase().contains("VSERVER"));
+    }
+
+    public static class Summary{
+
+        private final String uuid;
+
+        private final String host;
+
+        public Summary(String uuid, String host) {
+            this.uuid = uuid;
+            this.host = host;
+        }
+    }
+
     public void testPerformance(){
         float count = 10000;
         float firstRun,secondRun, thirdRun;
@@ -0,0 +1,42 @@
+package net.engio.common.base;
+
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.orm.jpa.JpaVendorAdapter;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.persistenceunit.PersistenceUnitPostProcessor;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Creates entity manager factories like the one of the application context, but for in-memory databases of their own.
+ * Used by tests that need more than one database, e.g. replicas or shards.
+ */
+public class InMemoryDatabases {
+
+    public static EntityManagerFactory create(String name, JpaVendorAdapter jpaAdapter, JpaEntityScanner jpaEntityScanner) {
+        return create(name, jpaAdapter, new PersistenceUnitPostProcessor[]{jpaEntityScanner});
+    }
+
+    /**
+     * @param postProcessors The post processors of the persistence unit, usually the entity scanner and provider specific adjustments
+     */
+    public static EntityManagerFactory create(String name, JpaVendorAdapter jpaAdapter, PersistenceUnitPostProcessor[] postProcessors) {
+        String url = "jdbc:h2:mem:" + name + "-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+        LocalContainerEntityManagerFactoryBean factory = new LocalContainerEntityManagerFactoryBean();
+        factory.setDataSource(new DriverManagerDataSource(url, "dbuser", "dbpassword"));
+        factory.setPersistenceXmlLocation("classpath*:META-INF/persistence.xml");
+        factory.setPersistenceUnitName("engioPers");
+        factory.setJpaVendorAdapter(jpaAdapter);
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("eclipselink.weaving", "false");
+        // eclipselink shares sessions of the same persistence unit unless they are named differently
+        properties.put("eclipselink.session-name", url);
+        factory.setJpaPropertyMap(properties);
+        factory.setPersistenceUnitPostProcessors(postProcessors);
+        factory.afterPropertiesSet();
+        return factory.getObject();
+    }
+}
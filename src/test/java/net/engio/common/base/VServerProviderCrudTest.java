@@ -0,0 +1,51 @@
+package net.engio.common.base;
+
+import net.engio.common.domain.VServer;
+import net.engio.daoism.dao.IPersistenceProvider;
+import net.engio.daoism.dao.ITypedDao;
+import net.engio.daoism.dao.TypedDao;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Runs all CRUD tests against a DAO of {@link VServer}s that uses the persistence provider of the subclass.
+ * The provider is obtained for each operation, thus subclasses can create it in their set up.
+ */
+public abstract class VServerProviderCrudTest extends SpringAwareCrudTest<String, VServer> {
+
+    protected final ITypedDao<String, VServer> dao = new TypedDao<String, VServer>(String.class, VServer.class) {
+        @Override
+        protected IPersistenceProvider getPersistenceProvider() {
+            return provider();
+        }
+    };
+
+    /**
+     * The persistence provider under test
+     */
+    protected abstract IPersistenceProvider provider();
+
+    @Override
+    protected VServer createValidEntity() {
+        VServer vserver = new VServer();
+        vserver.setHost(System.currentTimeMillis() + "");
+        return vserver;
+    }
+
+    @Override
+    protected void modifyEntity(VServer which) {
+        which.setHost(UUID.randomUUID().toString());
+    }
+
+    @Override
+    protected ITypedDao<String, VServer> getDao() {
+        return dao;
+    }
+
+    @Override
+    protected void addEntities(List<VServer> entities) {
+        entities.add(createValidEntity());
+        entities.add(createValidEntity());
+    }
+}
@@ -3,9 +3,12 @@ package net.engio.common.domain;
 import net.engio.daoism.Persistent;
 import net.engio.daoism.dao.IUnitOfWork;
 import net.engio.daoism.dao.jpa.JpaPersistenceProvider;
+import net.engio.daoism.dao.sql.SqlDialects;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -18,11 +21,34 @@ public class DbPersistenceProvider extends JpaPersistenceProvider {
     @PersistenceContext
     private EntityManager em;
 
+    public DbPersistenceProvider() {
+        setSqlDialect(SqlDialects.H2);
+    }
+
     @Override
     public EntityManager entityManager() {
         return em;
     }
 
+    @Override
+    public boolean isTransactionActive() {
+        return TransactionSynchronizationManager.isActualTransactionActive();
+    }
+
+    @Override
+    protected void afterTransaction(final Runnable callback) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            callback.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                callback.run();
+            }
+        });
+    }
+
     @Transactional(propagation = Propagation.REQUIRED)
     public <D extends Persistent<?>> D persist(Class<D> domainClass, D domainObject) {
         return super.persist(domainClass, domainObject);
@@ -33,11 +59,31 @@ public class DbPersistenceProvider extends JpaPersistenceProvider {
         return super.persistAll(domainClass, domainObjects);
     }
 
+    @Transactional(propagation = Propagation.REQUIRED)
+    public <D extends Persistent<?>> List<D> persistAll(Class<D> domainClass, List<D> domainObjects, int batchSize) {
+        return super.persistAll(domainClass, domainObjects, batchSize);
+    }
+
+    @Transactional(propagation = Propagation.REQUIRED)
+    public <D extends Persistent<?>> boolean upsert(Class<D> domainClass, D domainObject) {
+        return super.upsert(domainClass, domainObject);
+    }
+
+    @Transactional(propagation = Propagation.REQUIRED)
+    public <D extends Persistent<?>> boolean upsertAll(Class<D> domainClass, Collection<D> domainObjects) {
+        return super.upsertAll(domainClass, domainObjects);
+    }
+
     @Transactional(propagation = Propagation.REQUIRED)
     public <D extends Persistent<?>> boolean deleteAll(Class<D> domainClass, Collection<D> domainObjects) {
         return super.deleteAll(domainClass, domainObjects);
     }
 
+    @Transactional(propagation = Propagation.REQUIRED)
+    public <D extends Persistent<?>> boolean bulkDelete(Class<D> domainClass, Collection<D> domainObjects, boolean checkVersion) {
+        return super.bulkDelete(domainClass, domainObjects, checkVersion);
+    }
+
     @Transactional(propagation = Propagation.REQUIRED)
     public <D extends Persistent<?>> boolean delete(Class<D> domainClass, D domainObject) {
         return super.delete(domainClass, domainObject);
@@ -15,13 +15,26 @@ public class Queries {
 
         public static final String ByUuid = "vserver-by-uuid";
         public static final String ByHost = "vserver-by-host";
+        public static final String Page = "vserver-page";
 
-        public static final Query.NamedQuery ByUuid(String uuid){
-            return Query.Named(ByUuid).set("UUID").to(uuid);
+        private static final Query.Template ByUuidTemplate = Query.NamedTemplate(ByUuid, "UUID");
+        private static final Query.Template ByHostTemplate = Query.NamedTemplate(ByHost, "HOST");
+        private static final Query.Template PageTemplate = Query.NamedTemplate(Page);
+
+        public static final Query.BoundQuery ByUuid(String uuid){
+            return ByUuidTemplate.bind(uuid);
+        }
+
+        public static final Query.BoundQuery ByHost(String pServerUuid){
+            return ByHostTemplate.bind(pServerUuid);
+        }
+
+        public static final Query.BoundQuery FirstPage(int pageSize){
+            return PageTemplate.bind().seek("LAST", "uuid", "").setMaxResults(pageSize);
         }
 
-        public static final Query.NamedQuery ByHost(String pServerUuid){
-            return Query.Named(ByHost).set("HOST").to(pServerUuid);
+        public static final Query.BoundQuery NextPage(Query.Seek continuation, int pageSize){
+            return PageTemplate.bind().seek(continuation).setMaxResults(pageSize);
         }
 
     }
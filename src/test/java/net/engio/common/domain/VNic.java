@@ -0,0 +1,33 @@
+package net.engio.common.domain;
+
+
+import javax.persistence.*;
+
+
+@Entity
+public class VNic extends VResource{
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    private VServer server;
+
+    @Column
+    private String mac;
+
+    public VServer getServer() {
+        return server;
+    }
+
+    public VNic setServer(VServer server) {
+        this.server = server;
+        return this;
+    }
+
+    public String getMac() {
+        return mac;
+    }
+
+    public VNic setMac(String mac) {
+        this.mac = mac;
+        return this;
+    }
+}
@@ -1,8 +1,12 @@
 package net.engio.common.domain;
 
 
+import net.engio.daoism.dao.query.Options;
+
 import javax.persistence.*;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 
 @NamedQueries({
@@ -11,11 +15,16 @@ import java.util.Date;
                 query = "SELECT vs FROM VServer vs WHERE vs.uuid = :UUID"),
         @NamedQuery(
                 name = Queries.VServer.ByHost,
-                query = "SELECT vs FROM VServer vs WHERE vs.host = :HOST")
+                query = "SELECT vs FROM VServer vs WHERE vs.host = :HOST"),
+        @NamedQuery(
+                name = Queries.VServer.Page,
+                query = "SELECT vs FROM VServer vs WHERE vs.uuid > :LAST ORDER BY vs.uuid")
 })
 @Entity
 public class VServer extends VResource{
 
+    public static final Options.FetchPlan WithNics = Options.FetchPlan("vserver-with-nics").fetch("nics");
+
     private static  final long tomorrow = System.currentTimeMillis() + 1000 * 60 * 60 *24 * 2;
 
     @Temporal(value = TemporalType.DATE)
@@ -28,6 +37,13 @@ public class VServer extends VResource{
     @Column(name = "v_host")
     private String host;
 
+    @OneToMany(mappedBy = "server")
+    private List<VNic> nics = new ArrayList<VNic>();
+
+    public List<VNic> getNics() {
+        return nics;
+    }
+
     public String getHost() {
         return host;
     }